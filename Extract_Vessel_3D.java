@@ -109,12 +109,16 @@ public class Extract_Vessel_3D implements PlugInFilter
         gd.addNumericField("Hole fill iterations", Extractor3D.HOLE_FILL_ITERATIONS, 0);
         gd.addNumericField("Hole Fill directions", Extractor3D.HOLE_FILL_DIRECTIONS, 0);
         gd.addNumericField("Hole Fill radius", Extractor3D.HOLE_FILL_RADIUS, 0);
+        String[] holeFillAlgs = {"Passes", "Frontier", "Parallel frontier"};
+        gd.addChoice("Hole fill algorithm", holeFillAlgs, "Passes");
         gd.addCheckbox("Median filter", Extractor3D.MEDIAN_FILTER);
         gd.addNumericField("Median filter size", Extractor3D.MEDIAN_FILTER_SIZE, 0);
         gd.addNumericField("Median filter std devs above", Extractor3D.MEDIAN_FILTER_STD_DEV_ABOVE, 1);
+        gd.addCheckbox("3-D median filter", false);
         
         gd.addCheckbox("Show Intermediate steps", false);
         gd.addCheckbox("Bubble fill by slice", false);
+        gd.addCheckbox("Concurrent region growing", false);
         
         Extractor3D extractor = new Extractor3D();
         
@@ -144,15 +148,21 @@ public class Extract_Vessel_3D implements PlugInFilter
         _holeFillIt = (int)gd.getNextNumber();
         _holeFillDirections = (int)gd.getNextNumber();
         _holeFillRadius = (int)gd.getNextNumber();
+        String holeFillAlg = gd.getNextChoice();
+        int holeFillAlgorithm = HoleFill.HOLE_FILL_PASSES;
+        if (holeFillAlg.equals("Frontier")) holeFillAlgorithm = HoleFill.HOLE_FILL_FRONTIER;
+        else if (holeFillAlg.equals("Parallel frontier")) holeFillAlgorithm = HoleFill.HOLE_FILL_FRONTIER_PARALLEL;
         _medianFilterSize = (int)gd.getNextNumber();
         _medFilterStdDevFactor = (double)gd.getNextNumber();
         _doMedianFilter = gd.getNextBoolean();
+        boolean medianFilter3D = gd.getNextBoolean();
         boolean showSteps = gd.getNextBoolean();
         
         _bubbleFillAlgorithm = BubbleFill.BUBBLE_FILL_2D_PLANES;
         boolean bubbleFillBySlice = gd.getNextBoolean();
         if (bubbleFillBySlice == true) _bubbleFillAlgorithm = BubbleFill.BUBBLE_FILL_2D_PLANES;
         else _bubbleFillAlgorithm = BubbleFill.BUBBLE_FILL_3D;
+        boolean concurrentGrow = gd.getNextBoolean();
         
         JFrame dialog = this.makeRecordSegmentationFrame();
         dialog.setVisible(true);
@@ -164,6 +174,7 @@ public class Extract_Vessel_3D implements PlugInFilter
         {
             extractor.setMedFilterStdDevAbove(_medFilterStdDevFactor);
             extractor.setMedianFilterSize(_medianFilterSize);
+            if (medianFilter3D) extractor.setMedianFilterAlgorithm(MedianFilter.HISTOGRAM_3D);
         }
         extractor.setScalpDist(_scalpDist);
         extractor.setMaxChisq(_chisqMax);
@@ -175,9 +186,11 @@ public class Extract_Vessel_3D implements PlugInFilter
         extractor.setFillHolesTimes(_holeFillIt);
         extractor.setHoleFillDirections(_holeFillDirections);
         extractor.setHoleFillRadius(_holeFillRadius);
+        extractor.setHoleFillAlgorithm(holeFillAlgorithm);
         
         extractor.setClusterSizeThreshold(_cluster3Dmin);
         extractor.setBubbleFillAlgorithm(_bubbleFillAlgorithm);
+        extractor.setConcurrentGrow(concurrentGrow);
         long start = System.currentTimeMillis();
         _segImage = extractor.segment(_imp);
         long duration = System.currentTimeMillis() - start;
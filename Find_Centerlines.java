@@ -32,6 +32,8 @@ import ktdiedrich.db.aneurysm.Inserts;
 import ktdiedrich.imagek.CenterOfMass;
 import ktdiedrich.imagek.Centerlines;
 import ktdiedrich.imagek.MIP;
+import ktdiedrich.imagek.DistanceFromEdge;
+import ktdiedrich.imagek.ShortestPaths;
 import ktdiedrich.util.TempProperties;
 import ij.*;
 import ij.gui.GenericDialog;
@@ -111,6 +113,9 @@ public class Find_Centerlines implements PlugInFilter {
         gd.addCheckbox("Fix badEnds", false);
         gd.addCheckbox("Centerline tortuosity", true);
         gd.addCheckbox("DFE weighted COM cost function", true);
+        gd.addCheckbox("Compact voxel graph", false);
+        gd.addCheckbox("Parallel tree end centerlines", false);
+        gd.addCheckbox("Save steps as chunked volumes", false);
         
         String[] axises = {"X", "Y", "Z"};
         gd.addChoice("MIP axis", axises, "Z");
@@ -122,6 +127,12 @@ public class Find_Centerlines implements PlugInFilter {
         		Inserts.VELOC_DFECOM_NAME, Inserts.DFE_NAME, Inserts.VELOC_COST_NAME};
         gd.addChoice("Centerline algorithm", centAlgs, Inserts.DFE_WEIGHTED_COM_NAME);
         
+        String[] queues = {"Priority queue", "Indexed heap"};
+        gd.addChoice("Shortest path queue", queues, "Priority queue");
+        
+        String[] dfeAlgs = {"26 rays", "Exact EDT"};
+        gd.addChoice("Distance from edge", dfeAlgs, "26 rays");
+        
         Button centerlineB = new Button("Add centerline positive control image");
         centerlineB.addActionListener(new SetImageFileName(SetImageFileName.CENTERLINE_POSTIVE_CONTROL));
         gd.add(centerlineB);
@@ -175,6 +186,14 @@ public class Find_Centerlines implements PlugInFilter {
         
         _centerlines.setCenterlineAlgorithm(centAlgId);
         
+        String queue = gd.getNextChoice();
+        if (queue.equals("Indexed heap")) _centerlines.setQueueType(ShortestPaths.INDEXED_HEAP);
+        else _centerlines.setQueueType(ShortestPaths.PRIORITY_QUEUE);
+        
+        String dfeAlg = gd.getNextChoice();
+        if (dfeAlg.equals("Exact EDT")) _centerlines.setDfeAlgorithm(DistanceFromEdge.EXACT_EDT);
+        else _centerlines.setDfeAlgorithm(DistanceFromEdge.RAY_26);
+        
         _centerlines.recordPanel();
         _centerlines.setMipAxis(axisType);
         _centerlines.setDfeThreshold( (float)gd.getNextNumber() );
@@ -202,6 +221,9 @@ public class Find_Centerlines implements PlugInFilter {
         _centerlines.setFixBadEnds(gd.getNextBoolean());
         _centerlines.setMeasureCenterlines(gd.getNextBoolean());
         _centerlines.setDfeWeightedCOM(gd.getNextBoolean());
+        _centerlines.setCompactGraph(gd.getNextBoolean());
+        _centerlines.setParallelEnds(gd.getNextBoolean());
+        _centerlines.setChunkedVolumes(gd.getNextBoolean());
         
         if (tp != null)
         {
@@ -35,15 +35,12 @@ import ktdiedrich.db.aneurysm.Queries;
 import ktdiedrich.db.aneurysm.Updates;
 import ktdiedrich.imagek.ImageData3D;
 import ktdiedrich.imagek.Message;
-import ktdiedrich.imagek.Rotate3D;
 import ktdiedrich.util.TempProperties;
 import ij.IJ;
 import ij.ImagePlus;
-import ij.ImageStack;
 import ij.gui.GenericDialog;
 import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
-import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ij.process.StackProcessor;
 
@@ -99,6 +96,7 @@ public class Open_Raw_Image implements PlugIn
         gd.addCheckbox("Little Endian byte order", false);
         gd.addCheckbox("Rotate face up", false);
         gd.addCheckbox("Flip Z", true);
+        gd.addCheckbox("Memory map raw file (read only)", false);
         gd.showDialog();
         if (gd.wasCanceled()) {
             IJ.error("PlugIn canceled!");
@@ -109,6 +107,7 @@ public class Open_Raw_Image implements PlugIn
         _imageData3D.setIntelByteOrder(gd.getNextBoolean());
         boolean rotateFaceUp = gd.getNextBoolean();
         boolean flipZ = gd.getNextBoolean();
+        _imageData3D.setMapped(gd.getNextBoolean());
         _imageData3D.setDisplay(false);
         int subjectId = _imageData3D.getSubjectId(_directory);
         JFrame dialog = this.makeRecordImageFrame(subjectId);
@@ -116,23 +115,7 @@ public class Open_Raw_Image implements PlugIn
         
         try
         {
-        	ImagePlus image = _imageData3D.getImage(_directory, _filename);
-    	    if (rotateFaceUp)
-    	    {
-	        	ImageStack stack = image.getStack();
-	    	    ImageStack rStack = new ImageStack(image.getHeight(), image.getWidth());
-	    	    for (int i=1; i<= stack.getSize(); i++)
-	    	    {
-	    	    	ImageProcessor ip = stack.getProcessor(i);
-	    	    	rStack.addSlice(""+i, ip.rotateRight());
-	    	    }
-	    	    image.setStack(image.getShortTitle(), rStack);
-	    	    
-    	    }
-    	    if (flipZ)
-    	    {
-    	    	image = Rotate3D.flipZ(image);
-    	    }
+        	ImagePlus image = _imageData3D.getImage(_directory, _filename, true, rotateFaceUp, flipZ);
     	    image.show();
     	    image.updateAndDraw();
         	_panel.load();
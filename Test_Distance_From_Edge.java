@@ -0,0 +1,33 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich 
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+import ktdiedrich.imagek.DistanceFromEdge;
+
+import ij.plugin.*;
+import ij.text.TextWindow;
+
+/** Test the parallel 26 ray distance from edge is the same as one thread 
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class Test_Distance_From_Edge implements PlugIn
+{
+    public void run(String s) 
+    {        
+        new TextWindow("Test Distance From Edge", DistanceFromEdge.tests(), 600, 400);
+    }
+}
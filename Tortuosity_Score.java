@@ -16,6 +16,7 @@
  *
  *=========================================================================*/
 
+import ktdiedrich.imagek.DistanceFromEdge;
 import ktdiedrich.imagek.TortuosityScore;
 import ij.IJ;
 import ij.ImagePlus;
@@ -42,6 +43,8 @@ public class Tortuosity_Score implements PlugInFilter
         GenericDialog gd = new GenericDialog("Tortuosity_Score");
         gd.addNumericField("Border Distance From Edge", 2, 0);
         gd.addCheckbox("Show Intermediate steps", false);
+        String[] dfeAlgs = {"26 rays", "Exact EDT"};
+        gd.addChoice("Distance from edge", dfeAlgs, "26 rays");
         gd.showDialog();
         if (gd.wasCanceled()) {
             IJ.error("PlugIn canceled!");
@@ -49,10 +52,12 @@ public class Tortuosity_Score implements PlugInFilter
         }
         int borderDFE = (int)gd.getNextNumber();
         boolean showSteps = gd.getNextBoolean();
+        String dfeAlg = gd.getNextChoice();
         
         TortuosityScore scorer = new TortuosityScore();
         scorer.setBorderDFE(borderDFE);
         scorer.setShowSteps(showSteps);
+        if (dfeAlg.equals("Exact EDT")) scorer.setDfeAlgorithm(DistanceFromEdge.EXACT_EDT);
         double score = scorer.score3D(_imp.getStack());
         new TextWindow("Normalized Tortuosity Score DFE: "+scorer.getBorderDFE(), 
                 ""+score, 400, 200);
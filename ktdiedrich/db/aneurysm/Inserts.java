@@ -19,6 +19,10 @@
 package ktdiedrich.db.aneurysm;
 
 import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.*;
 
 import ktdiedrich.db.DbConn;
@@ -54,6 +58,9 @@ public class Inserts
     public static final int VELOC_COST = 12;
     public static final String VELOC_COST_NAME = "Velocity Cost";
     
+    /** Queued DFM and coordinate rows sent in one batch */
+    public static final int BATCH_SIZE = 500;
+    
 	private Connection _dbConn;
 	private PreparedStatement _image;
 	private PreparedStatement _subject;
@@ -68,6 +75,11 @@ public class Inserts
 	private PreparedStatement _arteryDisplay;
 	private Queries _queries;
 	private boolean _isNewImage;
+	private int _batchSize;
+	private int _dfmBatch, _coordinateBatch;
+	private boolean _transaction, _autoCommit;
+	// a tortuosity was inserted, the cached arteries change when it commits 
+	private boolean _newTortuosity;
 	
 	public Inserts(Connection dbConn)
 		throws SQLException 
@@ -75,10 +87,12 @@ public class Inserts
 		_dbConn = dbConn;
 		_image = dbConn.prepareStatement("insert into image(filename, directory, mri_id, xres, yres, zres, subject_id, examdate, height, weight, ageatexam) values(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
 		_subject = dbConn.prepareStatement("insert into subject(subject_id, sex, birthdate) values(?, ?, ?)");
-		_centerlinetortuosity = dbConn.prepareStatement("insert into centerlinetortuosity(artery_id, centerline_id, startx, starty, startz, endx, endy, endz, algorithm_id) values(?,?,?,?,?,?,?,?, ?)");
+		_centerlinetortuosity = dbConn.prepareStatement("insert into centerlinetortuosity(artery_id, centerline_id, startx, starty, startz, endx, endy, endz, algorithm_id) values(?,?,?,?,?,?,?,?, ?)", 
+				Statement.RETURN_GENERATED_KEYS);
 		_dfm = dbConn.prepareStatement("insert into dfm(tortuosity_id, length, distance, dfm, dfe, direction) values(?, ?, ?, ?, ?, ?)");
 		_tortuosityCoordinate = dbConn.prepareStatement("insert into tortuositycoordinate (tortuosity_id, x, y, z) values (?, ?, ?, ?) ");
-		_centerline = dbConn.prepareStatement("insert into centerline(dfethreshold, minlinelength, segmentation_id, weighta, weightb, xres, yres, zres, algorithm_id) values(?, ?, ?, ?, ?, ?, ?, ?, ?)");
+		_centerline = dbConn.prepareStatement("insert into centerline(dfethreshold, minlinelength, segmentation_id, weighta, weightb, xres, yres, zres, algorithm_id) values(?, ?, ?, ?, ?, ?, ?, ?, ?)", 
+				Statement.RETURN_GENERATED_KEYS);
 		_segmentation = dbConn.prepareStatement("insert into segmentation (min2dseed, min3dcluster, "+
 					"maxchisqrsmooth, voxelzdiff, hist2dthres, scalpskull, hollfillit, holefillthres, "+
 					"holefillneighborhood, medfiltersize, medfilterstdevabove, image_id, algorithm_id, filename, directory) values(?,?,?,?,?,?,?,?,?,?,?,?,?, ?, ?) ");
@@ -87,6 +101,24 @@ public class Inserts
 		_rating = dbConn.prepareStatement("insert into rating(rateexperiment_id, subject_id, artery_id, rating) values(?, ?, ?, ?)");
 		_arteryDisplay = dbConn.prepareStatement("insert into arterydisplay(subject_id, artery_id, arterydisplaytype_id, directory, filename) values(?, ?, ?, ?, ?)");
 		_queries = new Queries(_dbConn);
+		_batchSize = BATCH_SIZE;
+	}
+	/** @return the first generated key of the insert or 0 if the driver returns none */
+	private static int generatedKey(PreparedStatement statement)
+		throws SQLException 
+	{
+		ResultSet keys = statement.getGeneratedKeys();
+		try
+		{
+			if (keys != null && keys.next())
+				return keys.getInt(1);
+		}
+		finally
+		{
+			if (keys != null)
+				keys.close();
+		}
+		return 0;
 	}
 	public int insertSubjectartery(int subject_id, int artery_id, int arteryshape_id)
 		throws SQLException 
@@ -159,7 +191,8 @@ public class Inserts
 		int u = _centerline.executeUpdate();
 		if (u > 0)
 		{
-			return _queries.maxCenterlineId();
+			int id = generatedKey(_centerline);
+			return id > 0 ? id: _queries.maxCenterlineId();
 		}
 		return 0;
 	}
@@ -185,6 +218,125 @@ public class Inserts
 		_tortuosityCoordinate.executeUpdate();
 	}
 	
+	/** Queue a dfm row, the rows are sent every getBatchSize() rows and by flush(). */
+	public void addDFM(int tortuosity_id, float length, float distance, float dfm, float dfe, String direction)
+		throws SQLException 
+	{
+		_dfm.setInt(1, tortuosity_id);
+		_dfm.setFloat(2, length);
+		_dfm.setFloat(3, distance);
+		_dfm.setFloat(4, dfm);
+		_dfm.setFloat(5, dfe);
+		_dfm.setString(6, direction);
+		_dfm.addBatch();
+		if (++_dfmBatch >= _batchSize)
+		{
+			_dfm.executeBatch();
+			_dfmBatch = 0;
+		}
+	}
+	/** Queue a tortuositycoordinate row, the rows are sent every getBatchSize() rows and by flush(). */
+	public void addCoordinate(int tortuosity_id, int x, int y, int z)
+		throws SQLException 
+	{
+		_tortuosityCoordinate.setInt(1, tortuosity_id);
+		_tortuosityCoordinate.setInt(2, x);
+		_tortuosityCoordinate.setInt(3, y);
+		_tortuosityCoordinate.setInt(4, z);
+		_tortuosityCoordinate.addBatch();
+		if (++_coordinateBatch >= _batchSize)
+		{
+			_tortuosityCoordinate.executeBatch();
+			_coordinateBatch = 0;
+		}
+	}
+	/** Send the queued dfm and coordinate rows. */
+	public void flush()
+		throws SQLException 
+	{
+		if (_dfmBatch > 0)
+		{
+			_dfm.executeBatch();
+			_dfmBatch = 0;
+		}
+		if (_coordinateBatch > 0)
+		{
+			_tortuosityCoordinate.executeBatch();
+			_coordinateBatch = 0;
+		}
+	}
+	/** Start a transaction for the inserts of an artery, ended by commit() or rollback(). */
+	public void begin()
+		throws SQLException 
+	{
+		if (!_transaction)
+		{
+			_autoCommit = _dbConn.getAutoCommit();
+			_dbConn.setAutoCommit(false);
+			_transaction = true;
+		}
+	}
+	/** Send the queued rows and commit the transaction started by begin(). When the commit fails the transaction 
+	 * is still open and is ended by rollback(). */
+	public void commit()
+		throws SQLException 
+	{
+		flush();
+		if (_transaction)
+		{
+			// a failed commit stays in the transaction for rollback() 
+			_dbConn.commit();
+			endTransaction();
+			invalidateTortuosity();
+		}
+	}
+	/** Drop the queued rows and roll back the transaction started by begin(). */
+	public void rollback()
+		throws SQLException 
+	{
+		_dfm.clearBatch();
+		_tortuosityCoordinate.clearBatch();
+		_dfmBatch = 0;
+		_coordinateBatch = 0;
+		if (_transaction)
+		{
+			try
+			{
+				_dbConn.rollback();
+			}
+			finally
+			{
+				endTransaction();
+			}
+			// queries in the transaction may have cached the rolled back rows 
+			invalidateTortuosity();
+		}
+	}
+	private void invalidateTortuosity()
+	{
+		if (_newTortuosity)
+		{
+			_queries.getCache().invalidate(Queries.ARTERIES_FOR_SUBJECT);
+			_queries.getCache().invalidate(Queries.SUBJECT_ARTERY_IMAGES);
+			_newTortuosity = false;
+		}
+	}
+	private void endTransaction()
+		throws SQLException 
+	{
+		_transaction = false;
+		_dbConn.setAutoCommit(_autoCommit);
+	}
+	public int getBatchSize() 
+	{
+		return _batchSize;
+	}
+	/** Rows of each of the dfm and coordinate batches sent together. */
+	public void setBatchSize(int batchSize) 
+	{
+		_batchSize = Math.max(1, batchSize);
+	}
+	
 	/** Insert if the image is new and not in the database. 
 	 * @return the previous or new image_id or 0 if insert failed. */
 	public int insertNewImage(String filename, String directory, int mri_id, float xres, float yres, float zres, 
@@ -260,7 +412,12 @@ public class Inserts
 	    int u = _centerlinetortuosity.executeUpdate();
 	    if (u > 0)
 	    {
-	        return _queries.maxCenterlineTortuosityId(); 
+	    	// the subject has a new artery centerline
+	    	_newTortuosity = true;
+	    	if (!_transaction)
+	    		invalidateTortuosity();
+	    	int id = generatedKey(_centerlinetortuosity);
+	        return id > 0 ? id: _queries.maxCenterlineTortuosityId(); 
 	    }
 	    return 0;
 	}
@@ -318,4 +475,193 @@ public class Inserts
 		int u = _arteryDisplay.executeUpdate();
 		return u;
 	}
+	/** Tables with the columns the inserts and queries use, for checking the inserts in an embedded database */
+	private static final String[] CHECK_TABLES = {
+		"create table subject (subject_id int primary key, sex varchar(10), birthdate date, note varchar(256))",
+		"create table brand (brand_id int primary key, brand varchar(20))",
+		"create table mri (mri_id int primary key, tesla float, brand_id int)",
+		"create table side (side_id int primary key, side varchar(20))",
+		"create table artery (artery_id int primary key, arteryname varchar(256), side_id int)",
+		"create table measurearteryview (artery_id int, arteryname varchar(256), side varchar(20))",
+		"create table variablearteryview (artery_id int, arteryname varchar(256), side varchar(20))",
+		"create table selectarteryview (artery_id int, arteryname varchar(256), side varchar(20))",
+		"create table arteryshape (arteryshape_id int primary key, arteryshape varchar(256))",
+		"create table image (image_id int auto_increment primary key, filename varchar(256), directory varchar(256), "+
+			"mri_id int, xres float, yres float, zres float, subject_id int, examdate date, height float, "+
+			"weight float, ageatexam int, note varchar(256), changedimage varchar(255))",
+		"create table segmentation (segmentation_id int auto_increment primary key, min2dseed int, min3dcluster int, "+
+			"maxchisqrsmooth double, voxelzdiff int, hist2dthres double, scalpskull int, hollfillit int, "+
+			"holefillthres int, holefillneighborhood int, medfiltersize int, medfilterstdevabove double, "+
+			"image_id int, algorithm_id int, filename varchar(256), directory varchar(256))",
+		"create table centerline (centerline_id int auto_increment primary key, dfethreshold float, "+
+			"minlinelength int, segmentation_id int, weighta float, weightb float, xres float, yres float, "+
+			"zres float, algorithm_id int, rescorrect varchar(10) default 'unknown')",
+		"create table centerlinetortuosity (tortuosity_id int auto_increment primary key, "+
+			"artery_id int not null references artery(artery_id), "+
+			"centerline_id int not null references centerline(centerline_id), startx int, starty int, startz int, "+
+			"endx int, endy int, endz int, algorithm_id int, usable varchar(10) default 'unknown')",
+		"create table dfm (tortuosity_id int not null references centerlinetortuosity(tortuosity_id), "+
+			"length float, distance float, dfm float, dfe float, direction varchar(10) not null)",
+		"create table tortuositycoordinate (tortuosity_id int not null references "+
+			"centerlinetortuosity(tortuosity_id), x int, y int, z int)",
+		"create table subjectartery (subject_id int, artery_id int, arteryshape_id int)",
+		"create table rater (rater_id int primary key, rater varchar(256))",
+		"create table ratescale (ratescale_id int primary key, low int, high int)",
+		"create table rateexperiment (rateexperiment_id int auto_increment primary key, ratescale_id int, "+
+			"rater_id int, expdate date)",
+		"create table rating (rateexperiment_id int, subject_id int, artery_id int, rating int)",
+		"create table arterydisplay (subject_id int, artery_id int, arterydisplaytype_id int, "+
+			"directory varchar(256), filename varchar(256))",
+		"insert into side (side_id, side) values (1, 'left')",
+		"insert into artery (artery_id, arteryname, side_id) values (1, 'Internal Carotid Artery', 1)"
+	};
+	private static int count(Connection conn, String table, String column, int id)
+		throws SQLException 
+	{
+		Statement st = conn.createStatement();
+		try
+		{
+			ResultSet res = st.executeQuery("select count(*) from "+table+" where "+column+"="+id);
+			res.next();
+			return res.getInt(1);
+		}
+		finally
+		{
+			st.close();
+		}
+	}
+	/** Check a committed batch, a batch rolled back after a failed insert or commit and the generated keys in an embedded 
+	 * database, the JDBC url is the first argument, an in memory H2 database in MySQL mode by default. */
+	public static void main(String[] args)
+		throws SQLException 
+	{
+		String url = args.length > 0 ? args[0]: "jdbc:h2:mem:inserts;MODE=MySQL";
+		Connection conn = DriverManager.getConnection(url);
+		boolean passed = true;
+		try
+		{
+			Statement st = conn.createStatement();
+			for (String sql: CHECK_TABLES)
+			{
+				st.executeUpdate(sql);
+			}
+			st.close();
+			Inserts inserts = new Inserts(conn);
+			// several batches and a partial batch sent by commit 
+			inserts.setBatchSize(4);
+			int rows = 10;
+			
+			inserts.begin();
+			int centerlineId = inserts.insertCenterline(2.0F, 10, 0, 1.0F, 1.0F, 0.4F, 0.4F, 0.8F, 
+					DFE_CENTERLINE_ALGORITHM);
+			int tortuosityId = inserts.insertCenterlineTortuosity(1, centerlineId, 0, 0, 0, 1, 1, rows, 
+					TORT_DFM_ALG);
+			for (int i=0; i < rows; i++)
+			{
+				inserts.addDFM(tortuosityId, i, i, 1.0F, 2.0F, "forward");
+				inserts.addCoordinate(tortuosityId, 0, 0, i);
+			}
+			inserts.commit();
+			int dfms = count(conn, "dfm", "tortuosity_id", tortuosityId);
+			int coordinates = count(conn, "tortuositycoordinate", "tortuosity_id", tortuosityId);
+			boolean ok = dfms == rows && coordinates == rows && conn.getAutoCommit();
+			System.out.println("Commit: dfm rows="+dfms+" coordinate rows="+coordinates+" of "+rows+
+					(ok ? " passed": " FAILED"));
+			passed &= ok;
+			
+			ok = centerlineId > 0 && centerlineId == inserts._queries.maxCenterlineId() && 
+				tortuosityId > 0 && tortuosityId == inserts._queries.maxCenterlineTortuosityId();
+			System.out.println("Generated keys: centerline_id="+centerlineId+" tortuosity_id="+tortuosityId+
+					(ok ? " passed": " FAILED"));
+			passed &= ok;
+			
+			int failedCenterlineId = 0, failedTortuosityId = 0;
+			boolean failed = false;
+			try
+			{
+				inserts.begin();
+				failedCenterlineId = inserts.insertCenterline(2.0F, 10, 0, 1.0F, 1.0F, 0.4F, 0.4F, 0.8F, 
+						DFE_CENTERLINE_ALGORITHM);
+				failedTortuosityId = inserts.insertCenterlineTortuosity(1, failedCenterlineId, 0, 0, 0, 1, 1, rows, 
+						TORT_DFM_ALG);
+				for (int i=0; i < rows; i++)
+				{
+					inserts.addDFM(failedTortuosityId, i, i, 1.0F, 2.0F, "forward");
+				}
+				// no tortuosity has this id 
+				inserts.addDFM(failedTortuosityId+1000, 0, 0, 1.0F, 2.0F, "forward");
+				inserts.commit();
+			}
+			catch (SQLException e)
+			{
+				failed = true;
+				inserts.rollback();
+			}
+			ok = failed && failedTortuosityId > 0 &&
+				count(conn, "centerline", "centerline_id", failedCenterlineId) == 0 &&
+				count(conn, "centerlinetortuosity", "tortuosity_id", failedTortuosityId) == 0 &&
+				count(conn, "dfm", "tortuosity_id", failedTortuosityId) == 0 &&
+				count(conn, "dfm", "tortuosity_id", tortuosityId) == rows && conn.getAutoCommit();
+			System.out.println("Rollback after failed insert: failed="+failed+(ok ? " passed": " FAILED"));
+			passed &= ok;
+			
+			// outside a transaction each insert commits 
+			int nextId = inserts.insertCenterlineTortuosity(1, centerlineId, 0, 0, 0, 1, 1, rows, TORT_DFM_ALG);
+			inserts.addDFM(nextId, 0, 0, 1.0F, 2.0F, "forward");
+			inserts.flush();
+			ok = nextId > 0 && nextId != tortuosityId && count(conn, "dfm", "tortuosity_id", nextId) == 1;
+			System.out.println("Insert without transaction: tortuosity_id="+nextId+(ok ? " passed": " FAILED"));
+			passed &= ok;
+			
+			// a connection whose commit fails once, the transaction must still be rolled back 
+			final Connection target = conn;
+			final boolean[] failCommit = {true};
+			Connection failing = (Connection)Proxy.newProxyInstance(Inserts.class.getClassLoader(), 
+				new Class<?>[] {Connection.class}, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] methodArgs)
+						throws Throwable
+					{
+						if (method.getName().equals("commit") && failCommit[0])
+						{
+							failCommit[0] = false;
+							throw new SQLException("Commit failed");
+						}
+						try
+						{
+							return method.invoke(target, methodArgs);
+						}
+						catch (InvocationTargetException e)
+						{
+							throw e.getCause();
+						}
+					}
+				});
+			Inserts failingInserts = new Inserts(failing);
+			int commitFailedId = 0;
+			failed = false;
+			try
+			{
+				failingInserts.begin();
+				commitFailedId = failingInserts.insertCenterlineTortuosity(1, centerlineId, 0, 0, 0, 1, 1, rows, 
+						TORT_DFM_ALG);
+				failingInserts.addDFM(commitFailedId, 0, 0, 1.0F, 2.0F, "forward");
+				failingInserts.commit();
+			}
+			catch (SQLException e)
+			{
+				failed = true;
+				failingInserts.rollback();
+			}
+			ok = failed && commitFailedId > 0 && 
+				count(conn, "centerlinetortuosity", "tortuosity_id", commitFailedId) == 0 &&
+				count(conn, "dfm", "tortuosity_id", commitFailedId) == 0 && conn.getAutoCommit();
+			System.out.println("Rollback after failed commit: failed="+failed+(ok ? " passed": " FAILED"));
+			passed &= ok;
+		}
+		finally
+		{
+			conn.close();
+		}
+		System.out.println(passed ? "Inserts passed": "Inserts FAILED");
+	}
 }
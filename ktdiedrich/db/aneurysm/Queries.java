@@ -72,10 +72,15 @@ public class Queries
 	private PreparedStatement _segmentationImage;
 	private PreparedStatement _segImageRes;
 	private Connection _dbConn;
+	private QueryCache _cache;
+	/** Cache names of the per subject queries */
+	public static final String ARTERIES_FOR_SUBJECT = "arteriesForSubject";
+	public static final String SUBJECT_ARTERY_IMAGES = "subjectArteryImages";
 	public Queries(Connection dbConn)
 		throws SQLException
 	{
 		_dbConn = dbConn;
+		_cache = QueryCache.forConnection(dbConn);
 		_hasSubjectId = dbConn.prepareStatement("select subject_id from subject where subject_id=?");
 		_mris = dbConn.prepareStatement("Select mri_id, tesla, brand from mri m, brand b where m.brand_id=b.brand_id");
 		_measureArteries = dbConn.prepareStatement("select artery_id, arteryname, side from measurearteryview ");
@@ -224,8 +229,19 @@ public class Queries
 		ResultSet res = _hasSubjectId.executeQuery();
 		return res.first();
 	}
+	/** @return mris from the cache of reference tables */
 	public Map<String, Integer> mris()
 		throws SQLException
+	{
+		return new HashMap<String, Integer>(_cache.reference("mris", new QueryCache.Loader<Map<String, Integer>>() {
+			public Map<String, Integer> load() throws SQLException
+			{
+				return loadMris();
+			}
+		}));
+	}
+	private Map<String, Integer> loadMris()
+		throws SQLException
 	{
 		Map<String, Integer> mri = new HashMap<String, Integer>();
 		ResultSet res = _mris.executeQuery();
@@ -239,7 +255,18 @@ public class Queries
 		return mri;
 	}
 	
+	/** @return measureArteries from the cache of reference tables */
 	public Map<String, Integer> measureArteries()
+		throws SQLException
+	{
+		return new HashMap<String, Integer>(_cache.reference("measureArteries", new QueryCache.Loader<Map<String, Integer>>() {
+			public Map<String, Integer> load() throws SQLException
+			{
+				return loadMeasureArteries();
+			}
+		}));
+	}
+	private Map<String, Integer> loadMeasureArteries()
 	throws SQLException
 	{
 		Map<String, Integer> m = new HashMap<String, Integer>();
@@ -254,8 +281,19 @@ public class Queries
 		return m;
 	}
 	
+	/** @return variableArteries from the cache of reference tables */
 	public Map<String, Integer> variableArteries()
 		throws SQLException
+	{
+		return new HashMap<String, Integer>(_cache.reference("variableArteries", new QueryCache.Loader<Map<String, Integer>>() {
+			public Map<String, Integer> load() throws SQLException
+			{
+				return loadVariableArteries();
+			}
+		}));
+	}
+	private Map<String, Integer> loadVariableArteries()
+		throws SQLException
 	{
 		Map<String, Integer> m = new HashMap<String, Integer>();
 		ResultSet res = _variableArteries.executeQuery();
@@ -269,7 +307,18 @@ public class Queries
 		return m;
 	}
 	
+	/** @return selectArteries from the cache of reference tables */
 	public Map<String, Integer> selectArteries()
+		throws SQLException
+	{
+		return new HashMap<String, Integer>(_cache.reference("selectArteries", new QueryCache.Loader<Map<String, Integer>>() {
+			public Map<String, Integer> load() throws SQLException
+			{
+				return loadSelectArteries();
+			}
+		}));
+	}
+	private Map<String, Integer> loadSelectArteries()
         throws SQLException
     {
         Map<String, Integer> m = new HashMap<String, Integer>();
@@ -284,7 +333,18 @@ public class Queries
         return m;
     }
 	
+	/** @return arteryShapes from the cache of reference tables */
 	public Map<String, Integer> arteryShapes()
+		throws SQLException
+	{
+		return new HashMap<String, Integer>(_cache.reference("arteryShapes", new QueryCache.Loader<Map<String, Integer>>() {
+			public Map<String, Integer> load() throws SQLException
+			{
+				return loadArteryShapes();
+			}
+		}));
+	}
+	private Map<String, Integer> loadArteryShapes()
         throws SQLException
     {
         Map<String, Integer> m = new HashMap<String, Integer>();
@@ -298,8 +358,20 @@ public class Queries
         return m;
     }
 	
-	/** Get a list of information and full path names to files with from the subject with the artery */
-	public List<SubjectArteryImage> subjectArteryImages(int subjectId, int arteryId)
+	/** Get a list of information and full path names to files with from the subject with the artery.
+	 * Recently used subjects and arteries come from the cache. */
+	public List<SubjectArteryImage> subjectArteryImages(final int subjectId, final int arteryId)
+		throws SQLException 
+	{
+		return new LinkedList<SubjectArteryImage>(_cache.subject(SUBJECT_ARTERY_IMAGES, subjectId+" "+arteryId, 
+				new QueryCache.Loader<List<SubjectArteryImage>>() {
+			public List<SubjectArteryImage> load() throws SQLException
+			{
+				return loadSubjectArteryImages(subjectId, arteryId);
+			}
+		}));
+	}
+	private List<SubjectArteryImage> loadSubjectArteryImages(int subjectId, int arteryId)
 		throws SQLException 
 	{
 		int queryArteryId = arteryId;
@@ -391,7 +463,19 @@ public class Queries
 		}
 		return xyz;
 	}
-	public Map<String, Integer> arteriesForSubject(int subjectId)
+	/** @return arteries with centerlines of the subject, recently used subjects come from the cache */
+	public Map<String, Integer> arteriesForSubject(final int subjectId)
+		throws SQLException 
+	{
+		return new HashMap<String, Integer>(_cache.subject(ARTERIES_FOR_SUBJECT, subjectId, 
+				new QueryCache.Loader<Map<String, Integer>>() {
+			public Map<String, Integer> load() throws SQLException
+			{
+				return loadArteriesForSubject(subjectId);
+			}
+		}));
+	}
+	private Map<String, Integer> loadArteriesForSubject(int subjectId)
 		throws SQLException 
 	{
 		_arteriesForSubject.setInt(1, subjectId);
@@ -408,7 +492,18 @@ public class Queries
         }
 		return m;
 	}
+	/** @return raters from the cache of reference tables */
 	public Map<String, Integer> raters()
+		throws SQLException
+	{
+		return new HashMap<String, Integer>(_cache.reference("raters", new QueryCache.Loader<Map<String, Integer>>() {
+			public Map<String, Integer> load() throws SQLException
+			{
+				return loadRaters();
+			}
+		}));
+	}
+	private Map<String, Integer> loadRaters()
     	throws SQLException
     {
 		Map<String, Integer> m = new HashMap<String, Integer>();
@@ -421,8 +516,19 @@ public class Queries
 		}
 		return m;
     }
+	/** @return rateScales from the cache of reference tables */
 	public Map<String, Integer> rateScales()
 		throws SQLException
+	{
+		return new HashMap<String, Integer>(_cache.reference("rateScales", new QueryCache.Loader<Map<String, Integer>>() {
+			public Map<String, Integer> load() throws SQLException
+			{
+				return loadRateScales();
+			}
+		}));
+	}
+	private Map<String, Integer> loadRateScales()
+		throws SQLException
 	{
 		Map<String, Integer> m = new HashMap<String, Integer>();
 		ResultSet res = _rateScales.executeQuery();
@@ -656,6 +762,11 @@ public class Queries
 		}
 		return data;
 	}
+	/** @return the cache of reference and per subject results shared with the other Queries of the database */
+	public QueryCache getCache()
+	{
+		return _cache;
+	}
 	public static void printMap(Map<String, Integer> map)
 	{
 		Set<String> keys = map.keySet();
@@ -0,0 +1,220 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.db.aneurysm;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Read through cache of query results shared by the Queries of one database. Small reference tables are kept
+ * until their time to live passes or they are invalidated, per subject results are kept in a least recently used
+ * map of at most getLruSize() entries for each query. Loads run outside the lock so a result may be loaded twice,
+ * a result loaded while the cache was invalidated isn't kept.
+ * @author ktdiedrich@gmail.com
+ * */
+public class QueryCache
+{
+	/** Time to live of cached results in milliseconds */
+	public static final long TTL = 10*60*1000L;
+	/** Per subject results kept for each query */
+	public static final int LRU_SIZE = 64;
+	private static final Map<String, QueryCache> _caches = new HashMap<String, QueryCache>();
+
+	/** Loads the result of a query on a miss. */
+	public interface Loader<V>
+	{
+		public V load() throws SQLException;
+	}
+	private static class Entry
+	{
+		Object value;
+		long time;
+		Entry(Object value, long time)
+		{
+			this.value = value;
+			this.time = time;
+		}
+	}
+	private class Lru extends LinkedHashMap<Object, Entry>
+	{
+		private static final long serialVersionUID = 1L;
+		Lru()
+		{
+			super(16, 0.75f, true);
+		}
+		protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest)
+		{
+			return size() > _lruSize;
+		}
+	}
+	private Map<String, Entry> _reference;
+	private Map<String, Lru> _subject;
+	private long _ttl;
+	private int _lruSize;
+	private long _hits, _misses;
+	// counts invalidations so loads that ran across one are not cached 
+	private long _generation;
+
+	public QueryCache()
+	{
+		_reference = new HashMap<String, Entry>();
+		_subject = new HashMap<String, Lru>();
+		_ttl = TTL;
+		_lruSize = LRU_SIZE;
+	}
+	/** @return the cache shared by the connections to the same database URL and user, or a cache of this 
+	 * connection that always queries when the URL can't be read */
+	public static QueryCache forConnection(Connection dbConn)
+	{
+		String key = null;
+		try
+		{
+			DatabaseMetaData meta = dbConn.getMetaData();
+			if (meta.getURL() != null)
+				key = meta.getURL()+" "+meta.getUserName();
+		}
+		catch (SQLException e)
+		{
+			e.printStackTrace();
+		}
+		if (key == null)
+		{
+			// without the database the results can't be shared 
+			QueryCache cache = new QueryCache();
+			cache.setTtl(0);
+			return cache;
+		}
+		synchronized (_caches)
+		{
+			QueryCache cache = _caches.get(key);
+			if (cache == null)
+			{
+				cache = new QueryCache();
+				_caches.put(key, cache);
+			}
+			return cache;
+		}
+	}
+	/** @return the cached result of the reference query or the result of the loader. */
+	@SuppressWarnings("unchecked")
+	public <V> V reference(String query, Loader<V> loader)
+		throws SQLException
+	{
+		long generation;
+		synchronized (this)
+		{
+			Entry e = _reference.get(query);
+			if (e != null && System.currentTimeMillis()-e.time < _ttl)
+			{
+				_hits++;
+				return (V)e.value;
+			}
+			_misses++;
+			generation = _generation;
+		}
+		V value = loader.load();
+		synchronized (this)
+		{
+			if (generation == _generation)
+				_reference.put(query, new Entry(value, System.currentTimeMillis()));
+		}
+		return value;
+	}
+	/** @return the cached result of the query with the key, such as a subject id, or the result of the loader. */
+	@SuppressWarnings("unchecked")
+	public <V> V subject(String query, Object key, Loader<V> loader)
+		throws SQLException
+	{
+		long generation;
+		synchronized (this)
+		{
+			Lru lru = _subject.get(query);
+			Entry e = lru == null ? null: lru.get(key);
+			if (e != null && System.currentTimeMillis()-e.time < _ttl)
+			{
+				_hits++;
+				return (V)e.value;
+			}
+			_misses++;
+			generation = _generation;
+		}
+		V value = loader.load();
+		synchronized (this)
+		{
+			if (generation != _generation)
+				return value;
+			Lru lru = _subject.get(query);
+			if (lru == null)
+			{
+				lru = new Lru();
+				_subject.put(query, lru);
+			}
+			lru.put(key, new Entry(value, System.currentTimeMillis()));
+		}
+		return value;
+	}
+	/** Remove the cached results of the query. */
+	public synchronized void invalidate(String query)
+	{
+		_generation++;
+		_reference.remove(query);
+		_subject.remove(query);
+	}
+	/** Remove all the cached results. */
+	public synchronized void invalidateAll()
+	{
+		_generation++;
+		_reference.clear();
+		_subject.clear();
+	}
+	public synchronized long getHits()
+	{
+		return _hits;
+	}
+	public synchronized long getMisses()
+	{
+		return _misses;
+	}
+	public synchronized void resetCounts()
+	{
+		_hits = 0;
+		_misses = 0;
+	}
+	public synchronized long getTtl()
+	{
+		return _ttl;
+	}
+	/** Milliseconds a cached result is used, 0 to always query. */
+	public synchronized void setTtl(long ttl)
+	{
+		_ttl = ttl;
+	}
+	public synchronized int getLruSize()
+	{
+		return _lruSize;
+	}
+	/** Results kept for each per subject query, the least recently used are removed. */
+	public synchronized void setLruSize(int lruSize)
+	{
+		_lruSize = Math.max(1, lruSize);
+	}
+}
@@ -48,7 +48,9 @@ public class Updates
 	{
 		_imageChangedimage.setString(1, changedimage);
 		_imageChangedimage.setInt(2, image_id);
-		return _imageChangedimage.executeUpdate();
+		int u = _imageChangedimage.executeUpdate();
+		_queries.getCache().invalidate(Queries.SUBJECT_ARTERY_IMAGES);
+		return u;
 	}
 	/** Overwrites note. */
 	public int updateSubjectNote(String note, int id)
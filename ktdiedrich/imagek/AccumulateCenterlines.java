@@ -63,6 +63,7 @@ public class AccumulateCenterlines
 	private short _bifMin, _bifMax;
 	private int _width, _height, _zSize;
 	private List<Graph> _segmentation;
+	private List<VoxelGraph> _compactSegmentation;
 	private boolean _centBackgroundAdded;
 	private boolean _bifBackgroundAdded;
 	private ImagePlus _accuracyIm;
@@ -192,6 +193,7 @@ public class AccumulateCenterlines
 					_centVoxels[n.z][n.row*_width+n.col] = (short)(val+BACKGROUND);
 				}
 			}
+			addCompactBackground(_centVoxels);
 			_centBackgroundAdded = true;
 		}
 	}
@@ -209,9 +211,24 @@ public class AccumulateCenterlines
 					_bifVoxels[n.z][n.row*_width+n.col] = (short)(valB+BACKGROUND);
 				}
 			}
+			addCompactBackground(_bifVoxels);
 			_bifBackgroundAdded = true;
 		}
 	}
+	/** Adds BACKGROUND value to the voxels of the compact segmentation graphs. */
+	private void addCompactBackground(short[][] voxels)
+	{
+		if (_compactSegmentation != null)
+		{
+			for (VoxelGraph g: _compactSegmentation)
+			{
+				for (int n=0; n < g.nodeCount(); n++)
+				{
+					voxels[g.z[n]][g.xy[n]] = (short)(voxels[g.z[n]][g.xy[n]]+BACKGROUND);
+				}
+			}
+		}
+	}
 	public void addCenterline(List<CenterlineGraph> centerlineGraphs)
 	{
 		_maxPossible++;
@@ -638,6 +655,10 @@ public class AccumulateCenterlines
 	public String getFileBaseName() {
 		return _fileBaseName;
 	}
+	/** Segmentation of compact graphs the background is added to besides the segmentation graphs, null for none. */
+	public void setCompactSegmentation(List<VoxelGraph> compactSegmentation) {
+		_compactSegmentation = compactSegmentation;
+	}
 	public void setFileBaseName(String fileBaseName) {
 		_fileBaseName = fileBaseName;
 	}
@@ -252,14 +252,28 @@ public class ArteryViewer
 		    			
 			        		for (String p: segPaths)
 			        		{
-			        			File zipSeg = new File(p+".zip");
-			        			if (zipSeg.exists())
+			        			File chunkedSeg = new File(p+ChunkedVolume.EXTENSION);
+			        			ImagePlus cropSegIm = null;
+			        			if (chunkedSeg.exists())
 			        			{
-			        				p = zipSeg.getAbsolutePath();
+			        				// decode only the blocks of the artery 
+			        				IJ.log("ArteryViewer segmentation: "+chunkedSeg.getPath());
+			        				cropSegIm = ChunkedVolume.read(chunkedSeg.getPath(), 
+			        						new CoordinateRange(minX, maxX, minY, maxY, minZ, maxZ));
+			        				if (cropSegIm.getStackSize() == 0)
+			        					cropSegIm = null;
+			        			}
+			        			else
+			        			{
+			        				File zipSeg = new File(p+".zip");
+			        				if (zipSeg.exists())
+			        				{
+			        					p = zipSeg.getAbsolutePath();
+			        				}
+			        				IJ.log("ArteryViewer segmentation: "+p);
+			        				ImagePlus segIm = IJ.openImage(p);
+			        				cropSegIm = Cropper.crop3d(segIm, minX, maxX, minY, maxY, minZ, maxZ);
 			        			}
-			        			IJ.log("ArteryViewer segmentation: "+p);
-			        			ImagePlus segIm = IJ.openImage(p);
-			        			ImagePlus cropSegIm = Cropper.crop3d(segIm, minX, maxX, minY, maxY, minZ, maxZ);
 			        			if (cropSegIm != null)
 			        			{
 				        			if (z2int)
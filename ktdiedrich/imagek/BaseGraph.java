@@ -23,6 +23,7 @@ import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
 import ij.text.TextWindow;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -30,6 +31,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 
+import ktdiedrich.util.ParallelLines;
+
 
 /** Generix Graph class. 
  * @author Karl Diedrich <ktdiedrich@gmail.com>
@@ -78,26 +81,18 @@ public class BaseGraph<T extends Comparable<T> >
     /** @param voxels Cost function value for each voxel of a 3D image 
      * @param cost is the weights if the nodes in the graph 
      * @return a list of nodes.with adjacency lists. */
-    public List<BaseNode<Short> > makeAdjList(short[][] voxels, int width, int height)
+    public List<BaseNode<Short> > makeAdjList(final short[][] voxels, int width, int height)
     {
-        int zSize = voxels.length;
-        Map<String, BaseNode<Short> > nodePos = new HashMap<String, BaseNode<Short> >();
-        List<BaseNode<Short> > allNodes = new LinkedList<BaseNode<Short> >();
-       
-        for (int z=1; z<(zSize-1); z++)
-        {
-            for (int row=1; row<(height-1); row++)
-            {
-                for (int col=1; col<(width-1); col++)
-                {
-                    if (voxels[z][row*width+col] > 0.0F)
-                    {
-                        findAdjacents(new Position(col, row, z), voxels, width, nodePos, allNodes);
-                    }
-                }
-            }
-        }
-        return allNodes;
+        return makeAdjList(new VoxelNodes<Short>() {
+        	public boolean isNode(int z, int i)
+        	{
+        		return voxels[z][i] > 0.0F;
+        	}
+        	public BaseNode<Short> makeNode(Position p, int z, int i)
+        	{
+        		return new BaseNode<Short>(voxels[z][i], p);
+        	}
+        }, voxels.length, width, height);
     }
     public void findAdjacents(Position p, short[][] voxels, int width, 
             Map<String, BaseNode<Short> > nodePos, 
@@ -184,26 +179,100 @@ public class BaseGraph<T extends Comparable<T> >
     /** @param voxels Cost function value for each voxel of a 3D image 
      * @param cost is the weights if the nodes in the graph 
      * @return a list of nodes.with adjacency lists. */
-    public List<BaseNode<Float> > makeAdjList(float[][] voxels, int width, int height)
+    public List<BaseNode<Float> > makeAdjList(final float[][] voxels, int width, int height)
+    {
+        return makeAdjList(new VoxelNodes<Float>() {
+        	public boolean isNode(int z, int i)
+        	{
+        		return voxels[z][i] > 0.0F;
+        	}
+        	public BaseNode<Float> makeNode(Position p, int z, int i)
+        	{
+        		return new BaseNode<Float>(voxels[z][i], p);
+        	}
+        }, voxels.length, width, height);
+    }
+    
+    /** Voxels that are graph nodes. */
+    private interface VoxelNodes<V extends Comparable<V> >
+    {
+    	public boolean isNode(int z, int i);
+    	public BaseNode<V> makeNode(Position p, int z, int i);
+    }
+    /** Nodes for the voxels inside the image border and their neighbors in the order they are first found, the same as 
+     * the Position.key() map of findAdjacents(). Nodes are found with a VoxelIndex and the adjacents are filled in 
+     * parallel over z. */
+    private static <V extends Comparable<V> > List<BaseNode<V> > makeAdjList(final VoxelNodes<V> values, int zSize, 
+    		final int width, final int height)
     {
-        int zSize = voxels.length;
-        Map<String, BaseNode<Float> > nodePos = new HashMap<String, BaseNode<Float> >();
-        List<BaseNode<Float> > allNodes = new LinkedList<BaseNode<Float> >();
-       
-        for (int z=1; z<(zSize-1); z++)
+    	int count = 0;
+    	for (int z=0; z < zSize; z++)
+    	{
+    		for (int i=0; i < width*height; i++)
+    		{
+    			if (values.isNode(z, i))
+    				count++;
+    		}
+    	}
+    	final VoxelIndex index = new VoxelIndex(count);
+    	final List<BaseNode<V> > nodes = new ArrayList<BaseNode<V> >(count);
+    	for (int z=1; z<(zSize-1); z++)
         {
             for (int row=1; row<(height-1); row++)
             {
                 for (int col=1; col<(width-1); col++)
                 {
-                    if (voxels[z][row*width+col] > 0.0F)
-                    {
-                        findAdjacents(new Position(col, row, z), voxels, width, nodePos, allNodes);
-                    }
+                	if (values.isNode(z, row*width+col))
+                	{
+                		// the voxel then its neighbors 
+                		for (int n=-1; n < Position.NEIGHBOR_STEPS.length; n++)
+                		{
+                			int c = col, r = row, zz = z;
+                			if (n >= 0)
+                			{
+                				int[] step = Position.NEIGHBOR_STEPS[n];
+                				c += step[0]; r += step[1]; zz += step[2];
+                				if (!values.isNode(zz, r*width+c))
+                					continue;
+                			}
+                			long key = VoxelIndex.key(c, r, zz, width, height);
+                			if (index.get(key) == VoxelIndex.NONE)
+                			{
+                				index.put(key, nodes.size());
+                				nodes.add(values.makeNode(new Position(c, r, zz), zz, r*width+c));
+                			}
+                		}
+                	}
                 }
             }
         }
-        return allNodes;
+    	ParallelLines.run(zSize-2, ParallelLines.availableThreads(), new ParallelLines.Range() {
+    		public void run(int from, int to)
+    		{
+    			for (int z=from+1; z < to+1; z++)
+    			{
+    				for (int row=1; row<(height-1); row++)
+    				{
+    					for (int col=1; col<(width-1); col++)
+    					{
+    						if (values.isNode(z, row*width+col))
+    						{
+    							BaseNode<V> node = nodes.get(index.get(VoxelIndex.key(col, row, z, width, height)));
+    							for (int[] step: Position.NEIGHBOR_STEPS)
+    							{
+    								int c = col+step[0], r = row+step[1], zz = z+step[2];
+    								if (values.isNode(zz, r*width+c))
+    								{
+    									node.addAdjacent(nodes.get(index.get(VoxelIndex.key(c, r, zz, width, height))));
+    								}
+    							}
+    						}
+    					}
+    				}
+    			}
+    		}
+    	});
+    	return new LinkedList<BaseNode<V> >(nodes);
     }
     public void findAdjacents(Position p, float[][] voxels, int width, 
             Map<String, BaseNode<Float> > nodePos, 
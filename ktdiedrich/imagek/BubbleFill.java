@@ -18,10 +18,11 @@
 
 package ktdiedrich.imagek;
 
-import java.util.LinkedList;
-import java.util.*;
+import java.util.Arrays;
 
 import ij.*;
+import ktdiedrich.util.IntQueue;
+import ktdiedrich.util.ParallelLines;
 
 /** Fill completely surrounded bubbles in as artery using region labeling
  * of 0 value voxels. 
@@ -30,134 +31,168 @@ import ij.*;
 public class BubbleFill 
 {
 	// Bubble fill algorithm IDs defined in aneurysm.algorithm table 
-	public static final int MAX_BUBBLE_SIZE = 512000;
 	public static final int BUBBLE_FILL_3D = 9;
 	public static final int BUBBLE_FILL_2D_PLANES = 10;
 	private int _width3D, _height3D, _zSize3D;
-	private short[][] _labels3D;
-	private int _maxSize2D;
-	private short _maxLabel2D;
-	private int _maxSize3D;
-	private short _maxLabel3D;
-	private Set<Short> _large3D;
+	private int _threads;
 	
 	public BubbleFill()
 	{
-		
+		_threads = ParallelLines.availableThreads();
 	}
 	
-	/** Iterates through 2D slices in X, Y and Z planes ands fill 2D bubbles in segmentation */
-	private void fill2Dslices(short[][] unsegVoxels, short[][] segVoxels)
+	/** A 2-D plane of the voxels, plane coordinate (u, v) is voxel 
+	 * voxels[zBase+u*zU+v*zV][offBase+u*offU+v*offV]. */
+	private static class Plane
 	{
-		// x
-		IJ.log("Bubble fill 2D slices");
-		for (int x=0; x < _width3D; x++)
+		int uSize, vSize;
+		int zBase, zU, zV;
+		int offBase, offU, offV;
+		Plane(int uSize, int vSize, int zBase, int zU, int zV, int offBase, int offU, int offV)
 		{
-			short[][] segXplane = new short[_zSize3D][_height3D];
-			short[][] unsegXplane = new short[_zSize3D][_height3D];
-			for (int z=0; z < _zSize3D; z++)
+			this.uSize = uSize; this.vSize = vSize;
+			this.zBase = zBase; this.zU = zU; this.zV = zV;
+			this.offBase = offBase; this.offU = offU; this.offV = offV;
+		}
+	}
+	/** Labels, region sizes and span queue of one thread, reused for each plane. */
+	private static class Scratch
+	{
+		int[] labels = new int[0];
+		int[] sizes = new int[16];
+		IntQueue spans = new IntQueue();
+	}
+	
+	/** Iterates through 2D slices in X, Y and Z planes ands fill 2D bubbles in segmentation. The planes of each 
+	 * direction are filled on threads straight from the voxels, the X planes before the Y planes before the Z planes. */
+	private void fill2Dslices(final short[][] unsegVoxels, final short[][] segVoxels)
+	{
+		IJ.log("Bubble fill 2D slices");
+		final int w = _width3D, h = _height3D, zs = _zSize3D;
+		final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+			protected Scratch initialValue()
 			{
-				for (int y=0; y < _height3D; y++)
-				{
-					segXplane[z][y] = segVoxels[z][y*_width3D+x];
-					unsegXplane[z][y] = unsegVoxels[z][y*_width3D+x];
-				}
+				return new Scratch();
 			}
-			fill2Dbubbles(unsegXplane, segXplane);
-			for (int z=0; z < _zSize3D; z++)
+		};
+		// x planes, u is z and v is y 
+		ParallelLines.run(w, _threads, new ParallelLines.Range() {
+			public void run(int from, int to)
 			{
-				for (int y=0; y < _height3D; y++)
-				{
-					segVoxels[z][y*_width3D+x] = segXplane[z][y];
-				}
+				for (int x=from; x < to; x++)
+					fill2Dbubbles(unsegVoxels, segVoxels, new Plane(zs, h, 0, 1, 0, x, 0, w), scratch.get());
 			}
-		}
-		
-		// y
-		for (int y=0; y < _height3D; y++)
-		{
-			short[][] segYplane = new short[_width3D][_zSize3D];
-			short[][] unsegYplane = new short[_width3D][_zSize3D];
-			for (int x=0; x < _width3D; x++)
+		});
+		// y planes, u is x and v is z 
+		ParallelLines.run(h, _threads, new ParallelLines.Range() {
+			public void run(int from, int to)
 			{
-				for (int z=0; z < _zSize3D; z++)
-				{
-					segYplane[x][z] = segVoxels[z][y*_width3D+x];
-					unsegYplane[x][z] = unsegVoxels[z][y*_width3D+x];
-				}
+				for (int y=from; y < to; y++)
+					fill2Dbubbles(unsegVoxels, segVoxels, new Plane(w, zs, 0, 0, 1, y*w, 1, 0), scratch.get());
 			}
-			fill2Dbubbles(unsegYplane, segYplane);
-			for (int x=0; x < _width3D; x++)
+		});
+		// z planes, u is x and v is y 
+		ParallelLines.run(zs, _threads, new ParallelLines.Range() {
+			public void run(int from, int to)
 			{
-				for (int z=0; z < _zSize3D; z++)
+				for (int z=from; z < to; z++)
+					fill2Dbubbles(unsegVoxels, segVoxels, new Plane(w, h, z, 0, 0, 0, 1, w), scratch.get());
+			}
+		});
+	}
+	/** Fills bubbles in a 2D plane. The 8 connected regions of 0 voxels are labeled in u, v order, every voxel except 
+	 * the largest region, the first one of equal largest regions, is set to the unsegmented voxel. */
+	private void fill2Dbubbles(short[][] unsegVoxels, short[][] segVoxels, Plane p, Scratch s)
+	{
+		int uSize = p.uSize, vSize = p.vSize;
+		int n = uSize*vSize;
+		if (s.labels.length < n)
+			s.labels = new int[n];
+		int[] labels = s.labels;
+		Arrays.fill(labels, 0, n, 0);
+		int label = 0;
+		int maxSize = 0, maxLabel = 0;
+		for (int u=0; u < uSize; u++)
+		{
+			int z = p.zBase+u*p.zU;
+			int off = p.offBase+u*p.offU;
+			for (int v=0; v < vSize; v++)
+			{
+				if (labels[u*vSize+v] == 0 && segVoxels[z+v*p.zV][off+v*p.offV] == 0)
 				{
-					segVoxels[z][y*_width3D+x] = segYplane[x][z];
+					label++;
+					int size = scanlineFill(segVoxels, p, u, v, label, s);
+					if (size > maxSize)
+					{
+						maxSize = size;
+						maxLabel = label;
+					}
 				}
 			}
 		}
-		
-		// z
-		for (int z=0; z < _zSize3D; z++)
+		if (label == 0)
+			return;
+		for (int u=0; u < uSize; u++)
 		{
-			short[][] segZplane =  new short[_width3D][_height3D];
-			short[][] unsegZplane =  new short[_width3D][_height3D];
-			for (int x=0; x < _width3D; x++)
+			int z = p.zBase+u*p.zU;
+			int off = p.offBase+u*p.offU;
+			for (int v=0; v < vSize; v++)
 			{
-				for (int y=0; y < _height3D; y++)
+				if (labels[u*vSize+v] != maxLabel)
 				{
-					segZplane[x][y] = segVoxels[z][y*_width3D+x];
-					unsegZplane[x][y] = unsegVoxels[z][y*_width3D+x];
+					int zz = z+v*p.zV, o = off+v*p.offV;
+					segVoxels[zz][o] = unsegVoxels[zz][o];
 				}
 			}
-			fill2Dbubbles(unsegZplane, segZplane);
-			for (int x=0; x < _width3D; x++)
+		}
+	}
+	/** Label the 8 connected 0 voxels from (u, v) a span along v at a time. 
+	 * @return the region size */
+	private static int scanlineFill(short[][] voxels, Plane p, int u, int v, int label, Scratch s)
+	{
+		int uSize = p.uSize, vSize = p.vSize;
+		int[] labels = s.labels;
+		IntQueue spans = s.spans;
+		spans.clear();
+		spans.add(u*vSize+v);
+		int size = 0;
+		while (!spans.isEmpty())
+		{
+			int seed = spans.poll();
+			if (labels[seed] != 0)
+				continue;
+			int su = seed / vSize;
+			int z = p.zBase+su*p.zU;
+			int off = p.offBase+su*p.offU;
+			int row = su*vSize;
+			int v1 = seed-row, v2 = v1;
+			while (v1 > 0 && labels[row+v1-1] == 0 && voxels[z+(v1-1)*p.zV][off+(v1-1)*p.offV] == 0)
+				v1--;
+			while (v2 < vSize-1 && labels[row+v2+1] == 0 && voxels[z+(v2+1)*p.zV][off+(v2+1)*p.offV] == 0)
+				v2++;
+			for (int sv=v1; sv <= v2; sv++)
+				labels[row+sv] = label;
+			size += v2-v1+1;
+			// 8 connected spans in the neighboring lines start in the diagonals 
+			int from = Math.max(v1-1, 0), to = Math.min(v2+1, vSize-1);
+			for (int nu=su-1; nu <= su+1; nu+=2)
 			{
-				for (int y=0; y < _height3D; y++)
+				if (nu < 0 || nu >= uSize)
+					continue;
+				int nz = p.zBase+nu*p.zU;
+				int noff = p.offBase+nu*p.offU;
+				int nrow = nu*vSize;
+				boolean inSpan = false;
+				for (int nv=from; nv <= to; nv++)
 				{
-					segVoxels[z][y*_width3D+x] = segZplane[x][y];
+					boolean open = labels[nrow+nv] == 0 && voxels[nz+nv*p.zV][noff+nv*p.offV] == 0;
+					if (open && !inSpan)
+						spans.add(nrow+nv);
+					inSpan = open;
 				}
 			}
 		}
-		
-	}
-	/** Fills bubbles in a 2D plane */
-	private void fill2Dbubbles(short[][] unsegPlane, short[][] segPlane)
-	{
-		int w = segPlane.length;
-		int h = segPlane[0].length;
-		_maxSize2D = 0;
-		_maxLabel2D = (short)0;
-		short label = 2;
-		short[][] labels2D = new short[segPlane.length][segPlane[0].length];
-		for (int x=0; x<w; x++)
-        {
-            for (int y=0; y<h; y++)
-            {
-            	
-                if (segPlane[x][y] == 0  && labels2D[x][y] == 0)
-                {
-                    floodFill2D(segPlane, x, y, label, labels2D);
-                    label++;
-                }
-            }
-        }
-        // remove the label of the largest outside region 
-        
-        for (int x=0; x<w; x++)
-        {
-            for (int y=0; y<h; y++)
-            {
-                if (labels2D[x][y] == _maxLabel2D)
-                {
-                    labels2D[x][y] = 0;
-                }
-        		else
-        		{
-        			segPlane[x][y] = unsegPlane[x][y];
-        		}
-            }
-        }
-        // ImageProcess.display(labels2D, w, h, "bubbleLabel2D");
+		return size;
 	}
 	public void fillBubbles(ImageStack unsegStack, ImageStack segStack, int algorithm)
     {
@@ -166,10 +201,6 @@ public class BubbleFill
         _width3D = segStack.getWidth();
         short[][] segVoxels = new short[_zSize3D][];
         short[][] unsegVoxels = new short[_zSize3D][];
-        _labels3D = new short[_zSize3D][_width3D*_height3D];
-        _maxSize3D = 0;
-        _maxLabel3D = 0;
-        _large3D = new HashSet<Short>();
         for (int z=0; z<_zSize3D; z++ )
         {
             segVoxels[z] = (short[])segStack.getPixels(z+1);
@@ -183,146 +214,47 @@ public class BubbleFill
         {
         	fillBubbles3D(unsegVoxels, segVoxels);
         }
-        // ImageProcess.display(_labelVoxels, _width, _height, "bubbleLabel");
     }
+	/** Label the 26 connected regions of 0 voxels in one VoxelComponents union find pass. The largest region, the 
+	 * first one of equal largest regions, is outside, every other voxel is set to the unsegmented voxel. */
 	private void fillBubbles3D(short[][] unsegVoxels, short[][] segVoxels)
 	{
 		IJ.log("Bubble fill 3D. ");
-		short label = 2;
-        for (int x=0; x<_width3D; x++)
-        {
-            for (int y=0; y<_height3D; y++)
-            {
-            	for (int z=0; z<_zSize3D; z++ )
-                {
-                    if (segVoxels[z][y*_width3D+x] == 0  && _labels3D[z][y*_width3D+x] == 0)
-                    {
-                        floodFill3D(segVoxels, x, y, z, label);
-                        label++;
-                    }
-                }
-            }
-        }
-        // remove the label of the largest outside region 
-        
-        for (int x=0; x<_width3D; x++)
-        {
-            for (int y=0; y<_height3D; y++)
-            {
-            	for (int z=0; z<_zSize3D; z++ )
-                {
-                    //if (_labelVoxels[z][y*_width+x] == _maxLabel)
-                    //{
-                    //    _labelVoxels[z][y*_width+x] = 0;
-                    //}
-            		short l = _labels3D[z][y*_width3D+x];
-            		if (_large3D.contains(l))
-            		{
-            			_labels3D[z][y*_width3D+x] = 0;
-            		}
-            		else
-            		{
-            			short o = unsegVoxels[z][y*_width3D+x];
-            			segVoxels[z][y*_width3D+x] = o;
-            			//if (o > HoleFill.MIN_FILL_VALUE)
-            			//	segVoxels[z][y*_width3D+x] = o;
-            			//else
-            			//	segVoxels[z][y*_width3D+x] = HoleFill.MIN_FILL_VALUE;
-            		}
-                }
-            }
-        }
-	}
-	public void floodFill3D(short[][] voxels, int x, int y, int z, short label)
-	{
-		LinkedList<Point> q = new LinkedList<Point>();
-		q.addFirst(new Point(x, y, z));
-		int size = 0;
-		while (!q.isEmpty())
+		int wh = _width3D*_height3D;
+		short[][] background = new short[_zSize3D][wh];
+		for (int z=0; z<_zSize3D; z++ )
 		{
-			Point n = q.removeLast();
-			if ((n.x>=0) && (n.x<_width3D) && (n.y>=0) && (n.y<_height3D) && (n.z>=0) && (n.z<_zSize3D) 
-					&& voxels[n.z][n.y*_width3D+n.x] == 0 && _labels3D[n.z][n.y*_width3D+n.x]==0)
+			for (int i=0; i<wh; i++)
 			{
-				_labels3D[n.z][n.y*_width3D+n.x] = label;
-				size++;
-				q.addFirst(new Point(n.x+1, n.y, n.z));
-				q.addFirst(new Point(n.x, n.y+1, n.z));
-				q.addFirst(new Point(n.x, n.y, n.z+1));
-				q.addFirst(new Point(n.x-1, n.y, n.z));
-				q.addFirst(new Point(n.x, n.y-1, n.z));
-				q.addFirst(new Point(n.x, n.y, n.z-1));
-				
-				q.addFirst(new Point(n.x+1, n.y+1, n.z));
-				q.addFirst(new Point(n.x, n.y+1, n.z+1));
-				q.addFirst(new Point(n.x+1, n.y, n.z+1));
-				q.addFirst(new Point(n.x-1, n.y-1, n.z));
-				q.addFirst(new Point(n.x, n.y-1, n.z-1));
-				q.addFirst(new Point(n.x-1, n.y, n.z-1));
-				q.addFirst(new Point(n.x+1, n.y-1, n.z));
-				q.addFirst(new Point(n.x-1, n.y+1, n.z));
-				q.addFirst(new Point(n.x, n.y+1, n.z-1));
-				q.addFirst(new Point(n.x, n.y-1, n.z+1));
-				q.addFirst(new Point(n.x+1, n.y, n.z-1));
-				q.addFirst(new Point(n.x-1, n.y, n.z+1));
-				
-				
-				q.addFirst(new Point(n.x+1, n.y+1, n.z+1));
-				q.addFirst(new Point(n.x+1, n.y+1, n.z-1));
-				q.addFirst(new Point(n.x+1, n.y-1, n.z+1));
-				q.addFirst(new Point(n.x-1, n.y+1, n.z+1));
-				q.addFirst(new Point(n.x-1, n.y-1, n.z+1));
-				q.addFirst(new Point(n.x+1, n.y-1, n.z-1));
-				q.addFirst(new Point(n.x-1, n.y+1, n.z-1));
-				q.addFirst(new Point(n.x-1, n.y-1, n.z-1));
+				if (segVoxels[z][i] == 0)
+					background[z][i] = 1;
 			}
 		}
-		//System.out.println("Region size: "+size);
-		if (size > _maxSize3D)
+		VoxelComponents components = new VoxelComponents(background, _width3D, _height3D, _threads);
+		background = null;
+		int[][] labels = components.getLabels();
+		int[] sizes = components.getSizes();
+		int maxLabel = 1;
+		for (int label=2; label < sizes.length; label++)
 		{
-			_maxSize3D = size;
-			_maxLabel3D = label;
-			// System.out.println("Max label: "+_maxLabel+ " size: "+_maxSize);
+			if (sizes[label] > sizes[maxLabel])
+				maxLabel = label;
 		}
-		if (size > MAX_BUBBLE_SIZE)
+		for (int z=0; z<_zSize3D; z++ )
 		{
-			_large3D.add(label);
-		}
-	}	
-	
-	public void floodFill2D(short[][] voxels, int x, int y, short label, short[][] labels2D)
-	{
-		LinkedList<Point> q = new LinkedList<Point>();
-		q.addFirst(new Point(x, y));
-		int size = 0;
-		int w = voxels.length;
-		int h = voxels[0].length;
-		while (!q.isEmpty())
-		{
-			Point n = q.removeLast();
-			if ((n.x >= 0) && (n.x < w) && (n.y >= 0) && (n.y < h)
-					&& voxels[n.x][n.y] == 0 && labels2D[n.x][n.y]==0)
+			for (int i=0; i<wh; i++)
 			{
-				labels2D[n.x][n.y] = label;
-				size++;
-				
-				q.addFirst(new Point(n.x+1, n.y));
-				q.addFirst(new Point(n.x, n.y+1));
-				q.addFirst(new Point(n.x-1, n.y));
-				q.addFirst(new Point(n.x, n.y-1));
-				q.addFirst(new Point(n.x+1, n.y+1));
-				q.addFirst(new Point(n.x-1, n.y-1));
-				q.addFirst(new Point(n.x+1, n.y-1));
-				q.addFirst(new Point(n.x-1, n.y+1));
+				if (labels[z][i] != maxLabel)
+					segVoxels[z][i] = unsegVoxels[z][i];
 			}
 		}
-		//System.out.println("Region size: "+size);
-		if (size > _maxSize2D)
-		{
-			_maxSize2D = size;
-			_maxLabel2D = label;
-			// System.out.println("Max label: "+_maxLabel+ " size: "+_maxSize);
-		}
-	}	
+	}
+	public int getThreads()
+	{
+		return _threads;
+	}
+	public void setThreads(int threads)
+	{
+		_threads = threads;
+	}
 }
-
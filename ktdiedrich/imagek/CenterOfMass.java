@@ -248,6 +248,173 @@ public class CenterOfMass
 		// + " minCumDist: "+minCumDist+" maxCumDist: "+maxCumDist);
 	}
 	
+	/** Find the center of mass throughout the compact graphs the same way as findCenterOfMass(). Sets the weight 
+	 * and pathLen values of the compact graphs with the centers of mass kept in primitive arrays. 
+	 * @param imageGraphs The image as compact graphs for every component.
+	 * @param recenterTimes The number of additional time to recalculate the center of mass. */
+	public static void findCompactCenterOfMass(List<VoxelGraph> imageGraphs, int recenterTimes, VoxelDistance vd, 
+			int minMoves, double weightPower, boolean dfeWtCOM)
+	{
+		int[] sMoves = new int[minMoves];
+		IJ.log("Is DFE weighted COM? "+dfeWtCOM);
+		double xRes = vd.getXRes(), yRes = vd.getYRes(), zRes = vd.getZRes();
+		int gLen = imageGraphs.size();
+		VoxelGraph[] graphs = imageGraphs.toArray(new VoxelGraph[gLen]);
+		float[][] cmX = new float[gLen][], cmY = new float[gLen][], cmZ = new float[gLen][];
+		// first center of mass 
+		for (int gi=0; gi < gLen; gi++)
+		{
+			VoxelGraph g = graphs[gi];
+			int nodeCount = g.nodeCount();
+			cmX[gi] = new float[nodeCount];
+			cmY[gi] = new float[nodeCount];
+			cmZ[gi] = new float[nodeCount];
+			for (int n=0; n < nodeCount; n++)
+			{
+				int dfeWt = 1;
+				if (dfeWtCOM)
+				{
+					dfeWt = g.dfe[n];
+				}
+				int sumAdjX=g.col(n)*dfeWt, sumAdjY=g.row(n)*dfeWt, sumAdjZ=g.z[n]*dfeWt;
+				int sumAdjDFE=dfeWt;
+				for (int e=g.offsets[n]; e < g.offsets[n+1]; e++)
+				{
+					int a = g.neighbors[e];
+					int aDfeWt = 1;
+					if (dfeWtCOM)
+					{
+						aDfeWt = g.dfe[a];
+					}
+					sumAdjDFE += aDfeWt;
+					sumAdjX += g.col(a)*aDfeWt;
+					sumAdjY += g.row(a)*aDfeWt;
+					sumAdjZ += g.z[a]*aDfeWt;
+				}
+				cmX[gi][n] = sumAdjX/sumAdjDFE;
+				cmY[gi][n] = sumAdjY/sumAdjDFE;
+				cmZ[gi][n] = sumAdjZ/sumAdjDFE;
+				g.weight[n] = distance(g.col(n), g.row(n), g.z[n], cmX[gi][n], cmY[gi][n], cmZ[gi][n], xRes, yRes, zRes);
+				if (g.weight[n] == 0)
+				{
+					g.pathLen[n] = 0;
+					sMoves[0]++;
+				}
+				else
+				{
+					g.pathLen[n] = 1;
+					sMoves[1]++;
+				}
+			}
+		}
+		StringBuffer sb = new StringBuffer("Center of mass minMoves: "+minMoves+" Weight Power: "+weightPower+" 1: ");
+		for (int s=0; s < minMoves; s++)
+		{
+			sb.append(" pathLen "+s+" count: "+sMoves[s]+" ");
+		}
+		IJ.log(sb.toString());
+		// recalculate center of mass of point
+		int re = 2;
+		int[] pMoves = sMoves;
+		boolean dropping = true;
+		float[][] nextX = new float[gLen][], nextY = new float[gLen][], nextZ = new float[gLen][];
+		for (int gi=0; gi < gLen; gi++)
+		{
+			int nodeCount = graphs[gi].nodeCount();
+			nextX[gi] = new float[nodeCount];
+			nextY[gi] = new float[nodeCount];
+			nextZ[gi] = new float[nodeCount];
+		}
+		while ( dropping && re <= recenterTimes)
+		{
+			sMoves = new int[minMoves];
+			for (int gi=0; gi < gLen; gi++)
+			{
+				VoxelGraph g = graphs[gi];
+				float[] x = cmX[gi], y = cmY[gi], z = cmZ[gi];
+				for (int n=0; n < g.nodeCount(); n++)
+				{
+					float dfeWt = 1;
+					if (dfeWtCOM)
+					{
+						dfeWt = g.dfe[n];
+					}
+					float sumAdjX=x[n]*dfeWt, sumAdjY=y[n]*dfeWt, sumAdjZ=z[n]*dfeWt;
+					float sumAdjDFE = dfeWt;
+					for (int e=g.offsets[n]; e < g.offsets[n+1]; e++)
+					{
+						int a = g.neighbors[e];
+						float aDfeWt = 1;
+						if (dfeWtCOM)
+						{
+							aDfeWt = g.dfe[a];
+						}
+						sumAdjDFE += aDfeWt;
+						sumAdjX += x[a] * aDfeWt;
+						sumAdjY += y[a] * aDfeWt;
+						sumAdjZ += z[a] * aDfeWt;
+					}
+					nextX[gi][n] = sumAdjX/sumAdjDFE;
+					nextY[gi][n] = sumAdjY/sumAdjDFE;
+					nextZ[gi][n] = sumAdjZ/sumAdjDFE;
+					g.weight[n] += distance(x[n], y[n], z[n], nextX[gi][n], nextY[gi][n], nextZ[gi][n], xRes, yRes, zRes);
+					if (g.weight[n] > 0)
+					{
+						g.pathLen[n]++;
+					}
+					if (g.pathLen[n] < minMoves)
+					{
+						sMoves[g.pathLen[n]]++;
+					}
+				}
+			}
+			re++;
+			dropping = false;
+			for (int j=0; j < minMoves; j++)
+			{
+				if (sMoves[j] <  pMoves[j])
+					dropping = true;	
+			}
+			pMoves = sMoves;
+			// swap current and next centers of mass 
+			float[][] t = cmX; cmX = nextX; nextX = t;
+			t = cmY; cmY = nextY; nextY = t;
+			t = cmZ; cmZ = nextZ; nextZ = t;
+		}
+		float minDistance = Float.MAX_VALUE;
+		float minNonZero = Float.MAX_VALUE;
+		float maxDistance = 0;
+		for (VoxelGraph g: graphs)
+		{
+			for (int n=0; n < g.nodeCount(); n++)
+			{
+				float w = g.weight[n];
+				if (w < minDistance) minDistance = w;
+				if (w != 0 && w < minNonZero) minNonZero = w;
+				if (w > maxDistance) maxDistance = w;
+			}
+		}
+		for (VoxelGraph g: graphs)
+		{
+			for (int n=0; n < g.nodeCount(); n++)
+			{
+				g.weight[n] = g.weight[n] / minNonZero;
+				g.weight[n] = (float)Math.pow(g.weight[n], weightPower);
+			}
+		}
+		IJ.log("CenterOfMass times: "+re+" minDistance: "+minDistance+
+    			" minNonZero: "+minNonZero+" maxDistance: "+maxDistance); 
+	}
+	/** Distance between a position and a center of mass using the voxel resolutions. */
+	private static float distance(double nx, double ny, double nz, float cx, float cy, float cz, 
+			double xRes, double yRes, double zRes)
+	{
+		nx = (nx-cx)*xRes;
+		ny = (ny-cy)*yRes;
+		nz = (nz-cz)*zRes;
+		return (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
+	}
+	
 	public static ImagePlus makeCenterOfMassImage(List<Graph> imageGraphs, int width, int height, int zSize,
 			String name)
 	{
@@ -41,6 +41,8 @@ public class CenterlineGraph
 	private GraphNode _sourceNode;
 	private List<Centerline> _centerlines;
 	private List<CenterlineCycle> _cycles;
+	private NodeIndex _index;
+	private int _indexedCenterlines;
 	
 	public GraphNode getSourceNode() 
 	{
@@ -73,6 +75,7 @@ public class CenterlineGraph
 	public void setCenterlines(List<Centerline> centerlines) 
 	{
 		_centerlines = centerlines;
+		_index = null;
 		for (Centerline c: centerlines)
 		{
 			c.setCenterlineGraph(this);
@@ -82,6 +85,7 @@ public class CenterlineGraph
 	{
 		_centerlines.add(centerline);
 		centerline.setCenterlineGraph(this);
+		_index = null;
 	}
 	/** All nodes in all the centerlines of this graph */
 	public List<GraphNode> getCenterlineNodes()
@@ -114,4 +118,72 @@ public class CenterlineGraph
 	{
 		return _cycles;
 	}
+	/** @return the first centerline node at the coordinates in centerline order or null if not found. */
+	public GraphNode findNode(int col, int row, int z)
+	{
+		int entry = index().first(col, row, z);
+		return entry == NodeIndex.NONE ? null: _index.node(entry);
+	}
+	/** @return the centerlines with a node at the coordinates in centerline order. */
+	public List<Centerline> findCenterlines(int col, int row, int z)
+	{
+		List<Centerline> found = new LinkedList<Centerline>();
+		NodeIndex index = index();
+		int prevGroup = NodeIndex.NONE;
+		for (int entry=index.first(col, row, z); entry != NodeIndex.NONE; entry=index.next(entry))
+		{
+			int group = index.group(entry);
+			if (group != prevGroup)
+			{
+				found.add(_centerlines.get(group));
+				prevGroup = group;
+			}
+		}
+		return found;
+	}
+	/** @return the first centerline node in centerline order within colRowRadius columns and rows of the 
+	 * coordinates in the same z or null if there is none. */
+	public GraphNode findNodeNear(int col, int row, int z, int colRowRadius)
+	{
+		int entry = index().firstNear(col, row, z, colRowRadius);
+		return entry == NodeIndex.NONE ? null: _index.node(entry);
+	}
+	/** @return position in getCenterlines() of the first centerline within colRowRadius columns and rows of the 
+	 * coordinates in the same z or -1 if there is none. */
+	public int findCenterlineNear(int col, int row, int z, int colRowRadius)
+	{
+		int entry = index().firstNear(col, row, z, colRowRadius);
+		return entry == NodeIndex.NONE ? -1: _index.group(entry);
+	}
+	/** @return the centerline node closest to the coordinates within maxRadius voxels or null if there is none. */
+	public GraphNode nearestNode(int col, int row, int z, int maxRadius)
+	{
+		int entry = index().nearest(col, row, z, maxRadius);
+		return entry == NodeIndex.NONE ? null: _index.node(entry);
+	}
+	/** Coordinate index of the centerline nodes built on the first lookup after the centerlines change. 
+	 * Centerlines or nodes added or removed through the lists are caught by the counts. */
+	private NodeIndex index()
+	{
+		int nodeCount = 0;
+		for (Centerline centerline: _centerlines)
+		{
+			nodeCount += centerline.getCenterlineNodes().size();
+		}
+		if (_index == null || _indexedCenterlines != _centerlines.size() || _index.size() != nodeCount)
+		{
+			_index = new NodeIndex(nodeCount);
+			_indexedCenterlines = _centerlines.size();
+			int group = 0;
+			for (Centerline centerline: _centerlines)
+			{
+				for (GraphNode node: centerline.getCenterlineNodes())
+				{
+					_index.add(node, group);
+				}
+				group++;
+			}
+		}
+		return _index;
+	}
 }
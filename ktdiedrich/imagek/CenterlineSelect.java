@@ -70,34 +70,15 @@ public class CenterlineSelect
 		int offI = 0;
 		for (CenterlineGraph centGraph: _centerlineGraphs)
 		{
-			offI = 0;
-	    	for (Centerline centerline: centGraph.getCenterlines())
-	    	{
-	    		
-	    		for (GraphNode node: centerline.getCenterlineNodes())
-	    		{
-	    			//if (node.col == col && node.row == row && node.z == zDepth)
-	    			if (node.col > x-2 && node.col < x+2 && 
-	    			        node.row > y-2 && node.row < y+2 && 
-	    			        node.z == z)
-	    			{
-	    				isCenterline = true;
-	    				offCenterline = centerline;
-	    				offGraph = centGraph;
-    					highlightCenterline(centerline);
-	    				break;
-	    			}
-	    		}
-	    		if (isCenterline == true)
-                {
-                    break;
-                }
-	    		offI++;
-	    	}
-	    	if (isCenterline == true)
-            {
-                break;
-            }
+			offI = centGraph.findCenterlineNear(x, y, z, 1);
+			if (offI >= 0)
+			{
+				isCenterline = true;
+				offCenterline = centGraph.getCenterlines().get(offI);
+				offGraph = centGraph;
+				highlightCenterline(offCenterline);
+				break;
+			}
 		}
 		if (offCenterline != null)
 		{
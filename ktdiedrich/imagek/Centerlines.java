@@ -19,12 +19,21 @@
 package ktdiedrich.imagek;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -85,6 +94,10 @@ public class Centerlines implements Message
     private double _dfcDfeRatioThreshold;
     private int _extendEnhancement;
     private List<Graph> _segGraphs;
+    // compact graphs of the last compact run, their settled orders and centerlines, null after other runs 
+    private List<VoxelGraph> _compactSegGraphs;
+    private List<int[]> _compactSettled;
+    private List<CenterlineGraph> _compactCenterlineGraphs;
     private int _width, _height, _zSize;
     private String _title;
     private double _lineDFEratio;
@@ -111,6 +124,10 @@ public class Centerlines implements Message
     private double _pcWeight;
     private double _velocityDotSigma;
     private double _velocityPower;
+    private boolean _compactGraph;
+    private boolean _parallelEnds;
+    private boolean _chunkedVolumes;
+    private int _dfeAlgorithm;
     public Centerlines()
     {
 		_enhancementIntensityThreshold = DistanceFromCenterline.THRESHOLD;
@@ -321,6 +338,20 @@ public class Centerlines implements Message
     		int i = st.indexOf("\\");
     		st = st.substring(i+1);
     	}
+    	if (_chunkedVolumes)
+    	{
+    		String p = _segmentationFileInfo.directory+st+ChunkedVolume.EXTENSION;
+    		IJ.log(note+": "+p);
+    		try
+    		{
+    			ChunkedVolume.write(image, p);
+    			return;
+    		}
+    		catch (IOException e)
+    		{
+    			IJ.log(e.getMessage());
+    		}
+    	}
     	String p = _segmentationFileInfo.directory+st+".zip";
     	
     	
@@ -356,6 +387,7 @@ public class Centerlines implements Message
     public void findCenterlines(ImagePlus segmentationImage)
     {
     	_vd = new VoxelDistance(_xRes, _yRes, _zRes);
+    	_compactSegGraphs = null;
     	long start = 0, duration = 0;
     	start = System.currentTimeMillis();
     	_segmentationImage = segmentationImage;
@@ -391,13 +423,30 @@ public class Centerlines implements Message
             	ImagePlus image = ImageProcess.makeImage(inputVoxels, _width, _height, _title+"InputArray");
             	this.save(image);
             }
-        	_segGraphs = this.makeDfeGraphsFromSegIntensity(inputVoxels);
-        	if (_showSteps)
+        	if (_compactGraph && this.isCompactAlgorithm())
         	{
-        		ImagePlus dfeImage = Graph.makeDFEimage(_segGraphs, _width, _height, _zSize, _title+"DFEGraphs");
-        		this.save(dfeImage);
+        		List<VoxelGraph> compactGraphs = this.makeCompactDfeGraphsFromSegIntensity(inputVoxels);
+        		_centerlineGraphs = this.makeCompactCenterlines(compactGraphs, _vd);
+        		if (_showSteps)
+            	{
+            		ImagePlus dfeImage = VoxelGraph.makeDFEimage(compactGraphs, _width, _height, _zSize, _title+"DFEGraphs");
+            		this.save(dfeImage);
+            	}
+        	}
+        	else
+        	{
+        		if (_compactGraph)
+        		{
+        			IJ.log("Compact voxel graph isn't used with phase contrast, fix bad ends or centerlines from all ends.");
+        		}
+        		_segGraphs = this.makeDfeGraphsFromSegIntensity(inputVoxels);
+        		_centerlineGraphs = this.makeCenterlines(_segGraphs, _vd);
+        		if (_showSteps)
+            	{
+            		ImagePlus dfeImage = Graph.makeDFEimage(_segGraphs, _width, _height, _zSize, _title+"DFEGraphs");
+            		this.save(dfeImage);
+            	}
         	}
-        	_centerlineGraphs = this.makeCenterlines(_segGraphs, _vd);
         	if (_fixBadEnds)
         	{
             	ImagePlus brokeLoopIm = this.makeBrokenLoopsImage(_segGraphs, _centerlineGraphs, 
@@ -421,10 +470,7 @@ public class Centerlines implements Message
         }
         
         
-    	AccumulateCenterlines accumCenterline = new AccumulateCenterlines(_segGraphs, _width, _height, _zSize, _title+_fixLabel,
-    			_centerlinePositive, _vd);
-    	accumCenterline.readTrueCentFile(_trueCenterlineFileName);
-    	accumCenterline.addCenterline(_centerlineGraphs);
+    	AccumulateCenterlines accumCenterline = this.makeAccumulateCenterlines();
         
         duration = System.currentTimeMillis() - start;
         IJ.log("FindCenterlines: "+duration/MS_2_MIN+" minutes");
@@ -443,6 +489,17 @@ public class Centerlines implements Message
             IJ.log("findEndCenterlines minutes: "+duration/MS_2_MIN+"\n");
         }
     }
+    /** @return the centerlines accumulated over the segmentation graphs, or the compact graphs of a compact run */
+    private AccumulateCenterlines makeAccumulateCenterlines()
+    {
+    	AccumulateCenterlines accumCenterline = new AccumulateCenterlines(_segGraphs, _width, _height, _zSize, _title+_fixLabel,
+    			_centerlinePositive, _vd);
+    	if (_segGraphs.isEmpty())
+    		accumCenterline.setCompactSegmentation(_compactSegGraphs);
+    	accumCenterline.readTrueCentFile(_trueCenterlineFileName);
+    	accumCenterline.addCenterline(_centerlineGraphs);
+    	return accumCenterline;
+    }
     private static List<Graph> onlyLargestGraph(final List<Graph> graphs)
     {
     	IJ.log("Calling onlyLargestGraph()");
@@ -461,28 +518,154 @@ public class Centerlines implements Message
     	list.add(largest);
     	return list;
     }
+    private static List<VoxelGraph> onlyLargestCompactGraph(final List<VoxelGraph> graphs)
+    {
+    	IJ.log("Calling onlyLargestCompactGraph()");
+    	VoxelGraph largest = null;
+    	int large = 0;
+    	for (VoxelGraph g: graphs)
+    	{
+    		int sz = g.nodeCount();
+    		if (sz > large)
+    		{
+    			large = sz;
+    			largest = g;
+    		}
+    	}
+    	List<VoxelGraph> list = new LinkedList<VoxelGraph>();
+    	list.add(largest);
+    	return list;
+    }
+    /** Thresholded distance from edge of the segmentation. */
+    private short[][] segmentationDFE(short[][] segmentationVoxels)
+    {
+    	DistanceFromEdge dfer = new DistanceFromEdge(_xRes, _yRes, _zRes);
+    	dfer.setAlgorithm(_dfeAlgorithm);
+    	long dfeStart = System.currentTimeMillis();
+    	short[][] dfes = dfer.distanceFromEdge(segmentationVoxels, _width, _height);
+    	long dfeDuration = System.currentTimeMillis()-dfeStart;
+    	IJ.log("Calculate segmentation DFE: "+dfeDuration/MS_2_SEC+" seconds.");
+    	if (_showSteps)
+    	{
+    		ImagePlus image = ImageProcess.makeImage(dfes, _width, _height, _title+"DFEArray");
+    		this.save(image);
+    	}
+    	System.gc();
+    	if (_dfeThreshold > 0)
+    		Threshold.thresholdUnder(dfes, (short)Math.round(_dfeThreshold*VoxelDistance.DISTANCE_PRECISION));
+    	return dfes;
+    }
+    /** Need PC images to do a PC centerline algorithm, change to DFE weighted COM if PC image is missing. */
+    private void checkPhaseContrastAlgorithm()
+    {
+    	if ((_centerlineAlgorithm == Inserts.DFEWTCOM_MULT_PCCROSSNORM || 
+        		_centerlineAlgorithm == Inserts.VELOC_DFECOM) && 
+        		(_xPCimage == null || _yPCimage == null || _zPCimage == null))
+        {
+        	_centerlineAlgorithm = Inserts.DFE_WEIGHTED_COM;
+        	_sp.setCenterlineAlgorithm(_centerlineAlgorithm);
+        	IJ.log("Missing phase contrast image change to centerline algorithm ID: "+_centerlineAlgorithm);
+        }
+    }
+    /** The compact graph has no GraphNode objects for the phase contrast cost functions or for fixing bad ends and 
+     * finding centerlines from all ends, which retrace paths through every voxel, so it's used when none of these are on. */
+    private boolean isCompactAlgorithm()
+    {
+    	return _xPCimage == null && _yPCimage == null && _zPCimage == null && !_fixBadEnds && !_centerlinesFromAllEnds;
+    }
+    /** Make a set of compact graphs from the input intensities of the segmentation. */
+    public List<VoxelGraph> makeCompactDfeGraphsFromSegIntensity(short[][] segmentationVoxels)
+    {
+    	VoxelGraph dfeGraph = null;
+    	{
+    		short[][] dfes = this.segmentationDFE(segmentationVoxels);
+    		long s = System.currentTimeMillis();
+    		dfeGraph = VoxelGraph.makeDFEGraph(dfes, _width, _height);
+    		long dur = System.currentTimeMillis()-s;
+    		IJ.log("Make compact DFE graph from DFE arrays: "+dur/MS_2_SEC+" seconds.");
+    	}
+    	System.gc();
+    	long s = System.currentTimeMillis();
+    	List<VoxelGraph> segDfeGraphs = dfeGraph.makeGraphs(_lowClusterThreshold);
+    	dfeGraph = null;
+    	this.modifyCompactDFEs(segDfeGraphs);
+    	if (_centerlinesFromAllEnds)
+    	{
+    		segDfeGraphs = onlyLargestCompactGraph(segDfeGraphs);
+    	}
+    	long dur = System.currentTimeMillis()-s;
+    	IJ.log("Compact DFE graphs: "+dur/MS_2_SEC+" seconds, number of graphs: "+segDfeGraphs.size());
+    	this.checkPhaseContrastAlgorithm();
+    	s = System.currentTimeMillis();
+    	if (_centerlineAlgorithm == Inserts.DFE_CENTERLINE_ALGORITHM)
+    	{
+    		IJ.log("DFE cost function.");
+    		this.weightCompact(segDfeGraphs);
+    	}
+    	else
+    	{
+    		IJ.log("DFE weighted Center of Mass cost function");
+    		CenterOfMass.findCompactCenterOfMass(segDfeGraphs, _recenterTimes, _vd, _minRecenter, _massWeightPower, _dfeWeightedCOM);
+    	}
+    	dur = System.currentTimeMillis()-s;
+    	IJ.log("Cost function time: "+dur/MS_2_SEC+" seconds. ");
+    	return segDfeGraphs;
+    }
+    /** Modified DFE of the compact graphs. */
+    public void modifyCompactDFEs(List<VoxelGraph> graphs)
+    {
+    	for (VoxelGraph g: graphs)
+    	{
+    		for (int n=0; n < g.nodeCount(); n++)
+    		{
+    			short dfeValue = g.dfe[n];
+    			if (dfeValue > 0)
+    			{
+    				short sameDFE = 1;
+    				for (int e=g.offsets[n]; e < g.offsets[n+1]; e++)
+    				{
+    					if (dfeValue == g.dfe[g.neighbors[e]])
+    						sameDFE++;
+    				}
+    				g.mDFE[n] = (float)dfeValue + ( (float)sameDFE ) / ((float)_nMax);
+    			}
+    		}
+    	}
+    }
+    /** Assigns the weight value for finding the lowest cost path to each node of the compact graphs. */
+    public void weightCompact(List<VoxelGraph> graphs)
+    {
+    	for (VoxelGraph g: graphs)
+    	{
+    		for (int n=0; n < g.nodeCount(); n++)
+    		{
+    			float mdfeValue = g.mDFE[n];
+    			if (mdfeValue > 0)
+    			{
+    				float maxMDFE = mdfeValue;
+    				for (int e=g.offsets[n]; e < g.offsets[n+1]; e++)
+    				{
+    					float adjValue = g.mDFE[g.neighbors[e]];
+    					if (adjValue > maxMDFE)
+    						maxMDFE = adjValue;
+    				}
+    				float sub1 = 1-(mdfeValue/maxMDFE);
+    				double sub2 = Math.pow(sub1, _b);
+    				g.weight[n] = (_a * (float)(sub2)) + FIXED_COST;
+    			}
+    		}
+    	}
+    }
     /** Make a set of graphs from the input intensities of the segmentation. */
     public List<Graph> makeDfeGraphsFromSegIntensity(short[][] segmentationVoxels)
     {
         List<GraphNode> dfeNodes = null;
         {
-        	DistanceFromEdge dfer = new DistanceFromEdge(_xRes, _yRes, _zRes);
-        	long dfeStart = System.currentTimeMillis();
-            short[][] dfes = dfer.distanceFromEdge(segmentationVoxels, _width, _height);
-            long dfeDuration = System.currentTimeMillis()-dfeStart;
-            IJ.log("Calculate segmentation DFE: "+dfeDuration/MS_2_SEC+" seconds.");
-            if (_showSteps)
-            {
-            	ImagePlus image = ImageProcess.makeImage(dfes, _width, _height, _title+"DFEArray");
-            	this.save(image);
-            }
-            System.gc();
-            if (_dfeThreshold > 0)
-                Threshold.thresholdUnder(dfes, (short)Math.round(_dfeThreshold*VoxelDistance.DISTANCE_PRECISION));
+            short[][] dfes = this.segmentationDFE(segmentationVoxels);
             long s = System.currentTimeMillis();
             dfeNodes = ConnectedGraph.makeNodeListDFE(dfes, _width, _height);
             long dur = System.currentTimeMillis()-s;
-            IJ.log("Make DFE nodes from DFE arrays: "+dur/MS_2_SEC+" seconds.");
+            IJ.log("Make DFE nodes from DFE arrays: "+dur/MS_2_SEC+" seconds, "+dur+" ms, "+dfeNodes.size()+" nodes.");
         }
         System.gc();
         long s = System.currentTimeMillis();
@@ -496,16 +679,7 @@ public class Centerlines implements Message
         long dur = System.currentTimeMillis()-s;
         IJ.log("DFE graphs: "+dur/MS_2_SEC+" seconds, number of graphs: "+segDfeGraphs.size());
         
-        // need PC images to do a PC centerline algorithm, change to DFE weighted COM if PC image is missing  
-        if ((_centerlineAlgorithm == Inserts.DFEWTCOM_MULT_PCCROSSNORM || 
-        		_centerlineAlgorithm == Inserts.VELOC_DFECOM) && 
-        		(_xPCimage == null || _yPCimage == null || _zPCimage == null))
-        {
-        	
-        	_centerlineAlgorithm = Inserts.DFE_WEIGHTED_COM;
-        	_sp.setCenterlineAlgorithm(_centerlineAlgorithm);
-        	IJ.log("Missing phase contrast image change to centerline algorithm ID: "+_centerlineAlgorithm);
-        }
+        this.checkPhaseContrastAlgorithm();
         s = System.currentTimeMillis();
         if (_centerlineAlgorithm == Inserts.DFE_CENTERLINE_ALGORITHM)
         {
@@ -583,10 +757,317 @@ public class Centerlines implements Message
         IJ.log("Weight DFE graphs: "+dur/MS_2_SEC+" seconds. ");
     }
     
+    /** Make centers using Dijkstra's shortest path algorithm on the compact graphs. The centerlines are backtraced
+     * from the predecessor arrays and GraphNode objects are only made for the centerline nodes. The segmentation 
+     * graphs of GraphNode objects are made from the compact graphs by makeCompactSegmentationGraphs() when the 
+     * centerlines are measured or getImageGraphs() is called. */
+    public List<CenterlineGraph> makeCompactCenterlines(List<VoxelGraph> segDfeGraphs, VoxelDistance vd)
+    {
+    	IJ.log("Compact SegDfeGraphs size: "+segDfeGraphs.size());
+    	this.prepareCenterlineAlgorithm();
+    	List<int[]> settledOrders = new LinkedList<int[]>();
+    	for (VoxelGraph g: segDfeGraphs)
+    	{
+    		settledOrders.add(_sp.dijkstraLowestCostPathsGraph(g, _zSize, vd));
+    	}
+    	_segGraphs = new LinkedList<Graph>();
+    	_compactSegGraphs = segDfeGraphs;
+    	_compactSettled = settledOrders;
+    	String srcName = "SRC";
+    	if (segDfeGraphs.size() > 0)
+    	{
+    		srcName = segDfeGraphs.get(0).coordinateString(segDfeGraphs.get(0).getSourceNode());
+    		srcName = srcName.substring(1, srcName.length()-1).replace(", ", "_");
+    	}
+    	if (_showSteps)
+    	{
+    		this.save(VoxelGraph.pathCostImage(segDfeGraphs, _width, _height, _zSize, _title+srcName+"ShortestPaths"));
+    		this.save(VoxelGraph.pathLengthImage(segDfeGraphs, _width, _height, _zSize, _title+srcName+"PathLen"));
+    	}
+    	{
+    		ImagePlus weightImage = VoxelGraph.makeWeightImage(segDfeGraphs, _width, _height, _zSize, _title+"CostWeight");
+    		List<List<Position>> anchors = this.find2DweightCenters(weightImage, _title);
+    		for (VoxelGraph g: segDfeGraphs)
+    		{
+    			// break ties for sorting 
+    			int var = 0;
+    			for (List<Position> end: anchors)
+    			{
+    				for (Position p: end)
+    				{
+    					int n = g.findNode(p.getColumn(), p.getRow(), p.getZ());
+    					if (n != VoxelGraph.NONE)
+    					{
+    						g.pathLen[n] = Integer.MAX_VALUE-var;
+    					}
+    					var++;
+    				}
+    			}
+    		}
+    	}
+    	List<CenterlineGraph> centerlineGraphs = new LinkedList<CenterlineGraph>();
+    	Iterator<int[]> settled = settledOrders.iterator();
+    	for (VoxelGraph g: segDfeGraphs)
+    	{
+    		centerlineGraphs.add(this.backTraceCompactCenterline(g, settled.next()));
+    	}
+    	IJ.log("centerlineGraphs size: "+centerlineGraphs.size());
+    	for (CenterlineGraph cg: centerlineGraphs)
+    	{
+    		// there are no voxel nodes to belong to the centerline nodes, each is its own closest centerline node 
+    		for (GraphNode cn: cg.getCenterlineNodes())
+    		{
+    			cn.centerlineNodeData = new CenterlineNodeData();
+    			cn.centerlineNodeData.addBelongNode(cn);
+    			cn.centerlineNode = cn;
+    		}
+    	}
+    	if (_showSteps)
+        {
+        	Overlay overlay = new Overlay();
+        	ImagePlus centerlineWeights = overlay.overlayCenterlinesOnWeights(centerlineGraphs, 
+        			VoxelGraph.weightVoxels(segDfeGraphs, _width, _height, _zSize), _width, _height, 
+        			_title+_fixLabel+"CentCostWeight");
+        	this.save(centerlineWeights);
+        }
+    	this.addCenterlineMIP(centerlineGraphs);
+    	_compactCenterlineGraphs = centerlineGraphs;
+    	return centerlineGraphs;
+    }
+    /** Make the segmentation graphs of GraphNode objects of the last compact run once, for measuring between 
+     * centerline points and algorithms on every voxel. The centerline nodes are kept and the other voxels get 
+     * nodes with the weights, path costs and predecessors of the compact graph. The centerlines get the graph of 
+     * the nodes in the order their lowest cost path was found, the shortest path graph they get from 
+     * backTraceCenterline(), and the surround nodes. */
+    private void makeCompactSegmentationGraphs()
+    {
+    	if (_compactSegGraphs == null || _segGraphs.size() > 0)
+    		return;
+    	List<Graph> segGraphs = new LinkedList<Graph>();
+    	Iterator<int[]> settledOrders = _compactSettled.iterator();
+    	Iterator<CenterlineGraph> centerlineGraphs = _compactCenterlineGraphs.iterator();
+    	for (VoxelGraph g: _compactSegGraphs)
+    	{
+    		int[] settled = settledOrders.next();
+    		List<Centerline> centerlines = centerlineGraphs.next().getCenterlines();
+    		int nodeCount = g.nodeCount();
+    		GraphNode[] view = new GraphNode[nodeCount];
+    		for (GraphNode cn: centerlines.get(0).getGraph().getNodes())
+    		{
+    			view[g.findNode(cn.col, cn.row, cn.z)] = cn;
+    		}
+    		LinkedList<GraphNode> nodes = new LinkedList<GraphNode>();
+    		for (int n=0; n < nodeCount; n++)
+    		{
+    			if (view[n] == null)
+    				view[n] = g.makeNode(n);
+    			nodes.add(view[n]);
+    		}
+    		for (int n=0; n < nodeCount; n++)
+    		{
+    			GraphNode v = view[n];
+    			int pred = g.predecessor[n];
+    			v.predecessor = pred != VoxelGraph.NONE ? view[pred]: null;
+    			for (int e=g.offsets[n]; e < g.offsets[n+1]; e++)
+    			{
+    				v.adjacents.add(view[g.neighbors[e]]);
+    			}
+    		}
+    		LinkedList<GraphNode> settledNodes = new LinkedList<GraphNode>();
+    		for (int n: settled)
+    		{
+    			settledNodes.add(view[n]);
+    		}
+    		GraphNode source = view[g.getSourceNode()];
+    		this.addCompactSurroundNodes(g, settled, view, centerlines);
+    		Graph shortestPath = new Graph(settledNodes, source);
+    		for (Centerline c: centerlines)
+    		{
+    			c.setGraph(shortestPath);
+    		}
+    		segGraphs.add(new Graph(nodes, source));
+    	}
+    	_segGraphs = segGraphs;
+    	IJ.log("Segmentation graphs made from compact graphs: "+_segGraphs.size());
+    }
+    /** Add the lines shorter than the minimum line length to the surrounding nodes of the centerlines in the order 
+     * backTraceCenterline() adds them. The short lines ending at the source go to the centerline the source was on 
+     * at the time. */
+    private void addCompactSurroundNodes(VoxelGraph g, int[] settled, GraphNode[] view, List<Centerline> centerlines)
+    {
+    	Iterator<Centerline> lines = centerlines.iterator();
+    	Centerline sourceCenterline = lines.next();
+    	List<List<GraphNode> > allSurroundLines = new LinkedList<List<GraphNode> >();
+    	boolean[] graphed = new boolean[g.nodeCount()];
+    	int[] line = new int[g.nodeCount()+1];
+    	for (long o: compactBacktraceOrder(g, settled))
+    	{
+    		int lineSize = compactLine(g, settled[(int)o], graphed, line);
+    		if (lineSize > 0 && lineSize >= _minLineLength)
+    		{
+    			Centerline centerline = lines.next();
+    			if (line[lineSize-1] == g.getSourceNode())
+    				sourceCenterline = centerline;
+    		}
+    		else if (lineSize > 0)
+    		{
+    			List<GraphNode> surLine = new LinkedList<GraphNode>();
+    			for (int i=0; i < lineSize; i++)
+    			{
+    				surLine.add(view[line[i]]);
+    			}
+    			if (line[lineSize-1] == g.getSourceNode())
+    			{
+    				sourceCenterline.addSurroundNodes(surLine);
+    			}
+    			allSurroundLines.add(surLine);
+    		}
+    	}
+    	for (List<GraphNode> surLine: allSurroundLines)
+    	{
+    		GraphNode pred = surLine.get(surLine.size()-1).predecessor;
+    		if (pred != null && pred.centerline != null)
+    		{
+    			pred.centerline.addSurroundNodes(surLine);
+    		}
+    	}
+    }
+    /** Backtrace the centerlines of a compact graph from the predecessor array the same way as backTraceCenterline(),
+     * from the longest path lengths first. GraphNode objects are made only for the centerline nodes and are linked
+     * to their centerline node neighbors in the graph of each centerline. Lines shorter than the minimum line length
+     * become surround nodes in makeCompactSegmentationGraphs(). 
+     * @param settled node ids in the order their lowest cost path was found */
+    public CenterlineGraph backTraceCompactCenterline(VoxelGraph g, int[] settled)
+    {
+    	int nodeCount = g.nodeCount();
+    	long[] order = compactBacktraceOrder(g, settled);
+    	int source = g.getSourceNode();
+    	IJ.log("Backtracing compact graph from source node: "+g.coordinateString(source)+" backtrace starts size: "+
+    			settled.length);
+    	
+    	GraphNode[] view = new GraphNode[nodeCount];
+    	LinkedList<GraphNode> nodes = new LinkedList<GraphNode>();
+    	GraphNode sourceNode = g.makeNode(source);
+    	view[source] = sourceNode;
+    	nodes.add(sourceNode);
+    	CenterlineGraph centGraph = new CenterlineGraph();
+    	List<Centerline> centerlines = new LinkedList<Centerline>();
+    	Centerline centerline = new Centerline();
+    	sourceNode.centerline = centerline;
+    	centerlines.add(centerline);
+    	centGraph.setSourceNode(sourceNode);
+    	
+    	boolean[] graphed = new boolean[nodeCount];
+    	int[] line = new int[nodeCount+1];
+    	for (long o: order)
+    	{
+    		int backtraceNode = settled[(int)o];
+    		boolean end = !graphed[backtraceNode];
+    		int lineSize = compactLine(g, backtraceNode, graphed, line);
+    		if (lineSize > 0 && lineSize >= _minLineLength)
+    		{
+    			LinkedList<GraphNode> lineNodes = new LinkedList<GraphNode>();
+    			for (int i=0; i < lineSize; i++)
+    			{
+    				int n = line[i];
+    				if (view[n] == null)
+    				{
+    					view[n] = g.makeNode(n);
+    					nodes.add(view[n]);
+    				}
+    				lineNodes.add(view[n]);
+    			}
+    			if (end)
+    			{
+    				centGraph.addTreeEnd(lineNodes.getFirst());
+    			}
+    			centerline = new Centerline();
+    			centerline.setCenterlineNodes(lineNodes);
+    			centerlines.add(centerline);
+    			GraphNode lineEnd = lineNodes.getLast();
+    			if (lineEnd != sourceNode)
+    			{
+    				// mark bifurcation
+    				centerline.setBifurcationNode(lineEnd);
+    			}
+    		}
+    	}
+    	// link the centerline nodes to each other
+    	for (int n=0; n < nodeCount; n++)
+    	{
+    		GraphNode v = view[n];
+    		if (v != null)
+    		{
+    			int pred = g.predecessor[n];
+    			if (pred != VoxelGraph.NONE)
+    			{
+    				v.predecessor = view[pred];
+    			}
+    			for (int e=g.offsets[n]; e < g.offsets[n+1]; e++)
+    			{
+    				GraphNode a = view[g.neighbors[e]];
+    				if (a != null)
+    				{
+    					v.adjacents.add(a);
+    				}
+    			}
+    		}
+    	}
+    	Graph centerlineNodeGraph = new Graph(nodes, sourceNode);
+    	for (Centerline c: centerlines)
+    	{
+    		c.setGraph(centerlineNodeGraph);
+    	}
+    	IJ.log("Centerlines size: "+centerlines.size()+" centerline nodes: "+nodes.size());
+    	centGraph.setCenterlines(centerlines);
+    	return centGraph;
+    }
+    /** @return the indexes of the settled nodes sorted longest to shortest path lengths in the low 32 bits, 
+     * equal lengths keep the settled order */
+    private static long[] compactBacktraceOrder(VoxelGraph g, int[] settled)
+    {
+    	long[] order = new long[settled.length];
+    	for (int i=0; i < settled.length; i++)
+    	{
+    		order[i] = ((long)(Integer.MAX_VALUE-g.pathLen[settled[i]]) << 32) | i;
+    	}
+    	Arrays.sort(order);
+    	return order;
+    }
+    /** Backtrace a line from the start node until the source or a graphed node like searchPath(). 
+     * @return the size of the line put in line */
+    private static int compactLine(VoxelGraph g, int start, boolean[] graphed, int[] line)
+    {
+    	int source = g.getSourceNode();
+    	int lineSize = 0;
+    	int node = start;
+    	while (node != VoxelGraph.NONE)
+    	{
+    		if (node == source)
+    		{
+    			graphed[source] = true;
+    			line[lineSize++] = source;
+    			break;
+    		}
+    		if (graphed[node])
+    			break;
+    		graphed[node] = true;
+    		line[lineSize++] = node;
+    		node = g.predecessor[node];
+    	}
+    	return lineSize;
+    }
     /** Make centers using Dijkstra's shortest path algorithm using the weights as cost function.  */
     public List<CenterlineGraph> makeCenterlines(List<Graph> segDfeGraphs, VoxelDistance vd)
     {
     	IJ.log("SegDfeGraphs size: "+segDfeGraphs.size());
+    	this.prepareCenterlineAlgorithm();
+    	List<Graph> shortestPaths = _sp.dijkstraLowestCostPaths(segDfeGraphs, _zSize, vd);
+    	return this.backTraceShortestPaths(segDfeGraphs, shortestPaths);
+    }
+    /** Set up the phase contrast cost and label of the centerline algorithm. */
+    private void prepareCenterlineAlgorithm()
+    {
     	// find ends and reuse these as source nodes.
     	PhaseContrast pc = null;
     	if (_xPCimage != null && _yPCimage != null && _zPCimage != null)
@@ -631,8 +1112,10 @@ public class Centerlines implements Message
         {
         	_algLabel = "VelocCost";
         }
-        List<Graph> shortestPaths = _sp.dijkstraLowestCostPaths(segDfeGraphs, _zSize, vd);
-        
+    }
+    /** Backtrace the centerlines from the lowest cost paths of the segmentation graphs. */
+    private List<CenterlineGraph> backTraceShortestPaths(List<Graph> segDfeGraphs, List<Graph> shortestPaths)
+    {
         //String pcLabel = "";
         /*
         if (pc != null)
@@ -694,9 +1177,6 @@ public class Centerlines implements Message
         			_width, _height, _zSize, _title+_fixLabel+"CentCostWeight");
         	this.save(centerlineWeights);
         }
-        _mipZcentStack = new ImageStack(_width, _height);
-        
-        
     	for (CenterlineGraph cg: centerlineGraphs)
         {
     		GraphNode sn = cg.getSourceNode();
@@ -706,7 +1186,19 @@ public class Centerlines implements Message
         			_xRes, _yRes, _zRes);
         }
         
+        this.addCenterlineMIP(centerlineGraphs);
         
+		{
+			
+        	// ImagePlus enhancedImage = this.enhanceAneurysms(centerlineGraphs, shortestPaths, EnhanceAneurysm.WRITE_FILE);
+        }
+		
+        return centerlineGraphs;
+    }
+    /** Start the centerline MIP stack with the MIP of the color centerline image. */
+    private void addCenterlineMIP(List<CenterlineGraph> centerlineGraphs)
+    {
+        _mipZcentStack = new ImageStack(_width, _height);
     	GraphNode src0 = centerlineGraphs.get(0).getSourceNode();
     	String endName = src0.col+"_"+src0.row+"_"+src0.z;
     	
@@ -717,13 +1209,6 @@ public class Centerlines implements Message
     	
     	ImagePlus zImMIP = MIP.createColorMIP(centerlineIm, _mipAxis);;
 		_mipZcentStack.addSlice(zImMIP.getShortTitle(), zImMIP.getProcessor());
-        
-		{
-			
-        	// ImagePlus enhancedImage = this.enhanceAneurysms(centerlineGraphs, shortestPaths, EnhanceAneurysm.WRITE_FILE);
-        }
-		
-        return centerlineGraphs;
     }
     
     public ImagePlus makeBrokenLoopsImage(List<Graph> segGraphs, List<CenterlineGraph> centerlineGraphs, 
@@ -776,13 +1261,11 @@ public class Centerlines implements Message
     	return image;
     }
     private HashMap<GraphNode, Integer> _centerlineAnchorUpper;
-    /** Assign 2-D weights to the bottom end of the stack so centerlines are in the middle of arteries running off the end.
-     * Call before backtracing. */
-    private void assign2Dweights(ImagePlus weightImage, String title)
+    /** Find the middles of the weight clusters in the 2-D slices near the bottom and top of the stack where arteries
+     * run off the end. 
+     * @return the lower and the upper end positions */
+    private List<List<Position>> find2DweightCenters(ImagePlus weightImage, String title)
     {
-    	// anchor on top slices too 
-    	_centerlineAnchorLower = new HashMap<GraphNode, Integer>();
-    	_centerlineAnchorUpper = new HashMap<GraphNode, Integer>();
     	int arteryEndZlower = weightImage.getStackSize()-3;
     	int arteryEndZupper = 1; 
     	
@@ -826,6 +1309,21 @@ public class Centerlines implements Message
 	        fs.saveAsTiff(p);
 	        
         }
+        List<List<Position>> anchors = new LinkedList<List<Position>>();
+        anchors.add(lowerWeightCenterPoss);
+        anchors.add(upperWeightCenterPoss);
+        return anchors;
+    }
+    /** Assign 2-D weights to the bottom end of the stack so centerlines are in the middle of arteries running off the end.
+     * Call before backtracing. */
+    private void assign2Dweights(ImagePlus weightImage, String title)
+    {
+    	// anchor on top slices too 
+    	_centerlineAnchorLower = new HashMap<GraphNode, Integer>();
+    	_centerlineAnchorUpper = new HashMap<GraphNode, Integer>();
+    	List<List<Position>> anchors = this.find2DweightCenters(weightImage, title);
+    	List<Position> lowerWeightCenterPoss = anchors.get(0);
+    	List<Position> upperWeightCenterPoss = anchors.get(1);
         // assign high pathLen to centers of arteries running out of image so they are used to backtrace centerlines 
         for (Graph g: _segGraphs)
         {
@@ -974,11 +1472,20 @@ public class Centerlines implements Message
 	    		IJ.log("All Ends: "+allEnds.size());
 	    		if (allEnds != null)
 	    		{
+	    			if (this.isParallelEndAlgorithm())
+	    			{
+	    				EndCenterlines endCenterlines = this.makeEndCenterlines();
+	    				if (endCenterlines.containsAll(allEnds))
+	    				{
+	    					countCent = this.findParallelEndCenterlines(endCenterlines, allEnds, countCent, accumCenterline);
+	    					continue;
+	    				}
+	    				IJ.log("Tree ends outside of the segmentation graph, serial tree end centerlines");
+	    			}
 		    		for (GraphNode endSource: allEnds)
 		    		{
 		    			long ts = System.currentTimeMillis();
 		    			countCent++;
-		    			String endName = ""+endSource.col+"_"+endSource.row+"_"+endSource.z;
 		    			// recalculate centerline with new source nodes 
 		    			List<CenterlineGraph> newSourceCentGraphs = new LinkedList<CenterlineGraph>();
 		    			
@@ -1004,37 +1511,7 @@ public class Centerlines implements Message
 		    					newSourceCentGraphs.add(ncg);
 		    				}
 		    			}
-		    			// create image of centerlines and write
-		    			int nct = centerlineNodeCount(newSourceCentGraphs);
-		    			{
-		    				
-		    				IJ.log(endName+": "+nct);
-		    				if (nct > 0)
-		    				{
-		    					ImagePlus centerlineIm = Graph.makeColorImage(newSourceCentGraphs, _width, _height, _zSize, 
-		    						_title+endName+_fixLabel+"SrcCent", Integer.MAX_VALUE, false);
-		    					ImagePlus zIm = MIP.createColorMIP(centerlineIm, _mipAxis); // TODO select axis 
-		    					_mipZcentStack.addSlice(endName, zIm.getProcessor());
-		    					if (_showSteps)
-		    					{
-		    						this.save(centerlineIm, "Save "+countCent);
-		    					}
-		    				}
-		    			}
-		    			if (_showSteps)
-		    			{
-		    				ImagePlus pathCostIm = Graph.pathCostImage(newShortestPaths, _width, _height, _zSize, 
-		    					_title+endName+"NewSrcShortestPaths");
-		    				this.save(pathCostIm);
-		    			
-		    				ImagePlus pathLenIm = Graph.pathLengthImage(newShortestPaths, _width, _height, _zSize, _title+endName+"NewPathLen");
-		    				this.save(pathLenIm);
-		    			}
-		    			// write all newSourceCentGraphs on top of each other
-		    			if (nct > 0)
-		    			{
-		    				accumCenterline.addCenterline(newSourceCentGraphs);
-		    			}
+		    			this.addEndCenterlines(endSource, countCent, newSourceCentGraphs, newShortestPaths, accumCenterline);
 			    		long td = System.currentTimeMillis()-ts;
 			    		IJ.log(countCent+" One good tree end time minutes: "+td/MS_2_MIN);
 		    		}
@@ -1075,6 +1552,114 @@ public class Centerlines implements Message
     	ImagePlus accumCentMipZim = MIP.createShortMIP(accummCentIm, MIP.Z_AXIS);
     	this.savePng(accumCentMipZim);	
     }
+    /** Write the centerlines from one tree end source to the MIP stack and accumulate them. */
+    private void addEndCenterlines(GraphNode endSource, int countCent, List<CenterlineGraph> newSourceCentGraphs, 
+    		List<Graph> newShortestPaths, AccumulateCenterlines accumCenterline)
+    {
+    	String endName = ""+endSource.col+"_"+endSource.row+"_"+endSource.z;
+    	// create image of centerlines and write
+    	int nct = centerlineNodeCount(newSourceCentGraphs);
+    	IJ.log(endName+": "+nct);
+    	if (nct > 0)
+    	{
+    		ImagePlus centerlineIm = Graph.makeColorImage(newSourceCentGraphs, _width, _height, _zSize, 
+    				_title+endName+_fixLabel+"SrcCent", Integer.MAX_VALUE, false);
+    		ImagePlus zIm = MIP.createColorMIP(centerlineIm, _mipAxis); // TODO select axis 
+    		_mipZcentStack.addSlice(endName, zIm.getProcessor());
+    		if (_showSteps)
+    		{
+    			this.save(centerlineIm, "Save "+countCent);
+    		}
+    	}
+    	if (_showSteps)
+    	{
+    		ImagePlus pathCostIm = Graph.pathCostImage(newShortestPaths, _width, _height, _zSize, 
+    				_title+endName+"NewSrcShortestPaths");
+    		this.save(pathCostIm);
+
+    		ImagePlus pathLenIm = Graph.pathLengthImage(newShortestPaths, _width, _height, _zSize, _title+endName+"NewPathLen");
+    		this.save(pathLenIm);
+    	}
+    	// write all newSourceCentGraphs on top of each other
+    	if (nct > 0)
+    	{
+    		accumCenterline.addCenterline(newSourceCentGraphs);
+    	}
+    }
+    /** Tree end centerlines can be found in parallel when there is one segmentation graph, no bad end fixing and no phase 
+     * contrast cost function. */
+    private boolean isParallelEndAlgorithm()
+    {
+    	return _parallelEnds && _segGraphs.size() == 1 && !_fixBadEnds && _sp.getPhaseContrast() == null 
+    		&& _centerlineAnchorLower != null && _centerlineAnchorUpper != null;
+    }
+    private EndCenterlines makeEndCenterlines()
+    {
+    	List<Map<GraphNode, Integer>> anchors = new LinkedList<Map<GraphNode, Integer>>();
+    	anchors.add(_centerlineAnchorLower);
+    	anchors.add(_centerlineAnchorUpper);
+    	return new EndCenterlines(_segGraphs.get(0), anchors, _zSize, _minLineLength, _sp.getQueueType());
+    }
+    /** Shortest paths and backtraces from the tree ends run in separate threads on their own path arrays. The centerlines are 
+     * built and accumulated in tree end order in this thread so the histograms are the same as the serial run.
+     * An exception in a trace is thrown as a RuntimeException instead of returning partial counts.
+     * @return the updated centerline count */
+    private int findParallelEndCenterlines(final EndCenterlines endCenterlines, Set<GraphNode> allEnds, int countCent, 
+    		AccumulateCenterlines accumCenterline)
+    {
+    	int threads = Runtime.getRuntime().availableProcessors();
+    	IJ.log("Parallel tree end centerlines threads: "+threads);
+    	ExecutorService executor = Executors.newFixedThreadPool(threads);
+    	// limit the traces waiting to be accumulated, each holds path arrays the size of the graph 
+    	int window = 2*threads;
+    	LinkedList<Future<EndCenterlines.Trace>> pending = new LinkedList<Future<EndCenterlines.Trace>>();
+    	Iterator<GraphNode> ends = allEnds.iterator();
+    	try
+    	{
+    		while (ends.hasNext() || !pending.isEmpty())
+    		{
+    			while (ends.hasNext() && pending.size() < window)
+    			{
+    				final GraphNode endSource = ends.next();
+    				pending.add(executor.submit(new Callable<EndCenterlines.Trace>() {
+    					public EndCenterlines.Trace call()
+    					{
+    						return endCenterlines.trace(endSource);
+    					}
+    				}));
+    			}
+    			long ts = System.currentTimeMillis();
+    			Future<EndCenterlines.Trace> next = pending.removeFirst();
+    			countCent++;
+    			EndCenterlines.Trace trace = next.get();
+    			trace.copyPaths();
+    			Graph shortestPath = trace.makeShortestPath();
+    			CenterlineGraph newCg = trace.makeCenterlineGraph(shortestPath);
+    			List<CenterlineGraph> newSourceCentGraphs = new LinkedList<CenterlineGraph>();
+    			newSourceCentGraphs.add(newCg);
+    			List<Graph> newShortestPaths = new LinkedList<Graph>();
+    			newShortestPaths.add(shortestPath);
+    			this.addEndCenterlines(trace.getSource(), countCent, newSourceCentGraphs, newShortestPaths, accumCenterline);
+    			long td = System.currentTimeMillis()-ts;
+    			IJ.log(countCent+" One good tree end time minutes: "+td/MS_2_MIN);
+    		}
+    	}
+    	catch (InterruptedException e)
+    	{
+    		Thread.currentThread().interrupt();
+    		throw new RuntimeException(e);
+    	}
+    	catch (ExecutionException e)
+    	{
+    		// a failed trace would leave its centerlines out of the stability counts 
+    		throw new RuntimeException(e.getCause());
+    	}
+    	finally
+    	{
+    		executor.shutdownNow();
+    	}
+    	return countCent;
+    }
     public static int centerlineNodeCount(List<CenterlineGraph> cgs)
     {
     	int c = 0;
@@ -1084,6 +1669,241 @@ public class Centerlines implements Message
     	}
     	return c;
     }
+    /** @return col,row,z of the nodes in order */
+    private static String coordinates(List<GraphNode> nodes)
+    {
+    	StringBuffer sb = new StringBuffer();
+    	for (GraphNode n: nodes)
+    	{
+    		sb.append(n.coordinateString());
+    	}
+    	return sb.toString();
+    }
+    /** @return a segmentation of voxels set at the col, row, z positions */
+    private static ImagePlus testSegmentation(List<int[]> positions, int width, int height, int zSize)
+    {
+    	ImageStack stack = new ImageStack(width, height);
+    	for (int z=0; z < zSize; z++)
+    	{
+    		stack.addSlice(""+z, new ShortProcessor(width, height));
+    	}
+    	for (int[] p: positions)
+    	{
+    		stack.getProcessor(p[2]+1).set(p[0], p[1], 100);
+    	}
+    	return new ImagePlus("Segmentation", stack);
+    }
+    /** Find the centerlines with the GraphNode graphs in the first and the compact graphs in the second run, 
+     * making the segmentation graphs of the compact run like displayMeasureCenterlines(). */
+    private static Centerlines[] testRuns(ImagePlus segmentation, float dfeThreshold, AccumulateCenterlines[] accums, 
+    		ImagePlus[] overlays)
+    {
+    	Centerlines[] runs = {new Centerlines(), new Centerlines()};
+    	for (int i=0; i < 2; i++)
+    	{
+    		runs[i].setCompactGraph(i == 1);
+    		runs[i].setDfeThreshold(dfeThreshold);
+    		runs[i].setCenterlineAlgorithm(Inserts.DFE_WEIGHTED_COM);
+    		runs[i].findCenterlines(segmentation);
+    		accums[i] = runs[i].makeAccumulateCenterlines();
+    		runs[i].makeCompactSegmentationGraphs();
+    		overlays[i] = new Overlay().overlayColorCenterlines(segmentation, runs[i]._centerlineGraphs, "Center"+i);
+    	}
+    	return runs;
+    }
+    /** Find centerlines with the compact and the GraphNode graphs. On a one voxel thick tree without equal cost 
+     * paths compare the centerlines, the overlay, the accumulated centerline images and the DFMs measured between 
+     * the tree ends. On a tube with many equal cost paths compare the lowest path costs between the tree ends. */
+    public static String tests()
+    {
+    	StringBuffer sb = new StringBuffer();
+    	int width = 48, height = 40, zSize = 40;
+    	List<int[]> tree = new LinkedList<int[]>();
+    	for (int z=2; z <= 15; z++)
+    	{
+    		tree.add(new int[]{20, 20, z});
+    	}
+    	for (int k=1; k <= 14; k++)
+    	{
+    		tree.add(new int[]{20+k, 20+k, 15+k});
+    		tree.add(new int[]{20-k, 20, 15+k});
+    	}
+    	// a spur shorter than the minimum line length 
+    	for (int m=1; m <= 4; m++)
+    	{
+    		tree.add(new int[]{27+m, 27-m, 22});
+    	}
+    	ImagePlus segmentation = testSegmentation(tree, width, height, zSize);
+    	ImagePlus[] overlays = new ImagePlus[2];
+    	AccumulateCenterlines[] accums = new AccumulateCenterlines[2];
+    	Centerlines[] runs = testRuns(segmentation, 0, accums, overlays);
+    	int failed = 0;
+    	List<CenterlineGraph> graphs = runs[0]._centerlineGraphs, compactGraphs = runs[1]._centerlineGraphs;
+    	// centerlines and their surround nodes 
+    	int lineDiff = 0, surroundDiff = 0, lineCount = 0;
+    	Set<String> surround = new HashSet<String>();
+    	if (graphs.size() != compactGraphs.size()) lineDiff++;
+    	for (int g=0; g < Math.min(graphs.size(), compactGraphs.size()); g++)
+    	{
+    		List<Centerline> lines = graphs.get(g).getCenterlines(), compactLines = compactGraphs.get(g).getCenterlines();
+    		if (lines.size() != compactLines.size()) lineDiff++;
+    		for (int l=0; l < Math.min(lines.size(), compactLines.size()); l++)
+    		{
+    			lineCount++;
+    			Centerline line = lines.get(l), compactLine = compactLines.get(l);
+    			if (!coordinates(line.getCenterlineNodes()).equals(coordinates(compactLine.getCenterlineNodes()))) lineDiff++;
+    			List<String> sur = new LinkedList<String>(), compactSur = new LinkedList<String>();
+    			for (GraphNode n: line.getSurroundNodes()) sur.add(n.coordinateString());
+    			for (GraphNode n: compactLine.getSurroundNodes()) compactSur.add(n.coordinateString());
+    			Collections.sort(sur);
+    			Collections.sort(compactSur);
+    			if (!sur.equals(compactSur)) surroundDiff++;
+    			surround.addAll(sur);
+    		}
+    	}
+    	if (lineDiff > 0 || surroundDiff > 0 || surround.size() == 0) failed++;
+    	sb.append(lineCount+" centerlines, "+surround.size()+" surround nodes: "+(lineDiff == 0 && surroundDiff == 0 ? "same": 
+    		"DIFFERENT "+lineDiff+" centerlines "+surroundDiff+" surround nodes")+"\n");
+    	// surround colors are random 
+    	int overlayDiff = 0;
+    	for (int z=0; z < zSize; z++)
+    	{
+    		int[] pix = (int[])overlays[0].getStack().getPixels(z+1), compactPix = (int[])overlays[1].getStack().getPixels(z+1);
+    		for (int i=0; i < pix.length; i++)
+    		{
+    			if (pix[i] != compactPix[i] && !surround.contains("("+(i%width)+", "+(i/width)+", "+z+")")) 
+    				overlayDiff++;
+    		}
+    	}
+    	if (overlayDiff > 0) failed++;
+    	sb.append("overlay: "+(overlayDiff == 0 ? "same": "DIFFERENT in "+overlayDiff+" voxels")+"\n");
+    	ImagePlus[][] accumImages = {{accums[0].getCentImage(), accums[1].getCentImage()}, 
+    			{accums[0].getBifImage(), accums[1].getBifImage()}};
+    	for (ImagePlus[] images: accumImages)
+    	{
+    		int diff = 0, background = 0;
+    		for (int z=0; z < zSize; z++)
+    		{
+    			short[] pix = (short[])images[0].getStack().getPixels(z+1), compactPix = (short[])images[1].getStack().getPixels(z+1);
+    			for (int i=0; i < pix.length; i++)
+    			{
+    				if (pix[i] != compactPix[i]) diff++;
+    				if (compactPix[i] == AccumulateCenterlines.BACKGROUND) background++;
+    			}
+    		}
+    		if (diff > 0 || background == 0) failed++;
+    		sb.append(images[0].getTitle()+" "+background+" background voxels: "+(diff == 0 ? "same": "DIFFERENT in "+diff+" voxels")+"\n");
+    	}
+    	// DFMs between every pair of tree ends 
+    	Message quiet = new Message() {
+    		public void message(String m) { }
+    		public void clear() { }
+    	};
+    	Point2PointDFM[] p2pdfms = new Point2PointDFM[2];
+    	for (int i=0; i < 2; i++)
+    	{
+    		p2pdfms[i] = new Point2PointDFM(overlays[i], runs[i]._centerlineGraphs, 1, 1, 1);
+    		p2pdfms[i].setTortAlg(Inserts.TORT_DFM_ALG);
+    		p2pdfms[i].setMessageWindow(quiet);
+    	}
+    	int pathCount = 0, pathDiff = 0;
+    	for (int g=0; g < Math.min(graphs.size(), compactGraphs.size()); g++)
+    	{
+    		List<GraphNode> ends = new LinkedList<GraphNode>(graphs.get(g).getTreeEnds());
+    		ends.add(graphs.get(g).getSourceNode());
+    		for (GraphNode a: ends)
+    		{
+    			for (GraphNode b: ends)
+    			{
+    				if (a == b) continue;
+    				pathCount++;
+    				GraphNode compactA = compactGraphs.get(g).findNode(a.col, a.row, a.z);
+    				GraphNode compactB = compactGraphs.get(g).findNode(b.col, b.row, b.z);
+    				List<DFM> dfms = p2pdfms[0].path(b.centerline.getGraph().getNodes(), b, a);
+    				List<DFM> compactDfms = compactA == null || compactB == null ? null: 
+    					p2pdfms[1].path(compactB.centerline.getGraph().getNodes(), compactB, compactA);
+    				if (dfms == null || compactDfms == null || dfms.size() != compactDfms.size())
+    				{
+    					pathDiff++;
+    					continue;
+    				}
+    				Iterator<DFM> compactDfm = compactDfms.iterator();
+    				for (DFM dfm: dfms)
+    				{
+    					if (!dfm.toString().equals(compactDfm.next().toString()))
+    					{
+    						pathDiff++;
+    						break;
+    					}
+    				}
+    			}
+    		}
+    	}
+    	if (pathDiff > 0 || pathCount == 0) failed++;
+    	sb.append(pathCount+" DFM paths between tree ends: "+(pathDiff == 0 ? "same": "DIFFERENT "+pathDiff)+"\n");
+    	
+    	// equal cost paths make different centerlines, the lowest path costs through the segmentation are the same 
+    	List<int[]> tube = new LinkedList<int[]>();
+    	double radius = 5.5;
+    	for (int z=0; z < zSize; z++)
+    	{
+    		double[][] centers = z < 20 ? new double[][]{{24+z/5.0, 19}}: 
+    			new double[][]{{28+(z-20)*0.6, 19+(z-20)*0.15}, {28-(z-20)*0.4, 19-(z-20)*0.3}};
+    		for (int r=0; r < height; r++)
+    		{
+    			for (int c=0; c < width; c++)
+    			{
+    				for (double[] center: centers)
+    				{
+    					double dc = c-center[0], dr = r-center[1];
+    					if (dc*dc+dr*dr <= radius*radius) 
+    					{
+    						tube.add(new int[]{c, r, z});
+    						break;
+    					}
+    				}
+    			}
+    		}
+    	}
+    	runs = testRuns(testSegmentation(tube, width, height, zSize), DFE_THRESHOLD, accums, overlays);
+    	for (int i=0; i < 2; i++)
+    	{
+    		p2pdfms[i] = new Point2PointDFM(overlays[i], runs[i]._centerlineGraphs, 1, 1, 1);
+    		p2pdfms[i].setMessageWindow(quiet);
+    	}
+    	int costCount = 0, costDiff = 0;
+    	for (int g=0; g < runs[1]._centerlineGraphs.size(); g++)
+    	{
+    		List<GraphNode> ends = new LinkedList<GraphNode>(runs[1]._centerlineGraphs.get(g).getTreeEnds());
+    		ends.add(runs[1]._centerlineGraphs.get(g).getSourceNode());
+    		for (GraphNode a: ends)
+    		{
+    			for (GraphNode b: ends)
+    			{
+    				if (a == b) continue;
+    				costCount++;
+    				float[] costs = new float[2];
+    				for (int i=0; i < 2; i++)
+    				{
+    					Graph seg = g < runs[i]._segGraphs.size() ? runs[i]._segGraphs.get(g): null;
+    					GraphNode endA = seg != null ? seg.findNode(a.col, a.row, a.z): null;
+    					GraphNode endB = seg != null ? seg.findNode(b.col, b.row, b.z): null;
+    					costs[i] = endA == null || endB == null || p2pdfms[i].path(seg.getNodes(), endB, endA) == null ? 
+    						Float.NaN: endA.pathCost;
+    				}
+    				if (!(Math.abs(costs[0]-costs[1]) <= costs[0]*1.0e-5f)) costDiff++;
+    			}
+    		}
+    	}
+    	if (costDiff > 0 || costCount == 0) failed++;
+    	sb.append(costCount+" lowest path costs between tube tree ends: "+(costDiff == 0 ? "same": "DIFFERENT "+costDiff)+"\n");
+    	sb.append(failed == 0 ? "compact and GraphNode graphs give the same centerlines and measurements": failed+" DIFFERENT");
+    	return sb.toString();
+    }
+    public static void main(String[] args)
+    {
+    	System.out.println(tests());
+    }
     /** Makes and displays the centerline image, weight image and record panel for marking ends
      * of the Distance Factor Metric tortuosity measurement if turned on. 
      * Call after findCenterlines */
@@ -1093,6 +1913,8 @@ public class Centerlines implements Message
         
         if (_segmentationImage != null && _recordPanel != null)
         {
+        	// measure over every voxel like the GraphNode graphs 
+        	this.makeCompactSegmentationGraphs();
         	ImagePlus colorCenterlineArtery = overlay.overlayColorCenterlines(_segmentationImage, centerlineGraphs, 
         		_title+"Center");
         	ImageStack stack = colorCenterlineArtery.getImageStack();
@@ -1391,7 +2213,9 @@ public class Centerlines implements Message
 	public void setExtendEnhancement(int extendEnhancement) {
 		_extendEnhancement = extendEnhancement;
 	}
+	/** @return the segmentation graphs, made from the compact graphs after a compact run */
 	public List<Graph> getImageGraphs() {
+		this.makeCompactSegmentationGraphs();
 		return _segGraphs;
 	}
 	public double getDfcDfeRatioThreshold() {
@@ -1551,9 +2375,55 @@ public class Centerlines implements Message
 		return _velocityPower;
 	}
 
+	public int getQueueType() {
+		return _sp.getQueueType();
+	}
+
+	/** ShortestPaths.PRIORITY_QUEUE or ShortestPaths.INDEXED_HEAP for Dijkstra's algorithm. */
+	public void setQueueType(int queueType) {
+		_sp.setQueueType(queueType);
+	}
+
+	public boolean isCompactGraph() {
+		return _compactGraph;
+	}
+
+	/** Build the compact primitive array VoxelGraph for the distance from edge, cost function and shortest paths 
+	 * instead of a GraphNode object for every voxel. */
+	public void setCompactGraph(boolean compactGraph) {
+		_compactGraph = compactGraph;
+	}
+
 	public void setVelocityPower(double velocityPower) {
 		_velocityPower = velocityPower;
 	}
+
+	public boolean isParallelEnds() {
+		return _parallelEnds;
+	}
+
+	/** Find the centerlines from all the tree ends with the shortest paths and backtraces in parallel threads. */
+	public void setParallelEnds(boolean parallelEnds) {
+		_parallelEnds = parallelEnds;
+	}
+
+	public int getDfeAlgorithm() {
+		return _dfeAlgorithm;
+	}
+
+	/** DistanceFromEdge.RAY_26 or DistanceFromEdge.EXACT_EDT for the segmentation distance from edge. */
+	public void setDfeAlgorithm(int dfeAlgorithm) {
+		_dfeAlgorithm = dfeAlgorithm;
+	}
 	
-}
+	public boolean isChunkedVolumes() {
+		return _chunkedVolumes;
+	}
 
+	/** Save the intermediate images as ChunkedVolume files that read regions without inflating the whole volume 
+	 * instead of zipped TIFF stacks. */
+	public void setChunkedVolumes(boolean chunkedVolumes) {
+		_chunkedVolumes = chunkedVolumes;
+	}
+	
+}
@@ -0,0 +1,447 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import ktdiedrich.db.aneurysm.CoordinateRange;
+import ktdiedrich.util.ParallelLines;
+
+/** Volume file of cubic blocks compressed separately for 8 bit, 16 bit and float stacks. The header has the size,
+ * calibration, title and an index of the offset and length of each block so a CoordinateRange is read by
+ * decoding only the blocks inside it. Blocks are in z, row, column order, blocks of all 0 voxels have length 0.
+ * Blocks are compressed and decompressed on threads.
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class ChunkedVolume
+{
+	public static final String EXTENSION = ".kvol";
+	public static final int MAGIC = 0x4B564F4C;
+	public static final int VERSION = 1;
+	public static final int BLOCK = 32;
+
+	private static class Header
+	{
+		int width, height, zSize, bitDepth, block;
+		double pixelWidth, pixelHeight, pixelDepth;
+		String unit, title;
+		int blocksX, blocksY, blocksZ;
+		long[] offsets;
+		int[] lengths;
+		void setBlocks()
+		{
+			blocksX = (width+block-1)/block;
+			blocksY = (height+block-1)/block;
+			blocksZ = (zSize+block-1)/block;
+		}
+		int blockCount()
+		{
+			return blocksX*blocksY*blocksZ;
+		}
+		int bytes()
+		{
+			return bitDepth == 32 ? 4: bitDepth/8;
+		}
+	}
+
+	public static void write(ImagePlus image, String path) throws IOException
+	{
+		write(image, path, BLOCK, ParallelLines.availableThreads());
+	}
+	/** Write the 8 bit, 16 bit or float stack in blocks with block voxels on a side. */
+	public static void write(ImagePlus image, String path, int block, int threads) throws IOException
+	{
+		final Header h = new Header();
+		ImageStack stack = image.getImageStack();
+		h.width = stack.getWidth();
+		h.height = stack.getHeight();
+		h.zSize = stack.getSize();
+		h.bitDepth = image.getBitDepth();
+		if (h.bitDepth != 8 && h.bitDepth != 16 && h.bitDepth != 32)
+			throw new IOException("Chunked volume of "+h.bitDepth+" bit image not supported: "+image.getTitle());
+		h.block = block;
+		Calibration cal = image.getCalibration();
+		h.pixelWidth = cal.pixelWidth;
+		h.pixelHeight = cal.pixelHeight;
+		h.pixelDepth = cal.pixelDepth;
+		h.unit = cal.getUnit();
+		h.title = image.getShortTitle();
+		h.setBlocks();
+		final Object[] slices = new Object[h.zSize];
+		for (int z=0; z < h.zSize; z++)
+		{
+			slices[z] = stack.getPixels(z+1);
+		}
+		final byte[][] encoded = new byte[h.blockCount()][];
+		ParallelLines.run(encoded.length, threads, new ParallelLines.Range() {
+			public void run(int from, int to)
+			{
+				Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+				byte[] raw = new byte[h.block*h.block*h.block*h.bytes()];
+				byte[] buffer = new byte[raw.length+64];
+				try
+				{
+					for (int b=from; b < to; b++)
+					{
+						int length = pack(h, slices, b, raw);
+						if (length == 0)
+						{
+							encoded[b] = new byte[0];
+							continue;
+						}
+						deflater.reset();
+						deflater.setInput(raw, 0, length);
+						deflater.finish();
+						ByteArrayOutputStream out = new ByteArrayOutputStream(length/4+16);
+						while (!deflater.finished())
+						{
+							int n = deflater.deflate(buffer);
+							out.write(buffer, 0, n);
+						}
+						encoded[b] = out.toByteArray();
+					}
+				}
+				finally
+				{
+					deflater.end();
+				}
+			}
+		});
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream headerOut = new DataOutputStream(headerBytes);
+		writeHeader(h, headerOut);
+		// the index follows the header, the blocks follow the index
+		long offset = headerBytes.size()+(long)encoded.length*(8+4);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+		try
+		{
+			headerBytes.writeTo(out);
+			for (byte[] e: encoded)
+			{
+				out.writeLong(offset);
+				out.writeInt(e.length);
+				offset += e.length;
+			}
+			for (byte[] e: encoded)
+			{
+				out.write(e);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+	private static void writeHeader(Header h, DataOutputStream out) throws IOException
+	{
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(h.width);
+		out.writeInt(h.height);
+		out.writeInt(h.zSize);
+		out.writeInt(h.bitDepth);
+		out.writeInt(h.block);
+		out.writeDouble(h.pixelWidth);
+		out.writeDouble(h.pixelHeight);
+		out.writeDouble(h.pixelDepth);
+		out.writeUTF(h.unit == null ? "": h.unit);
+		out.writeUTF(h.title == null ? "": h.title);
+		out.flush();
+	}
+	private static Header readHeader(String path) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+		try
+		{
+			if (in.readInt() != MAGIC)
+				throw new IOException("Not a chunked volume: "+path);
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Chunked volume version "+version+" not supported: "+path);
+			Header h = new Header();
+			h.width = in.readInt();
+			h.height = in.readInt();
+			h.zSize = in.readInt();
+			h.bitDepth = in.readInt();
+			h.block = in.readInt();
+			h.pixelWidth = in.readDouble();
+			h.pixelHeight = in.readDouble();
+			h.pixelDepth = in.readDouble();
+			h.unit = in.readUTF();
+			h.title = in.readUTF();
+			h.setBlocks();
+			h.offsets = new long[h.blockCount()];
+			h.lengths = new int[h.blockCount()];
+			for (int b=0; b < h.offsets.length; b++)
+			{
+				h.offsets[b] = in.readLong();
+				h.lengths[b] = in.readInt();
+			}
+			return h;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	/** @return the whole volume */
+	public static ImagePlus read(String path) throws IOException
+	{
+		return read(path, null, ParallelLines.availableThreads());
+	}
+	/** @return the voxels from the minimum up to but not including the maximum of the range, clipped to the volume,
+	 * like Cropper.crop3d(). The whole volume when range is null. */
+	public static ImagePlus read(String path, CoordinateRange range) throws IOException
+	{
+		return read(path, range, ParallelLines.availableThreads());
+	}
+	public static ImagePlus read(String path, CoordinateRange range, int threads) throws IOException
+	{
+		final Header h = readHeader(path);
+		final int minX, minY, minZ, maxX, maxY, maxZ;
+		if (range == null)
+		{
+			minX = 0; minY = 0; minZ = 0;
+			maxX = h.width; maxY = h.height; maxZ = h.zSize;
+		}
+		else
+		{
+			minX = Math.max(0, range.getMinX()); maxX = Math.min(h.width, range.getMaxX());
+			minY = Math.max(0, range.getMinY()); maxY = Math.min(h.height, range.getMaxY());
+			minZ = Math.max(0, range.getMinZ()); maxZ = Math.min(h.zSize, range.getMaxZ());
+		}
+		final int w = Math.max(0, maxX-minX), ht = Math.max(0, maxY-minY), d = Math.max(0, maxZ-minZ);
+		final Object[] slices = new Object[d];
+		for (int z=0; z < d; z++)
+		{
+			if (h.bitDepth == 8)
+				slices[z] = new byte[w*ht];
+			else if (h.bitDepth == 16)
+				slices[z] = new short[w*ht];
+			else
+				slices[z] = new float[w*ht];
+		}
+		// blocks inside the range
+		int bx0 = minX/h.block, by0 = minY/h.block, bz0 = minZ/h.block;
+		int bx1 = w > 0 ? (maxX-1)/h.block: bx0-1, by1 = ht > 0 ? (maxY-1)/h.block: by0-1;
+		int bz1 = d > 0 ? (maxZ-1)/h.block: bz0-1;
+		int count = Math.max(0, bx1-bx0+1)*Math.max(0, by1-by0+1)*Math.max(0, bz1-bz0+1);
+		final int[] blocks = new int[count];
+		int n = 0;
+		for (int bz=bz0; bz <= bz1; bz++)
+			for (int by=by0; by <= by1; by++)
+				for (int bx=bx0; bx <= bx1; bx++)
+					blocks[n++] = (bz*h.blocksY+by)*h.blocksX+bx;
+		final RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			ParallelLines.run(blocks.length, threads, new ParallelLines.Range() {
+				public void run(int from, int to)
+				{
+					Inflater inflater = new Inflater();
+					byte[] raw = new byte[h.block*h.block*h.block*h.bytes()];
+					try
+					{
+						for (int i=from; i < to; i++)
+						{
+							int b = blocks[i];
+							if (h.lengths[b] == 0)
+								continue;
+							byte[] compressed = new byte[h.lengths[b]];
+							ByteBuffer buffer = ByteBuffer.wrap(compressed);
+							long position = h.offsets[b];
+							while (buffer.hasRemaining())
+							{
+								int r = channel.read(buffer, position);
+								if (r < 0)
+									throw new IOException("Chunked volume ends in block "+b);
+								position += r;
+							}
+							inflater.reset();
+							inflater.setInput(compressed);
+							int length = 0;
+							while (!inflater.finished())
+							{
+								int r = inflater.inflate(raw, length, raw.length-length);
+								length += r;
+								if (r == 0 && !inflater.finished())
+								{
+									if (inflater.needsInput() || inflater.needsDictionary())
+										throw new IOException("Chunked volume block "+b+" is incomplete");
+									if (length == raw.length)
+										throw new IOException("Chunked volume block "+b+" is larger than a block");
+									throw new IOException("Chunked volume block "+b+" can't be decompressed");
+								}
+							}
+							unpack(h, b, raw, slices, minX, minY, minZ, w, ht, d);
+						}
+					}
+					catch (IOException e)
+					{
+						throw new RuntimeException(e);
+					}
+					catch (DataFormatException e)
+					{
+						throw new RuntimeException(new IOException("Chunked volume block is not compressed data", e));
+					}
+					finally
+					{
+						inflater.end();
+					}
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			// ParallelLines wraps the exception of a thread again 
+			for (Throwable cause=e.getCause(); cause != null; cause=cause.getCause())
+			{
+				if (cause instanceof IOException)
+					throw (IOException)cause;
+			}
+			throw e;
+		}
+		finally
+		{
+			raf.close();
+		}
+		ImageStack stack = new ImageStack(w, ht);
+		for (int z=0; z < d; z++)
+		{
+			if (h.bitDepth == 8)
+				stack.addSlice(""+(minZ+z+1), new ByteProcessor(w, ht, (byte[])slices[z], null));
+			else if (h.bitDepth == 16)
+				stack.addSlice(""+(minZ+z+1), new ShortProcessor(w, ht, (short[])slices[z], null));
+			else
+				stack.addSlice(""+(minZ+z+1), new FloatProcessor(w, ht, (float[])slices[z], null));
+		}
+		ImagePlus image = new ImagePlus(range == null ? h.title: h.title+"Crop", stack);
+		Calibration cal = image.getCalibration();
+		cal.pixelWidth = h.pixelWidth;
+		cal.pixelHeight = h.pixelHeight;
+		cal.pixelDepth = h.pixelDepth;
+		if (h.unit.length() > 0)
+			cal.setUnit(h.unit);
+		return image;
+	}
+	/** Big endian voxels of block b in z, row, column order into raw.
+	 * @return the number of bytes or 0 if all the voxels are 0 */
+	private static int pack(Header h, Object[] slices, int b, byte[] raw)
+	{
+		int x0 = (b % h.blocksX)*h.block, y0 = ((b / h.blocksX) % h.blocksY)*h.block;
+		int z0 = (b / (h.blocksX*h.blocksY))*h.block;
+		int x1 = Math.min(h.width, x0+h.block), y1 = Math.min(h.height, y0+h.block), z1 = Math.min(h.zSize, z0+h.block);
+		int p = 0;
+		boolean zero = true;
+		for (int z=z0; z < z1; z++)
+		{
+			Object slice = slices[z];
+			for (int y=y0; y < y1; y++)
+			{
+				for (int x=x0; x < x1; x++)
+				{
+					int i = y*h.width+x;
+					if (h.bitDepth == 8)
+					{
+						byte v = ((byte[])slice)[i];
+						raw[p++] = v;
+						zero &= v == 0;
+					}
+					else if (h.bitDepth == 16)
+					{
+						short v = ((short[])slice)[i];
+						raw[p++] = (byte)(v >> 8);
+						raw[p++] = (byte)v;
+						zero &= v == 0;
+					}
+					else
+					{
+						int v = Float.floatToRawIntBits(((float[])slice)[i]);
+						raw[p++] = (byte)(v >> 24);
+						raw[p++] = (byte)(v >> 16);
+						raw[p++] = (byte)(v >> 8);
+						raw[p++] = (byte)v;
+						zero &= v == 0;
+					}
+				}
+			}
+		}
+		return zero ? 0: p;
+	}
+	/** Copy the voxels of block b inside the range starting at minX, minY, minZ of w by ht by d voxels. */
+	private static void unpack(Header h, int b, byte[] raw, Object[] slices, int minX, int minY, int minZ,
+			int w, int ht, int d)
+	{
+		int x0 = (b % h.blocksX)*h.block, y0 = ((b / h.blocksX) % h.blocksY)*h.block;
+		int z0 = (b / (h.blocksX*h.blocksY))*h.block;
+		int x1 = Math.min(h.width, x0+h.block), y1 = Math.min(h.height, y0+h.block), z1 = Math.min(h.zSize, z0+h.block);
+		int bw = x1-x0, bh = y1-y0;
+		int bytes = h.bytes();
+		for (int z=Math.max(z0, minZ); z < Math.min(z1, minZ+d); z++)
+		{
+			Object slice = slices[z-minZ];
+			for (int y=Math.max(y0, minY); y < Math.min(y1, minY+ht); y++)
+			{
+				for (int x=Math.max(x0, minX); x < Math.min(x1, minX+w); x++)
+				{
+					int p = (((z-z0)*bh+(y-y0))*bw+(x-x0))*bytes;
+					int i = (y-minY)*w+(x-minX);
+					if (bytes == 1)
+					{
+						((byte[])slice)[i] = raw[p];
+					}
+					else if (bytes == 2)
+					{
+						((short[])slice)[i] = (short)(((raw[p] & 0xff) << 8) | (raw[p+1] & 0xff));
+					}
+					else
+					{
+						((float[])slice)[i] = Float.intBitsToFloat(((raw[p] & 0xff) << 24) | ((raw[p+1] & 0xff) << 16)
+								| ((raw[p+2] & 0xff) << 8) | (raw[p+3] & 0xff));
+					}
+				}
+			}
+		}
+	}
+
+	private ChunkedVolume()
+	{
+
+	}
+}
@@ -33,6 +33,12 @@ public class Cluster implements Comparable<Cluster>
         _size = 0;
         _positions = new LinkedList<Position>();
     }
+    /** Cluster of size members counted without positions. */
+    public Cluster(short label, int size)
+    {
+        this(label);
+        _size = size;
+    }
     private short _label;
     private int _size;
     public short getLabel()
@@ -48,6 +54,11 @@ public class Cluster implements Comparable<Cluster>
     {
         _size++;
     }
+    /** Add members counted without positions. */
+    public void addSize(int size)
+    {
+        _size += size;
+    }
     /** Add the position member and add to the count. Don't call addOneSize to increment. */
     public void addPosition(Position pos)
     {
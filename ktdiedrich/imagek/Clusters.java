@@ -37,6 +37,7 @@ public class Clusters
 	private short[][] _voxels;
 	private LinkedList<Cluster> _imageClusters;
 	private ImagePlus _image;
+	private static final int LABELS = 0x10000;
 	public Clusters(ImagePlus image)
 	{
 		_image = image;
@@ -58,35 +59,25 @@ public class Clusters
 	public void thresholdClusters(double belowPercentile)
 	{
 		int clusLen = _imageClusters.size();
-		SortedSet<Short> delLabels = new TreeSet<Short>();
-		int thres = (int)Math.floor(((double)clusLen)*belowPercentile);
+		boolean[] delLabels = new boolean[LABELS];
+		int thres = Math.min((int)Math.floor(((double)clusLen)*belowPercentile), clusLen);
 		
-		IJ.log("cluster "+thres+" size threshold: "+_imageClusters.get(thres).toString());
 		// TODO record remaining clusters after removing 
 		for (int i=0; i < thres; i++)
 		{
 			Cluster clst  = _imageClusters.removeFirst();
 			short label = clst.getLabel();
-			delLabels.add(label);
+			delLabels[0xFFFF & label] = true;
 		}
-		
-		for (int z=0; z < _zSize; z++)
-		{
-			for (int i=0; i < _voxels[z].length; i++)
-			{
-				short lab = _labelVoxels[z][i];
-				if (delLabels.contains(lab))
-				{
-					_voxels[z][i] = 0;
-				}
-			}
-		}
-		_image.updateAndDraw();
+		// the clusters are in order of size, the first remaining cluster was at the percentile 
+		if (!_imageClusters.isEmpty())
+			IJ.log("cluster "+thres+" size threshold: "+_imageClusters.peekFirst().toString());
+		deleteLabels(delLabels);
 	}
 	/** Remove clusters below a voxel size. */
 	public void thresholdClusters(int size)
 	{
-		SortedSet<Short> delLabels = new TreeSet<Short>();
+		boolean[] delLabels = new boolean[LABELS];
 		// TODO remove from current cluster list 
 		int s = 0;
 		while (s < size)
@@ -98,7 +89,7 @@ public class Clusters
 				short label = c.getLabel();
 				if (s < size)
 				{
-					delLabels.add(label);
+					delLabels[0xFFFF & label] = true;
 					_imageClusters.removeFirst();
 				}
 				else
@@ -107,13 +98,16 @@ public class Clusters
 				}
 			}
 		}
-		
+		deleteLabels(delLabels);
+	}
+	/** Set the voxels of the deleted labels to 0. */
+	private void deleteLabels(boolean[] delLabels)
+	{
 		for (int z=0; z < _zSize; z++)
 		{
 			for (int i=0; i < _voxels[z].length; i++)
 			{
-				short lab = _labelVoxels[z][i];
-				if (delLabels.contains(lab))
+				if (delLabels[0xFFFF & _labelVoxels[z][i]])
 				{
 					_voxels[z][i] = 0;
 				}
@@ -121,31 +115,63 @@ public class Clusters
 		}
 		_image.updateAndDraw();
 	}
-	/** Make a list of the voxel clusters in an image from smallest to largest. */
+	/** Make a list of the voxel clusters in an image from smallest to largest. Clusters are found with 
+	 * VoxelComponents and labeled from 2 in the x, y, z scan order of their first voxel. */
     private LinkedList<Cluster> imageClusters()
     {
-    	LinkedList<Cluster> clusters  = new LinkedList<Cluster>();
+    	VoxelComponents components = new VoxelComponents(_voxels, _width, _height);
+    	int[][] compLabels = components.getLabels();
+    	int count = components.getCount();
+    	int[] sizes = components.getSizes();
     	
-        short label = 2;
-        Cluster curCluster = new Cluster(label);
-        clusters.add(curCluster);
-        for (int x=0; x<_width; x++)
-        {
-            for (int y=0; y<_height; y++)
-            {
-            	for (int z=0; z<_zSize; z++ )
-                {
-                    if (_voxels[z][y*_width+x] > 0  && _labelVoxels[z][y*_width+x] == 0)
-                    {
-                    	// IJ.log("x: "+x+" y: "+y+" z: "+z+" value: "+_voxels[z][y*_width+x]);
-                        floodFill(_voxels, x, y, z, curCluster);
-                        label++;
-                        curCluster = new Cluster(label);
-                        clusters.add(curCluster);
-                    }
-                }
-            }
-        } 
+    	// first voxel of each component in x, y, z scan order 
+    	long[] firsts = new long[count+1];
+    	Arrays.fill(firsts, Long.MAX_VALUE);
+    	for (int z=0; z<_zSize; z++ )
+    	{
+    		for (int y=0; y<_height; y++)
+    		{
+    			for (int x=0; x<_width; x++)
+    			{
+    				int comp = compLabels[z][y*_width+x];
+    				if (comp != VoxelComponents.BACKGROUND)
+    				{
+    					long scan = ((long)x*_height+y)*_zSize+z;
+    					if (scan < firsts[comp])
+    						firsts[comp] = scan;
+    				}
+    			}
+    		}
+    	}
+    	Integer[] order = new Integer[count];
+    	for (int c=0; c < count; c++)
+    	{
+    		order[c] = c+1;
+    	}
+    	final long[] scanFirsts = firsts;
+    	Arrays.sort(order, new Comparator<Integer>() {
+    		public int compare(Integer a, Integer b)
+    		{
+    			return Long.compare(scanFirsts[a], scanFirsts[b]);
+    		}
+    	});
+    	short[] compShorts = new short[count+1];
+    	LinkedList<Cluster> clusters  = new LinkedList<Cluster>();
+    	short label = 2;
+    	for (int comp: order)
+    	{
+    		compShorts[comp] = label;
+    		clusters.add(new Cluster(label, sizes[comp]));
+    		label++;
+    	}
+    	clusters.add(new Cluster(label));
+    	for (int z=0; z<_zSize; z++ )
+    	{
+    		for (int i=0; i < _width*_height; i++)
+    		{
+    			_labelVoxels[z][i] = compShorts[compLabels[z][i]];
+    		}
+    	}
         Collections.sort(clusters);
         
     	return clusters;
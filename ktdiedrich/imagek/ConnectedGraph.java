@@ -20,12 +20,14 @@ package ktdiedrich.imagek;
 
 import ij.IJ;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 
+import ktdiedrich.util.ParallelLines;
+
 /** Finds connected component graphs.
  * @author ktdiedrich@gmail.com
  * */
@@ -41,93 +43,225 @@ public class ConnectedGraph
         return makeGraphs(allNodes, lowThreshold);
     }
     
-    /** Make image voxel nodes into a list of connected component graphs. 
+    /** Make image voxel nodes into a list of connected component graphs. Nodes with adjacents are joined with a 
+     * UnionFind in parallel blocks, a node without adjacents goes to the first graph with a node adjacent to it. 
+     * Graphs are in the order of their first node in allNodes and lowThreshold is applied in one sweep of the 
+     * component sizes. Nodes are added to each Graph breadth first from its first node. Adjacents between nodes 
+     * with adjacents are mutual as made by makeNodeListDFE() and makeNodeListWeight().
      * @return a separate Graph for each bunch of connected nodes. 
      * @param low threshold remove graphs below this count. */
     public List<Graph> makeGraphs(List<GraphNode> allNodes, int lowThreshold)
     {
-    	
+        final GraphNode[] nodes = allNodes.toArray(new GraphNode[allNodes.size()]);
+        final int count = nodes.length;
+        for (int i=0; i < count; i++)
+        {
+        	nodes[i].index = i;
+        }
+        UnionFind uf = new UnionFind(count);
+        uf.unionBlocks(new UnionFind.Links() {
+        	public void link(int id, UnionFind.Joiner joiner)
+        	{
+        		for (GraphNode adj: nodes[id].adjacents)
+        		{
+        			if (adj.adjacents.size() > 0 && inNodes(adj, nodes))
+        				joiner.union(id, adj.index);
+        		}
+        	}
+        }, ParallelLines.availableThreads());
+        int[] labels = uf.labels();
+        int compCount = uf.getCount();
+        
+        // a node without adjacents belongs to the lowest component label adjacent to it 
+        int[] owners = new int[count];
+        Arrays.fill(owners, Integer.MAX_VALUE);
+        for (int i=0; i < count; i++)
+        {
+        	for (GraphNode adj: nodes[i].adjacents)
+        	{
+        		if (adj.adjacents.size() == 0 && inNodes(adj, nodes) && labels[i] < owners[adj.index])
+        			owners[adj.index] = labels[i];
+        	}
+        }
+        int[] sizes = new int[compCount];
+        int[] firsts = new int[compCount];
+        Arrays.fill(firsts, -1);
+        for (int i=0; i < count; i++)
+        {
+        	if (owners[i] != Integer.MAX_VALUE)
+        		labels[i] = owners[i];
+        	int label = labels[i];
+        	sizes[label]++;
+        	if (firsts[label] < 0)
+        		firsts[label] = i;
+        }
+        
         List<Graph> graphs = new LinkedList<Graph>();
-        _remaining = allNodes.size();
-        GraphNode startNode = null;
-        if (allNodes.size() > 0)
+        Queue<GraphNode> queue = new LinkedList<GraphNode>();
+        for (int label=0; label < compCount; label++)
         {
-        	startNode = allNodes.remove(0);
+        	if (sizes[label] > lowThreshold && sizes[label] > 0)
+        	{
+        		Graph graph = new Graph();
+        		GraphNode startNode = nodes[firsts[label]];
+        		graph.addNode(startNode);
+        		queue.add(startNode);
+        		startNode.graphed = true;
+        		while (queue.isEmpty() == false)
+        		{
+        			GraphNode node = queue.remove();
+        			for (GraphNode adjNode: node.adjacents)
+        			{
+        				if (adjNode.graphed == false && labels[adjNode.index] == label)
+        				{
+        					graph.addNode(adjNode);
+        					queue.add(adjNode);
+        					adjNode.graphed = true;
+        				}
+        			}
+        		}
+        		graphs.add(graph);
+        	}
         }
-        while ( _remaining > 0)
+        for (GraphNode node: nodes)
         {
-            Graph sepGraph = this.separateGraphQ(startNode, allNodes);
-            if (sepGraph.getNodes().size() > lowThreshold)
-            {
-            	graphs.add(sepGraph);
-            }
-            if (_remaining > 0)
-            {
-            	for (GraphNode gn: allNodes)
-            	{
-            		if (gn.graphed==false)
-            		{
-            			startNode = gn;
-            			break;
-            		}
-            	}
-            }
+        	node.graphed = true;
         }
+        _remaining = 0;
         return graphs;
     }
+    private static boolean inNodes(GraphNode node, GraphNode[] nodes)
+    {
+    	return node.index >= 0 && node.index < nodes.length && nodes[node.index] == node;
+    }
     
     
     /** @param dfes DFE function value for each voxel of a 3D image
      *  */
-    public static List<GraphNode> makeNodeListDFE(short[][] dfes, int width, int height)
+    public static List<GraphNode> makeNodeListDFE(final short[][] dfes, int width, int height)
     {
-        int zSize = dfes.length;
-        Map<String, GraphNode> nodePos = new HashMap<String, GraphNode>();
-        List<GraphNode> allNodes = new LinkedList<GraphNode>();
-       
-        for (int z=1; z<(zSize-1); z++)
-        {
-            for (int row=1; row<(height-1); row++)
-            {
-                for (int col=1; col<(width-1); col++)
-                {
-                	int p = 0xFFFF & dfes[z][row*width+col]; 
-                	
-                    if ( p > 0)
-                    {
-                    	// IJ.log("Found DFE: "+p);
-                        findAdjacentsDFE(new Position(col, row, z), dfes, width, nodePos, allNodes);
-                    }
-                }
-            }
-        }
-        return allNodes;
+        return makeNodeList(new NodeValues() {
+        	public boolean isNode(int z, int i)
+        	{
+        		return (0xFFFF & dfes[z][i]) > 0;
+        	}
+        	public void setValue(GraphNode node, int z, int i)
+        	{
+        		node.dfe = (short)(0xFFFF & dfes[z][i]);
+        	}
+        }, dfes.length, width, height);
     }
     
     public static List<GraphNode> makeNodeListWeight(float[][] weights, int width, int height)
     {
-        int zSize = weights.length;
-        Map<String, GraphNode> nodePos = new HashMap<String, GraphNode>();
-        List<GraphNode> allNodes = new LinkedList<GraphNode>();
-       
-        for (int z=1; z<(zSize-1); z++)
+        return makeNodeList(new WeightValues(weights), weights.length, width, height);
+    }
+    
+    /** Value of the voxels that are graph nodes. */
+    private interface NodeValues
+    {
+    	public boolean isNode(int z, int i);
+    	public void setValue(GraphNode node, int z, int i);
+    }
+    private static class WeightValues implements NodeValues
+    {
+    	private float[][] _weights;
+    	public WeightValues(float[][] weights)
+    	{
+    		_weights = weights;
+    	}
+    	public boolean isNode(int z, int i)
+    	{
+    		return _weights[z][i] > 0.0F;
+    	}
+    	public void setValue(GraphNode node, int z, int i)
+    	{
+    		node.weight = _weights[z][i];
+    	}
+    }
+    /** Make nodes for the voxels inside the image border and their neighbors, adjacents are the neighbors of inside 
+     * voxels. Nodes are listed in the order they are first found scanning the inside voxels and their neighbors, the 
+     * same order as the Position.key() map of findAdjacentsDFE(). Nodes are found with a VoxelIndex and the adjacents 
+     * are filled in parallel over z. */
+    private static List<GraphNode> makeNodeList(final NodeValues values, final int zSize, final int width, final int height)
+    {
+    	int count = 0;
+    	for (int z=0; z < zSize; z++)
+    	{
+    		for (int i=0; i < width*height; i++)
+    		{
+    			if (values.isNode(z, i))
+    				count++;
+    		}
+    	}
+    	final VoxelIndex index = new VoxelIndex(count);
+    	final GraphNode[] nodes = new GraphNode[count];
+    	int nodeCount = 0;
+    	for (int z=1; z<(zSize-1); z++)
         {
             for (int row=1; row<(height-1); row++)
             {
                 for (int col=1; col<(width-1); col++)
                 {
-                    if (weights[z][row*width+col] > 0.0F)
-                    {
-                        findAdjacents(new Position(col, row, z), weights, width, nodePos, allNodes);
-                    }
+                	if (values.isNode(z, row*width+col))
+                	{
+                		// the voxel then its neighbors 
+                		for (int n=-1; n < Position.NEIGHBOR_STEPS.length; n++)
+                		{
+                			int c = col, r = row, zz = z;
+                			if (n >= 0)
+                			{
+                				c += Position.NEIGHBOR_STEPS[n][0]; r += Position.NEIGHBOR_STEPS[n][1]; zz += Position.NEIGHBOR_STEPS[n][2];
+                				if (!values.isNode(zz, r*width+c))
+                					continue;
+                			}
+                			long key = VoxelIndex.key(c, r, zz, width, height);
+                			if (index.get(key) == VoxelIndex.NONE)
+                			{
+                				GraphNode node = new GraphNode(new Position(c, r, zz));
+                				values.setValue(node, zz, r*width+c);
+                				index.put(key, nodeCount);
+                				nodes[nodeCount++] = node;
+                			}
+                		}
+                	}
                 }
             }
         }
-        return allNodes;
+    	ParallelLines.run(zSize-2, ParallelLines.availableThreads(), new ParallelLines.Range() {
+    		public void run(int from, int to)
+    		{
+    			for (int z=from+1; z < to+1; z++)
+    			{
+    				for (int row=1; row<(height-1); row++)
+    				{
+    					for (int col=1; col<(width-1); col++)
+    					{
+    						if (values.isNode(z, row*width+col))
+    						{
+    							GraphNode node = nodes[index.get(VoxelIndex.key(col, row, z, width, height))];
+    							for (int[] step: Position.NEIGHBOR_STEPS)
+    							{
+    								int c = col+step[0], r = row+step[1], zz = z+step[2];
+    								if (values.isNode(zz, r*width+c))
+    								{
+    									node.adjacents.add(nodes[index.get(VoxelIndex.key(c, r, zz, width, height))]);
+    								}
+    							}
+    						}
+    					}
+    				}
+    			}
+    		}
+    	});
+    	LinkedList<GraphNode> allNodes = new LinkedList<GraphNode>();
+    	for (int n=0; n < nodeCount; n++)
+    	{
+    		allNodes.add(nodes[n]);
+    	}
+    	return allNodes;
     }
     
-    
-    
     public static void findAdjacentsDFE(Position p, short[][] dfes, int width, Map<String, GraphNode> nodePos, List<GraphNode> allNodes)
     {      
         int col = p.getColumn();
@@ -310,24 +444,7 @@ public class ConnectedGraph
      *  */
     public static List<GraphNode> makeCostWeightNodeList(float[][] costWeights, int width, int height)
     {
-        int zSize = costWeights.length;
-        Map<String, GraphNode> nodePos = new HashMap<String, GraphNode>();
-        List<GraphNode> allNodes = new LinkedList<GraphNode>();
-       
-        for (int z=1; z<(zSize-1); z++)
-        {
-            for (int row=1; row<(height-1); row++)
-            {
-                for (int col=1; col<(width-1); col++)
-                {
-                    if (costWeights[z][row*width+col] > 0.0F)
-                    {
-                        findWeightAdjacents(new Position(col, row, z), costWeights, width, nodePos, allNodes);
-                    }
-                }
-            }
-        }
-        return allNodes;
+        return makeNodeList(new WeightValues(costWeights), costWeights.length, width, height);
     }
     /** Separate the nodes into connected component graphs using a queue to reduce memory from
      * the recursive implementation. 
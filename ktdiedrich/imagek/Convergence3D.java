@@ -18,12 +18,18 @@
 
 package ktdiedrich.imagek;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import ij.*;
+import ij.measure.Calibration;
 import ij.process.FloatProcessor;
-import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ktdiedrich.util.ParallelLines;
 
 /** 3D-Convergence filter to amplify round aneurysm like objects in an image. 
  * References: 
@@ -34,16 +40,99 @@ import ij.process.ImageProcessor;
 public class Convergence3D 
 {
 	public static int RADIUS = 5;
+	private static Map<String, SupportRegion> _supportRegions = new HashMap<String, SupportRegion>();
 	private ImagePlus _image;
 	short[][] _voxels;
 	private int _radius;
+	private double _xRes, _yRes, _zRes;
+	private int _threads;
 	public Convergence3D(ImagePlus image)
 	{
 		_image = image;
 		_voxels = ImageProcess.getShortStackVoxels(image.getImageStack());
+		_radius = RADIUS;
+		Calibration cal = image.getCalibration();
+		_xRes = cal.pixelWidth;
+		_yRes = cal.pixelHeight;
+		_zRes = cal.pixelDepth;
+		_threads = ParallelLines.availableThreads();
+	}
+	/** Voxel offsets of a spherical support region sampled on a 100 by 200 angular grid from radius 1 to radius 
+	 * in the smallest voxel dimension. Each offset is kept once with the number of samples that fell on it. */
+	public static class SupportRegion
+	{
+		public final int[] dx, dy, dz, weights;
+		/** Unit vectors from the center to the offsets */
+		public final double[] cx, cy, cz;
+		private SupportRegion(int radius, double xScale, double yScale, double zScale)
+		{
+			int reach = (int)Math.ceil(radius*Math.max(xScale, Math.max(yScale, zScale)))+1;
+			int side = 2*reach+1;
+			int[] counts = new int[side*side*side];
+			double step = 1.0/100.0*Math.PI;
+			for (double q=0.0; q < Math.PI; q+=step)
+			{
+				for (double p=0.0; p < 2*Math.PI; p+=step)
+				{
+					for (int r=1; r <=radius; r++)
+					{
+						int xx = (int)Math.round(r * Math.cos(q) * Math.sin(p) * xScale);
+						int yy = (int)Math.round(r * Math.sin(q) * Math.sin(p) * yScale);
+						int zz = (int)Math.round(r * Math.cos(p) * zScale);
+						counts[((zz+reach)*side+(yy+reach))*side+(xx+reach)]++;
+					}
+				}
+			}
+			// the center has no direction 
+			counts[(reach*side+reach)*side+reach] = 0;
+			int size = 0;
+			for (int count: counts)
+			{
+				if (count > 0)
+					size++;
+			}
+			dx = new int[size]; dy = new int[size]; dz = new int[size]; weights = new int[size];
+			cx = new double[size]; cy = new double[size]; cz = new double[size];
+			int n = 0;
+			for (int i=0; i < counts.length; i++)
+			{
+				if (counts[i] > 0)
+				{
+					dx[n] = i % side - reach;
+					dy[n] = (i / side) % side - reach;
+					dz[n] = i / (side*side) - reach;
+					weights[n] = counts[i];
+					double magC = Math.sqrt(dx[n]*dx[n] + dy[n]*dy[n] + dz[n]*dz[n]);
+					cx[n] = dx[n]/magC;
+					cy[n] = dy[n]/magC;
+					cz[n] = dz[n]/magC;
+					n++;
+				}
+			}
+		}
+		public int size()
+		{
+			return dx.length;
+		}
+	}
+	/** @return the cached support region of the radius in the smallest voxel dimension with the voxel resolutions */
+	public static SupportRegion supportRegion(int radius, double xRes, double yRes, double zRes)
+	{
+		double minRes = Math.min(xRes, Math.min(yRes, zRes));
+		String key = radius+" "+(minRes/xRes)+" "+(minRes/yRes)+" "+(minRes/zRes);
+		synchronized (_supportRegions)
+		{
+			SupportRegion region = _supportRegions.get(key);
+			if (region == null)
+			{
+				region = new SupportRegion(radius, minRes/xRes, minRes/yRes, minRes/zRes);
+				_supportRegions.put(key, region);
+			}
+			return region;
+		}
 	}
 	/** Spherical neighborhood around a point  
-	 * @return List of Position points in a sphere around the point (a, b, c) . 
+	 * @return List of Position points above 0 in a sphere around the point (a, b, c), each voxel once. 
 	 * @param x x coordinate center point.
 	 * @param y y coordinate center point.
 	 * @param z z coordinate center point.
@@ -53,28 +142,145 @@ public class Convergence3D
 	public List<Position> getSupportRegion(int x, int y, int z, int width, int radius)
 	{
 		List<Position> surround = new LinkedList<Position>();
-		double q=0.0, p=0.0; 
-		int xx = 0, yy=0, zz=0;
-		double step = 1.0/100.0*Math.PI;
-		for (q=0.0; q < Math.PI; q+=step)
+		SupportRegion region = supportRegion(radius, _xRes, _yRes, _zRes);
+		int height = _voxels[0].length/width;
+		for (int n=0; n < region.size(); n++)
 		{
-			for (p=0.0; p < 2*Math.PI; p+=step)
+			int xx = x+region.dx[n], yy = y+region.dy[n], zz = z+region.dz[n];
+			if (xx >= 0 && xx < width && yy >= 0 && yy < height && zz >= 0 && zz < _voxels.length 
+					&& _voxels[zz][yy * width + xx] > 0)
+			{
+				surround.add(new Position(xx, yy, zz));
+			}
+		}
+		return surround;
+	}
+	/** Mean convergence of the gradients to each voxel above 0 over its support region. The gradient directions 
+	 * of the support voxels above 0 are projected on the direction from the center, each offset weighted by its 
+	 * angular samples. Slabs of z are filtered on threads. */
+	public float[][] convergence(final short[][] voxels, final short[][] cVoxels, final short[][] rVoxels, 
+			final short[][] zVoxels, final int width, final int height)
+	{
+		final int zSize = voxels.length;
+		final float[][] gcVoxels = new float[zSize][width*height];
+		final SupportRegion region = supportRegion(_radius, _xRes, _yRes, _zRes);
+		ParallelLines.run(zSize, _threads, new ParallelLines.Range() {
+			public void run(int from, int to)
 			{
-				for (int r=0; r <=radius; r++)
+				for (int z=from; z < to; z++)
 				{
-					xx = (int)Math.round(r * Math.cos(q) * Math.sin(p) + x);
-					yy = (int)Math.round(r * Math.sin(q) * Math.sin(p) + y);
-					zz = (int)Math.round(r * Math.cos(p) + z);
-					int i = yy * width + xx;
-					if (_voxels[zz][i] > 0)
+					for (int row=0; row < height; row++)
 					{
-						Position pos = new Position(xx, yy, zz);
-						surround.add(pos);
+						for (int col=0; col < width; col++)
+						{
+							if (voxels[z][row*width+col] > 0)
+							{
+								double gradientConcentrate = 0;
+								int supportCount = 0;
+								for (int n=0; n < region.size(); n++)
+								{
+									int qx = col+region.dx[n], qy = row+region.dy[n], qz = z+region.dz[n];
+									if (qx < 0 || qx >= width || qy < 0 || qy >= height || qz < 0 || qz >= zSize)
+										continue;
+									int qi = qy*width + qx;
+									if (voxels[qz][qi] <= 0)
+										continue;
+									short Gx = cVoxels[qz][qi];
+									short Gy = rVoxels[qz][qi];
+									short Gz = zVoxels[qz][qi];
+									double magG = Math.sqrt(Gx*Gx + Gy*Gy + Gz*Gz);
+									if (magG > 0)
+									{
+										double g = (Gx*region.cx[n] + Gy*region.cy[n] + Gz*region.cz[n])/magG;
+										gradientConcentrate += region.weights[n]*g;
+										supportCount += region.weights[n];
+									}
+								}
+								if (supportCount > 0)
+									gcVoxels[z][row*width+col] = (float)(gradientConcentrate/supportCount);
+							}
+						}
 					}
 				}
 			}
+		});
+		return gcVoxels;
+	}
+	
+	/** Prewitt X, Y and Z gradients in one pass with the values of convolve3x3Short and convolveZ3x3Short on 
+	 * duplicates of the slices: Z is the absolute value and the row and column edges keep the original voxels. */
+	static void prewittGradients(short[][] voxels, int width, int height, short[][] cVoxels, short[][] rVoxels, 
+			short[][] zVoxels, int threads)
+	{
+		Convolution.gradient3D(voxels, width, height, Convolution.PREWITT_SMOOTH, cVoxels, rVoxels, zVoxels, null, 
+				threads);
+		for (int z=0; z < voxels.length; z++)
+		{
+			short[] zv = zVoxels[z];
+			for (int i=0; i < zv.length; i++)
+			{
+				if (zv[i] < 0) zv[i] = (short)Math.min(-zv[i], Short.MAX_VALUE);
+			}
+			for (int r=0; r < height; r++)
+			{
+				int step = (r == 0 || r == height-1) ? 1: Math.max(width-1, 1);
+				for (int c=0; c < width; c+=step)
+				{
+					int i = r*width+c;
+					cVoxels[z][i] = voxels[z][i];
+					rVoxels[z][i] = voxels[z][i];
+					zVoxels[z][i] = voxels[z][i];
+				}
+			}
 		}
-		return surround;
+	}
+	/** Compare prewittGradients with the duplicated slices convolved by convolve3x3Short and convolveZ3x3Short */
+	public static String tests()
+	{
+		StringBuffer sb = new StringBuffer();
+		Random random = new Random(11);
+		int[][] sizes = {{12, 10, 6}, {5, 5, 3}, {20, 9, 2}, {1, 4, 3}};
+		int failed = 0;
+		for (int[] size: sizes)
+		{
+			int width = size[0], height = size[1], zSize = size[2];
+			short[][] voxels = new short[zSize][width*height];
+			ImageStack rStack = new ImageStack(width, height);
+			ImageStack cStack = new ImageStack(width, height);
+			ImageStack zStack = new ImageStack(width, height);
+			for (int z=0; z < zSize; z++)
+			{
+				for (int i=0; i < width*height; i++)
+				{
+					voxels[z][i] = (short)random.nextInt(3000);
+				}
+				rStack.addSlice(""+z, new ShortProcessor(width, height, voxels[z].clone(), null));
+				cStack.addSlice(""+z, new ShortProcessor(width, height, voxels[z].clone(), null));
+				zStack.addSlice(""+z, new ShortProcessor(width, height, voxels[z].clone(), null));
+			}
+			Convolution.convolve3x3Short(rStack, Convolution.PREWITT_KERNEL_3X3_Y);
+			Convolution.convolve3x3Short(cStack, Convolution.PREWITT_KERNEL_3X3_X);
+			Convolution.convolveZ3x3Short(zStack, Convolution.PREWITT_KERNEL_3X3_Z);
+			short[][] rVoxels = new short[zSize][width*height];
+			short[][] cVoxels = new short[zSize][width*height];
+			short[][] zVoxels = new short[zSize][width*height];
+			prewittGradients(voxels, width, height, cVoxels, rVoxels, zVoxels, 3);
+			int diff = 0;
+			for (int z=0; z < zSize; z++)
+			{
+				if (!Arrays.equals(rVoxels[z], (short[])rStack.getPixels(z+1))) diff++;
+				if (!Arrays.equals(cVoxels[z], (short[])cStack.getPixels(z+1))) diff++;
+				if (!Arrays.equals(zVoxels[z], (short[])zStack.getPixels(z+1))) diff++;
+			}
+			if (diff > 0) failed++;
+			sb.append(width+"x"+height+"x"+zSize+": "+(diff==0 ? "same": "DIFFERENT in "+diff+" slices")+"\n");
+		}
+		sb.append(failed==0 ? "gradients match the old convolutions": failed+" DIFFERENT");
+		return sb.toString();
+	}
+	public static void main(String[] args)
+	{
+		System.out.println(tests());
 	}
 	
 	public void filter()
@@ -84,43 +290,24 @@ public class Convergence3D
 		int zSize = _image.getStackSize();
 		ImageStack stack = _image.getImageStack();
 		
-		short[][] voxels = new short[zSize][]; 
-		short[][] rVoxels = new short[zSize][];
-		short[][] cVoxels = new short[zSize][];
-		short[][] zVoxels = new short[zSize][];
+		short[][] voxels = ImageProcess.getShortStackVoxels(stack);
+		short[][] rVoxels = new short[zSize][width*height];
+		short[][] cVoxels = new short[zSize][width*height];
+		short[][] zVoxels = new short[zSize][width*height];
+		// Prewitt X, Y and Z gradients in one pass 
+		prewittGradients(voxels, width, height, cVoxels, rVoxels, zVoxels, _threads);
 		
 		ImageStack gradientCstack = new ImageStack(width, height);
 		ImageStack gradientRstack = new ImageStack(width, height);
 		ImageStack gradientZstack = new ImageStack(width, height);
 		
 		ImageStack gcStack = new ImageStack(width, height);
-		float[][] gcVoxels = new float[zSize][];
 		for (int i=0; i < zSize; i++)
 		{
-			ImageProcessor proc = stack.getProcessor(i+1);
-			voxels[i] = (short[])proc.getPixels();
-			       
-			ImageProcessor gradientR = proc.duplicate();
-			gradientRstack.addSlice(""+i, gradientR);
-		    rVoxels[i] = (short[])gradientR.getPixels();
-		    Convolution.convolve3x3Short(gradientR, Convolution.PREWITT_KERNEL_3X3_Y);
-		    
-		    ImageProcessor gradientC = proc.duplicate();
-		    gradientCstack.addSlice(""+i, gradientC);
-		    cVoxels[i] = (short[])gradientC.getPixels();
-		    Convolution.convolve3x3Short(gradientC, Convolution.PREWITT_KERNEL_3X3_X);
-		    
-		    ImageProcessor gradientZ = proc.duplicate();
-		    gradientZstack.addSlice(""+i, gradientZ);
-		    zVoxels[i] = (short[])gradientZ.getPixels();
-		    
-		    ImageProcessor gc = new FloatProcessor(width, height);
-		    gcStack.addSlice(""+i, gc);
-		    gcVoxels[i] = (float[])gc.getPixels();
+			gradientRstack.addSlice(""+i, new ShortProcessor(width, height, rVoxels[i], null));
+			gradientCstack.addSlice(""+i, new ShortProcessor(width, height, cVoxels[i], null));
+			gradientZstack.addSlice(""+i, new ShortProcessor(width, height, zVoxels[i], null));
 		}
-		
-	    Convolution.convolveZ3x3Short(gradientZstack, Convolution.PREWITT_KERNEL_3X3_Z);
-	    
 	    
 	    ImagePlus gradientRIm = new ImagePlus("gradientR", gradientRstack);
 	    ImagePlus gradientCIm = new ImagePlus("gradientC", gradientCstack);
@@ -131,62 +318,12 @@ public class Convergence3D
 	    gradientCIm.show(); gradientCIm.updateAndDraw();
 	    gradientZIm.show(); gradientZIm.updateAndDraw();
 	       
-	    for (int row=0; row < height; row++)
+	    float[][] gcVoxels = convergence(voxels, cVoxels, rVoxels, zVoxels, width, height);
+	    for (int i=0; i < zSize; i++)
 	    {
-	    	for (int col=0; col < width; col++)
-	    	{
-	    		for (int z=0; z < zSize; z++)
-	    		{
-	    			int i = row*width+col;
-		    		if (voxels[z][i] > 0)
-		    		{
-		    			// IJ.log("voxel intensity: "+voxels[i]);
-		    			List<Position> supportRegion = this.getSupportRegion(col, row, 
-		    					z, width, _radius);
-		    			double gradientConcentrate = 0;
-		    			// IJ.log("Support region size: "+supportRegion.size());
-		    			int supportCount = 0;
-		    			for (Position q: supportRegion)
-		    			{
-		    				int qy = q.getRow();
-		    				int qx = q.getColumn();
-		    				int qz = q.getZ();
-		    				int qi = qy*width + qx;
-		    				short Gx = cVoxels[qz][qi];
-			    			short Gy = rVoxels[qz][qi];
-			    			short Gz = zVoxels[qz][qi];
-			    			double magG = Math.sqrt(Gx*Gx + Gy*Gy + Gz*Gz);
-			    			if (magG > 0)
-			    			{
-			    				double gx = Gx/magG;
-			    				double gy = Gy/magG;
-			    				double gz = Gz/magG;
-			    				int Cx = qx-col;
-			    				int Cy = qy-row;
-			    				int Cz = qz-z;
-			    				double magC = Math.sqrt(Cx*Cx + Cy*Cy + Cz*Cz);
-			    				if (magC > 0)
-			    				{
-			    					double cx = Cx/magC;
-			    					double cy = Cy/magC;
-			    					double cz = Cz/magC;
-			    					double g = gx*cx + gy*cy + gz*cz;
-			    			
-			    					
-			    					gradientConcentrate += g;
-			    					supportCount++;
-			    				}
-			    			}
-		    			}
-		    			gradientConcentrate = gradientConcentrate/supportCount;
-		    			gcVoxels[z][i] = (float)gradientConcentrate;
-		    		}
-		    	}
-	    		}
-	    		
+	    	gcStack.addSlice(""+i, new FloatProcessor(width, height, gcVoxels[i], null));
 	    }
 	    
-	    
 	    ImagePlus gcIm = new ImagePlus("GC", gcStack);
 	    gcIm.show();
 	    gcIm.updateAndDraw();
@@ -199,5 +336,16 @@ public class Convergence3D
 	public void setRadius(int radius) {
 		_radius = radius;
 	}
-	
+	/** Voxel sizes for the support region, the calibration of the image by default. */
+	public void setResolution(double xRes, double yRes, double zRes) {
+		_xRes = xRes;
+		_yRes = yRes;
+		_zRes = zRes;
+	}
+	public int getThreads() {
+		return _threads;
+	}
+	public void setThreads(int threads) {
+		_threads = threads;
+	}
 }
@@ -18,8 +18,12 @@
 
 package ktdiedrich.imagek;
 
+import java.util.Random;
+
 import ij.ImageStack;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import ktdiedrich.util.ParallelLines;
 
 /** Image convolution kernels and functions. 
  * Kernels are in row major order 
@@ -50,6 +54,139 @@ public class Convolution
 	public static final int[] SOBEL_KERNEL_3X3_Z   = {	-1, 0, 1, 
 														-2, 0, 2, 
 														-1, 0, 1};
+	/** Smoothing weights across the derivative of the separable 3x3 kernels, a kernel is the outer product of the 
+	 * smoothing and the central difference -1, 0, 1 */
+	public static final int[] PREWITT_SMOOTH = {1, 1, 1};
+	public static final int[] SOBEL_SMOOTH = {1, 2, 1};
+	
+	/** Rolling rows of the separable gradient of one thread */
+	private static class GradientRows
+	{
+		int[][] dx, sx, dz;
+		GradientRows(int width)
+		{
+			dx = new int[3][width];
+			sx = new int[3][width];
+			dz = new int[3][width];
+		}
+	}
+	
+	/** Gradient components and magnitude of the stack in one pass into float buffers, see the short version. */
+	public static void gradient3D(short[][] voxels, int width, int height, int[] smooth, float[][] gx, float[][] gy, 
+			float[][] gz, float[][] magnitude, int threads)
+	{
+		gradient3D(voxels, width, height, smooth, gx, gy, gz, magnitude, null, null, null, null, threads);
+	}
+	/** Gradient components and magnitude of the stack in one pass. The components are the signed correlations with 
+	 * the 3x3 X and Y kernels in the slice and the Z kernel across the column and rows with smooth PREWITT_SMOOTH or 
+	 * SOBEL_SMOOTH. Each kernel is applied as a central difference and a smoothing of rows kept for the three rows 
+	 * around the current one so each voxel is read once per slice. Slices run on threads. Any of the buffers can be 
+	 * null, the others are filled completely: voxels on the row and column edges are 0 and so is Z of the first 
+	 * and last slice. Short values are clamped. */
+	public static void gradient3D(short[][] voxels, int width, int height, int[] smooth, short[][] gx, short[][] gy, 
+			short[][] gz, short[][] magnitude, int threads)
+	{
+		gradient3D(voxels, width, height, smooth, null, null, null, null, gx, gy, gz, magnitude, threads);
+	}
+	private static void gradient3D(final short[][] voxels, final int width, final int height, final int[] smooth, 
+			final float[][] fx, final float[][] fy, final float[][] fz, final float[][] fMag, 
+			final short[][] sx, final short[][] sy, final short[][] sz, final short[][] sMag, int threads)
+	{
+		final int zSize = voxels.length;
+		final int s0 = smooth[0], s1 = smooth[1], s2 = smooth[2];
+		final ThreadLocal<GradientRows> scratch = new ThreadLocal<GradientRows>() {
+			protected GradientRows initialValue()
+			{
+				return new GradientRows(width);
+			}
+		};
+		ParallelLines.run(zSize, threads, new ParallelLines.Range() {
+			public void run(int from, int to)
+			{
+				GradientRows rows = scratch.get();
+				for (int z=from; z < to; z++)
+				{
+					short[] v = voxels[z];
+					boolean inZ = z > 0 && z < zSize-1;
+					short[] below = inZ ? voxels[z-1]: null;
+					short[] above = inZ ? voxels[z+1]: null;
+					clearEdges(z, width, height, fx, fy, fz, fMag, sx, sy, sz, sMag);
+					for (int r=0; r < height; r++)
+					{
+						// differences and smoothing along the row r into the ring 
+						int[] dx = rows.dx[r % 3], sr = rows.sx[r % 3], dz = rows.dz[r % 3];
+						int off = r*width;
+						for (int c=1; c < width-1; c++)
+						{
+							int left = v[off+c-1], right = v[off+c+1];
+							dx[c] = right-left;
+							sr[c] = s0*left + s1*v[off+c] + s2*right;
+						}
+						if (inZ)
+						{
+							for (int c=1; c < width-1; c++)
+							{
+								dz[c] = above[off+c]-below[off+c];
+							}
+						}
+						if (r < 2)
+							continue;
+						// row r-1 has its rows before and after 
+						int m = r-1;
+						int[] dxUp = rows.dx[(m-1) % 3], dxMid = rows.dx[m % 3], dxDown = dx;
+						int[] sUp = rows.sx[(m-1) % 3], sDown = sr;
+						int[] dzUp = rows.dz[(m-1) % 3], dzMid = rows.dz[m % 3], dzDown = dz;
+						int moff = m*width;
+						for (int c=1; c < width-1; c++)
+						{
+							int x = s0*dxUp[c] + s1*dxMid[c] + s2*dxDown[c];
+							int y = sUp[c] - sDown[c];
+							int zz = inZ ? s0*dzUp[c] + s1*dzMid[c] + s2*dzDown[c]: 0;
+							int i = moff+c;
+							if (fx != null) fx[z][i] = x;
+							if (fy != null) fy[z][i] = y;
+							if (fz != null) fz[z][i] = zz;
+							if (sx != null) sx[z][i] = clamp(x);
+							if (sy != null) sy[z][i] = clamp(y);
+							if (sz != null) sz[z][i] = clamp(zz);
+							if (fMag != null || sMag != null)
+							{
+								double mag = Math.sqrt((double)x*x + (double)y*y + (double)zz*zz);
+								if (fMag != null) fMag[z][i] = (float)mag;
+								if (sMag != null) sMag[z][i] = (short)Math.min(Math.round(mag), Short.MAX_VALUE);
+							}
+						}
+					}
+				}
+			}
+		});
+	}
+	private static short clamp(int value)
+	{
+		return (short)Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+	}
+	/** Zero the row and column edges of the slice in the buffers that are not null */
+	private static void clearEdges(int z, int width, int height, float[][] fx, float[][] fy, float[][] fz, 
+			float[][] fMag, short[][] sx, short[][] sy, short[][] sz, short[][] sMag)
+	{
+		float[][][] floats = {fx, fy, fz, fMag};
+		short[][][] shorts = {sx, sy, sz, sMag};
+		for (int r=0; r < height; r++)
+		{
+			int step = (r == 0 || r == height-1) ? 1: Math.max(width-1, 1);
+			for (int c=0; c < width; c+=step)
+			{
+				for (float[][] f: floats)
+				{
+					if (f != null) f[z][r*width+c] = 0;
+				}
+				for (short[][] s: shorts)
+				{
+					if (s != null) s[z][r*width+c] = 0;
+				}
+			}
+		}
+	}
 	
 	/** Gradient of image using Sobel operators in 3-D */
 	public static void sobelGradient3x3short3D(ImageStack stack)
@@ -170,6 +307,73 @@ public class Convolution
 		}
 	}
 	
+	/** Compare gradient3D with the convolve3x3Short and convolveZ3x3Short results inside the image */
+	public static String tests()
+	{
+		StringBuffer sb = new StringBuffer();
+		Random random = new Random(20);
+		int[][] sizes = {{9, 7, 5}, {16, 16, 12}, {3, 3, 3}, {31, 12, 4}};
+		int[][] smooths = {PREWITT_SMOOTH, SOBEL_SMOOTH};
+		int[][][] kernels = {{PREWITT_KERNEL_3X3_X, PREWITT_KERNEL_3X3_Y, PREWITT_KERNEL_3X3_Z}, 
+				{SOBEL_KERNEL_3X3_X, SOBEL_KERNEL_3X3_Y, SOBEL_KERNEL_3X3_Z}};
+		int failed = 0;
+		for (int[] size: sizes)
+		{
+			int width = size[0], height = size[1], zSize = size[2];
+			for (int k=0; k < smooths.length; k++)
+			{
+				ImageStack xStack = new ImageStack(width, height);
+				ImageStack yStack = new ImageStack(width, height);
+				ImageStack zStack = new ImageStack(width, height);
+				short[][] voxels = new short[zSize][width*height];
+				for (int z=0; z < zSize; z++)
+				{
+					for (int i=0; i < width*height; i++)
+					{
+						voxels[z][i] = (short)random.nextInt(2000);
+					}
+					xStack.addSlice(""+z, new ShortProcessor(width, height, voxels[z].clone(), null));
+					yStack.addSlice(""+z, new ShortProcessor(width, height, voxels[z].clone(), null));
+					zStack.addSlice(""+z, new ShortProcessor(width, height, voxels[z].clone(), null));
+				}
+				convolve3x3Short(xStack, kernels[k][0]);
+				convolve3x3Short(yStack, kernels[k][1]);
+				convolveZ3x3Short(zStack, kernels[k][2]);
+				short[][] gx = new short[zSize][width*height];
+				short[][] gy = new short[zSize][width*height];
+				short[][] gz = new short[zSize][width*height];
+				gradient3D(voxels, width, height, smooths[k], gx, gy, gz, null, 3);
+				int diff = 0;
+				for (int z=0; z < zSize; z++)
+				{
+					short[] ox = (short[])xStack.getPixels(z+1);
+					short[] oy = (short[])yStack.getPixels(z+1);
+					short[] oz = (short[])zStack.getPixels(z+1);
+					for (int r=1; r < height-1; r++)
+					{
+						for (int c=1; c < width-1; c++)
+						{
+							int i = r*width+c;
+							if (gx[z][i] != ox[i]) diff++;
+							if (gy[z][i] != oy[i]) diff++;
+							// the old Z is the absolute value 
+							if (Math.abs(gz[z][i]) != oz[i]) diff++;
+						}
+					}
+				}
+				if (diff > 0) failed++;
+				sb.append(width+"x"+height+"x"+zSize+" "+(k==0?"Prewitt":"Sobel")+": "+
+						(diff==0 ? "same": "DIFFERENT "+diff)+"\n");
+			}
+		}
+		sb.append(failed==0 ? "gradient3D matches the 3x3 convolutions": failed+" DIFFERENT");
+		return sb.toString();
+	}
+	public static void main(String[] args)
+	{
+		System.out.println(tests());
+	}
+	
 	private Convolution()
 	{
 		
@@ -0,0 +1,91 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Path cost, phase contrast cost and weight of each relaxed node stored in chunks of a double array.
+ * A chunk is allocated for every CHUNK costs instead of an object for each cost.
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class CostTrace
+{
+	public static final String LABEL = "path\tpccost\tweight\n";
+	public static final int CHUNK = 1 << 16;
+	private static final int FIELDS = 3;
+	private List<double[]> _chunks;
+	private double[] _chunk;
+	private int _offset;
+	private long _size;
+
+	public CostTrace()
+	{
+		clear();
+	}
+	public void add(double path, double pcCost, double weight)
+	{
+		if (_offset == _chunk.length)
+		{
+			_chunk = new double[CHUNK*FIELDS];
+			_chunks.add(_chunk);
+			_offset = 0;
+		}
+		_chunk[_offset++] = path;
+		_chunk[_offset++] = pcCost;
+		_chunk[_offset++] = weight;
+		_size++;
+	}
+	public long size()
+	{
+		return _size;
+	}
+	public void clear()
+	{
+		_chunks = new ArrayList<double[]>();
+		_chunk = new double[CHUNK*FIELDS];
+		_chunks.add(_chunk);
+		_offset = 0;
+		_size = 0;
+	}
+	/** Write the tab separated costs under LABEL a chunk at a time. */
+	public void write(String fileName) throws IOException
+	{
+		BufferedWriter out = new BufferedWriter(new FileWriter(fileName));
+		try
+		{
+			out.write(LABEL);
+			for (double[] chunk: _chunks)
+			{
+				int end = chunk == _chunk ? _offset: chunk.length;
+				for (int i=0; i < end; i+=FIELDS)
+				{
+					out.write(chunk[i]+"\t"+chunk[i+1]+"\t"+chunk[i+2]+"\n");
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+}
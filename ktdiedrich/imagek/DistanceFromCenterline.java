@@ -26,8 +26,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Queue;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 /** Calculates the distance from the centerline of each voxel in the image graph.
  * @author ktdiedrich@gmail.com 
@@ -38,8 +36,7 @@ public class DistanceFromCenterline
     public static double ENHANCEMENT_PRECISION = 100.0;
 	private short _col, _row, _z, _colRow, _colZ, _rowZ, _colRowZ;
     private int _windowSize;
-    private int _enhancementHistogramTotal = 0;
-    private SortedMap<Short, Integer> _enhancementHistogram;
+    private Histogram _enhancementHistogram;
     private double _intensityThreshold;
     private double _dfcDfeRatioThreshold;
     public DistanceFromCenterline(float xRes, float yRes, float zRes)
@@ -175,7 +172,7 @@ public class DistanceFromCenterline
     
     public void enhanceAneurysm(List<CenterlineGraph> centerlineGraphs, int zSize)
     {
-    	_enhancementHistogram = new TreeMap<Short, Integer>();
+    	_enhancementHistogram = new Histogram();
         
         for (CenterlineGraph g: centerlineGraphs)
         {
@@ -186,17 +183,7 @@ public class DistanceFromCenterline
         		// histogram and threshold of window DFE difference
         		if (windowDFEvar > 0)
         		{
-        			if (_enhancementHistogram.containsKey(windowDFEvar))
-        			{
-        				Integer count = _enhancementHistogram.get(windowDFEvar);
-        				count++;
-        				_enhancementHistogram.put(windowDFEvar, count);
-        			}
-        			else
-        			{
-        				_enhancementHistogram.put(windowDFEvar, 1);
-        			}
-        			_enhancementHistogramTotal++;
+        			_enhancementHistogram.add(windowDFEvar);
         		}
         		centNode.enhance = windowDFEvar;
         		// project the enhancement on belonging nodes, check DFC/DFE ratio here
@@ -218,23 +205,12 @@ public class DistanceFromCenterline
         	}
         	
         }
-        int enhanceCutoffCount = (int)Math.round((double)_enhancementHistogramTotal * _intensityThreshold);
-        int enhanceSum = 0;
+        int enhanceCutoffCount = (int)Math.round((double)_enhancementHistogram.getTotal() * _intensityThreshold);
         short enhanceValCutoff = Short.MAX_VALUE;
-        boolean setEnhanceCut = false;
-        for (short enhanceVal: _enhancementHistogram.keySet())
+        int cutoff = _enhancementHistogram.valueAboveCount(enhanceCutoffCount);
+        if (cutoff != Histogram.NONE)
         {
-        	
-        	int enCount = _enhancementHistogram.get(enhanceVal);
-        	enhanceSum += enCount;
-        	// IJ.log("enhanceVal="+enhanceVal+" enCount="+enCount+" enhanceSum="+enhanceSum+" faction="+((double)enhanceSum/(double)_enhancementHistogramTotal) );
-        	if (! setEnhanceCut && enhanceSum > enhanceCutoffCount)
-        	{
-        		enhanceValCutoff = enhanceVal;
-        		setEnhanceCut = true;
-        		break;
-        	}
-        	
+        	enhanceValCutoff = (short)cutoff;
         }
         //IJ.log("Enhancement cutoff value: "+enhanceValCutoff);
         // threshold aneurysm enhancement 
@@ -18,9 +18,12 @@
 
 package ktdiedrich.imagek;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Queue;
 
+import ktdiedrich.util.ParallelLines;
+
 import ij.*;
 import ij.process.*;
 
@@ -29,11 +32,17 @@ import ij.process.*;
 public class DistanceFromEdge
 {
 	public static final int LOWER_3D_CUTOFF = 6;
+	/** Minimum of 26 rays cast from each voxel to the edge */
+	public static final int RAY_26 = 0;
+	/** Exact Euclidean distance transform */
+	public static final int EXACT_EDT = 1;
     private boolean _showSteps;
     private short _col, _row, _z;
     private short _colRow, _colZ, _rowZ;
     private short _colRowZ;
     private int _lower3Dcutoff;
+    private int _algorithm;
+    private int _threads;
     
     /** Sets x, y and z resolutions */
     public DistanceFromEdge(float xRes, float yRes, float zRes)
@@ -49,6 +58,8 @@ public class DistanceFromEdge
         
         _colRowZ = voxDis.getColRowZ();
         _lower3Dcutoff = LOWER_3D_CUTOFF;
+        _algorithm = RAY_26;
+        _threads = ParallelLines.availableThreads();
     }
     
     
@@ -62,7 +73,10 @@ public class DistanceFromEdge
     }
     public  short[][] distanceFromEdge(short[][] voxels, int width, int height)
     {
-    	
+    	if (_algorithm == EXACT_EDT)
+    	{
+    		return this.distanceFromEdgeEDT(voxels, width, height);
+    	}
     	return this.distanceFromEdge26ray(voxels, width, height);
     	// return this.distanceFromEdgeCity(voxels, width, height);
     }
@@ -170,16 +184,188 @@ public class DistanceFromEdge
 		return visited;
     }
     
-    public short[][] distanceFromEdge26ray(short[][] voxels, int width, int height)
+    /** Exact Euclidean distance to the nearest background voxel with separable column, row and z passes of the 
+     * lower envelope of parabolas (Felzenszwalb and Huttenlocher). Step lengths are the same as the 26 ray steps and 
+     * voxels outside of the image are background so a voxel next to the edge has the DFE of one step. 
+     * Planes within the lower 3-D cutoff of the top and bottom of the stack get the 2-D distance in their plane. 
+     * Each pass runs in parallel over the image lines. */
+    public short[][] distanceFromEdgeEDT(final short[][] voxels, final int width, final int height)
+    {
+    	final int zSize = voxels.length;
+    	final int low = zSize - _lower3Dcutoff;
+    	final float colStep = VoxelDistance.convert2float(_col);
+    	final float rowStep = VoxelDistance.convert2float(_row);
+    	final float zStep = VoxelDistance.convert2float(_z);
+    	final float[][] dist = new float[zSize][width*height];
+    	
+    	// Column: distance to the nearest background in the row 
+    	ParallelLines.run(zSize*height, _threads, new ParallelLines.Range() {
+    		public void run(int from, int to)
+    		{
+    			float colStep2 = colStep*colStep;
+    			for (int line=from; line < to; line++)
+    			{
+    				int z = line / height;
+    				int rowWidth = (line % height)*width;
+    				short[] vox = voxels[z];
+    				float[] d = dist[z];
+    				int last = -1;
+    				for (int c=0; c < width; c++)
+    				{
+    					if ((0xFFF & vox[rowWidth+c]) == 0)
+    						last = c;
+    					d[rowWidth+c] = c-last;
+    				}
+    				last = width;
+    				for (int c=width-1; c >= 0; c--)
+    				{
+    					if ((0xFFF & vox[rowWidth+c]) == 0)
+    						last = c;
+    					float steps = Math.min(d[rowWidth+c], last-c);
+    					d[rowWidth+c] = steps*steps*colStep2;
+    				}
+    			}
+    		}
+    	});
+    	// Row: 2-D distance in each plane 
+    	ParallelLines.run(zSize*width, _threads, new ParallelLines.Range() {
+    		public void run(int from, int to)
+    		{
+    			EnvelopeBuffer buf = new EnvelopeBuffer(height);
+    			for (int line=from; line < to; line++)
+    			{
+    				int z = line / width;
+    				int c = line % width;
+    				float[] d = dist[z];
+    				for (int r=0; r < height; r++)
+    				{
+    					buf.f[r+1] = d[r*width+c];
+    				}
+    				buf.envelope(height, rowStep*rowStep);
+    				for (int r=0; r < height; r++)
+    				{
+    					d[r*width+c] = buf.d[r];
+    				}
+    			}
+    		}
+    	});
+    	// Z: 3-D distance for the planes between the lower 3-D cutoffs 
+    	if (low >= _lower3Dcutoff+1)
+    	{
+    		ParallelLines.run(width*height, _threads, new ParallelLines.Range() {
+    			public void run(int from, int to)
+    			{
+    				EnvelopeBuffer buf = new EnvelopeBuffer(zSize);
+    				for (int i=from; i < to; i++)
+    				{
+    					for (int z=0; z < zSize; z++)
+    					{
+    						buf.f[z+1] = dist[z][i];
+    					}
+    					buf.envelope(zSize, zStep*zStep);
+    					for (int z=_lower3Dcutoff+1; z <= low; z++)
+    					{
+    						dist[z][i] = buf.d[z];
+    					}
+    				}
+    			}
+    		});
+    	}
+    	short[][] dfes = new short[zSize][];
+    	for (int z=0; z < zSize; z++)
+    	{
+    		short[] vox = voxels[z];
+    		float[] d = dist[z];
+    		short[] dfe = new short[width*height];
+    		for (int i=0; i < dfe.length; i++)
+    		{
+    			if ((0xFFF & vox[i]) > 0)
+    			{
+    				dfe[i] = (short)Math.min(Short.MAX_VALUE, 
+    						Math.round(Math.sqrt(d[i])*VoxelDistance.DISTANCE_PRECISION));
+    			}
+    		}
+    		dfes[z] = dfe;
+    		dist[z] = null;
+    	}
+    	return dfes;
+    }
+    /** Lower envelope of the parabolas of one image line. f[1..n] are the squared distances of the line, f[0] and f[n+1] are 
+     * the background outside of the image. */
+    private static class EnvelopeBuffer
+    {
+    	float[] f;
+    	float[] d;
+    	int[] v;
+    	float[] zz;
+    	EnvelopeBuffer(int n)
+    	{
+    		f = new float[n+2];
+    		d = new float[n];
+    		v = new int[n+2];
+    		zz = new float[n+3];
+    	}
+    	/** d[q] = min over p of f[p]+step2*(q+1-p)^2 */
+    	void envelope(int n, float step2)
+    	{
+    		int last = n+1;
+    		f[0] = 0; f[last] = 0;
+    		int k = 0;
+    		v[0] = 0;
+    		zz[0] = Float.NEGATIVE_INFINITY;
+    		zz[1] = Float.POSITIVE_INFINITY;
+    		for (int q=1; q <= last; q++)
+    		{
+    			float s = intersect(q, v[k], step2);
+    			while (s <= zz[k])
+    			{
+    				k--;
+    				s = intersect(q, v[k], step2);
+    			}
+    			k++;
+    			v[k] = q;
+    			zz[k] = s;
+    			zz[k+1] = Float.POSITIVE_INFINITY;
+    		}
+    		k = 0;
+    		for (int q=1; q <= n; q++)
+    		{
+    			while (zz[k+1] < q)
+    				k++;
+    			int dq = q-v[k];
+    			d[q-1] = f[v[k]]+step2*dq*dq;
+    		}
+    	}
+    	private float intersect(int q, int p, float step2)
+    	{
+    		return ((f[q]+step2*q*q)-(f[p]+step2*p*p))/(2.0f*step2*(q-p));
+    	}
+    }
+    /** Minimum of 26 rays from each voxel. The z planes are split into slabs for the threads when there is more than 
+     * one thread, each voxel is independent so the output is the same as one thread. */
+    public short[][] distanceFromEdge26ray(final short[][] voxels, final int width, final int height)
     {
     	// calculate direction costs and round to short 
     	// for the bottom planes do a 2-D distance from edge 
     	
-        int zSize = voxels.length;
-        int low = zSize - _lower3Dcutoff;
-        
-        short[][] dfes = new short[zSize][width*height];
-        for (int z=0; z<zSize; z++)
+        final int zSize = voxels.length;
+        final short[][] dfes = new short[zSize][width*height];
+        ParallelLines.run(zSize, _threads, new ParallelLines.Range() {
+        	public void run(int from, int to)
+        	{
+        		distanceFromEdge26ray(voxels, width, height, dfes, from, to);
+        	}
+        });
+        return dfes;
+    }
+    /** 26 ray distance from edge of the z planes from, up to to with ray arrays reused for each voxel. */
+    private void distanceFromEdge26ray(short[][] voxels, int width, int height, short[][] dfes, int from, int to)
+    {
+    	int zSize = voxels.length;
+    	int low = zSize - _lower3Dcutoff;
+    	short[] rays2D = new short[8];
+    	short[] rays3D = new short[26];
+        for (int z=from; z<to; z++)
         {
             for (int r=0; r<height; r++)
             {
@@ -191,26 +377,25 @@ public class DistanceFromEdge
                     	// IJ.log("DFE input value: "+voxels[z][r*width+c]);
                     	if (z <= _lower3Dcutoff)
                     	{
-                    		dfes[z][r*width+c] = minDFE2D(voxels, zSize, width, height, c, r, z);
+                    		dfes[z][r*width+c] = minDFE2D(voxels, zSize, width, height, c, r, z, rays2D);
                     	}
                     	else if (z > _lower3Dcutoff && z <= low)
                     	{
-                    		dfes[z][r*width+c] = minDFE3D(voxels, zSize, width, height, c, r, z);
+                    		dfes[z][r*width+c] = minDFE3D(voxels, zSize, width, height, c, r, z, rays3D);
                     	}
                     	else
                     	{
-                    		dfes[z][r*width+c] = minDFE2D(voxels, zSize, width, height, c, r, z);
+                    		dfes[z][r*width+c] = minDFE2D(voxels, zSize, width, height, c, r, z, rays2D);
                     	}
                     }
                 }
             }
         }
-        return dfes;
     }
-    private short minDFE2D(short[][] pixels, int zSize, int width, int height, int col, int row, int z)
+    private short minDFE2D(short[][] pixels, int zSize, int width, int height, int col, int row, int z, short[] dfes)
     {
     	short dfe = Short.MAX_VALUE;
-    	short[] dfes = new short[8];
+    	Arrays.fill(dfes, (short)0);
         
         int rowWidth = row*width;
         
@@ -287,10 +472,10 @@ public class DistanceFromEdge
     	return dfe;
     }
     /** Find the 3-D distance from edge of the voxel at col, row, z */ 
-    private short minDFE3D(short[][] pixels, int zSize, int width, int height, int col, int row, int z)
+    private short minDFE3D(short[][] pixels, int zSize, int width, int height, int col, int row, int z, short[] dfes)
     {
         short dfe = Short.MAX_VALUE;
-        short[] dfes = new short[26];
+        Arrays.fill(dfes, (short)0);
         
         int rowWidth = row*width;
         int rowCol = row*width+col;
@@ -525,4 +710,129 @@ public class DistanceFromEdge
 	public void setLower3Dcutoff(int lower3Dcutoff) {
 		_lower3Dcutoff = lower3Dcutoff;
 	}
+	public int getAlgorithm() {
+		return _algorithm;
+	}
+	/** RAY_26 or EXACT_EDT for distanceFromEdge() */
+	public void setAlgorithm(int algorithm) {
+		_algorithm = algorithm;
+	}
+	public int getThreads() {
+		return _threads;
+	}
+	/** Threads for the parallel distance calculations, defaults to the available processors. */
+	public void setThreads(int threads) {
+		_threads = threads;
+	}
+	/** Test the 26 ray distance from edge split in z slabs gives the same values as one thread and the exact EDT 
+	 * gives the brute force distance. */
+	public static String tests()
+	{
+		StringBuffer sb = new StringBuffer();
+		int width = 41, height = 37, zSize = 29;
+		short[][] voxels = new short[zSize][width*height];
+		// tube running through the stack, a crossing tube and blob running off the edges 
+		for (int z=0; z < zSize; z++)
+		{
+			for (int r=0; r < height; r++)
+			{
+				for (int c=0; c < width; c++)
+				{
+					double tube = Math.hypot(c-width/2.0-4*Math.sin(z/4.0), r-height/2.0);
+					double cross = Math.hypot(r-8, z-zSize/2.0);
+					double blob = Math.sqrt((c-3)*(c-3)+(r-4)*(r-4)+(z-2)*(z-2));
+					if (tube < 7 || cross < 4 || blob < 6 || (c*31+r*17+z*7) % 23 == 0)
+					{
+						voxels[z][r*width+c] = 100;
+					}
+				}
+			}
+		}
+		float[][] resolutions = {{1.0f, 1.0f, 1.0f}, {0.4f, 0.4f, 1.2f}, {0.7f, 0.9f, 0.5f}};
+		int[] threadCounts = {2, 3, 8, 64};
+		boolean allSame = true;
+		for (float[] res: resolutions)
+		{
+			DistanceFromEdge dfer = new DistanceFromEdge(res[0], res[1], res[2]);
+			dfer.setThreads(1);
+			short[][] serial = dfer.distanceFromEdge26ray(voxels, width, height);
+			for (int threads: threadCounts)
+			{
+				dfer.setThreads(threads);
+				short[][] slabs = dfer.distanceFromEdge26ray(voxels, width, height);
+				boolean same = Arrays.deepEquals(serial, slabs);
+				allSame = allSame && same;
+				sb.append("Resolution "+res[0]+", "+res[1]+", "+res[2]+" threads "+threads+": "+
+						(same ? "same": "DIFFERENT")+"\n");
+			}
+		}
+		sb.append("26 ray slabs same as serial: "+allSame+"\n");
+		// stacks with no 3-D planes, one 3-D plane at the cutoffs and several 
+		int[] zSizes = {12, 13, 14, 19};
+		boolean allExact = true;
+		for (float[] res: resolutions)
+		{
+			for (int z: zSizes)
+			{
+				short[][] small = Arrays.copyOf(voxels, z);
+				DistanceFromEdge edt = new DistanceFromEdge(res[0], res[1], res[2]);
+				edt.setAlgorithm(EXACT_EDT);
+				edt.setThreads(3);
+				int differ = compareBruteForceEDT(edt, small, width, height);
+				allExact = allExact && differ == 0;
+				sb.append("EDT resolution "+res[0]+", "+res[1]+", "+res[2]+" zSize "+z+": "+
+						(differ == 0 ? "exact": differ+" voxels DIFFERENT")+"\n");
+			}
+		}
+		sb.append("EDT same as brute force distance: "+allExact+"\n");
+		return sb.toString();
+	}
+	/** @return number of voxels where the EDT differs by more than rounding from the distance to the nearest 
+	 * background voxel or outside of the image, found by searching all of them, in the plane for the 2-D planes 
+	 * within the lower 3-D cutoff of the ends. */
+	private static int compareBruteForceEDT(DistanceFromEdge edt, short[][] voxels, int width, int height)
+	{
+		int zSize = voxels.length;
+		int low = zSize-edt._lower3Dcutoff;
+		double colStep = VoxelDistance.convert2float(edt._col);
+		double rowStep = VoxelDistance.convert2float(edt._row);
+		double zStep = VoxelDistance.convert2float(edt._z);
+		short[][] dfes = edt.distanceFromEdge(voxels, width, height);
+		int differ = 0;
+		for (int z=0; z < zSize; z++)
+		{
+			boolean in3D = z > edt._lower3Dcutoff && z <= low;
+			for (int r=0; r < height; r++)
+			{
+				for (int c=0; c < width; c++)
+				{
+					if ((0xFFF & voxels[z][r*width+c]) == 0)
+						continue;
+					double best = Math.min(Math.min(c+1, width-c)*colStep, Math.min(r+1, height-r)*rowStep);
+					if (in3D)
+						best = Math.min(best, Math.min(z+1, zSize-z)*zStep);
+					int z0 = in3D ? 0: z, z1 = in3D ? zSize-1: z;
+					for (int bz=z0; bz <= z1; bz++)
+					{
+						for (int i=0; i < width*height; i++)
+						{
+							if ((0xFFF & voxels[bz][i]) == 0)
+							{
+								double dc = (i%width-c)*colStep, dr = (i/width-r)*rowStep, dz = (bz-z)*zStep;
+								best = Math.min(best, Math.sqrt(dc*dc+dr*dr+dz*dz));
+							}
+						}
+					}
+					long expected = Math.round(best*VoxelDistance.DISTANCE_PRECISION);
+					if (Math.abs(dfes[z][r*width+c]-expected) > 1)
+						differ++;
+				}
+			}
+		}
+		return differ;
+	}
+	public static void main(String[] args)
+	{
+		System.out.println(tests());
+	}
 }
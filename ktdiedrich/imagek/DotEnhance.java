@@ -22,19 +22,36 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import ktdiedrich.util.ParallelLines;
 
+import java.util.Arrays;
 import java.util.List;
 
 /** Dot enhance the image to detect aneurysms. Based on the paper: 
  * 1. Uchiyama, Y. et al. Computer-Aided Diagnosis Scheme for Detection of Unruptured Intracranial Aneurysms in MR Angiography. Conf Proc IEEE Eng Med Biol Soc 3, 3031-4(2005). 
+ * 2. Li, Q., Sone, S. & Doi, K. Selective enhancement filters for nodules, vessels, and airway walls in two- and three-dimensional CT scans. Med Phys 30, 2040-51(2003). 
+ * The dot response of the Hessian eigenvalues |l1| >= |l2| >= |l3| all below 0 is l3^2/|l1|, the largest 
+ * scale normalized response over the scales is kept. The Hessian comes from separable Gaussian derivatives in 
+ * cubic tiles of the image with a margin for the largest scale, the tiles are filtered on threads and only the 
+ * graph voxels, or the segmented voxels without graphs, are evaluated. 
  * @author ktdiedrich@gmail.com
  * */
 public class DotEnhance 
 {
+	/** Smallest and largest Gaussian scale in the units of the resolution */
+	public static final double MIN_SCALE = 1.0;
+	public static final double MAX_SCALE = 4.0;
+	public static final int SCALES = 4;
+	/** Voxels on a side of a tile */
+	public static final int TILE = 32;
 	private List<Graph> _imageGraphs;
 	private ImagePlus _image;
 	private float _xRes, _yRes, _zRes;
 	private int _width, _height, _zSize;
+	private double _minScale, _maxScale;
+	private int _scales;
+	private int _tile;
+	private int _threads;
 	/** @param image Segmented short arterial image. */
 	public DotEnhance(List<Graph> imageGraphs, ImagePlus image, float xRes, float yRes, float zRes)
 	{
@@ -46,22 +63,327 @@ public class DotEnhance
 		_width = image.getWidth();
 		_height = _image.getHeight();
 		_zSize = _image.getStackSize();
+		_minScale = MIN_SCALE;
+		_maxScale = MAX_SCALE;
+		_scales = SCALES;
+		_tile = TILE;
+		_threads = ParallelLines.availableThreads();
+	}
+	/** Gaussian and its first and second derivative kernels of one scale on one axis in voxels. */
+	private static class Kernels
+	{
+		int radius;
+		float[][] g = new float[3][];
+		Kernels(double sigma)
+		{
+			radius = Math.max(1, (int)Math.ceil(3.0*sigma));
+			int len = 2*radius+1;
+			g[0] = new float[len]; g[1] = new float[len]; g[2] = new float[len];
+			double sum = 0;
+			for (int j=-radius; j<=radius; j++)
+			{
+				sum += Math.exp(-j*j/(2*sigma*sigma));
+			}
+			double s2 = sigma*sigma;
+			for (int j=-radius; j<=radius; j++)
+			{
+				double g0 = Math.exp(-j*j/(2*s2))/sum;
+				// kernels are flipped for correlation 
+				g[0][j+radius] = (float)g0;
+				g[1][j+radius] = (float)(j/s2*g0);
+				g[2][j+radius] = (float)((j*j/(s2*s2)-1/s2)*g0);
+			}
+		}
+	}
+	/** Buffers of one thread, reused for each tile. */
+	private static class Scratch
+	{
+		float[] block;
+		float[][] zPass = new float[3][];
+		float[][] yPass = new float[6][];
+		float[] response;
+		Scratch(int blockSize, int zPassSize, int yPassSize, int tileSize)
+		{
+			block = new float[blockSize];
+			for (int k=0; k < 3; k++)
+				zPass[k] = new float[zPassSize];
+			for (int k=0; k < 6; k++)
+				yPass[k] = new float[yPassSize];
+			response = new float[tileSize];
+		}
 	}
 	public ImagePlus makeEnhancedImage()
 	{
 		ImageStack enStack = new ImageStack(_width, _height);
-		short[][] enVoxels = new short[_zSize][];
+		final short[][] enVoxels = new short[_zSize][];
 		
 		for (int i=0; i < _zSize; i++)
 		{
 			ImageProcessor enProc = new ShortProcessor(_width, _height);
 			enVoxels[i] = (short[])enProc.getPixels();
+			enStack.addSlice(""+(i+1), enProc);
 		}
-		// TODO dot enhance image 
-		
+		final short[][] voxels = ImageProcess.getShortStackVoxels(_image.getImageStack());
+		final int tile = _tile;
+		final int tilesX = (_width+tile-1)/tile, tilesY = (_height+tile-1)/tile, tilesZ = (_zSize+tile-1)/tile;
+		final VoxelMask mask = new VoxelMask(_width, _height, _zSize);
+		final boolean[] tiles = new boolean[tilesX*tilesY*tilesZ];
+		if (_imageGraphs != null)
+		{
+			for (Graph graph: _imageGraphs)
+			{
+				for (GraphNode n: graph.getNodes())
+				{
+					mask.set(n.z, n.row*_width+n.col);
+					tiles[((n.z/tile)*tilesY+n.row/tile)*tilesX+n.col/tile] = true;
+				}
+			}
+		}
+		else
+		{
+			// no graphs, evaluate the segmented voxels 
+			for (int z=0; z < _zSize; z++)
+			{
+				for (int i=0; i < _width*_height; i++)
+				{
+					if (voxels[z][i] > 0)
+					{
+						mask.set(z, i);
+						tiles[((z/tile)*tilesY+(i/_width)/tile)*tilesX+(i%_width)/tile] = true;
+					}
+				}
+			}
+		}
+		final double[] sigmas = new double[Math.max(_scales, 1)];
+		final Kernels[][] kernels = new Kernels[sigmas.length][3];
+		int hx = 0, hy = 0, hz = 0;
+		for (int s=0; s < sigmas.length; s++)
+		{
+			sigmas[s] = sigmas.length == 1 ? _minScale: 
+				_minScale*Math.pow(_maxScale/_minScale, (double)s/(sigmas.length-1));
+			kernels[s][0] = new Kernels(sigmas[s]/_xRes);
+			kernels[s][1] = new Kernels(sigmas[s]/_yRes);
+			kernels[s][2] = new Kernels(sigmas[s]/_zRes);
+			hx = Math.max(hx, kernels[s][0].radius);
+			hy = Math.max(hy, kernels[s][1].radius);
+			hz = Math.max(hz, kernels[s][2].radius);
+		}
+		final int marginX = hx, marginY = hy, marginZ = hz;
+		final int bx = tile+2*hx, by = tile+2*hy, bz = tile+2*hz;
+		final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+			protected Scratch initialValue()
+			{
+				return new Scratch(bx*by*bz, bx*by*tile, bx*tile*tile, tile*tile*tile);
+			}
+		};
+		ParallelLines.run(tiles.length, _threads, new ParallelLines.Range() {
+			public void run(int from, int to)
+			{
+				for (int t=from; t < to; t++)
+				{
+					if (tiles[t])
+					{
+						int x0 = (t % tilesX)*tile, y0 = ((t / tilesX) % tilesY)*tile, z0 = (t / (tilesX*tilesY))*tile;
+						enhanceTile(voxels, mask, enVoxels, x0, y0, z0, sigmas, kernels, marginX, marginY, marginZ, 
+								scratch.get());
+					}
+				}
+			}
+		});
 		
 		ImagePlus enImage = new ImagePlus(_image.getShortTitle()+"Dot", enStack);
 		
 		return enImage;
 	}
+	/** Largest dot response over the scales of the graph voxels in the tile starting at x0, y0, z0. */
+	private void enhanceTile(short[][] voxels, VoxelMask mask, short[][] enVoxels, int x0, int y0, int z0, 
+			double[] sigmas, Kernels[][] kernels, int mx, int my, int mz, Scratch s)
+	{
+		int tile = _tile;
+		int tx = Math.min(tile, _width-x0), ty = Math.min(tile, _height-y0), tz = Math.min(tile, _zSize-z0);
+		int bx = tx+2*mx, by = ty+2*my, bz = tz+2*mz;
+		float[] block = s.block;
+		// block of the tile and margin, edge voxels repeat outside the image 
+		for (int z=0; z < bz; z++)
+		{
+			short[] slice = voxels[Math.min(Math.max(z0+z-mz, 0), _zSize-1)];
+			for (int y=0; y < by; y++)
+			{
+				int row = Math.min(Math.max(y0+y-my, 0), _height-1)*_width;
+				for (int x=0; x < bx; x++)
+				{
+					block[(z*by+y)*bx+x] = slice[row+Math.min(Math.max(x0+x-mx, 0), _width-1)];
+				}
+			}
+		}
+		float[] response = s.response;
+		Arrays.fill(response, 0, tx*ty*tz, 0f);
+		double xx = 1.0/(_xRes*_xRes), yy = 1.0/(_yRes*_yRes), zz = 1.0/(_zRes*_zRes);
+		double xy = 1.0/(_xRes*_yRes), xz = 1.0/(_xRes*_zRes), yz = 1.0/(_yRes*_zRes);
+		for (int sc=0; sc < sigmas.length; sc++)
+		{
+			Kernels kx = kernels[sc][0], ky = kernels[sc][1], kz = kernels[sc][2];
+			// z pass: g0, g1, g2 in z over the x, y block 
+			for (int k=0; k < 3; k++)
+			{
+				float[] g = kz.g[k];
+				float[] out = s.zPass[k];
+				for (int z=0; z < tz; z++)
+				{
+					for (int i=0; i < bx*by; i++)
+					{
+						float sum = 0;
+						int base = (z+mz-kz.radius)*bx*by+i;
+						for (int j=0; j < g.length; j++)
+						{
+							sum += g[j]*block[base+j*bx*by];
+						}
+						out[z*bx*by+i] = sum;
+					}
+				}
+			}
+			// y pass: z0y0, z0y1, z0y2, z1y0, z1y1, z2y0 
+			int[] zOrders = {0, 0, 0, 1, 1, 2};
+			int[] yOrders = {0, 1, 2, 0, 1, 0};
+			for (int k=0; k < 6; k++)
+			{
+				float[] g = ky.g[yOrders[k]];
+				float[] in = s.zPass[zOrders[k]];
+				float[] out = s.yPass[k];
+				for (int z=0; z < tz; z++)
+				{
+					for (int y=0; y < ty; y++)
+					{
+						int base = (z*by+y+my-ky.radius)*bx;
+						for (int x=0; x < bx; x++)
+						{
+							float sum = 0;
+							for (int j=0; j < g.length; j++)
+							{
+								sum += g[j]*in[base+j*bx+x];
+							}
+							out[(z*ty+y)*bx+x] = sum;
+						}
+					}
+				}
+			}
+			// x pass at the graph voxels 
+			double norm = sigmas[sc]*sigmas[sc];
+			for (int z=0; z < tz; z++)
+			{
+				for (int y=0; y < ty; y++)
+				{
+					for (int x=0; x < tx; x++)
+					{
+						if (!mask.get(z0+z, (y0+y)*_width+x0+x))
+							continue;
+						int base = (z*ty+y)*bx+x+mx-kx.radius;
+						double hxx = xPass(s.yPass[0], base, kx.g[2])*xx*norm;
+						double hxy = xPass(s.yPass[1], base, kx.g[1])*xy*norm;
+						double hyy = xPass(s.yPass[2], base, kx.g[0])*yy*norm;
+						double hxz = xPass(s.yPass[3], base, kx.g[1])*xz*norm;
+						double hyz = xPass(s.yPass[4], base, kx.g[0])*yz*norm;
+						double hzz = xPass(s.yPass[5], base, kx.g[0])*zz*norm;
+						float dot = (float)dot(hxx, hyy, hzz, hxy, hxz, hyz);
+						int ti = (z*ty+y)*tx+x;
+						if (dot > response[ti])
+							response[ti] = dot;
+					}
+				}
+			}
+		}
+		for (int z=0; z < tz; z++)
+		{
+			for (int y=0; y < ty; y++)
+			{
+				for (int x=0; x < tx; x++)
+				{
+					float dot = response[(z*ty+y)*tx+x];
+					if (dot > 0)
+						enVoxels[z0+z][(y0+y)*_width+x0+x] = (short)Math.min(Math.round(dot), Short.MAX_VALUE);
+				}
+			}
+		}
+	}
+	private static double xPass(float[] in, int base, float[] g)
+	{
+		double sum = 0;
+		for (int j=0; j < g.length; j++)
+		{
+			sum += g[j]*in[base+j];
+		}
+		return sum;
+	}
+	/** @return dot response l3^2/|l1| of the eigenvalues of the symmetric Hessian ordered |l1| >= |l2| >= |l3| 
+	 * when all are below 0, otherwise 0 */
+	public static double dot(double hxx, double hyy, double hzz, double hxy, double hxz, double hyz)
+	{
+		double[] l = eigenvalues(hxx, hyy, hzz, hxy, hxz, hyz);
+		if (l[0] >= 0 || l[1] >= 0 || l[2] >= 0)
+			return 0;
+		// all below 0 so the largest magnitude is the lowest value 
+		double l1 = Math.min(l[0], Math.min(l[1], l[2]));
+		double l3 = Math.max(l[0], Math.max(l[1], l[2]));
+		return l3*l3/Math.abs(l1);
+	}
+	/** Eigenvalues of a symmetric 3x3 matrix with the trigonometric solution of the characteristic cubic. */
+	public static double[] eigenvalues(double a11, double a22, double a33, double a12, double a13, double a23)
+	{
+		double p1 = a12*a12 + a13*a13 + a23*a23;
+		if (p1 == 0)
+			return new double[] {a11, a22, a33};
+		double q = (a11+a22+a33)/3;
+		double p2 = (a11-q)*(a11-q) + (a22-q)*(a22-q) + (a33-q)*(a33-q) + 2*p1;
+		double p = Math.sqrt(p2/6);
+		double b11 = (a11-q)/p, b22 = (a22-q)/p, b33 = (a33-q)/p;
+		double b12 = a12/p, b13 = a13/p, b23 = a23/p;
+		double r = (b11*(b22*b33-b23*b23) - b12*(b12*b33-b23*b13) + b13*(b12*b23-b22*b13))/2;
+		double phi = r <= -1 ? Math.PI/3: r >= 1 ? 0: Math.acos(r)/3;
+		double e1 = q + 2*p*Math.cos(phi);
+		double e3 = q + 2*p*Math.cos(phi+2*Math.PI/3);
+		return new double[] {e1, 3*q-e1-e3, e3};
+	}
+	public double getMinScale()
+	{
+		return _minScale;
+	}
+	/** Smallest Gaussian scale in the units of the resolution */
+	public void setMinScale(double minScale)
+	{
+		_minScale = minScale;
+	}
+	public double getMaxScale()
+	{
+		return _maxScale;
+	}
+	public void setMaxScale(double maxScale)
+	{
+		_maxScale = maxScale;
+	}
+	public int getScales()
+	{
+		return _scales;
+	}
+	/** Number of scales from the smallest to the largest in equal ratios */
+	public void setScales(int scales)
+	{
+		_scales = scales;
+	}
+	public int getTile()
+	{
+		return _tile;
+	}
+	/** Voxels on a side of a tile, the memory of a thread grows with the tile plus the largest scale margin cubed */
+	public void setTile(int tile)
+	{
+		_tile = tile;
+	}
+	public int getThreads()
+	{
+		return _threads;
+	}
+	public void setThreads(int threads)
+	{
+		_threads = threads;
+	}
 }
@@ -30,6 +30,7 @@ public class DotEnhanceThread extends Thread
 	private List<Graph> _imageGraphs;
 	private ImagePlus _image;
 	private float _xRes, _yRes, _zRes;
+	private ImagePlus _enhancedImage;
 	public DotEnhanceThread(List<Graph> imageGraphs, ImagePlus image, float xRes, float yRes, float zRes)
 	{
 		_imageGraphs = imageGraphs;
@@ -41,5 +42,11 @@ public class DotEnhanceThread extends Thread
 	public void run()
 	{
 		DotEnhance dot = new DotEnhance(_imageGraphs, _image, _xRes, _yRes, _zRes);
+		_enhancedImage = dot.makeEnhancedImage();
+	}
+	/** @return the dot enhanced image after the thread finishes */
+	public ImagePlus getEnhancedImage()
+	{
+		return _enhancedImage;
 	}
 }
@@ -0,0 +1,386 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/** Shortest paths and centerline backtraces from tree ends of a segmentation graph that can run in separate threads.
+ * The graph is copied once into read only arrays with the adjacents in the same order as the GraphNode adjacents, every
+ * trace keeps its own path cost, predecessor and path length arrays. A Trace is replayed onto the GraphNode objects in
+ * the calling thread to make the same CenterlineGraph as Centerlines.backTraceCenterline().
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class EndCenterlines
+{
+	public static final int NONE = -1;
+	private GraphNode[] _nodes;
+	private int[] _offsets;
+	private int[] _neighbors;
+	private int[] _z;
+	private int[] _anchorPathLen;
+	private int _zSize;
+	private int _minLineLength;
+	private int _queueType;
+
+	/** @param graph segmentation graph shared by all the traces. Sets GraphNode.index of the nodes.
+	 * @param anchors path lengths of the centerline anchors reset after each shortest path search. */
+	public EndCenterlines(Graph graph, List<Map<GraphNode, Integer>> anchors, int zSize, int minLineLength, int queueType)
+	{
+		_zSize = zSize;
+		_minLineLength = minLineLength;
+		_queueType = queueType;
+		List<GraphNode> nodes = graph.getNodes();
+		int nodeCount = nodes.size();
+		_nodes = nodes.toArray(new GraphNode[nodeCount]);
+		_z = new int[nodeCount];
+		_offsets = new int[nodeCount+1];
+		int edges = 0;
+		for (int i=0; i < nodeCount; i++)
+		{
+			_nodes[i].index = i;
+			_z[i] = _nodes[i].z;
+			_offsets[i] = edges;
+			edges += _nodes[i].adjacents.size();
+		}
+		_offsets[nodeCount] = edges;
+		_neighbors = new int[edges];
+		int e = 0;
+		for (int i=0; i < nodeCount; i++)
+		{
+			for (GraphNode a: _nodes[i].adjacents)
+			{
+				_neighbors[e++] = a.index;
+			}
+		}
+		_anchorPathLen = new int[nodeCount];
+		Arrays.fill(_anchorPathLen, NONE);
+		for (Map<GraphNode, Integer> anchor: anchors)
+		{
+			for (GraphNode n: anchor.keySet())
+			{
+				if (n.index < nodeCount && _nodes[n.index] == n)
+				{
+					_anchorPathLen[n.index] = anchor.get(n);
+				}
+			}
+		}
+	}
+	/** @return true if the node is in the shared graph */
+	public boolean contains(GraphNode node)
+	{
+		return node.index >= 0 && node.index < _nodes.length && _nodes[node.index] == node;
+	}
+	/** @return true if all the nodes are in the shared graph */
+	public boolean containsAll(Collection<GraphNode> nodes)
+	{
+		for (GraphNode n: nodes)
+		{
+			if (!contains(n))
+				return false;
+		}
+		return true;
+	}
+
+	/** Result of one source: path values of all the nodes and the steps to build the centerlines. */
+	public class Trace
+	{
+		private int _source;
+		private float[] _pathCost;
+		private int[] _predecessor;
+		private int[] _pathLen;
+		private boolean[] _graphed;
+		private int[] _backtraceStarts;
+		private List<int[]> _steps;
+		private List<int[]> _stepNodes;
+		private Trace(int source)
+		{
+			_source = source;
+			_steps = new ArrayList<int[]>();
+			_stepNodes = new ArrayList<int[]>();
+		}
+		public GraphNode getSource()
+		{
+			return _nodes[_source];
+		}
+		/** Set the algorithm values of the GraphNode objects to the values left by the serial shortest path and backtrace. */
+		public void copyPaths()
+		{
+			for (int i=0; i < _nodes.length; i++)
+			{
+				GraphNode n = _nodes[i];
+				n.pathCost = _pathCost[i];
+				n.pathLen = _pathLen[i];
+				n.graphed = _graphed[i];
+				n.predecessor = _predecessor[i] == NONE ? null: _nodes[_predecessor[i]];
+				n.dfm = 0.0f;
+				n.cumDist = 0.0f;
+			}
+		}
+		/** Make the shortest path Graph with the nodes in backtrace order. */
+		public Graph makeShortestPath()
+		{
+			LinkedList<GraphNode> S = new LinkedList<GraphNode>();
+			for (int u: _backtraceStarts)
+			{
+				S.add(_nodes[u]);
+			}
+			Graph g = new Graph();
+			g.setSourceNode(_nodes[_source]);
+			g.setNodes(S);
+			return g;
+		}
+		/** Build the centerlines in the same order as Centerlines.backTraceCenterline() so the GraphNode centerline,
+		 * isCenterline and isBifurcation values are set the same. Call copyPaths() first. */
+		public CenterlineGraph makeCenterlineGraph(Graph shortestPath)
+		{
+			GraphNode source = _nodes[_source];
+			CenterlineGraph centGraph = new CenterlineGraph();
+			List<Centerline> centerlines = new LinkedList<Centerline>();
+			Centerline centerline = new Centerline();
+			centerline.setGraph(shortestPath);
+			source.centerline = centerline;
+			centerlines.add(centerline);
+			centGraph.setSourceNode(source);
+			for (int s=0; s < _steps.size(); s++)
+			{
+				int[] step = _steps.get(s);
+				LinkedList<GraphNode> line = new LinkedList<GraphNode>();
+				for (int n: _stepNodes.get(s))
+				{
+					line.add(_nodes[n]);
+				}
+				if (step[0] == SOURCE_SURROUND)
+				{
+					source.centerline.addSurroundNodes(line);
+				}
+				else if (step[0] == PREDECESSOR_SURROUND)
+				{
+					GraphNode pred = line.getLast().predecessor;
+					if (pred != null && pred.centerline != null)
+					{
+						pred.centerline.addSurroundNodes(line);
+					}
+				}
+				else
+				{
+					if (step[1] != NONE)
+					{
+						centGraph.addTreeEnd(_nodes[step[1]]);
+					}
+					centerline = new Centerline();
+					centerline.setCenterlineNodes(line);
+					centerline.setGraph(shortestPath);
+					centerlines.add(centerline);
+					if (step[2] != NONE)
+					{
+						centerline.setBifurcationNode(_nodes[step[2]]);
+					}
+				}
+			}
+			centGraph.setCenterlines(centerlines);
+			return centGraph;
+		}
+	}
+	private static final int SOURCE_SURROUND = 0;
+	private static final int LINE = 1;
+	private static final int PREDECESSOR_SURROUND = 2;
+
+	/** Lowest cost paths to the source and the backtraced centerlines. Only reads the shared graph. */
+	public Trace trace(GraphNode sourceNode)
+	{
+		Trace t = new Trace(sourceNode.index);
+		int[] S = shortestPaths(t);
+		for (int n=0; n < _nodes.length; n++)
+		{
+			if (_anchorPathLen[n] != NONE)
+			{
+				t._pathLen[n] = _anchorPathLen[n];
+			}
+		}
+		t._backtraceStarts = sortPathLen(S, t._pathLen);
+		backtrace(t);
+		return t;
+	}
+	/** Dijkstra's algorithm with the same queue and order of adding nodes as ShortestPaths.
+	 * @return node ids in the order they were found */
+	private int[] shortestPaths(Trace t)
+	{
+		int nodeCount = _nodes.length;
+		final float[] pathCost = new float[nodeCount];
+		int[] predecessor = new int[nodeCount];
+		int[] pathLen = new int[nodeCount];
+		Arrays.fill(pathCost, Float.MAX_VALUE);
+		Arrays.fill(predecessor, NONE);
+		t._pathCost = pathCost;
+		t._predecessor = predecessor;
+		t._pathLen = pathLen;
+		t._graphed = new boolean[nodeCount];
+		int source = t._source;
+		pathCost[source] = 0.0F;
+		int[] S = new int[nodeCount];
+		int sCount = 0;
+		int zSizeM1 = _zSize-1;
+		if (_queueType == ShortestPaths.INDEXED_HEAP)
+		{
+			IndexedMinHeap heap = new IndexedMinHeap(nodeCount);
+			for (int n=0; n < nodeCount; n++)
+			{
+				heap.add(n, pathCost[n]);
+			}
+			while (!heap.isEmpty())
+			{
+				int u = heap.poll();
+				if (_z[u] < zSizeM1)
+				{
+					S[sCount++] = u;
+					for (int e=_offsets[u]; e < _offsets[u+1]; e++)
+					{
+						int v = _neighbors[e];
+						if (relax(u, v, pathCost, predecessor, pathLen))
+						{
+							heap.decreaseKey(v, pathCost[v]);
+						}
+					}
+				}
+			}
+		}
+		else
+		{
+			// same comparison as GraphNode.compareTo() so the queue orders ties the same
+			PriorityQueue<Integer> pq = new PriorityQueue<Integer>(11, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b)
+				{
+					float ca = pathCost[a], cb = pathCost[b];
+					if (ca > cb)
+						return 1;
+					if (ca == cb)
+						return 0;
+					return -1;
+				}
+			});
+			for (int n=0; n < nodeCount; n++)
+			{
+				pq.add(n);
+			}
+			while (!pq.isEmpty())
+			{
+				int u = pq.poll();
+				if (_z[u] < zSizeM1)
+				{
+					S[sCount++] = u;
+					for (int e=_offsets[u]; e < _offsets[u+1]; e++)
+					{
+						int v = _neighbors[e];
+						if (relax(u, v, pathCost, predecessor, pathLen))
+						{
+							pq.remove(v);
+							pq.add(v);
+						}
+					}
+				}
+			}
+		}
+		return Arrays.copyOf(S, sCount);
+	}
+	private boolean relax(int u, int v, float[] pathCost, int[] predecessor, int[] pathLen)
+	{
+		float newCost = pathCost[u]+_nodes[v].weight;
+		if (newCost < pathCost[v])
+		{
+			pathCost[v] = newCost;
+			predecessor[v] = u;
+			pathLen[v] = pathLen[u]+1;
+			return true;
+		}
+		return false;
+	}
+	/** Stable sort longest to shortest path length like Collections.sort() with PathLenComparator. */
+	private static int[] sortPathLen(int[] S, int[] pathLen)
+	{
+		long[] keys = new long[S.length];
+		for (int i=0; i < S.length; i++)
+		{
+			keys[i] = (((long)(Integer.MAX_VALUE-pathLen[S[i]])) << 32) | i;
+		}
+		Arrays.sort(keys);
+		int[] sorted = new int[S.length];
+		for (int i=0; i < S.length; i++)
+		{
+			sorted[i] = S[(int)(keys[i] & 0xFFFFFFFFL)];
+		}
+		return sorted;
+	}
+	/** Record the steps of Centerlines.backTraceCenterline() and Centerlines.searchPath(). The centerline a surround
+	 * line joins depends on the GraphNode centerline values left by earlier traces so it is found in makeCenterlineGraph(). */
+	private void backtrace(Trace t)
+	{
+		int source = t._source;
+		boolean[] graphed = t._graphed;
+		int[] predecessor = t._predecessor;
+		graphed[source] = false;
+		List<int[]> surroundLines = new ArrayList<int[]>();
+		int[] line = new int[_nodes.length];
+		for (int backtraceNode: t._backtraceStarts)
+		{
+			boolean end = !graphed[backtraceNode];
+			int len = 0;
+			int n = backtraceNode;
+			while (!graphed[n] && n != source)
+			{
+				graphed[n] = true;
+				line[len++] = n;
+				n = predecessor[n];
+				if (n == NONE)
+					break;
+			}
+			if (n == source)
+			{
+				graphed[source] = true;
+				line[len++] = source;
+				if (len < _minLineLength)
+				{
+					t._steps.add(new int[] {SOURCE_SURROUND, NONE, NONE});
+					t._stepNodes.add(Arrays.copyOf(line, len));
+				}
+			}
+			if (len >= _minLineLength)
+			{
+				int lineEnd = line[len-1];
+				t._steps.add(new int[] {LINE, end ? backtraceNode: NONE, lineEnd != source ? lineEnd: NONE});
+				t._stepNodes.add(Arrays.copyOf(line, len));
+			}
+			else if (len > 0)
+			{
+				surroundLines.add(Arrays.copyOf(line, len));
+			}
+		}
+		for (int[] surLine: surroundLines)
+		{
+			t._steps.add(new int[] {PREDECESSOR_SURROUND, NONE, NONE});
+			t._stepNodes.add(surLine);
+		}
+	}
+}
@@ -20,13 +20,9 @@ package ktdiedrich.imagek;
 
 import java.io.File;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
-import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -34,6 +30,8 @@ import ij.ImageStack;
 import ij.io.FileInfo;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import ktdiedrich.util.IntQueue;
+import ktdiedrich.util.ParallelLines;
 
 /** Extract 3-D data starting with 2-D clustered Z-Buffer MIP data 
  * @author Karl Diedrich <ktdiedrich@gmail.com> 
@@ -72,6 +70,9 @@ public class Extractor3D
     private int _scalpDist;
     private String _segDir;
     private String _segBaseName;
+    private boolean _concurrentGrow;
+    private int _holeFillAlgorithm;
+    private int _medianFilterAlgorithm;
     public Extractor3D()
     {
         _clusterSizeThreshold = MIN_3D_CLUSTER_SIZE;
@@ -80,6 +81,8 @@ public class Extractor3D
         _medianFilterSize = 0;
         _regionGrow3D = new RegionGrow3D();
         _holeFill = new HoleFill();
+        _holeFillAlgorithm = HoleFill.HOLE_FILL_PASSES;
+        _medianFilterAlgorithm = MedianFilter.HISTOGRAM_2D;
     }
     public void message(String m)
     {
@@ -95,6 +98,7 @@ public class Extractor3D
         medianFilter.setShowSteps(_showSteps);
         medianFilter.setMedianFilterSize(_medianFilterSize);
         medianFilter.setStdDevFactor(_medFilterStdDevAbove);
+        medianFilter.setAlgorithm(_medianFilterAlgorithm);
         long start = System.currentTimeMillis();
         medianFilter.medianFilter(image);
         long duration = System.currentTimeMillis() - start;
@@ -201,13 +205,10 @@ public class Extractor3D
             reconVoxels[i] = (short[])reconSliceProc.getPixels();
         }
 
-        boolean [][][] clustered = new boolean[zSize][height][width];
+        VoxelMask clustered = new VoxelMask(width, height, zSize);
         short currentClusterNum = 0;
         Cluster currentCluster = new Cluster(currentClusterNum);
-        SortedMap<Short, Integer> histogram = new TreeMap<Short, Integer>();
-        long seedSum = 0;
-        List<Short> seedValues = new LinkedList<Short>();
-        int allHistCount = 0;
+        Histogram histogram = new Histogram();
         for (int r=0; r < height; r++)
         {
             for (int c=0; c < width; c++)
@@ -221,38 +222,17 @@ public class Extractor3D
                     {
                     	// 3-D location of seed voxel
                         short mipVal = inputVoxels[mipZ-1][r*width+c];
-                        seedValues.add(mipVal);
-                        if (histogram.containsKey(mipVal))
-                        {
-                            Integer countVal = histogram.get(mipVal);
-                            countVal++;
-                            histogram.put(mipVal, countVal);
-                        }
-                        else
-                        {
-                            histogram.put(mipVal, 1);
-                        }
-                        allHistCount++;
-                        seedSum += (long)mipVal;
+                        histogram.add(mipVal);
                         seedPixels[r*width + c] = mipVal;
                     }
                 }
             }
         }
         
-        Set<Short> histVals = histogram.keySet();
-        int cumHistCount = 0;
-        
-        for (Short hv: histVals)
+        int seedThreshold = histogram.valueAboveFraction(_seedHistogramThreshold);
+        if (seedThreshold != Histogram.NONE)
         {
-            Integer histCount = histogram.get(hv);
-            cumHistCount += histCount;
-            double cumFract = (double)cumHistCount / (double)allHistCount;
-            if (cumFract > _seedHistogramThreshold)
-            {
-                _regionGrow3D.setLowerThreshold(hv);
-                break;
-            }
+            _regionGrow3D.setLowerThreshold((short)seedThreshold);
         }
         
         if (_showSteps)
@@ -260,33 +240,40 @@ public class Extractor3D
             IJ.log("3-D region growing threshold: "+_regionGrow3D.getLowerThreshold());
         }
         start =  System.currentTimeMillis();
-        
-        for (int r=0; r < height; r++)
+        if (_concurrentGrow)
         {
-            for (int c=0; c < width; c++)
+        	growSeedsConcurrent(inputVoxels, reconVoxels, segStack, zBufferSqr, clusteredSqr);
+        }
+        else
+        {
+            for (int r=0; r < height; r++)
             {
-                short clusterSize = clusteredSqr[r][c];
-            
-                if (clusterSize > 0)
+                for (int c=0; c < width; c++)
                 {
-                    short mipZ = zBufferSqr[r][c];
-                    if (mipZ > 0)
+                    short clusterSize = clusteredSqr[r][c];
+            
+                    if (clusterSize > 0)
                     {
-                        short mipVal = inputVoxels[mipZ-1][r*width+c];
-                        
-                        if (clustered[mipZ-1][r][c] == false)
+                        short mipZ = zBufferSqr[r][c];
+                        if (mipZ > 0)
                         {
-                            currentClusterNum++;
-                            currentCluster = new Cluster(currentClusterNum);
-                            _clusters.put(currentClusterNum, currentCluster);
-                        }
-                        ImageProcessor reconSliceProc = segStack.getProcessor(mipZ);
-                        reconSliceProc.putPixel(c, r, mipVal );
-                        currentCluster.addPosition(new Position(c, r, mipZ));
+                            short mipVal = inputVoxels[mipZ-1][r*width+c];
                         
-                        clustered[mipZ-1][r][c] = true;
+                            if (clustered.get(mipZ-1, r*width+c) == false)
+                            {
+                                currentClusterNum++;
+                                currentCluster = new Cluster(currentClusterNum);
+                                _clusters.put(currentClusterNum, currentCluster);
+                            }
+                            ImageProcessor reconSliceProc = segStack.getProcessor(mipZ);
+                            reconSliceProc.putPixel(c, r, mipVal );
+                            currentCluster.addOneSize();
                         
-                        _regionGrow3D.growRegion(inputVoxels, reconVoxels, c, r, mipZ, mipVal, clustered, currentCluster);
+                            clustered.set(mipZ-1, r*width+c);
+                        
+                            currentCluster.addSize(_regionGrow3D.growRegion(inputVoxels, reconVoxels, c, r, mipZ, mipVal, 
+                            		clustered, null));
+                        }
                     }
                 }
             }
@@ -301,12 +288,23 @@ public class Extractor3D
         BubbleFill bubbleFill = new BubbleFill();
         bubbleFill.fillBubbles(inputStack, segStack, _bubbleFillAlgorithm);
         
-        for (int i=0; i< _fillHolesTimes; i++)
+        if (_holeFillAlgorithm == HoleFill.HOLE_FILL_PASSES)
+        {
+        	for (int i=0; i< _fillHolesTimes; i++)
+        	{
+        		start = System.currentTimeMillis();
+        		_holeFill.fillHoles(inputStack, segStack);
+        		duration = System.currentTimeMillis() - start;
+        		IJ.log("Fill holes: "+duration+" ms");
+        	}
+        }
+        else
         {
         	start = System.currentTimeMillis();
-            _holeFill.fillHoles(inputStack, segStack);
-            duration = System.currentTimeMillis() - start;
-            IJ.log("Fill holes: "+duration+" ms");
+        	_holeFill.setInPlace(_holeFillAlgorithm == HoleFill.HOLE_FILL_FRONTIER);
+        	int filled = _holeFill.fillHolesFrontier(inputStack, segStack, _fillHolesTimes);
+        	duration = System.currentTimeMillis() - start;
+        	IJ.log("Fill holes: "+filled+" voxels in "+_holeFill.getPasses()+" passes "+duration+" ms");
         }
         bubbleFill.fillBubbles(inputStack, segStack, _bubbleFillAlgorithm);
         
@@ -327,19 +325,41 @@ public class Extractor3D
         return segIm;
     }
     private HoleFill _holeFill;
-    /** Removes voxels from clusters below the size threshold in the reconstructing image stack */
-    protected void thresholdCluster(Cluster currentCluster, ImageStack reconStack)
+    /** Grow all the seeds of the Z buffer MIP clusters at once with RegionGrow3D.growSeeds(). */
+    private void growSeedsConcurrent(short[][] inputVoxels, short[][] reconVoxels, ImageStack segStack, 
+    		short[][] zBufferSqr, short[][] clusteredSqr)
     {
-        if (currentCluster.getSize() < _clusterSizeThreshold)
-        {
-            for (Position pos: currentCluster.getPositions())
-            {
-                ImageProcessor proc = reconStack.getProcessor(pos.getZ());
-                proc.putPixel(pos.getColumn(), pos.getRow(), 0);
-            }
-        }
+    	int height = clusteredSqr.length;
+    	int width = clusteredSqr[0].length;
+    	int wh = width*height;
+    	IntQueue seeds = new IntQueue();
+    	for (int r=0; r < height; r++)
+    	{
+    		for (int c=0; c < width; c++)
+    		{
+    			short mipZ = zBufferSqr[r][c];
+    			if (clusteredSqr[r][c] > 0 && mipZ > 0)
+    			{
+    				short mipVal = inputVoxels[mipZ-1][r*width+c];
+    				segStack.getProcessor(mipZ).putPixel(c, r, mipVal);
+    				seeds.add((mipZ-1)*wh+r*width+c);
+    			}
+    		}
+    	}
+    	int[] seedVoxels = new int[seeds.size()];
+    	for (int i=0; i < seedVoxels.length; i++)
+    	{
+    		seedVoxels[i] = seeds.get(i);
+    	}
+    	int[] sizes = _regionGrow3D.growSeeds(inputVoxels, reconVoxels, seedVoxels, width, height, 
+    			ParallelLines.availableThreads());
+    	short clusterNum = 0;
+    	for (int size: sizes)
+    	{
+    		clusterNum++;
+    		_clusters.put(clusterNum, new Cluster(clusterNum, size));
+    	}
     }
-    
     public short getBackground()
     {
         return _regionGrow3D.getLowerThreshold();
@@ -383,6 +403,7 @@ public class Extractor3D
     {
         return _fillHolesTimes;
     }
+    /** Hole fill passes, the most passes for the frontier hole fill algorithms. */
     public void setFillHolesTimes(int fillHolesTimes)
     {
         _fillHolesTimes = fillHolesTimes;
@@ -472,4 +493,25 @@ public class Extractor3D
 		return _segBaseName;
 	}
 	
+	public boolean isConcurrentGrow() {
+		return _concurrentGrow;
+	}
+	/** Grow the 3-D region from all seeds at once on threads. */
+	public void setConcurrentGrow(boolean concurrentGrow) {
+		_concurrentGrow = concurrentGrow;
+	}
+	public int getHoleFillAlgorithm() {
+		return _holeFillAlgorithm;
+	}
+	/** HoleFill.HOLE_FILL_PASSES, HOLE_FILL_FRONTIER or HOLE_FILL_FRONTIER_PARALLEL */
+	public void setHoleFillAlgorithm(int holeFillAlgorithm) {
+		_holeFillAlgorithm = holeFillAlgorithm;
+	}
+	public int getMedianFilterAlgorithm() {
+		return _medianFilterAlgorithm;
+	}
+	/** MedianFilter.SORTED_WINDOW, HISTOGRAM_2D or HISTOGRAM_3D */
+	public void setMedianFilterAlgorithm(int medianFilterAlgorithm) {
+		_medianFilterAlgorithm = medianFilterAlgorithm;
+	}
 }
@@ -0,0 +1,402 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import ktdiedrich.util.ParallelLines;
+
+/** Fields of a binary GE Signa header read in Java instead of the rdgehdr program. Genesis image files (5.x and LX
+ * E and I files starting with IMGF) give the exam, series and image headers, P files give the slices in a pass of
+ * the raw data header. Headers are big endian, LX headers are the 5.x headers with 4 byte aligned fields.
+ * The headers read from a directory are cached by file name, length and modification time.
+ * The Genesis headers have no birth date, so ImageData3D still runs rdgehdr once for every E, I and P file until 
+ * one gives a birth date, for every file when none does, and only where rdgehdr exists. 
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class GEHeader
+{
+	public static final int IMGF = 0x494d4746;
+	/** Exam header length of LX files, 5.x exam headers are 1024 bytes */
+	public static final int LX_EXAM_LENGTH = 1040;
+	/** Genesis pixel header (PixHdr) pointers img_p_exam, img_p_series and img_p_image to the exam, series and 
+	 * image headers, each followed by the header length. The 33 4 byte fields img_magic to img_l_suite come before, 
+	 * img_version and img_checksum share one of them. */
+	private static final int P_EXAM = 132, P_SERIES = 140, P_IMAGE = 148;
+	/** 5.x offsets in EXAMDATATYPE (ex_no, ex_patsex, ex_datetime), SERIESDATATYPE (se_no) and MRIMAGEDATATYPE 
+	 * (im_slthick, im_imatrix_X, im_imatrix_Y, im_pixsize_X, im_pixsize_Y, im_scanspacing) of the GE imagedb.h, 
+	 * where 5.x puts shorts, ints and floats on 2 byte boundaries. LX puts ints and floats on 4 byte boundaries: 
+	 * ex_numcells and ex_magstrength each move 2 bytes so ex_patsex and ex_datetime are ALIGN later, im_datetime 
+	 * moves 2 bytes so the image fields before im_plane are ALIGN/2 later and im_scanspacing after im_plane moves 
+	 * 2 more to ALIGN later. The series fields up to se_no don't move. */
+	private static final int EX_NO = 8, EX_PATSEX = 126, EX_DATETIME = 208, SE_NO = 10, IM_SLTHICK = 26,
+		IM_MATRIX_X = 30, IM_MATRIX_Y = 32, IM_PIXSIZE_X = 50, IM_PIXSIZE_Y = 54, IM_SCANSPACING = 116, ALIGN = 4;
+	/** P file raw data header revision and slices in a pass */
+	private static final int RDB_REV = 0, RDB_NSLICES = 68;
+	private static final Map<String, Map<String, GEHeader>> _cache = new HashMap<String, Map<String, GEHeader>>();
+
+	public static final int NONE = -1;
+	private String _filename;
+	private long _length, _modified;
+	private boolean _genesis;
+	private int _exam = NONE;
+	private int _series = NONE;
+	private int _rhnslices = NONE;
+	private float _sliceThickness, _scanSpacing, _pixelSizeX, _pixelSizeY;
+	private int _matrixSizeX, _matrixSizeY;
+	private int _sex;
+	private long _examSeconds;
+
+	private GEHeader(File file)
+	{
+		_filename = file.getName();
+		_length = file.length();
+		_modified = file.lastModified();
+	}
+	/** @return the header of a Genesis image or P file or null if the file is neither */
+	public static GEHeader read(File file) throws IOException
+	{
+		GEHeader header = new GEHeader(file);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			if (raf.length() < 4)
+				return null;
+			if (raf.readInt() == IMGF)
+			{
+				if (raf.length() < P_IMAGE+8)
+					return null;
+				ByteBuffer pointers = read(raf, 0, P_IMAGE+8);
+				ByteBuffer exam = read(raf, pointers.getInt(P_EXAM), pointers.getInt(P_EXAM+4));
+				ByteBuffer series = read(raf, pointers.getInt(P_SERIES), pointers.getInt(P_SERIES+4));
+				ByteBuffer image = read(raf, pointers.getInt(P_IMAGE), pointers.getInt(P_IMAGE+4));
+				if (exam == null || series == null || image == null)
+					return null;
+				int align = exam.capacity() >= LX_EXAM_LENGTH ? ALIGN: 0;
+				header._genesis = true;
+				header._exam = exam.getShort(EX_NO) & 0xffff;
+				header._sex = exam.getShort(EX_PATSEX+align);
+				header._examSeconds = exam.getInt(EX_DATETIME+align) & 0xffffffffL;
+				header._series = series.getShort(SE_NO);
+				header._sliceThickness = image.getFloat(IM_SLTHICK+align/2);
+				header._matrixSizeX = image.getShort(IM_MATRIX_X+align/2);
+				header._matrixSizeY = image.getShort(IM_MATRIX_Y+align/2);
+				header._pixelSizeX = image.getFloat(IM_PIXSIZE_X+align/2);
+				header._pixelSizeY = image.getFloat(IM_PIXSIZE_Y+align/2);
+				header._scanSpacing = image.getFloat(IM_SCANSPACING+align);
+				return header;
+			}
+			if (file.getName().startsWith("P") && raf.length() > RDB_NSLICES+2)
+			{
+				ByteBuffer rdb = read(raf, 0, RDB_NSLICES+2);
+				float rev = rdb.getFloat(RDB_REV);
+				int slices = rdb.getShort(RDB_NSLICES);
+				// a raw data header has a small revision number
+				if (rev >= 5 && rev < 100 && slices > 0)
+				{
+					header._rhnslices = slices;
+					return header;
+				}
+			}
+			return null;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	private static ByteBuffer read(RandomAccessFile raf, long offset, int length) throws IOException
+	{
+		if (offset < 0 || length <= 0 || offset+length > raf.length())
+			return null;
+		byte[] bytes = new byte[length];
+		raf.seek(offset);
+		raf.readFully(bytes);
+		return ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+	}
+	/** Read the headers of the file names in the directory on threads. Files already read with the same length and
+	 * modification time come from the cache.
+	 * @return headers by file name of the files that are Genesis image or P files */
+	public static Map<String, GEHeader> readDirectory(String dirName, final List<String> fileNames, int threads)
+	{
+		final File dir = new File(dirName);
+		final Map<String, GEHeader> cached;
+		synchronized (_cache)
+		{
+			String key = dir.getAbsolutePath();
+			Map<String, GEHeader> c = _cache.get(key);
+			if (c == null)
+			{
+				c = new HashMap<String, GEHeader>();
+				_cache.put(key, c);
+			}
+			cached = c;
+		}
+		final GEHeader[] headers = new GEHeader[fileNames.size()];
+		ParallelLines.run(headers.length, threads, new ParallelLines.Range() {
+			public void run(int from, int to)
+			{
+				for (int i=from; i < to; i++)
+				{
+					String name = fileNames.get(i);
+					File file = new File(dir, name);
+					GEHeader header = null;
+					boolean found = false;
+					synchronized (cached)
+					{
+						header = cached.get(name);
+						found = header != null && header._length == file.length() && 
+							header._modified == file.lastModified();
+					}
+					if (!found)
+					{
+						try
+						{
+							header = read(file);
+						}
+						catch (IOException e)
+						{
+							header = null;
+						}
+						if (header != null)
+						{
+							synchronized (cached)
+							{
+								cached.put(name, header);
+							}
+						}
+					}
+					headers[i] = header;
+				}
+			}
+		});
+		Map<String, GEHeader> result = new HashMap<String, GEHeader>();
+		for (int i=0; i < headers.length; i++)
+		{
+			if (headers[i] != null)
+				result.put(fileNames.get(i), headers[i]);
+		}
+		return result;
+	}
+	/** Remove the cached headers of all directories. */
+	public static void clearCache()
+	{
+		synchronized (_cache)
+		{
+			_cache.clear();
+		}
+	}
+	public String getFilename()
+	{
+		return _filename;
+	}
+	public boolean isGenesis()
+	{
+		return _genesis;
+	}
+	public int getExam()
+	{
+		return _exam;
+	}
+	public int getSeries()
+	{
+		return _series;
+	}
+	public int getRhnslices()
+	{
+		return _rhnslices;
+	}
+	public float getSliceThickness()
+	{
+		return _sliceThickness;
+	}
+	public float getScanSpacing()
+	{
+		return _scanSpacing;
+	}
+	public int getMatrixSizeX()
+	{
+		return _matrixSizeX;
+	}
+	public int getMatrixSizeY()
+	{
+		return _matrixSizeY;
+	}
+	public float getPixelSizeX()
+	{
+		return _pixelSizeX;
+	}
+	public float getPixelSizeY()
+	{
+		return _pixelSizeY;
+	}
+	/** @return 1 male, 2 female */
+	public int getSex()
+	{
+		return _sex;
+	}
+	/** @return exam date as yyyyMMdd or null when the header has no exam date */
+	public String getExamDate()
+	{
+		if (_examSeconds <= 0)
+			return null;
+		return new SimpleDateFormat("yyyyMMdd").format(new Date(_examSeconds*1000L));
+	}
+	/** Leading fields of the GE imagedb.h structs up to the fields read, a name and c for char with the count, s 
+	 * for short, i for int or float. */
+	private static final String[] PIXHDR_FIELDS = {"img_magic i", "img_hdr_length i", "img_width i", 
+		"img_height i", "img_depth i", "img_compress i", "img_dwindow i", "img_dlevel i", "img_bgshade i", 
+		"img_ovrflow i", "img_undflow i", "img_top_offset i", "img_bot_offset i", "img_version s", 
+		"img_checksum s", "img_p_id i", "img_l_id i", "img_p_unpack i", "img_l_unpack i", "img_p_compress i", 
+		"img_l_compress i", "img_p_histo i", "img_l_histo i", "img_p_text i", "img_l_text i", "img_p_graphics i", 
+		"img_l_graphics i", "img_p_dbHdr i", "img_l_dbHdr i", "img_levelOffset i", "img_p_user i", "img_l_user i", 
+		"img_p_suite i", "img_l_suite i", "img_p_exam i", "img_l_exam i", "img_p_series i", "img_l_series i", 
+		"img_p_image i", "img_l_image i"};
+	private static final String[] EXAM_FIELDS = {"ex_suid c4", "ex_uniq s", "ex_diskid c1", "ex_no s", 
+		"hospname c33", "detect s", "numcells i", "zerocell i", "cellspace i", "srctodet i", "srctoiso i", 
+		"tubetyp s", "dastyp s", "num_dcnk s", "dcn_len s", "dcn_density s", "dcn_stepsize s", "dcn_shiftcnt s", 
+		"magstrength i", "patid c13", "patname c25", "patage s", "patian s", "patsex s", "patweight i", "trauma s", 
+		"hist c61", "reqnum c13", "ex_datetime i"};
+	private static final String[] SERIES_FIELDS = {"se_suid c4", "se_uniq s", "se_diskid c1", "se_exno s", 
+		"se_no s"};
+	private static final String[] IMAGE_FIELDS = {"im_suid c4", "im_uniq s", "im_diskid c1", "im_exno s", 
+		"im_seno s", "im_no s", "im_datetime i", "im_actual_dt i", "sctime i", "slthick i", "imatrix_X s", 
+		"imatrix_Y s", "dfov i", "dfov_rect i", "dim_X i", "dim_Y i", "pixsize_X i", "pixsize_Y i", "pdid c14", 
+		"contrastIV c17", "contrastOral c17", "contmode s", "serrx s", "imgrx s", "screenformat s", "plane s", 
+		"scanspacing i"};
+	/** @return offsets by name of the fields laid out in order, shorts on 2 byte boundaries and ints on 
+	 * intAlign byte boundaries */
+	private static Map<String, Integer> layout(String[] fields, int intAlign)
+	{
+		Map<String, Integer> offsets = new HashMap<String, Integer>();
+		int offset = 0;
+		for (String field: fields)
+		{
+			String[] nameType = field.split(" ");
+			char type = nameType[1].charAt(0);
+			int size = type == 'c' ? Integer.parseInt(nameType[1].substring(1)): type == 's' ? 2: 4;
+			int align = type == 'c' ? 1: type == 's' ? 2: intAlign;
+			offset = (offset+align-1)/align*align;
+			offsets.put(nameType[0], offset);
+			offset += size;
+		}
+		return offsets;
+	}
+	/** Decode 5.x and LX headers of random bytes with known values written in the fields laid out from the 
+	 * imagedb.h structs, with 2 byte aligned ints for 5.x and 4 byte aligned ints for LX. A field read at another 
+	 * offset gets random bytes. */
+	public static String tests() throws IOException
+	{
+		StringBuffer sb = new StringBuffer();
+		Random random = new Random(5);
+		int failed = 0;
+		Map<String, Integer> pix = layout(PIXHDR_FIELDS, 4);
+		for (int intAlign=2; intAlign <= 4; intAlign += 2)
+		{
+			String version = intAlign == 2 ? "5.x": "LX";
+			Map<String, Integer> ex = layout(EXAM_FIELDS, intAlign);
+			Map<String, Integer> se = layout(SERIES_FIELDS, intAlign);
+			Map<String, Integer> im = layout(IMAGE_FIELDS, intAlign);
+			int examLength = intAlign == 2 ? 1024: LX_EXAM_LENGTH, seriesLength = 1020, imageLength = 1044;
+			int exam = 1024, series = exam+examLength, image = series+seriesLength;
+			byte[] bytes = new byte[image+imageLength];
+			random.nextBytes(bytes);
+			ByteBuffer b = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+			b.putInt(pix.get("img_magic"), IMGF);
+			b.putInt(pix.get("img_p_exam"), exam); b.putInt(pix.get("img_l_exam"), examLength);
+			b.putInt(pix.get("img_p_series"), series); b.putInt(pix.get("img_l_series"), seriesLength);
+			b.putInt(pix.get("img_p_image"), image); b.putInt(pix.get("img_l_image"), imageLength);
+			b.putShort(exam+ex.get("ex_no"), (short)54321);
+			b.putShort(exam+ex.get("patsex"), (short)2);
+			// 2006-03-30 12:00 UTC 
+			b.putInt(exam+ex.get("ex_datetime"), 1143720000);
+			b.putShort(series+se.get("se_no"), (short)7);
+			b.putFloat(image+im.get("slthick"), 1.2F);
+			b.putShort(image+im.get("imatrix_X"), (short)512);
+			b.putShort(image+im.get("imatrix_Y"), (short)384);
+			b.putFloat(image+im.get("pixsize_X"), 0.39F);
+			b.putFloat(image+im.get("pixsize_Y"), 0.41F);
+			b.putFloat(image+im.get("scanspacing"), -0.6F);
+			File file = File.createTempFile("GEHeader", ".MR");
+			file.deleteOnExit();
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try
+			{
+				raf.write(bytes);
+			}
+			finally
+			{
+				raf.close();
+			}
+			GEHeader h = read(file);
+			StringBuffer wrong = new StringBuffer();
+			if (h == null)
+			{
+				wrong.append(" header");
+			}
+			else
+			{
+				if (h.getExam() != 54321) wrong.append(" exam="+h.getExam());
+				if (h.getSex() != 2) wrong.append(" sex="+h.getSex());
+				if (!"20060330".equals(h.getExamDate())) wrong.append(" exam date="+h.getExamDate());
+				if (h.getSeries() != 7) wrong.append(" series="+h.getSeries());
+				if (h.getSliceThickness() != 1.2F) wrong.append(" slice thickness="+h.getSliceThickness());
+				if (h.getMatrixSizeX() != 512 || h.getMatrixSizeY() != 384) 
+					wrong.append(" matrix="+h.getMatrixSizeX()+"x"+h.getMatrixSizeY());
+				if (h.getPixelSizeX() != 0.39F || h.getPixelSizeY() != 0.41F) 
+					wrong.append(" pixel size="+h.getPixelSizeX()+"x"+h.getPixelSizeY());
+				if (h.getScanSpacing() != -0.6F) wrong.append(" scan spacing="+h.getScanSpacing());
+			}
+			if (wrong.length() > 0)
+				failed++;
+			sb.append(version+": "+(wrong.length() == 0 ? "same": "DIFFERENT"+wrong)+"\n");
+		}
+		sb.append(failed==0 ? "headers match the imagedb.h layout": failed+" DIFFERENT");
+		return sb.toString();
+	}
+	/** Decode the GE files given as arguments or run tests(). */
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length > 0)
+		{
+			for (String arg: args)
+			{
+				System.out.println(read(new File(arg)));
+			}
+			return;
+		}
+		System.out.println(tests());
+	}
+	public String toString()
+	{
+		return _filename+": exam="+_exam+" series="+_series+" rhnslices="+_rhnslices+" slice thickness="+
+			_sliceThickness+" scan spacing="+_scanSpacing+" matrix="+_matrixSizeX+"x"+_matrixSizeY+" pixel size="+
+			_pixelSizeX+"x"+_pixelSizeY+" sex="+_sex;
+	}
+}
@@ -47,6 +47,7 @@ public class Graph
     private LinkedList<GraphNode> _nodes;
     private GraphNode _sourceNode;
     private int _carotidScore;
+    private NodeIndex _index;
     public Graph()
     {
         this(new LinkedList<GraphNode>(), null);
@@ -60,6 +61,7 @@ public class Graph
     public void addNode(GraphNode node)
     {
         _nodes.add(node);
+        _index = null;
     }
     public void addNodes(List<GraphNode> nodes)
     {
@@ -67,6 +69,7 @@ public class Graph
     	{
     		_nodes.add(node);
     	}
+    	_index = null;
     }
     public LinkedList<GraphNode> getNodes()
     {
@@ -75,6 +78,7 @@ public class Graph
     public void setNodes(LinkedList<GraphNode> nodes)
     {
         _nodes = nodes;
+        _index = null;
     }
     public GraphNode getSourceNode()
     {
@@ -202,16 +206,33 @@ public class Graph
     /** Return the GraphNode at the position or null if not found. */
     public GraphNode findNode(Position pos)
     {
-    	GraphNode found = null;
-    	for (GraphNode gn: this.getNodes())
+    	return findNode(pos.getColumn(), pos.getRow(), pos.getZ());
+    }
+    /** Return the first GraphNode at the coordinates or null if not found. */
+    public GraphNode findNode(int col, int row, int z)
+    {
+    	int entry = index().first(col, row, z);
+    	return entry == NodeIndex.NONE ? null: _index.node(entry);
+    }
+    /** Return the GraphNode closest to the coordinates within maxRadius voxels or null if there is none. */
+    public GraphNode nearestNode(int col, int row, int z, int maxRadius)
+    {
+    	int entry = index().nearest(col, row, z, maxRadius);
+    	return entry == NodeIndex.NONE ? null: _index.node(entry);
+    }
+    /** Coordinate index of the nodes built on the first lookup after the nodes change. Nodes added to the list from
+     * getNodes() are caught by the node count. */
+    private NodeIndex index()
+    {
+    	if (_index == null || _index.size() != _nodes.size())
     	{
-    		if (gn.col == pos.getColumn() && gn.row == pos.getRow() && gn.z == pos.getZ())
+    		_index = new NodeIndex(_nodes.size());
+    		for (GraphNode gn: _nodes)
     		{
-    			return gn;
+    			_index.add(gn, 0);
     		}
     	}
-    	
-    	return found;
+    	return _index;
     }
     
     // Static algorithm methods
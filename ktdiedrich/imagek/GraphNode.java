@@ -53,6 +53,7 @@ public class GraphNode implements Comparable<GraphNode>
     public CenterOfMass centerOfMass;
     public GraphNode centerlineNode; // the closest centerline node to this node 
     public CenterlineNodeData centerlineNodeData;
+    public int index; // position in the node array of the running algorithm 
     public GraphNode(final Position position)
     {
         row = position.getRow();
@@ -19,36 +19,162 @@
 package ktdiedrich.imagek;
 
 import ij.process.ImageProcessor;
+import ktdiedrich.util.ParallelLines;
 
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.Random;
 
-/** Generate a histogram of image values. 
- * @return Intensity value: count pairs 
+/** Histogram of short values in a dense int array with a bin for each of the 16-bit values. Partial histograms 
+ * of parts of an image can be merged and values are found by their cumulative count or fraction. 
  * @uathor Karl Diedrich <ktdiedrich@gmail.com>
  * */
 public class Histogram
 {
-    public SortedMap<Short, Integer> histogram(ImageProcessor proc)
+    public static final int BINS = 0x10000;
+    /** No value found */
+    public static final int NONE = Integer.MIN_VALUE;
+    private int[] _bins;
+    private long _total;
+    private int _min, _max;
+    
+    public Histogram()
     {
-        SortedMap<Short, Integer> histogram = new TreeMap<Short, Integer>();
-        short[] pixels = (short[])proc.getPixels();
-        int allHistCount = 0;
-        for (int i=0; i<pixels.length; i++)
+        _bins = new int[BINS];
+        _min = Short.MAX_VALUE+1;
+        _max = Short.MIN_VALUE-1;
+    }
+    /** Histogram of all the pixels. */
+    public static Histogram histogram(ImageProcessor proc)
+    {
+        Histogram histogram = new Histogram();
+        histogram.add((short[])proc.getPixels());
+        return histogram;
+    }
+    /** Histogram of all the voxels from partial histograms of slices made on threads and merged. */
+    public static Histogram histogram(final short[][] voxels, int threads)
+    {
+        final Histogram histogram = new Histogram();
+        ParallelLines.run(voxels.length, threads, new ParallelLines.Range() {
+            public void run(int from, int to)
+            {
+                Histogram partial = new Histogram();
+                for (int z=from; z < to; z++)
+                {
+                    partial.add(voxels[z]);
+                }
+                synchronized (histogram)
+                {
+                    histogram.merge(partial);
+                }
+            }
+        });
+        return histogram;
+    }
+    public void add(short value)
+    {
+        _bins[value-Short.MIN_VALUE]++;
+        _total++;
+        if (value < _min)
+            _min = value;
+        if (value > _max)
+            _max = value;
+    }
+    public void add(short[] values)
+    {
+        for (short value: values)
+        {
+            add(value);
+        }
+    }
+    /** Add the counts of another histogram. */
+    public void merge(Histogram other)
+    {
+        for (int v=other._min; v <= other._max; v++)
         {
-            short intensity = pixels[i];
-            if (histogram.containsKey(intensity))
+            _bins[v-Short.MIN_VALUE] += other._bins[v-Short.MIN_VALUE];
+        }
+        _total += other._total;
+        _min = Math.min(_min, other._min);
+        _max = Math.max(_max, other._max);
+    }
+    public int count(short value)
+    {
+        return _bins[value-Short.MIN_VALUE];
+    }
+    public long getTotal()
+    {
+        return _total;
+    }
+    /** @return lowest value in the histogram, above Short.MAX_VALUE when empty */
+    public int getMin()
+    {
+        return _min;
+    }
+    /** @return highest value in the histogram, below Short.MIN_VALUE when empty */
+    public int getMax()
+    {
+        return _max;
+    }
+    /** @return the lowest value with more than count values less than or equal to it or NONE */
+    public int valueAboveCount(long count)
+    {
+        long sum = 0;
+        for (int v=_min; v <= _max; v++)
+        {
+            sum += _bins[v-Short.MIN_VALUE];
+            if (sum > count)
+                return v;
+        }
+        return NONE;
+    }
+    /** @return the lowest value with a cumulative fraction of the total above fraction or NONE */
+    public int valueAboveFraction(double fraction)
+    {
+        long sum = 0;
+        for (int v=_min; v <= _max; v++)
+        {
+            sum += _bins[v-Short.MIN_VALUE];
+            if ((double)sum / (double)_total > fraction)
+                return v;
+        }
+        return NONE;
+    }
+    /** Test the merged histogram of slices on threads is the same as adding all the voxels to one histogram. */
+    public static String tests()
+    {
+        StringBuffer sb = new StringBuffer();
+        Random random = new Random(16);
+        boolean allSame = true;
+        for (int zSize: new int[] {1, 7, 40})
+        {
+            short[][] voxels = new short[zSize][64*48];
+            Histogram serial = new Histogram();
+            for (int z=0; z < zSize; z++)
             {
-                Integer count = histogram.get(intensity);
-                count++;
-                histogram.put(intensity, count);
+                for (int i=0; i < voxels[z].length; i++)
+                {
+                    voxels[z][i] = (short)(random.nextInt(BINS)+Short.MIN_VALUE);
+                }
+                serial.add(voxels[z]);
             }
-            else
+            for (int threads: new int[] {1, 3, 8})
             {
-                histogram.put(intensity, 1);
+                Histogram merged = histogram(voxels, threads);
+                boolean same = merged.getTotal() == serial.getTotal() && merged.getMin() == serial.getMin() && 
+                    merged.getMax() == serial.getMax() && 
+                    merged.valueAboveFraction(0.5) == serial.valueAboveFraction(0.5);
+                for (int v=Short.MIN_VALUE; v <= Short.MAX_VALUE; v++)
+                {
+                    same = same && merged.count((short)v) == serial.count((short)v);
+                }
+                allSame = allSame && same;
+                sb.append("Slices "+zSize+" threads "+threads+": "+(same ? "same": "DIFFERENT")+"\n");
             }
-            allHistCount++;
         }
-        return histogram;
+        sb.append("Merged histogram same as serial: "+allSame+"\n");
+        return sb.toString();
+    }
+    public static void main(String[] args)
+    {
+        System.out.println(tests());
     }
 }
@@ -19,6 +19,8 @@
 package ktdiedrich.imagek;
 
 import ij.*;
+import ktdiedrich.util.IntQueue;
+import ktdiedrich.util.ParallelLines;
 
 /** Fill holes in a 3-D artery reconstruction 
  * Checks line of 3 neighbors in 26 directions. If 21 or more of 26 
@@ -29,13 +31,24 @@ import ij.*;
 public class HoleFill
 {
     // public static final short MIN_FILL_VALUE = 255;
+    /** Fixed number of fillHoles() sweeps over the whole volume */
+    public static final int HOLE_FILL_PASSES = 1;
+    /** fillHolesFrontier() in place, same result as the sweeps stopping when one fills nothing */
+    public static final int HOLE_FILL_FRONTIER = 2;
+    /** fillHolesFrontier() testing each pass on threads against the voxels of the pass before */
+    public static final int HOLE_FILL_FRONTIER_PARALLEL = 3;
     private int _radius;
     private int _directions;
+    private boolean _inPlace;
+    private int _threads;
+    private int _passes;
     
     public HoleFill()
     {
         _radius = 0;
         _directions = 0; 
+        _inPlace = true;
+        _threads = ParallelLines.availableThreads();
     }
     public void fillHoles(ImageStack origStack, ImageStack arteryStack)
        
@@ -76,6 +89,139 @@ public class HoleFill
         }
         
     }
+    /** Fill holes in passes until a pass fills nothing or maxPasses. The first pass tests every hole voxel, later 
+     * passes only test the hole voxels within radius in the 26 directions of a voxel filled since they were last 
+     * tested, the others have the same artery neighbors as before. In place the candidates are tested in z, row, 
+     * column order against the voxels filled so far, the same result as maxPasses calls of fillHoles(). Otherwise 
+     * the candidates of a pass are tested on threads against the voxels of the pass before and filled after the pass.
+     * @return number of voxels filled */
+    public int fillHolesFrontier(ImageStack origStack, ImageStack arteryStack, int maxPasses)
+    {
+        final int zSize = arteryStack.getSize();
+        final int height = arteryStack.getHeight();
+        final int width = arteryStack.getWidth();
+        final int wh = width*height;
+        final short[][] arteryPixels = new short[zSize][];
+        final short[][] origPixels = new short[zSize][];
+        for (int z=0; z<zSize; z++ )
+        {
+            arteryPixels[z] = (short[])arteryStack.getPixels(z+1);
+            origPixels[z] = (short[])origStack.getPixels(z+1);
+        }
+        VoxelMask candidates = new VoxelMask(width, height, zSize);
+        for (int z=0; z<zSize; z++ )
+        {
+            for (int i=0; i<wh; i++)
+            {
+                if (arteryPixels[z][i] == 0 && origPixels[z][i] > 0)
+                    candidates.set(z, i);
+            }
+        }
+        int filled = 0;
+        _passes = 0;
+        if (_inPlace)
+        {
+            boolean changed = true;
+            while (changed && _passes < maxPasses)
+            {
+                changed = false;
+                for (int z=0; z<zSize; z++ )
+                {
+                    for (int i=0; i<wh; i++)
+                    {
+                        if (candidates.get(z, i))
+                        {
+                            candidates.clear(z, i);
+                            if (arteryNeighbors(i%width, i/width, z, origPixels, arteryPixels, width, height, zSize) 
+                                    >= _directions)
+                            {
+                                arteryPixels[z][i] = origPixels[z][i];
+                                markCandidates(i%width, i/width, z, origPixels, arteryPixels, candidates);
+                                filled++;
+                                changed = true;
+                            }
+                        }
+                    }
+                }
+                _passes++;
+            }
+        }
+        else
+        {
+            // fills of each slice, written to the artery voxels after the pass 
+            final IntQueue[] fills = new IntQueue[zSize];
+            for (int z=0; z<zSize; z++ )
+            {
+                fills[z] = new IntQueue();
+            }
+            VoxelMask next = new VoxelMask(width, height, zSize);
+            int passFilled = -1;
+            while (passFilled != 0 && _passes < maxPasses)
+            {
+                final VoxelMask tested = candidates;
+                ParallelLines.run(zSize, _threads, new ParallelLines.Range() {
+                    public void run(int from, int to)
+                    {
+                        for (int z=from; z<to; z++)
+                        {
+                            for (int i=0; i<wh; i++)
+                            {
+                                if (tested.get(z, i) && arteryNeighbors(i%width, i/width, z, origPixels, arteryPixels, 
+                                        width, height, zSize) >= _directions)
+                                    fills[z].add(i);
+                            }
+                        }
+                    }
+                });
+                passFilled = 0;
+                for (int z=0; z<zSize; z++ )
+                {
+                    for (int f=0; f<fills[z].size(); f++)
+                    {
+                        int i = fills[z].get(f);
+                        arteryPixels[z][i] = origPixels[z][i];
+                    }
+                    passFilled += fills[z].size();
+                }
+                next.clear();
+                for (int z=0; z<zSize; z++ )
+                {
+                    for (int f=0; f<fills[z].size(); f++)
+                    {
+                        int i = fills[z].get(f);
+                        markCandidates(i%width, i/width, z, origPixels, arteryPixels, next);
+                    }
+                    fills[z].clear();
+                }
+                candidates = next;
+                next = tested;
+                filled += passFilled;
+                _passes++;
+            }
+        }
+        return filled;
+    }
+    /** Mark the hole voxels within radius of the filled voxel in the 26 directions. */
+    private void markCandidates(int col, int row, int z, short[][] origPixels, short[][] arteryPixels, 
+            VoxelMask candidates)
+    {
+        int width = candidates.getWidth();
+        int height = candidates.getHeight();
+        int zSize = candidates.getZSize();
+        for (int[] step: Position.NEIGHBOR_STEPS)
+        {
+            int c = col, r = row, zz = z;
+            for (int i=1; i<=_radius; i++)
+            {
+                c += step[0]; r += step[1]; zz += step[2];
+                if (c < 0 || c == width || r < 0 || r == height || zz < 0 || zz == zSize)
+                    break;
+                int p = r*width+c;
+                if (arteryPixels[zz][p] == 0 && origPixels[zz][p] > 0)
+                    candidates.set(zz, p);
+            }
+        }
+    }
     public int arteryNeighbors(int col, int row, int z, short[][] origPixels, short[][] arteryPixels, 
             int width, int height, int zSize)
         
@@ -422,4 +568,26 @@ public class HoleFill
     {
         _directions = directions;
     }
+    /** @return passes of the last fillHolesFrontier() */
+    public int getPasses()
+    {
+        return _passes;
+    }
+    public boolean isInPlace()
+    {
+        return _inPlace;
+    }
+    /** Fill the frontier holes in place in z, row, column order instead of testing each pass on threads. */
+    public void setInPlace(boolean inPlace)
+    {
+        _inPlace = inPlace;
+    }
+    public int getThreads()
+    {
+        return _threads;
+    }
+    public void setThreads(int threads)
+    {
+        _threads = threads;
+    }
 }
@@ -26,15 +26,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import ktdiedrich.db.Months;
+import ktdiedrich.util.ParallelLines;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileInfo;
 import ij.io.FileOpener;
 import ij.io.Opener;
@@ -71,6 +75,7 @@ public class ImageData3D
     private String _birthDate;
     private String _rdgehdr;
     private boolean _intelByteOrder;
+    private boolean _mapped;
     private float _patientSize;
     private float _patientWeight;
     private int _ageAtExam;
@@ -123,6 +128,48 @@ public class ImageData3D
         }
         return image;
     }
+    /** Open the image rotated right to face up and flipped in Z with horizontal flip as needed. A raw file with 
+     * exactly the 16 bit voxels of its name is mapped in memory when isMapped(), the rotation and flip are then 
+     * index changes of a MappedRawStack instead of copies. */
+    public ImagePlus getImage(String directory, String name, boolean readHeader, boolean rotateFaceUp, boolean flipZ)
+    	throws IOException, ParseException 
+    {
+    	TextUtil tu = new TextUtil();
+    	int[] xyz = tu.getXYZ(name);
+    	File file = new File(directory, name);
+    	long rawBytes = 2L*xyz[0]*xyz[1]*xyz[2];
+    	if (!_mapped || rawBytes == 0 || file.length() != rawBytes)
+    	{
+    		ImagePlus image = getImage(directory, name, readHeader);
+    		if (rotateFaceUp)
+    		{
+    			ImageStack stack = image.getStack();
+    			ImageStack rStack = new ImageStack(image.getHeight(), image.getWidth());
+    			for (int i=1; i<= stack.getSize(); i++)
+    			{
+    				rStack.addSlice(""+i, stack.getProcessor(i).rotateRight());
+    			}
+    			image.setStack(image.getShortTitle(), rStack);
+    		}
+    		if (flipZ)
+    		{
+    			image = Rotate3D.flipZ(image);
+    		}
+    		return image;
+    	}
+    	MappedRawStack stack = new MappedRawStack(file, 0, xyz[0], xyz[1], xyz[2], _intelByteOrder, 
+    			rotateFaceUp, flipZ);
+    	ImagePlus image = new ImagePlus(name, stack);
+    	if (flipZ)
+    		image.setTitle(image.getShortTitle()+"Flipped");
+    	if (readHeader)
+    	{
+    		readHeader(directory, xyz[0], xyz[1], xyz[2]);
+    	}
+    	if (_display)
+    		image.show();
+    	return image;
+    }
     /** Display the open image immediately if true. */
     public boolean isDisplay()
     {
@@ -432,10 +479,7 @@ public class ImageData3D
 		    	{
 		    		// save reader between directories 
 		    		IJ.log("Reading GE image header");
-		        	for (String fileName: fileNames)
-		        	{
-		        		geReader.readFile(dirName, fileName);
-		        	}
+		        	geReader.readDirectory(dirName, fileNames);
 		        	_xRes = geReader.getXRes();
 		        	_yRes = geReader.getYRes();
 		        	_zRes = geReader.getZRes();
@@ -497,6 +541,13 @@ public class ImageData3D
 	public void setIntelByteOrder(boolean intelByteOrder) {
 		_intelByteOrder = intelByteOrder;
 	}
+	public boolean isMapped() {
+		return _mapped;
+	}
+	/** Map uncompressed raw files in memory as read only stacks that make slices when they are used. */
+	public void setMapped(boolean mapped) {
+		_mapped = mapped;
+	}
 	public float getPatientSize() {
 		return _patientSize;
 	}
@@ -957,17 +1008,72 @@ class GEReader
 			return _data.getExamDate();
 		}
 	}
+	/** Read the GE files of the directory, the binary headers are read on threads and the rest of the files in order.  
+	 * */
+	public void readDirectory(String dirName, String[] fileNames)
+		throws IOException, ParseException
+	{
+		List<String> geNames = new LinkedList<String>();
+		for (String fileName: fileNames)
+		{
+			if (isBinaryHeader(fileName))
+				geNames.add(fileName);
+		}
+		Map<String, GEHeader> headers = GEHeader.readDirectory(dirName, new ArrayList<String>(geNames), 
+				ParallelLines.availableThreads());
+		for (String fileName: fileNames)
+		{
+			readFile(dirName, fileName, headers.get(fileName));
+		}
+	}
+	/** @return true if the name is an E, I or P file with a binary header */
+	private boolean isBinaryHeader(String fileName)
+	{
+		Matcher mat = _fileEI.matcher(fileName);
+		if (!mat.find() || _imageFiles.matcher(fileName).find())
+			return false;
+		char first = fileName.charAt(0);
+		return first == 'e' || first == 'E' || first == 'I'|| first == 'P';
+	}
 	public void readFile(String dirName, String fileName)
 		throws IOException, ParseException
 	{
-		
-		// check for GE Header Reader
-		File reader = new File(_rdgehdr);
-		if (reader.exists() == false)
+		GEHeader header = null;
+		if (isBinaryHeader(fileName))
 		{
-			IJ.log(reader.getAbsolutePath()+" not found");
-			return;
+			if (!dirName.endsWith(File.separator)) dirName = dirName+File.separator;
+			header = GEHeader.read(new File(dirName+fileName));
 		}
+		readFile(dirName, fileName, header);
+	}
+	/** Set the fields of the binary header in data like the rdgehdr output lines. */
+	private void fill(GEHeader header, GEData data)
+	{
+		if (header.getRhnslices() != GEHeader.NONE)
+			data.setRhnslices(header.getRhnslices());
+		if (!header.isGenesis())
+			return;
+		// ignore 0 slice thickness
+		if (header.getSliceThickness() > 0.0)
+			data.setSliceThickness(header.getSliceThickness());
+		data.setScanSpacing(header.getScanSpacing());
+		data.setMatrixSizeX(header.getMatrixSizeX());
+		data.setMatrixSizeY(header.getMatrixSizeY());
+		data.setPixelSizeX(header.getPixelSizeX());
+		data.setPixelSizeY(header.getPixelSizeY());
+		if (header.getSex() == 1)
+			data.setSex("male");
+		else if (header.getSex() == 2)
+			data.setSex("female");
+		if (header.getExamDate() != null)
+			data.setExamDate(header.getExamDate());
+		data.setHeaderSeries(header.getSeries());
+	}
+	/** Read a GE file, E, I and P files from the header when it is not null, otherwise with rdgehdr if it exists. 
+	 * The binary headers have no birth date, so rdgehdr is still run once for each file until a file gives it. */
+	private void readFile(String dirName, String fileName, GEHeader header)
+		throws IOException, ParseException
+	{
 		Matcher mat = null;
 		mat = _finalFile.matcher(fileName);
 		while(mat.find())
@@ -1015,6 +1121,21 @@ class GEReader
 	            		data = _data;
 	            	}
 					data.setFilename(fileName);
+					if (header != null)
+					{
+						IJ.log("HEADER: "+header);
+						fill(header, data);
+						// the binary headers don't have the birth date, rdgehdr prints it 
+						if (getBirthDate() != null || !new File(_rdgehdr).exists())
+							continue;
+					}
+					// check for GE Header Reader
+					File reader = new File(_rdgehdr);
+					if (reader.exists() == false)
+					{
+						IJ.log(reader.getAbsolutePath()+" not found");
+						continue;
+					}
 					String exec = _rdgehdr+" "+geFullPath;
 					IJ.log("EXECUTE: "+exec);
 					Process proc = run.exec(exec);
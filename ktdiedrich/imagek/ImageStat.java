@@ -20,9 +20,6 @@ package ktdiedrich.imagek;
 
 import ij.process.ImageProcessor;
 
-import java.util.SortedMap;
-import java.util.TreeMap;
-
 /** Statistics on Images  
  * Generate a histogram of image values. 
  * @return Intensity value: count pairs 
@@ -33,7 +30,7 @@ public class ImageStat
     private int _nonZeroPixelCount;
     private double _nonZeroPixelAveInt;
     private ImageProcessor _proc;
-    private SortedMap<Short, Integer> _histogram;
+    private Histogram _histogram;
     private double _stdDev;
     public ImageStat(ImageProcessor proc)
     {
@@ -42,31 +39,25 @@ public class ImageStat
     }
     protected void makeHistogram()
     {
-        _histogram = new TreeMap<Short, Integer>();
+        _histogram = new Histogram();
         short[] pixels = (short[])_proc.getPixels();
-        _nonZeroPixelCount = 0;
-        int sumPixelInt = 0;
-        int sum2 = 0;
         for (int i=0; i<pixels.length; i++)
         {
             short intensity = pixels[i];
             if (intensity > 0)
             {
-                if (_histogram.containsKey(intensity))
-                {
-                    Integer count = _histogram.get(intensity);
-                    count++;
-                    _histogram.put(intensity, count);
-                }
-                else
-                {
-                    _histogram.put(intensity, 1);
-                }
-                sumPixelInt += (int) intensity;
-                sum2 += ( (int) (intensity*intensity) );
-                _nonZeroPixelCount++;
+                _histogram.add(intensity);
             }
         }
+        _nonZeroPixelCount = (int)_histogram.getTotal();
+        int sumPixelInt = 0;
+        int sum2 = 0;
+        for (int v=Math.max(_histogram.getMin(), 1); v <= _histogram.getMax(); v++)
+        {
+            int count = _histogram.count((short)v);
+            sumPixelInt += v*count;
+            sum2 += v*v*count;
+        }
         _nonZeroPixelAveInt = (double)sumPixelInt / (double)_nonZeroPixelCount;
         
         double var = (1.0/(_nonZeroPixelCount-1.0)) * 
@@ -90,7 +81,8 @@ public class ImageStat
     {
         return _nonZeroPixelAveInt;
     }
-    public SortedMap<Short, Integer> getHistogram()
+    /** @return histogram of the pixels above 0 */
+    public Histogram getHistogram()
     {
         return _histogram;
     }
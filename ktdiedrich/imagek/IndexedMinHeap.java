@@ -0,0 +1,179 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.util.Arrays;
+
+/** Binary min heap of int node ids with float keys with O(log n) insert, poll and decrease key.
+ * The position of every id in the heap is kept so a changed key is moved without the linear
+ * search of PriorityQueue.remove(). The heap moves ids the same way as java.util.PriorityQueue, so
+ * the same adds, polls and decrease keys in place of remove() and add() poll equal keys in the same order.
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class IndexedMinHeap
+{
+	private static final int NOT_IN_HEAP = -1;
+	private float[] _keys;
+	private int[] _heap;
+	private int[] _pos;
+	private int _size;
+	/** @param capacity ids are 0 to capacity-1 until ensureCapacity() is called. */
+	public IndexedMinHeap(int capacity)
+	{
+		_keys = new float[capacity];
+		_heap = new int[capacity];
+		_pos = new int[capacity];
+		Arrays.fill(_pos, NOT_IN_HEAP);
+		_size = 0;
+	}
+	/** Allow ids up to capacity-1. */
+	public void ensureCapacity(int capacity)
+	{
+		int old = _pos.length;
+		if (capacity > old)
+		{
+			int len = Math.max(capacity, old+(old >> 1));
+			_keys = Arrays.copyOf(_keys, len);
+			_heap = Arrays.copyOf(_heap, len);
+			_pos = Arrays.copyOf(_pos, len);
+			Arrays.fill(_pos, old, len, NOT_IN_HEAP);
+		}
+	}
+	public boolean isEmpty()
+	{
+		return _size == 0;
+	}
+	public int size()
+	{
+		return _size;
+	}
+	public boolean contains(int id)
+	{
+		return _pos[id] != NOT_IN_HEAP;
+	}
+	public float key(int id)
+	{
+		return _keys[id];
+	}
+	public void add(int id, float key)
+	{
+		_keys[id] = key;
+		_heap[_size] = id;
+		_pos[id] = _size;
+		_size++;
+		up(_size-1);
+	}
+	/** Change the key of id like PriorityQueue.remove() and add(), the last id of the heap takes the place of
+	 * id and id is added again at the end. Adds id if it isn't in the heap. */
+	public void decreaseKey(int id, float key)
+	{
+		int p = _pos[id];
+		if (p != NOT_IN_HEAP)
+		{
+			_size--;
+			_pos[id] = NOT_IN_HEAP;
+			if (p != _size)
+			{
+				int moved = _heap[_size];
+				_heap[p] = moved;
+				_pos[moved] = p;
+				down(p);
+				if (_heap[p] == moved)
+				{
+					up(p);
+				}
+			}
+		}
+		add(id, key);
+	}
+	/** @return the id with the lowest key removed from the heap. */
+	public int poll()
+	{
+		int top = _heap[0];
+		_size--;
+		_pos[top] = NOT_IN_HEAP;
+		if (_size > 0)
+		{
+			int last = _heap[_size];
+			_heap[0] = last;
+			_pos[last] = 0;
+			down(0);
+		}
+		return top;
+	}
+	private boolean less(int a, int b)
+	{
+		return _keys[a] < _keys[b];
+	}
+	private void up(int i)
+	{
+		int id = _heap[i];
+		while (i > 0)
+		{
+			int parent = (i-1) >>> 1;
+			int pid = _heap[parent];
+			if (!less(id, pid))
+				break;
+			_heap[i] = pid;
+			_pos[pid] = i;
+			i = parent;
+		}
+		_heap[i] = id;
+		_pos[id] = i;
+	}
+	private void down(int i)
+	{
+		int id = _heap[i];
+		int half = _size >>> 1;
+		while (i < half)
+		{
+			int child = 2*i+1;
+			int cid = _heap[child];
+			int right = child+1;
+			if (right < _size && less(_heap[right], cid))
+			{
+				child = right;
+				cid = _heap[child];
+			}
+			if (!less(cid, id))
+				break;
+			_heap[i] = cid;
+			_pos[cid] = i;
+			i = child;
+		}
+		_heap[i] = id;
+		_pos[id] = i;
+	}
+	public static void main(String[] args)
+	{
+		float[] keys = {5.0F, 3.0F, 8.0F, 1.0F, 9.0F, 3.0F};
+		IndexedMinHeap heap = new IndexedMinHeap(4);
+		heap.ensureCapacity(keys.length);
+		for (int i=0; i < keys.length; i++)
+		{
+			heap.add(i, keys[i]);
+		}
+		heap.decreaseKey(4, 0.5F);
+		while (!heap.isEmpty())
+		{
+			int id = heap.poll();
+			System.out.println(id+": "+heap.key(id));
+		}
+	}
+}
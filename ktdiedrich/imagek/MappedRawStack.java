@@ -0,0 +1,175 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/** Read only stack of a raw 16 bit volume file mapped in memory. Voxels are read from the mapped file, the face up
+ * rotation and Z flip of Open_Raw_Image are index changes and the short[] of a slice is only made when it is asked
+ * for. The file is mapped in chunks of whole slices below 2 GB.
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class MappedRawStack extends VirtualStack
+{
+	public static final long MAX_CHUNK = Integer.MAX_VALUE;
+	private ShortBuffer[] _chunks;
+	private int _slicesPerChunk;
+	private int _fileWidth, _fileHeight, _zSize;
+	private int _width, _height;
+	private boolean _rotateRight, _flipZ;
+
+	/** Map the file of width by height by zSize unsigned 16 bit voxels starting at offset.
+	 * @param rotateRight rotate each slice right like ImageProcessor.rotateRight(), the stack is height wide.
+	 * @param flipZ reverse the slices and flip each horizontally after the rotation like Rotate3D.flipZ(). */
+	public MappedRawStack(File file, long offset, int width, int height, int zSize, boolean intelByteOrder,
+			boolean rotateRight, boolean flipZ) throws IOException
+	{
+		super(rotateRight ? height: width, rotateRight ? width: height);
+		_fileWidth = width;
+		_fileHeight = height;
+		_zSize = zSize;
+		_width = rotateRight ? height: width;
+		_height = rotateRight ? width: height;
+		_rotateRight = rotateRight;
+		_flipZ = flipZ;
+		long sliceBytes = 2L*width*height;
+		if (file.length() < offset+sliceBytes*zSize)
+			throw new IOException(file+" is smaller than "+width+"x"+height+"x"+zSize+" 16 bit voxels");
+		_slicesPerChunk = (int)Math.max(1, MAX_CHUNK/sliceBytes);
+		_chunks = new ShortBuffer[(zSize+_slicesPerChunk-1)/_slicesPerChunk];
+		ByteOrder order = intelByteOrder ? ByteOrder.LITTLE_ENDIAN: ByteOrder.BIG_ENDIAN;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			for (int c=0; c < _chunks.length; c++)
+			{
+				int slices = Math.min(_slicesPerChunk, zSize-c*_slicesPerChunk);
+				// the mapping stays valid after the channel closes
+				_chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, offset+c*_slicesPerChunk*sliceBytes,
+						slices*sliceBytes).order(order).asShortBuffer();
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	/** @return the voxel at column x, row y of slice z, 0 based, in the rotated and flipped stack */
+	public short get(int x, int y, int z)
+	{
+		if (_flipZ)
+		{
+			x = _width-1-x;
+			z = _zSize-1-z;
+		}
+		int col = x, row = y;
+		if (_rotateRight)
+		{
+			col = y;
+			row = _fileHeight-1-x;
+		}
+		return _chunks[z / _slicesPerChunk].get((z % _slicesPerChunk)*_fileWidth*_fileHeight + row*_fileWidth + col);
+	}
+	/** Copy slice z, 0 based, of the rotated and flipped stack into pixels. */
+	public void getSlice(int z, short[] pixels)
+	{
+		int fileZ = _flipZ ? _zSize-1-z: z;
+		ShortBuffer slice = _chunks[fileZ / _slicesPerChunk].duplicate();
+		int start = (fileZ % _slicesPerChunk)*_fileWidth*_fileHeight;
+		if (!_rotateRight)
+		{
+			slice.position(start);
+			slice.get(pixels, 0, _width*_height);
+			if (_flipZ)
+			{
+				for (int row=0; row < _height; row++)
+				{
+					for (int a=row*_width, b=a+_width-1; a < b; a++, b--)
+					{
+						short v = pixels[a];
+						pixels[a] = pixels[b];
+						pixels[b] = v;
+					}
+				}
+			}
+			return;
+		}
+		// read the file rows in order, each file row is a column of the rotated slice
+		for (int row=0; row < _fileHeight; row++)
+		{
+			int x = _fileHeight-1-row;
+			if (_flipZ)
+				x = _width-1-x;
+			int pos = start+row*_fileWidth;
+			for (int col=0; col < _fileWidth; col++)
+			{
+				pixels[col*_width+x] = slice.get(pos+col);
+			}
+		}
+	}
+	/** @return a new copy of slice n, 1 based */
+	public Object getPixels(int n)
+	{
+		short[] pixels = new short[_width*_height];
+		getSlice(n-1, pixels);
+		return pixels;
+	}
+	public ImageProcessor getProcessor(int n)
+	{
+		return new ShortProcessor(_width, _height, (short[])getPixels(n), null);
+	}
+	/** The mapped file is read only, changes to the pixels of a slice are not kept. */
+	public void setPixels(Object pixels, int n)
+	{
+	}
+	public int getSize()
+	{
+		return _zSize;
+	}
+	public int size()
+	{
+		return _zSize;
+	}
+	public String getSliceLabel(int n)
+	{
+		return ""+n;
+	}
+	public int getBitDepth()
+	{
+		return 16;
+	}
+	public boolean isRotateRight()
+	{
+		return _rotateRight;
+	}
+	public boolean isFlipZ()
+	{
+		return _flipZ;
+	}
+}
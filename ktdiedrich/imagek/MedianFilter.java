@@ -24,9 +24,10 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
+import ktdiedrich.util.ParallelLines;
 //import ij.text.TextWindow;
 
-/** Median Filter
+/** Median Filter of the voxels above 0 in a window
  * @author Karl T. Diedrich <ktdiedrich@gmail.com>
  * */
 public class MedianFilter
@@ -35,12 +36,24 @@ public class MedianFilter
     private int _medianFilterSize; 
     public static final int MEDIAN_FILTER_SIZE = 5;
     public static final double STD_DEV_FACTOR = 1.0;
+    /** Sort the values of each 2-D window. The window isn't moved past pixels of 0, the next pixel above 0 in the 
+     * row uses the values of the window where it was last moved. */
+    public static final int SORTED_WINDOW = 1;
+    /** Sliding histogram median of 2-D windows in each slice, the default. Differs from SORTED_WINDOW after pixels
+     * of 0 in a row where the sorted window is out of date. */
+    public static final int HISTOGRAM_2D = 2;
+    /** Sliding histogram median of 3-D cubic windows */
+    public static final int HISTOGRAM_3D = 3;
     private double _stdDevFactor;
+    private int _algorithm;
+    private int _threads;
     //private TextWindow _twin;
     public MedianFilter()
     {
         _medianFilterSize = MEDIAN_FILTER_SIZE;
         _stdDevFactor = STD_DEV_FACTOR;
+        _algorithm = HISTOGRAM_2D;
+        _threads = ParallelLines.availableThreads();
         //_twin = new TextWindow("Median_Filter", "", 400, 400);
     }
     public void medianFilter(ImagePlus image)
@@ -66,6 +79,7 @@ public class MedianFilter
         }
         short imageAveInt = (short) (sliceAveIntSum/zSize);
         
+        ImageProcessor[] inputProcDups = new ImageProcessor[zSize];
         for (int i=1; i<=zSize; i++)
         {
             ImageProcessor inputProc =  inputStack.getProcessor(i);
@@ -84,9 +98,35 @@ public class MedianFilter
                     pix[j] = avePixelInt;
                 }
             }
-            ImageProcessor medianFiltered = medianFilter(inputProcDup, _medianFilterSize);
+            inputProcDups[i-1] = inputProcDup;
+        }
+        ImageProcessor[] medianFiltereds = new ImageProcessor[zSize];
+        if (_algorithm == SORTED_WINDOW)
+        {
+            for (int i=0; i<zSize; i++)
+            {
+                medianFiltereds[i] = medianFilter(inputProcDups[i], _medianFilterSize);
+            }
+        }
+        else
+        {
+            short[][] voxels = new short[zSize][];
+            for (int i=0; i<zSize; i++)
+            {
+                voxels[i] = (short[])inputProcDups[i].getPixels();
+            }
+            short[][] medians = histogramMedianFilter(voxels, width, height, _medianFilterSize, 
+                    _algorithm == HISTOGRAM_3D);
+            for (int i=0; i<zSize; i++)
+            {
+                medianFiltereds[i] = new ShortProcessor(width, height, medians[i], null);
+            }
+        }
+        for (int i=1; i<=zSize; i++)
+        {
+            ImageProcessor medianFiltered = medianFiltereds[i-1];
             medianFilteredStack.addSlice("MedianFiltered"+(i), medianFiltered);
-            ImageProcess.subtract(inputProc, medianFiltered, imageAveInt);   
+            ImageProcess.subtract(inputStack.getProcessor(i), medianFiltered, imageAveInt);   
         }
         
         if (_showSteps)
@@ -162,6 +202,210 @@ public class MedianFilter
         }
         return medianProc;
     }
+    /** Median filter a Short image with a sliding histogram 
+     * @param halfSize total filter size is 2 * halfSize + 1*/
+    public ImageProcessor histogramMedianFilter(ImageProcessor proc, int halfSize)
+    {
+        short[][] voxels = {(short[])proc.getPixels()};
+        short[][] medians = histogramMedianFilter(voxels, proc.getWidth(), proc.getHeight(), halfSize, false);
+        return new ShortProcessor(proc.getWidth(), proc.getHeight(), medians[0], null);
+    }
+    /** Median of the voxels above 0 in the window of each voxel above 0 at least halfSize from the edges with 
+     * the Perreault and Hebert sliding histogram. Each column keeps a histogram of its window rows, the window 
+     * histogram adds the column coming in and subtracts the column going out. The histograms have a coarse level 
+     * of buckets and a fine level of values, the fine level of the window is only brought up to date in the bucket of 
+     * the median. The slices are filtered on threads. An even number of values has the mean of the 2 middle values. 
+     * @param halfSize total filter size is 2 * halfSize + 1
+     * @param cubic 3-D cubic windows, the slices less than halfSize from the ends are not filtered, otherwise 
+     * 2-D windows in each slice 
+     * @return the filtered voxels, the other voxels copied */
+    public short[][] histogramMedianFilter(final short[][] voxels, final int width, final int height, 
+            final int halfSize, boolean cubic)
+    {
+        final int zSize = voxels.length;
+        final short[][] medians = new short[zSize][];
+        int max = 0;
+        for (int z=0; z<zSize; z++)
+        {
+            medians[z] = voxels[z].clone();
+            for (short v: voxels[z])
+            {
+                if (v > max)
+                    max = v;
+            }
+        }
+        final int bins = max+1;
+        final int zHalf = cubic ? halfSize: 0;
+        final ThreadLocal<Histograms> histograms = new ThreadLocal<Histograms>() {
+            protected Histograms initialValue()
+            {
+                return new Histograms(width, bins);
+            }
+        };
+        final int zFrom = zHalf, zTo = zSize-zHalf;
+        ParallelLines.run(Math.max(zTo-zFrom, 0), _threads, new ParallelLines.Range() {
+            public void run(int from, int to)
+            {
+                for (int z=zFrom+from; z<zFrom+to; z++)
+                {
+                    histograms.get().median(voxels, medians[z], z, width, height, halfSize, zHalf);
+                }
+            }
+        });
+        return medians;
+    }
+    /** Column and window histograms of one thread, reused for each slice. The column histograms are emptied by 
+     * subtracting the voxels added instead of clearing all the bins. */
+    private static class Histograms
+    {
+        private int _width, _shift, _fineSize, _coarseSize;
+        // column counts are at most the window rows times the window slices 
+        private char[] _colFine;
+        private int[] _colCoarse;
+        private int[] _colTotal;
+        private int[] _fine;
+        private int[] _coarse;
+        // column the fine counts of each bucket were brought up to 
+        private int[] _fineCol;
+        
+        Histograms(int width, int bins)
+        {
+            _width = width;
+            int bits = 32-Integer.numberOfLeadingZeros(Math.max(bins-1, 1));
+            _shift = Math.max(2, (bits+1)/2);
+            _coarseSize = ((bins-1) >> _shift)+1;
+            _fineSize = _coarseSize << _shift;
+            _colFine = new char[width*_fineSize];
+            _colCoarse = new int[width*_coarseSize];
+            _colTotal = new int[width];
+            _fine = new int[_fineSize];
+            _coarse = new int[_coarseSize];
+            _fineCol = new int[_coarseSize];
+        }
+        private void column(short[][] voxels, int col, int row, int z, int zHalf, int add)
+        {
+            int fineBase = col*_fineSize, coarseBase = col*_coarseSize;
+            int i = row*_width+col;
+            for (int zz=z-zHalf; zz<=z+zHalf; zz++)
+            {
+                short v = voxels[zz][i];
+                if (v > 0)
+                {
+                    _colFine[fineBase+v] += add;
+                    _colCoarse[coarseBase+(v >> _shift)] += add;
+                    _colTotal[col] += add;
+                }
+            }
+        }
+        /** Median filter slice z into medians. */
+        void median(short[][] voxels, short[] medians, int z, int width, int height, int halfSize, int zHalf)
+        {
+            short[] pixels = voxels[z];
+            int fullSize = 2*halfSize+1;
+            if (width < fullSize || height < fullSize)
+                return;
+            for (int row=0; row<fullSize-1; row++)
+            {
+                for (int col=0; col<width; col++)
+                {
+                    column(voxels, col, row, z, zHalf, 1);
+                }
+            }
+            for (int row=halfSize; row < height-halfSize; row++)
+            {
+                for (int col=0; col<width; col++)
+                {
+                    if (row > halfSize)
+                        column(voxels, col, row-halfSize-1, z, zHalf, -1);
+                    column(voxels, col, row+halfSize, z, zHalf, 1);
+                }
+                Arrays.fill(_coarse, 0);
+                Arrays.fill(_fineCol, -1);
+                int total = 0;
+                for (int col=0; col<fullSize; col++)
+                {
+                    addCoarse(col, 1);
+                    total += _colTotal[col];
+                }
+                for (int col=halfSize; col<width-halfSize; col++)
+                {
+                    if (col > halfSize)
+                    {
+                        addCoarse(col+halfSize, 1);
+                        addCoarse(col-halfSize-1, -1);
+                        total += _colTotal[col+halfSize]-_colTotal[col-halfSize-1];
+                    }
+                    if (pixels[row*width+col] > 0)
+                    {
+                        int cn = total/2;
+                        int val = valueAt(cn, col, halfSize);
+                        if (total%2 == 0)
+                            val = (val+valueAt(cn-1, col, halfSize))/2;
+                        medians[row*width+col] = (short)val;
+                    }
+                }
+            }
+            // take the last window rows out so the column histograms are empty for the next slice 
+            for (int row=height-fullSize; row<height; row++)
+            {
+                for (int col=0; col<width; col++)
+                {
+                    column(voxels, col, row, z, zHalf, -1);
+                }
+            }
+        }
+        private void addCoarse(int col, int add)
+        {
+            int base = col*_coarseSize;
+            for (int b=0; b<_coarseSize; b++)
+            {
+                _coarse[b] += add*_colCoarse[base+b];
+            }
+        }
+        /** @return the value with rank values below it in the window at col */
+        private int valueAt(int rank, int col, int halfSize)
+        {
+            int b = 0, below = 0;
+            while (below+_coarse[b] <= rank)
+            {
+                below += _coarse[b];
+                b++;
+            }
+            int from = b << _shift, to = from+(1 << _shift);
+            int last = _fineCol[b];
+            if (last < 0 || col-last > 2*halfSize+1)
+            {
+                for (int v=from; v<to; v++)
+                {
+                    int count = 0;
+                    for (int c=col-halfSize; c<=col+halfSize; c++)
+                    {
+                        count += _colFine[c*_fineSize+v];
+                    }
+                    _fine[v] = count;
+                }
+            }
+            else
+            {
+                for (int c=last+1; c<=col; c++)
+                {
+                    int in = (c+halfSize)*_fineSize, out = (c-halfSize-1)*_fineSize;
+                    for (int v=from; v<to; v++)
+                    {
+                        _fine[v] += _colFine[in+v]-_colFine[out+v];
+                    }
+                }
+            }
+            _fineCol[b] = col;
+            int v = from;
+            while (below+_fine[v] <= rank)
+            {
+                below += _fine[v];
+                v++;
+            }
+            return v;
+        }
+    }
     public boolean isShowSteps()
     {
         return _showSteps;
@@ -186,4 +430,103 @@ public class MedianFilter
     {
         _stdDevFactor = stdDevFactor;
     }
+    public int getAlgorithm()
+    {
+        return _algorithm;
+    }
+    /** SORTED_WINDOW, HISTOGRAM_2D or HISTOGRAM_3D */
+    public void setAlgorithm(int algorithm)
+    {
+        _algorithm = algorithm;
+    }
+    public int getThreads()
+    {
+        return _threads;
+    }
+    /** Test the histogram median against the median of the voxels above 0 of each window found by sorting. */
+    public static String tests()
+    {
+        StringBuffer sb = new StringBuffer();
+        int width = 37, height = 31, zSize = 9;
+        Random random = new Random(9);
+        boolean allSame = true;
+        MedianFilter mf = new MedianFilter();
+        mf.setThreads(3);
+        for (double zeros: new double[] {0.0, 0.3})
+        {
+            for (int max: new int[] {300, 4095, 32767})
+            {
+                short[][] voxels = new short[zSize][width*height];
+                for (int z=0; z < zSize; z++)
+                {
+                    for (int i=0; i < width*height; i++)
+                    {
+                        if (random.nextDouble() >= zeros)
+                            voxels[z][i] = (short)(1+random.nextInt(max));
+                    }
+                }
+                for (int halfSize=1; halfSize <= 3; halfSize++)
+                {
+                    for (boolean cubic: new boolean[] {false, true})
+                    {
+                        short[][] medians = mf.histogramMedianFilter(voxels, width, height, halfSize, cubic);
+                        int differ = 0;
+                        int zHalf = cubic ? halfSize: 0;
+                        for (int z=0; z < zSize; z++)
+                        {
+                            for (int r=0; r < height; r++)
+                            {
+                                for (int c=0; c < width; c++)
+                                {
+                                    int i = r*width+c;
+                                    short expected = voxels[z][i];
+                                    if (expected > 0 && c >= halfSize && c < width-halfSize && r >= halfSize && 
+                                            r < height-halfSize && z >= zHalf && z < zSize-zHalf)
+                                    {
+                                        expected = sortedMedian(voxels, width, c, r, z, halfSize, zHalf);
+                                    }
+                                    if (medians[z][i] != expected)
+                                        differ++;
+                                }
+                            }
+                        }
+                        allSame = allSame && differ == 0;
+                        sb.append("Zeros "+zeros+" max "+max+" half size "+halfSize+(cubic ? " 3-D": " 2-D")+": "+
+                                (differ == 0 ? "same": differ+" voxels DIFFERENT")+"\n");
+                    }
+                }
+            }
+        }
+        sb.append("Histogram median same as sorted windows: "+allSame+"\n");
+        return sb.toString();
+    }
+    /** @return median of the voxels above 0 in the window, the mean of the 2 middle values of an even number */
+    private static short sortedMedian(short[][] voxels, int width, int c, int r, int z, int halfSize, int zHalf)
+    {
+        List<Short> values = new ArrayList<Short>();
+        for (int zz=z-zHalf; zz <= z+zHalf; zz++)
+        {
+            for (int rr=r-halfSize; rr <= r+halfSize; rr++)
+            {
+                for (int cc=c-halfSize; cc <= c+halfSize; cc++)
+                {
+                    if (voxels[zz][rr*width+cc] > 0)
+                        values.add(voxels[zz][rr*width+cc]);
+                }
+            }
+        }
+        Collections.sort(values);
+        int cn = values.size()/2;
+        if (values.size()%2 == 1)
+            return values.get(cn);
+        return (short)((values.get(cn)+values.get(cn-1))/2);
+    }
+    public static void main(String[] args)
+    {
+        System.out.println(tests());
+    }
+    public void setThreads(int threads)
+    {
+        _threads = threads;
+    }
 }
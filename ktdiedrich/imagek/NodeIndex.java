@@ -0,0 +1,154 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.util.Arrays;
+
+/** Coordinate index of GraphNodes on a VoxelIndex of packed (col, row, z) keys. Entries are numbered in the order
+ * they are added and each entry has a group, the position of its Centerline in a CenterlineGraph. Entries at the
+ * same coordinates are chained in the order they were added so lookups find the same node as a scan of the lists.
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class NodeIndex
+{
+	public static final int NONE = VoxelIndex.NONE;
+	private static final int BITS = 21;
+	private static final long MASK = (1L << BITS)-1;
+	private VoxelIndex _firsts;
+	private int[] _lasts;
+	private GraphNode[] _nodes;
+	private int[] _groups;
+	private int[] _nexts;
+	private int _size;
+
+	public NodeIndex(int expected)
+	{
+		expected = Math.max(expected, 1);
+		_firsts = new VoxelIndex(expected);
+		_lasts = new int[expected];
+		_nodes = new GraphNode[expected];
+		_groups = new int[expected];
+		_nexts = new int[expected];
+	}
+	/** @return key of the coordinates, coordinates are below 2^21 */
+	public static long key(int col, int row, int z)
+	{
+		return ((z & MASK) << (2*BITS)) | ((row & MASK) << BITS) | (col & MASK);
+	}
+	public void add(GraphNode node, int group)
+	{
+		if (_size == _nodes.length)
+		{
+			int capacity = _size*2;
+			_lasts = Arrays.copyOf(_lasts, capacity);
+			_nodes = Arrays.copyOf(_nodes, capacity);
+			_groups = Arrays.copyOf(_groups, capacity);
+			_nexts = Arrays.copyOf(_nexts, capacity);
+		}
+		int entry = _size++;
+		_nodes[entry] = node;
+		_groups[entry] = group;
+		_nexts[entry] = NONE;
+		long key = key(node.col, node.row, node.z);
+		int first = _firsts.get(key);
+		if (first == NONE)
+		{
+			_firsts.put(key, entry);
+			_lasts[entry] = entry;
+		}
+		else
+		{
+			_nexts[_lasts[first]] = entry;
+			_lasts[first] = entry;
+		}
+	}
+	public int size()
+	{
+		return _size;
+	}
+	/** @return the first entry at the coordinates or NONE */
+	public int first(int col, int row, int z)
+	{
+		if (col < 0 || row < 0 || z < 0)
+			return NONE;
+		return _firsts.get(key(col, row, z));
+	}
+	/** @return the next entry at the same coordinates or NONE */
+	public int next(int entry)
+	{
+		return _nexts[entry];
+	}
+	public GraphNode node(int entry)
+	{
+		return _nodes[entry];
+	}
+	public int group(int entry)
+	{
+		return _groups[entry];
+	}
+	/** @return the lowest entry within colRowRadius columns and rows of the point in the same z or NONE */
+	public int firstNear(int col, int row, int z, int colRowRadius)
+	{
+		int found = NONE;
+		for (int r=row-colRowRadius; r <= row+colRowRadius; r++)
+		{
+			for (int c=col-colRowRadius; c <= col+colRowRadius; c++)
+			{
+				int entry = first(c, r, z);
+				if (entry != NONE && (found == NONE || entry < found))
+					found = entry;
+			}
+		}
+		return found;
+	}
+	/** @return the entry with the shortest voxel distance to the point within maxRadius voxels in each dimension or
+	 * NONE. Cubic shells around the point are searched until no closer node can be in the next shell. */
+	public int nearest(int col, int row, int z, int maxRadius)
+	{
+		int found = NONE;
+		long bestD2 = Long.MAX_VALUE;
+		for (int radius=0; radius <= maxRadius; radius++)
+		{
+			if (found != NONE && (long)radius*radius > bestD2)
+				break;
+			for (int dz=-radius; dz <= radius; dz++)
+			{
+				for (int dr=-radius; dr <= radius; dr++)
+				{
+					boolean face = dz == -radius || dz == radius || dr == -radius || dr == radius;
+					int step = face ? 1: 2*radius;
+					for (int dc=-radius; dc <= radius; dc+=Math.max(step, 1))
+					{
+						int entry = first(col+dc, row+dr, z+dz);
+						if (entry != NONE)
+						{
+							long d2 = (long)dc*dc+(long)dr*dr+(long)dz*dz;
+							if (d2 < bestD2 || (d2 == bestD2 && entry < found))
+							{
+								bestD2 = d2;
+								found = entry;
+							}
+						}
+					}
+				}
+			}
+		}
+		return found;
+	}
+}
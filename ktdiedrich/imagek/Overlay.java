@@ -127,16 +127,28 @@ public class Overlay
     		List<Graph> imageGraphs, int width, int height, int zSize, String name)
     {
         float[][] voxels = new float[zSize][width*height];
-        float maxWeight = 0.0f;
         for (Graph graph: imageGraphs)
         {
             List<GraphNode> nodes = graph.getNodes();
             for (GraphNode n: nodes)
             {
                 voxels[n.z][n.row*width+n.col] = n.weight;
-                if (n.weight > maxWeight) maxWeight = n.weight;
             }
         }
+        return overlayCenterlinesOnWeights(centerlineGraphs, voxels, width, height, name);
+    }
+    /** Overlay the centerlines brighter than the highest weight on the weight voxels. */
+    public ImagePlus overlayCenterlinesOnWeights(List<CenterlineGraph> centerlineGraphs, 
+    		float[][] voxels, int width, int height, String name)
+    {
+        float maxWeight = 0.0f;
+        for (float[] slice: voxels)
+        {
+        	for (float w: slice)
+        	{
+        		if (w > maxWeight) maxWeight = w;
+        	}
+        }
         maxWeight = maxWeight + (maxWeight*0.5f);
         for (CenterlineGraph cg: centerlineGraphs)
         {
@@ -27,7 +27,6 @@ import ij.process.ImageProcessor;
 
 import java.awt.Color;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -58,6 +57,9 @@ public class Point2PointDFM implements Message
 	private IdentifyArteries _identifyArteries;
 	private int _zSize;
 	private int _tortAlg;
+	private boolean _goalDirected;
+	private List<GraphNode> _minWeightNodes;
+	private float _minWeight;
 	public Point2PointDFM(ImagePlus image, List<CenterlineGraph> centerlineGraphs, 
 			float xRes, float yRes, float zRes)
 	{
@@ -79,6 +81,7 @@ public class Point2PointDFM implements Message
 		_markedNodes = new LinkedList<GraphNode>();
 		_prevColors = new ArrayList<int[]>();
 		_colors = Colors.getColors();
+		_goalDirected = true;
 		_identifyArteries = new IdentifyArteries(centerlineGraphs, image.getWidth(), 
 				image.getHeight(), _zSize);
 	}
@@ -108,161 +111,77 @@ public class Point2PointDFM implements Message
 	/** Find the first end point. Distance will measure from this point. */
 	public boolean searchA(int x, int y, int z)
 	{
-		int[] iArray = new int[3];
-		boolean isCenterline = false;
-		
 		for (CenterlineGraph centGraph: _centerlineGraphs)
 		{
-	    	for (Centerline centerline: centGraph.getCenterlines())
-	    	{
-	    		List<GraphNode> nodes = centerline.getCenterlineNodes();
-	    		Iterator<GraphNode> itr = nodes.iterator();
-	    		while (itr.hasNext())
-	    		{
-	    			GraphNode node = itr.next();
-	    			if (node.col == x && node.row == y && node.z == z)
-	    			{
-	    				isCenterline = true;
-	    				_nodeA = node;
-	    				_nodeB = null;
-	    				// only display centerlines in the
-	    				// same CenterlineGraph as A 
-	    				_graphA = centGraph;
-	    				IJ.log("Set A ("+node.col+", "+node.row+", "+node.z+")");
-	    				recolorCenterlines(_centerlineGraphs, true);
-	    				
-	    				ImageProcessor proc = _imageProcessors[node.z]; 
-	    				_markedNodes.add(node);
-	    				_prevColors.add(proc.getPixel(node.col, node.row, iArray));
-	    				//message("mark ("+node.col+", "+node.row+", "+node.z+") color ("+_colors.mark[0]+", "+_colors.mark[1]+", "+_colors.mark[2]+")");
-	    				proc.putPixel(_nodeA.col, _nodeA.row, _colors.mark);
-	    				
-	    				highlightGraph(_centerlineGraphs, _graphA);
-	    				// only display centerlines in the
-	    				// same CenterlineGraph as A 
-	    			}
-	    		}
-	    		if (isCenterline) break;
-	    	}
-	    	if (isCenterline) break;
+			GraphNode node = centGraph.findNode(x, y, z);
+			if (node != null)
+			{
+				setA(node, centGraph);
+				return true;
+			}
 		}
-		if (!isCenterline)
+		for (CenterlineGraph centGraph: _centerlineGraphs)
 		{
-			for (CenterlineGraph centGraph: _centerlineGraphs)
+			GraphNode node = centGraph.findNodeNear(x, y, z, 1);
+			if (node != null)
 			{
-		    	for (Centerline centerline: centGraph.getCenterlines())
-		    	{
-		    		List<GraphNode> nodes = centerline.getCenterlineNodes();
-		    		Iterator<GraphNode> itr = nodes.iterator();
-		    		while (itr.hasNext())
-		    		{
-		    			GraphNode node = itr.next();
-		    			if (node.col > x-2 && node.col < x+2 && 
-		    			        node.row > y-2 && node.row < y+2 && 
-		    			        node.z == z)
-		    			{
-		    				isCenterline = true;
-		    				_nodeA = node;
-		    				_nodeB = null;
-		    				// only display centerlines in the
-		    				// same CenterlineGraph as A 
-		    				_graphA = centGraph;
-		    				IJ.log("Set A ("+node.col+", "+node.row+", "+node.z+")");
-		    				recolorCenterlines(_centerlineGraphs, true);
-		    				ImageProcessor proc = _imageProcessors[node.z]; 
-		    				_markedNodes.add(node);
-		    				_prevColors.add(proc.getPixel(node.col, node.row, iArray));
-		    				//message("mark ("+node.col+", "+node.row+", "+node.z+") color ("+_colors.mark[0]+", "+_colors.mark[1]+", "+_colors.mark[2]+")");
-		    				proc.putPixel(_nodeA.col, _nodeA.row, _colors.mark);
-		    				highlightGraph(_centerlineGraphs, _graphA);
-		    				// only display centerlines in the
-		    				// same CenterlineGraph as A 
-		    				break;
-		    			}
-		    		}
-		    		if (isCenterline == true)
-	                {
-	                    break;
-	                }
-		    	}
-		    	if (isCenterline == true)
-	            {
-	                break;
-	            }
+				setA(node, centGraph);
+				return true;
 			}
 		}
-		return isCenterline;
+		return false;
 	}
-	/** Find the second end point. Distances are measured from end point A out to end point B. */
-	public boolean searchB(int x, int y, int z)
+	private void setA(GraphNode node, CenterlineGraph centGraph)
 	{
 		int[] iArray = new int[3];
-		boolean isCenterline = false;
+		_nodeA = node;
+		_nodeB = null;
+		// only display centerlines in the
+		// same CenterlineGraph as A 
+		_graphA = centGraph;
+		IJ.log("Set A ("+node.col+", "+node.row+", "+node.z+")");
+		recolorCenterlines(_centerlineGraphs, true);
 		
-		for (Centerline centerline : _graphA.getCenterlines())
+		ImageProcessor proc = _imageProcessors[node.z]; 
+		_markedNodes.add(node);
+		_prevColors.add(proc.getPixel(node.col, node.row, iArray));
+		//message("mark ("+node.col+", "+node.row+", "+node.z+") color ("+_colors.mark[0]+", "+_colors.mark[1]+", "+_colors.mark[2]+")");
+		proc.putPixel(_nodeA.col, _nodeA.row, _colors.mark);
+		
+		highlightGraph(_centerlineGraphs, _graphA);
+	}
+	/** Find the second end point. Distances are measured from end point A out to end point B. */
+	public boolean searchB(int x, int y, int z)
+	{
+		GraphNode node = _graphA.findNode(x, y, z);
+		if (node == null)
 		{
-			List<GraphNode> nodes = centerline.getCenterlineNodes();
-			Iterator<GraphNode> itr = nodes.iterator();
-			while(itr.hasNext())
-			{
-				GraphNode node = itr.next();
-				if (node.col == x && node.row == y && node.z == z)
-				{
-					isCenterline = true;
-					_nodeB = node;
-					IJ.log("Set B ("+node.col+", "+node.row+", "+node.z+")");
-					
-					recolorCenterlines(_centerlineGraphs, false);
-					ImageProcessor proc = _imageProcessors[node.z]; 
-					_markedNodes.add(node);
-					_prevColors.add(proc.getPixel(node.col, node.row, iArray));
-					proc.putPixel(_nodeB.col, _nodeB.row, _colors.mark);
-					_imageProcessors[_nodeA.z].putPixel(_nodeA.col, _nodeA.row, _colors.mark);
-					_image.updateAndDraw();
-					// List<GraphNode> aNodes = _graphA.getCenterlineNodes();
-					this.clear();
-					message("Forward");
-					
-					_forwardDfms = path(_nodeB.centerline.getGraph().getNodes(), _nodeB, _nodeA);
-					break;
-				}
-			}
-			if (isCenterline) break;
+			node = _graphA.findNodeNear(x, y, z, 1);
 		}
-		if (!isCenterline)
+		if (node != null)
 		{
-			for (Centerline centerline : _graphA.getCenterlines())
-			{
-				List<GraphNode> nodes = centerline.getCenterlineNodes();
-				Iterator<GraphNode> itr = nodes.iterator();
-				while(itr.hasNext())
-				{
-					GraphNode node = itr.next();
-					if (node.col > x-2 && node.col < x+2 && 
-    			        node.row > y-2 && node.row < y+2 && 
-    			        node.z == z)
-					{
-						isCenterline = true;
-						_nodeB = node;
-						IJ.log("Set B ("+node.col+", "+node.row+", "+node.z+")");
-						
-						recolorCenterlines(_centerlineGraphs, false);
-						ImageProcessor proc = _imageProcessors[node.z]; 
-						_markedNodes.add(node);
-						_prevColors.add(proc.getPixel(node.col, node.row, iArray));
-						proc.putPixel(_nodeB.col, _nodeB.row, _colors.mark);
-						_imageProcessors[_nodeA.z].putPixel(_nodeA.col, _nodeA.row, _colors.mark);
-						_image.updateAndDraw();
-						this.clear();
-						message("Forward");
-						_forwardDfms = path(_nodeB.centerline.getGraph().getNodes(), _nodeB, _nodeA);
-						break;
-					}
-				}
-				if (isCenterline) break;
-			}
+			setB(node);
+			return true;
 		}
-		return isCenterline;
+		return false;
+	}
+	private void setB(GraphNode node)
+	{
+		int[] iArray = new int[3];
+		_nodeB = node;
+		IJ.log("Set B ("+node.col+", "+node.row+", "+node.z+")");
+		
+		recolorCenterlines(_centerlineGraphs, false);
+		ImageProcessor proc = _imageProcessors[node.z]; 
+		_markedNodes.add(node);
+		_prevColors.add(proc.getPixel(node.col, node.row, iArray));
+		proc.putPixel(_nodeB.col, _nodeB.row, _colors.mark);
+		_imageProcessors[_nodeA.z].putPixel(_nodeA.col, _nodeA.row, _colors.mark);
+		_image.updateAndDraw();
+		this.clear();
+		message("Forward");
+		
+		_forwardDfms = path(_nodeB.centerline.getGraph().getNodes(), _nodeB, _nodeA);
 	}
 	
 	/** After node A is selected node B must be from the same graph. Gray out other graphs  */
@@ -341,13 +260,27 @@ public class Point2PointDFM implements Message
 	}
 	
 	/** measure DFMs both ways
-	 * Plots the path from the end node back to the source node. */
+	 * Plots the path from the end node back to the source node. 
+	 * @return null when there is no path from the source node to the end node. */
 	public List<DFM> path(List<GraphNode> aNodes, GraphNode sourceNode, GraphNode endNode)
 	{
 		ShortestPaths sp = new ShortestPaths();
-		GraphNode.algorithmReset(aNodes);
-		LinkedList<GraphNode> llnodes = (LinkedList<GraphNode>)aNodes;
-		Graph shortestPaths = sp.dijkstraLowestCostPathTarget(llnodes, sourceNode, _zSize, endNode);
+		Graph shortestPaths = null;
+		if (_goalDirected)
+		{
+			shortestPaths = sp.aStarPathTarget(sourceNode, endNode, _zSize, minWeight(aNodes));
+		}
+		else
+		{
+			GraphNode.algorithmReset(aNodes);
+			LinkedList<GraphNode> llnodes = (LinkedList<GraphNode>)aNodes;
+			shortestPaths = sp.dijkstraLowestCostPathTarget(llnodes, sourceNode, _zSize, endNode);
+		}
+		if (endNode != sourceNode && endNode.pathCost == Float.MAX_VALUE)
+		{
+			message("No path from "+sourceNode.coordinateString()+" to "+endNode.coordinateString());
+			return null;
+		}
 		// TODO remove display of shortest paths after debugging 
 		/* 
 		List<Graph> sps = new LinkedList<Graph>();
@@ -458,4 +391,28 @@ public class Point2PointDFM implements Message
 	public void setTortAlg(int tortAlg) {
 		_tortAlg = tortAlg;
 	}
+	/** Lowest weight of the graph nodes with adjacents for the A* heuristic, kept until a different graph is 
+	 * measured. Nodes without adjacents can only end a path. */
+	private float minWeight(List<GraphNode> nodes)
+	{
+		if (nodes != _minWeightNodes)
+		{
+			_minWeight = Float.MAX_VALUE;
+			for (GraphNode n: nodes)
+			{
+				if (n.adjacents.size() > 0 && n.weight < _minWeight)
+					_minWeight = n.weight;
+			}
+			_minWeightNodes = nodes;
+		}
+		return _minWeight == Float.MAX_VALUE ? 0.0F: _minWeight;
+	}
+	public boolean isGoalDirected() {
+		return _goalDirected;
+	}
+	/** A* search from point to point instead of Dijkstra's algorithm over the whole graph. The path cost is the 
+	 * same, of equal cost paths another one can be measured. */
+	public void setGoalDirected(boolean goalDirected) {
+		_goalDirected = goalDirected;
+	}
 }
@@ -176,6 +176,12 @@ public class Position
         return q;
     }
     
+    /** Column, row, z steps to the 26 neighbors in the order of getNeighbors() */
+    public static final int[][] NEIGHBOR_STEPS = {
+    	{0, 1, 0}, {0, -1, 0}, {1, 0, 0}, {-1, 0, 0}, {0, 0, 1}, {0, 0, -1},
+    	{1, 1, 0}, {1, -1, 0}, {-1, 1, 0}, {-1, -1, 0}, {0, 1, 1}, {0, -1, 1}, {1, 0, 1}, {1, 1, 1}, {1, -1, 1}, 
+    	{-1, 0, 1}, {-1, 1, 1}, {-1, -1, 1}, {-1, 0, -1}, {0, 1, -1}, {0, -1, -1}, {1, 0, -1}, 
+    	{1, 1, -1}, {1, -1, -1}, {-1, 1, -1}, {-1, -1, -1}};
     public Queue<Position> getNeighbors()
     {
         Queue<Position> q = new LinkedList<Position>();
@@ -488,12 +488,21 @@ public class RecordDFMTortuosityPanel extends JPanel implements Message, DBStatu
 		
 		String artery = _measureArteryNames[_arteriesCombo.getSelectedIndex()];
 		int arteryId = _measureArteries.get(artery);
+		if (_p2pdfm.getForwardDfms() == null)
+		{
+			message("No path between the end points, tortuosity not recorded");
+			return;
+		}
 		
 		Connection con = null;
+		Inserts inserts = null;
+		int centerlineId = _centerlineId;
 		try
 		{	
 			con = _dbConn.connect(_fullProp);
-			Inserts inserts = new Inserts(con);
+			inserts = new Inserts(con);
+			// one transaction for the artery 
+			inserts.begin();
 			if (_centerlineId == 0)
 			{
 				_centerlineId = inserts.insertCenterline(_centerlines.getDfeThreshold(), 
@@ -510,9 +519,10 @@ public class RecordDFMTortuosityPanel extends JPanel implements Message, DBStatu
 			_tortuosityIdField.setText(tortuosityId+"");
 			for (DFM dfm: _p2pdfm.getForwardDfms())
 			{
-				inserts.insertDFM(tortuosityId, dfm.getL(), dfm.getD(), dfm.getDfm(), dfm.getDfe(), "forward");
-				inserts.insertCoordinate(tortuosityId, dfm.getX(), dfm.getY(), dfm.getZ());
+				inserts.addDFM(tortuosityId, dfm.getL(), dfm.getD(), dfm.getDfm(), dfm.getDfe(), "forward");
+				inserts.addCoordinate(tortuosityId, dfm.getX(), dfm.getY(), dfm.getZ());
 			}
+			inserts.commit();
 			//for (DFM dfm: _p2pdfm.getReverseDfms())
 			//{
 			//	inserts.insertDFM(tortuosityId, dfm.getL(), dfm.getD(), dfm.getDfm(), dfm.getDfe(), "reverse");
@@ -532,6 +542,21 @@ public class RecordDFMTortuosityPanel extends JPanel implements Message, DBStatu
 		{
 			message(e.getMessage());
 			e.printStackTrace();
+			if (inserts != null)
+			{
+				try
+				{
+					inserts.rollback();
+				}
+				catch (SQLException re)
+				{
+					message(re.getMessage());
+				}
+				// the centerline insert was rolled back too 
+				_centerlineId = centerlineId;
+				_centerlineIdField.setText(_centerlineId+"");
+				_tortuosityIdField.setText("");
+			}
 		}
 		finally
 		{
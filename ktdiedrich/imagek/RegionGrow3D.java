@@ -21,14 +21,20 @@ package ktdiedrich.imagek;
 import ij.IJ;
 import ij.ImagePlus;
 
+import java.util.Arrays;
 import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import ktdiedrich.util.IntQueue;
+import ktdiedrich.util.ParallelLines;
 
 /* Grow 3-D regions
  * @author Karl Diedrich <ktdiedrich@gmail.com> */
 public class RegionGrow3D
 {
-    private Queue<Position> _checkPos;
+    private IntQueue _checkPos;
     private short _lowerThreshold;
     private short _upperThreshold;
     private short _lowPixel;
@@ -60,11 +66,17 @@ public class RegionGrow3D
     {
         _lowerThreshold = lowerThreshold;
     }
-    /** Grow the region from the point at col, row, z 
+    /** Grow the region from the seed at col, row, z with a queue of packed voxel indices 
+     * (z-1)*width*height+row*width+col. Voxels above the lower and below the upper threshold that aren't clustered 
+     * and not in the segmentation are marked clustered when they are queued so each voxel is queued once. 
+     * The volume is below 2^31 voxels. 
      * @param inputVoxels The 3-D voxels of the input image in a 2-D row major order array. 
-     * @param segmentationVoxels The growing segmentation. */
-    public void growRegion(short[][] inputVoxels, short[][] segmentationVoxels, int col, int row, int z, 
-            short pixelInt, boolean[][][] clustered, Cluster currentCluster)
+     * @param segmentationVoxels The growing segmentation. 
+     * @param z 1 based slice of the seed 
+     * @param members packed index of each grown voxel is added if not null 
+     * @return the number of grown voxels */
+    public int growRegion(short[][] inputVoxels, short[][] segmentationVoxels, int col, int row, int z, 
+            short pixelInt, VoxelMask clustered, IntQueue members)
     {   
         if (pixelInt < _lowPixel)
         {
@@ -74,56 +86,168 @@ public class RegionGrow3D
         {
             _highPixel = pixelInt;
         }
-        _checkPos = new LinkedList<Position>();
-        Position.addNeighbors(_checkPos, col, row, z);
-        
-        while (_checkPos.isEmpty() == false)
+        int width = clustered.getWidth();
+        int wh = width*clustered.getHeight();
+        if (_checkPos == null)
         {
-           Position nextPos = _checkPos.remove();
-           grow(inputVoxels, segmentationVoxels, nextPos, pixelInt, clustered, currentCluster);
+        	_checkPos = new IntQueue();
         }
-        
-    }
-    /** Called iteratively to grow regions from seed. */
-    protected void grow(short[][] inputVoxels, short[][] segmentationVoxels, Position pos, short basePixelInt,
-            boolean[][][] clustered, Cluster currentCluster)
-    {
-    	int z = pos.getZ();
-        int col = pos.getColumn();
-        int row = pos.getRow();
-        int zSize = clustered.length;
-        int width = clustered[0][0].length;
-        int height = clustered[0].length;
-        
-        if (z>0 && col >=0 && row>=0 && z <= zSize &&  row < height && col < width)
+        _checkPos.clear();
+        int grown = 0;
+        queueNeighbors(inputVoxels, segmentationVoxels, col, row, z-1, clustered);
+        while (_checkPos.isEmpty() == false)
         {
-        	//System.out.println("z-1: "+(z-1)+" row: "+row+" col:"+col);
-        	if (clustered[(z-1)][row][col] == true)
-        		return;
-        	if (basePixelInt < _lowPixel)
-        	{
-        		_lowPixel = basePixelInt;
-        	}
-        	if (basePixelInt > _highPixel)
+        	int voxel = _checkPos.poll();
+        	int vz = voxel / wh;
+        	int rc = voxel % wh;
+        	segmentationVoxels[vz][rc] = inputVoxels[vz][rc];
+        	grown++;
+        	if (members != null)
         	{
-        		_highPixel = basePixelInt;
+        		members.add(voxel);
         	}
-        	int rc = row*width + col; 
-            int reconPix = segmentationVoxels[z-1][rc];
-            if (reconPix == 0)
-            {
-                short pixelInt = inputVoxels[z-1][rc];
-                // TODO add PC magnitude threshold 
-                if (pixelInt > _lowerThreshold && pixelInt < _upperThreshold)
-                {
-                	int zm1 = z-1;
-                    segmentationVoxels[zm1][rc] = pixelInt;
-                    clustered[zm1][row][col] = true;
-                    currentCluster.addPosition(new Position(col, row, z));
-                    Position.addNeighbors(_checkPos, col, row, z);
-                }
-            }
+        	queueNeighbors(inputVoxels, segmentationVoxels, rc % width, rc / width, vz, clustered);
         }
+        return grown;
+    }
+    /** Grow the seeds concurrently on threads. Each voxel is claimed for a seed with compare and set on a shared 
+     * label volume so no voxel is grown twice, clusters whose regions meet are merged with UnionFind after the 
+     * growing. The segmentation is the same as growing the seeds one after another with growRegion(). 
+     * The seed voxels are already set in the segmentation by the caller and the other voxels are 0. 
+     * @param seeds packed (z-1)*width*height+row*width+col index of each seed in the serial seed order 
+     * @return the voxel count of each merged cluster including its seeds in the order of the first seed */
+    public int[] growSeeds(final short[][] inputVoxels, final short[][] segmentationVoxels, final int[] seeds, 
+    		final int width, final int height, int threads)
+    {
+    	final int wh = width*height;
+    	final int zSize = inputVoxels.length;
+    	final AtomicIntegerArray[] labels = new AtomicIntegerArray[zSize];
+    	for (int z=0; z < zSize; z++)
+    	{
+    		labels[z] = new AtomicIntegerArray(wh);
+    	}
+    	final int[] sizes = new int[seeds.length];
+    	for (int s=0; s < seeds.length; s++)
+    	{
+    		int seed = seeds[s];
+    		short pixelInt = inputVoxels[seed / wh][seed % wh];
+    		if (pixelInt < _lowPixel)
+    			_lowPixel = pixelInt;
+    		if (pixelInt > _highPixel)
+    			_highPixel = pixelInt;
+    		if (labels[seed / wh].get(seed % wh) == 0)
+    			labels[seed / wh].set(seed % wh, s+1);
+    		sizes[s] = 1;
+    	}
+    	final List<IntQueue> meets = new LinkedList<IntQueue>();
+    	ParallelLines.run(seeds.length, threads, new ParallelLines.Range() {
+    		public void run(int from, int to)
+    		{
+    			IntQueue queue = new IntQueue();
+    			IntQueue meet = new IntQueue();
+    			for (int s=from; s < to; s++)
+    			{
+    				int label = s+1;
+    				int seed = seeds[s];
+    				if (labels[seed / wh].get(seed % wh) != label)
+    				{
+    					// same seed voxel as an earlier seed 
+    					meet.add(s);
+    					meet.add(labels[seed / wh].get(seed % wh)-1);
+    					continue;
+    				}
+    				queue.clear();
+    				queue.add(seed);
+    				int lastMet = 0;
+    				while (queue.isEmpty() == false)
+    				{
+    					int voxel = queue.poll();
+    					int vz = voxel / wh;
+    					int rc = voxel % wh;
+    					int col = rc % width;
+    					int row = rc / width;
+    					for (int[] step: Position.NEIGHBOR_STEPS)
+    					{
+    						int c = col+step[0];
+    						int r = row+step[1];
+    						int z = vz+step[2];
+    						if (c < 0 || r < 0 || z < 0 || c >= width || r >= height || z >= zSize)
+    							continue;
+    						int i = r*width+c;
+    						int other = labels[z].get(i);
+    						if (other == 0)
+    						{
+    							short pixelInt = inputVoxels[z][i];
+    							if (pixelInt > _lowerThreshold && pixelInt < _upperThreshold)
+    							{
+    								if (labels[z].compareAndSet(i, 0, label))
+    								{
+    									segmentationVoxels[z][i] = pixelInt;
+    									sizes[s]++;
+    									queue.add(z*wh+i);
+    									continue;
+    								}
+    								other = labels[z].get(i);
+    							}
+    						}
+    						if (other != 0 && other != label && other != lastMet)
+    						{
+    							meet.add(s);
+    							meet.add(other-1);
+    							lastMet = other;
+    						}
+    					}
+    				}
+    			}
+    			synchronized (meets)
+    			{
+    				meets.add(meet);
+    			}
+    		}
+    	});
+    	UnionFind uf = new UnionFind(seeds.length);
+    	for (IntQueue meet: meets)
+    	{
+    		while (meet.isEmpty() == false)
+    		{
+    			uf.union(meet.poll(), meet.poll());
+    		}
+    	}
+    	int[] seedLabels = uf.labels();
+    	int[] clusterSizes = new int[uf.getCount()];
+    	for (int s=0; s < seeds.length; s++)
+    	{
+    		clusterSizes[seedLabels[s]] += sizes[s];
+    	}
+    	return clusterSizes;
+    }
+    /** Queue the 26 neighbors of the voxel at 0 based z that can be grown into. */
+    private void queueNeighbors(short[][] inputVoxels, short[][] segmentationVoxels, int col, int row, int z, 
+    		VoxelMask clustered)
+    {
+    	int width = clustered.getWidth();
+    	int height = clustered.getHeight();
+    	int zSize = clustered.getZSize();
+    	for (int[] step: Position.NEIGHBOR_STEPS)
+    	{
+    		int c = col+step[0];
+    		int r = row+step[1];
+    		int zz = z+step[2];
+    		if (c >= 0 && r >= 0 && zz >= 0 && c < width && r < height && zz < zSize)
+    		{
+    			int rc = r*width+c;
+    			if (clustered.get(zz, rc) == false && segmentationVoxels[zz][rc] == 0)
+    			{
+    				short pixelInt = inputVoxels[zz][rc];
+    				// TODO add PC magnitude threshold 
+    				if (pixelInt > _lowerThreshold && pixelInt < _upperThreshold)
+    				{
+    					clustered.set(zz, rc);
+    					_checkPos.add(zz*width*height+rc);
+    				}
+    			}
+    		}
+    	}
     }
     public short getLowPixel()
     {
@@ -187,4 +311,66 @@ public class RegionGrow3D
 	{
 		return PhaseContrast.makePCmagImage(baseTitle, _xPC, _yPC, _zPC, _width, _height, _zSize);
 	}
+	/** Test growing the seeds concurrently gives the same segmentation as growing them one after another with 
+	 * growRegion() like Extractor3D. */
+	public static String tests()
+	{
+		StringBuffer sb = new StringBuffer();
+		int width = 48, height = 40, zSize = 24;
+		Random random = new Random(12);
+		boolean allSame = true;
+		for (double vessels: new double[] {0.3, 0.5, 0.7})
+		{
+			// random bright voxels, the higher fractions connect into regions that many seeds grow into 
+			short[][] input = new short[zSize][width*height];
+			for (int z=0; z < zSize; z++)
+			{
+				for (int i=0; i < width*height; i++)
+				{
+					input[z][i] = (short)(1+random.nextInt(random.nextDouble() < vessels ? 1000: 400));
+				}
+			}
+			int[] seeds = new int[60];
+			for (int s=0; s < seeds.length; s++)
+			{
+				// some seeds repeat and some are below the threshold 
+				seeds[s] = s % 7 == 6 ? seeds[s-1]: random.nextInt(zSize*width*height);
+			}
+			short threshold = 400;
+			int wh = width*height;
+			
+			RegionGrow3D serialGrow = new RegionGrow3D();
+			serialGrow.setLowerThreshold(threshold);
+			short[][] serial = new short[zSize][wh];
+			VoxelMask clustered = new VoxelMask(width, height, zSize);
+			for (int seed: seeds)
+			{
+				int z = seed / wh, rc = seed % wh;
+				short value = input[z][rc];
+				serial[z][rc] = value;
+				clustered.set(z, rc);
+				serialGrow.growRegion(input, serial, rc % width, rc / width, z+1, value, clustered, null);
+			}
+			for (int threads: new int[] {1, 3, 8})
+			{
+				RegionGrow3D concurrentGrow = new RegionGrow3D();
+				concurrentGrow.setLowerThreshold(threshold);
+				short[][] concurrent = new short[zSize][wh];
+				for (int seed: seeds)
+				{
+					concurrent[seed / wh][seed % wh] = input[seed / wh][seed % wh];
+				}
+				concurrentGrow.growSeeds(input, concurrent, seeds, width, height, threads);
+				boolean same = Arrays.deepEquals(serial, concurrent);
+				allSame = allSame && same;
+				sb.append("Vessel fraction "+vessels+" threads "+threads+": "+(same ? "same": "DIFFERENT")+"\n");
+			}
+		}
+		sb.append("Concurrent segmentation same as serial: "+allSame+"\n");
+		return sb.toString();
+	}
+	public static void main(String[] args)
+	{
+		System.out.println(tests());
+	}
 }
@@ -63,6 +63,8 @@ public class SegmentationCMD
 		options.addOption("f", true, "Image ID from");
 		options.addOption("t", true, "Image ID to, (inclusive)");
 		options.addOption("s", true, "Seed threshold default "+seed);
+		options.addOption("c", false, "concurrent 3-D region growing");
+		options.addOption("k", false, "save segmentations as chunked volumes ("+ChunkedVolume.EXTENSION+")");
 		CommandLineParser parser = new PosixParser();
 		CommandLine cmd = parser.parse( options, args);
 		
@@ -101,6 +103,9 @@ public class SegmentationCMD
 			medianFilterSize = Integer.parseInt(cmd.getOptionValue("m"));
 		}
 		
+		boolean concurrentGrow = cmd.hasOption("c");
+		boolean chunked = cmd.hasOption("k");
+		
 		// System.out.println("ImageID: "+imageId+" Path: "+paths+" Median filter: "+medianFilterSize);
 		if (paths != null)
 		{
@@ -109,7 +114,7 @@ public class SegmentationCMD
 			{
 				String p[] = parseDirectoryFileName(path);
 				String dirPath = p[0];
-				ImagePlus segImage = segment(path, medianFilterSize, imageIds[i], seed);
+				ImagePlus segImage = segment(path, medianFilterSize, imageIds[i], seed, concurrentGrow);
 				String title = segImage.getShortTitle();
 				if (title.contains(File.separator));
 				{
@@ -118,10 +123,28 @@ public class SegmentationCMD
 		        String outputPath = null;
 		        if (!dirPath.endsWith(File.separator))
 		        	dirPath = dirPath+File.separator;
-		        outputPath = dirPath+title+".zip";
-		        
 		        FileSaver fs = new FileSaver(segImage);
-		        fs.saveAsZip(outputPath);
+		        if (chunked)
+		        {
+		        	outputPath = dirPath+title+ChunkedVolume.EXTENSION;
+		        	try
+		        	{
+		        		ChunkedVolume.write(segImage, outputPath);
+		        	}
+		        	catch (IOException e)
+		        	{
+		        		e.printStackTrace();
+		        		// keep the segmentation in the default format 
+		        		outputPath = dirPath+title+".zip";
+		        		System.out.println("Chunked volume not saved, saving: "+outputPath);
+		        		fs.saveAsZip(outputPath);
+		        	}
+		        }
+		        else
+		        {
+		        	outputPath = dirPath+title+".zip";
+		        	fs.saveAsZip(outputPath);
+		        }
 		        System.out.println("Saved: "+outputPath);
 		        ImagePlus mipYim = MIP.createShortMIP(segImage, MIP.Y_AXIS);
 		        fs = new FileSaver(mipYim);
@@ -138,6 +161,10 @@ public class SegmentationCMD
 		}
 	}
 	public static ImagePlus segment(String path, int medianFilterSize, int imageId, float seed)
+	{
+		return segment(path, medianFilterSize, imageId, seed, false);
+	}
+	public static ImagePlus segment(String path, int medianFilterSize, int imageId, float seed, boolean concurrentGrow)
 	{
 		String dir = parseDirectoryFileName(path)[0];
 		System.out.println("Path: "+path);
@@ -169,6 +196,7 @@ public class SegmentationCMD
         
 		segmentor.setClusterSizeThreshold(Extractor3D.MIN_3D_CLUSTER_SIZE);
 		segmentor.setBubbleFillAlgorithm(BubbleFill.BUBBLE_FILL_3D);
+		segmentor.setConcurrentGrow(concurrentGrow);
 		
 		
         long start = System.currentTimeMillis();
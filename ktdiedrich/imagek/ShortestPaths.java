@@ -20,12 +20,13 @@ package ktdiedrich.imagek;
 
 import ij.IJ;
 
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.Random;
 
 import ktdiedrich.db.aneurysm.Inserts;
 
@@ -34,49 +35,31 @@ import ktdiedrich.db.aneurysm.Inserts;
  * */
 public class ShortestPaths 
 {
+	/** java.util.PriorityQueue of every node, a changed node is removed and added again. */
+	public static final int PRIORITY_QUEUE = 0;
+	/** IndexedMinHeap of the reached nodes with decrease key. */
+	public static final int INDEXED_HEAP = 1;
 	private int _pathLenLimit;
 	private PhaseContrast _phaseContrast;
-	private List<Cost> _costs;
+	private CostTrace _costs;
 	private double _pcWeight;
 	private int _centerlineAlgorithm;
-	public static String LABEL = "path\tpccost\tweight\n";
+	private int _queueType;
+	public static String LABEL = CostTrace.LABEL;
 	
-	private class Cost
-	{
-		private double _path;
-		private double _pcCost;
-		private double _weight;
-		public Cost(double path, double pcCost, double weight)
-		{
-			_path = path;
-			_pcCost = pcCost;
-			_weight = weight;
-		}
-		public String toString()
-		{
-			return _path+"\t"+_pcCost+"\t"+_weight+"\n";
-		}
-	}
 	public ShortestPaths()
 	{
 		_pathLenLimit = Integer.MAX_VALUE;
 		_centerlineAlgorithm = Inserts.DFE_WEIGHTED_COM;
-		_costs = new LinkedList<Cost>();
+		_queueType = PRIORITY_QUEUE;
 	}
+	/** Write the costs traced since setTraceCosts(true), only the label is written if costs aren't traced. */
 	public void writeCosts(String fileName)
 	{
-		StringBuffer sb = new StringBuffer(LABEL);
-		for (Cost c: _costs)
-		{
-			sb.append(c.toString());
-		}
-		PrintWriter out = null;
+		CostTrace costs = _costs != null ? _costs: new CostTrace();
 		try 
 		{
-			FileWriter outFile = new FileWriter(fileName);
-			out = new PrintWriter(outFile);
-			out.print(sb.toString());
-			out.close();
+			costs.write(fileName);
 		} 
 		catch (IOException e)
 		{
@@ -86,11 +69,6 @@ public class ShortestPaths
 			{
 				IJ.log(ste[i].toString());
 			}
-			
-		}
-		finally
-		{
-			out.close();
 		}
 		if (_phaseContrast != null)
 		{
@@ -124,7 +102,8 @@ public class ShortestPaths
         if (newCost < v.pathCost )
         {
             v.pathCost = newCost;
-            _costs.add( new Cost(u.pathCost, pcCost, v.weight) );
+            if (_costs != null)
+            	_costs.add(u.pathCost, pcCost, v.weight);
             v.predecessor = u;
             v.pathLen = u.pathLen+1;
             return true;
@@ -132,6 +111,23 @@ public class ShortestPaths
         
         return false;
     }
+    /** Sets a new path cost for node v of the compact graph if cost of u to v is lower than current cost of v. 
+     * Phase contrast cost functions need GraphNode objects and aren't used on the compact graph. 
+     * @return true if relax v, false if not */
+    public boolean relax(VoxelGraph g, int u, int v)
+    {
+    	float newCost = g.pathCost[u]+g.weight[v];
+    	if (newCost < g.pathCost[v])
+    	{
+    		g.pathCost[v] = newCost;
+    		if (_costs != null)
+    			_costs.add(g.pathCost[u], 0, g.weight[v]);
+    		g.predecessor[v] = u;
+    		g.pathLen[v] = g.pathLen[u]+1;
+    		return true;
+    	}
+    	return false;
+    }
     public List<Graph> dijkstraLowestCostPaths(List<Graph> graphs, int zSize, VoxelDistance vd)
     {
         List<Graph> shortestPaths = new LinkedList<Graph>();
@@ -163,6 +159,10 @@ public class ShortestPaths
      * */
     public Graph dijkstraLowestCostPathTarget(LinkedList<GraphNode> queue, GraphNode source, int zSize, GraphNode target)
     {
+    	if (_queueType == INDEXED_HEAP)
+    	{
+    		return dijkstraHeapPathTarget(queue, source, zSize, target);
+    	}
     	IJ.log("Shortest path source node: "+source.coordinateString());
     	IJ.log("Shortest path nodes: "+queue.size());
     	IJ.log("ShortestPaths: Centerline algorithm ID: "+_centerlineAlgorithm);
@@ -207,6 +207,391 @@ public class ShortestPaths
         g.setNodes(S);
         return g;
     }
+    /** Find the lowest cost paths with Dijstra's algorithm on an indexed heap. The nodes are added to the heap in the 
+     * same order as the PriorityQueue search and the heap orders equal costs the same way, so the paths are the same 
+     * without the linear PriorityQueue.remove(). 
+     * @param source The source or goal node the lowest paths and heading towards. 
+     * */
+    public Graph dijkstraHeapPathTarget(LinkedList<GraphNode> queue, GraphNode source, int zSize, GraphNode target)
+    {
+    	IJ.log("Shortest path source node: "+source.coordinateString());
+    	IJ.log("Shortest path nodes: "+queue.size()+" indexed heap");
+    	IJ.log("ShortestPaths: Centerline algorithm ID: "+_centerlineAlgorithm);
+    	GraphNode.algorithmReset(queue);
+    	source.pathCost = (0.0F);
+    	int nodeCount = queue.size();
+    	GraphNode[] nodes = new GraphNode[nodeCount+1];
+    	for (GraphNode n: queue)
+    	{
+    		n.index = -1;
+    	}
+    	int i = 0;
+    	IndexedMinHeap heap = new IndexedMinHeap(nodes.length);
+    	for (GraphNode n: queue)
+    	{
+    		if (n.index < 0)
+    		{
+    			n.index = i;
+    			nodes[i++] = n;
+    			heap.add(n.index, n.pathCost);
+    		}
+    	}
+    	Graph g = new Graph();
+    	g.setSourceNode(source);
+    	LinkedList<GraphNode> S = new LinkedList<GraphNode>();
+    	int zSizeM1 = zSize-1;
+    	boolean targetFound = false;
+    	while (!heap.isEmpty() && targetFound == false)
+    	{
+    		GraphNode u = nodes[heap.poll()];
+    		// don't use the lowest plane in the image stack 
+    		if (u.z < zSizeM1)
+    		{
+    			S.add(u);
+    			for (GraphNode v: u.adjacents)
+    			{
+    				if (relax(u, v))
+    				{
+    					if (!isIndexed(v, nodes, i))
+    					{
+    						// adjacent outside of the node list is searched too 
+    						if (i == nodes.length)
+    						{
+    							nodes = Arrays.copyOf(nodes, i+(i >> 1)+1);
+    							heap.ensureCapacity(nodes.length);
+    						}
+    						v.index = i;
+    						nodes[i++] = v;
+    					}
+    					heap.decreaseKey(v.index, v.pathCost);
+    				}
+    			}
+    		}
+    		if (target != null && u == target) // short circuit when target found 
+    		{  
+    			targetFound = true;
+    		}
+    	}
+    	g.setNodes(S);
+    	return g;
+    }
+    /** Find the lowest cost path from source to target with A*. Nodes are reset and added to an indexed heap when 
+     * they are first reached so only the nodes between source and target are touched, the graph doesn't need 
+     * GraphNode.algorithmReset(). The path to a target n voxels away in column, row or z passes at least n-1 nodes 
+     * that have adjacents before the target, this lower bound of the remaining cost is the heuristic. Nodes in the 
+     * lowest plane of the image stack are not searched from, the same as dijkstraLowestCostPathTarget(). With a 
+     * phase contrast cost the step cost isn't the node weight and the search is Dijkstra's algorithm. 
+     * The cost is the dijkstraLowestCostPathTarget() cost. Of several paths with the lowest cost the one found can 
+     * be another than the one of Dijkstra's algorithm, which depends on the order of its queue. 
+     * The nodes reached in this search have its pathCost, predecessor, pathLen, graphed and index. Other nodes keep 
+     * the values of earlier algorithms, so read the path from the target predecessors or reset the graph before 
+     * algorithms that don't reset it. 
+     * @param minWeight lowest weight of the nodes with adjacents, 0 searches like Dijkstra's algorithm. 
+     * @return the nodes in the order their path was found, the target predecessors lead back to the source. 
+     * When the target isn't reached it is left reset with pathCost Float.MAX_VALUE and no predecessor. */
+    public Graph aStarPathTarget(GraphNode source, GraphNode target, int zSize, float minWeight)
+    {
+    	float h = _phaseContrast == null ? Math.max(minWeight, 0.0F): 0.0F;
+    	float targetWeight = _phaseContrast == null ? target.weight: 0.0F;
+    	GraphNode[] nodes = new GraphNode[64];
+    	int i = 0;
+    	IndexedMinHeap heap = new IndexedMinHeap(nodes.length);
+    	boolean targetFound = false;
+    	// predecessors from an earlier search must not lead back from an unreached target 
+    	GraphNode.algorithmReset(target);
+    	GraphNode.algorithmReset(source);
+    	source.pathCost = (0.0F);
+    	source.index = i;
+    	nodes[i++] = source;
+    	heap.add(source.index, remaining(source, target, h, targetWeight));
+    	Graph g = new Graph();
+    	g.setSourceNode(source);
+    	LinkedList<GraphNode> S = new LinkedList<GraphNode>();
+    	int zSizeM1 = zSize-1;
+    	while (!heap.isEmpty())
+    	{
+    		GraphNode u = nodes[heap.poll()];
+    		// don't use the lowest plane in the image stack 
+    		if (u.z < zSizeM1)
+    		{
+    			if (u.graphed == false)
+    			{
+    				u.graphed = true;
+    				S.add(u);
+    			}
+    			for (GraphNode v: u.adjacents)
+    			{
+    				if (!isIndexed(v, nodes, i))
+    				{
+    					if (i == nodes.length)
+    					{
+    						nodes = Arrays.copyOf(nodes, i << 1);
+    						heap.ensureCapacity(nodes.length);
+    					}
+    					GraphNode.algorithmReset(v);
+    					v.index = i;
+    					nodes[i++] = v;
+    				}
+    				if (relax(u, v))
+    				{
+    					// a node found again with a lower cost from float rounding of the keys is searched again 
+    					heap.decreaseKey(v.index, v.pathCost+remaining(v, target, h, targetWeight));
+    				}
+    			}
+    		}
+    		if (u == target)
+    		{
+    			targetFound = true;
+    			break;
+    		}
+    	}
+    	if (!targetFound)
+    	{
+    		GraphNode.algorithmReset(target);
+    	}
+    	g.setNodes(S);
+    	return g;
+    }
+    /** @return lower bound of the path cost from node to target over at least one node per voxel step. Every 
+     * path to the target ends with the relax of the target, which adds the target weight, the nodes before it 
+     * have at least minWeight. */
+    private static float remaining(GraphNode node, GraphNode target, float minWeight, float targetWeight)
+    {
+    	if (node == target)
+    		return 0.0F;
+    	int steps = Math.max(Math.abs(node.col-target.col), Math.max(Math.abs(node.row-target.row), 
+    			Math.abs(node.z-target.z)));
+    	return Math.max(steps-1, 0)*minWeight+targetWeight;
+    }
+    private static boolean isIndexed(GraphNode n, GraphNode[] nodes, int count)
+    {
+    	return n.index >= 0 && n.index < count && nodes[n.index] == n;
+    }
+    /** Find the lowest cost paths in the compact graph with the Maximum Modified Distance From Edge point as the goal source node. 
+     * @return node ids in the order their lowest cost path was found */
+    public int[] dijkstraLowestCostPathsGraph(VoxelGraph graph, int zSize, VoxelDistance vd)
+    {
+    	int srcNode = graph.findBestSourceNode(vd);
+    	return dijkstraLowestCostPathTarget(graph, srcNode, zSize, VoxelGraph.NONE);
+    }
+    /** Find the lowest cost paths in the compact graph with Dijstra's algorithm. 
+     * @param source The source or goal node the lowest paths and heading towards. 
+     * @param target stop when this node is found or VoxelGraph.NONE to find all paths. 
+     * @return node ids in the order their lowest cost path was found */
+    public int[] dijkstraLowestCostPathTarget(final VoxelGraph graph, int source, int zSize, int target)
+    {
+    	int nodeCount = graph.nodeCount();
+    	IJ.log("Shortest path source node: "+graph.coordinateString(source));
+    	IJ.log("Shortest path nodes: "+nodeCount);
+    	IJ.log("ShortestPaths: Centerline algorithm ID: "+_centerlineAlgorithm);
+    	graph.algorithmReset();
+    	graph.pathCost[source] = 0.0F;
+    	graph.setSourceNode(source);
+    	if (_queueType == INDEXED_HEAP)
+    	{
+    		return dijkstraHeapPathTarget(graph, source, zSize, target);
+    	}
+    	PriorityQueue<Integer> pq = new PriorityQueue<Integer>(nodeCount+1, new Comparator<Integer>() {
+    		public int compare(Integer a, Integer b)
+    		{
+    			return Float.compare(graph.pathCost[a], graph.pathCost[b]);
+    		}
+    	});
+    	for (int i=0; i < nodeCount; i++)
+    	{
+    		pq.add(i);
+    	}
+    	int[] settled = new int[nodeCount];
+    	int settledCount = 0;
+    	int zSizeM1 = zSize-1;
+    	boolean targetFound = false;
+    	while (!pq.isEmpty() && targetFound == false)
+    	{
+    		int u = pq.poll();
+    		// don't use the lowest plane in the image stack 
+    		if (graph.z[u] < zSizeM1)
+    		{
+    			settled[settledCount++] = u;
+    			for (int e=graph.offsets[u]; e < graph.offsets[u+1]; e++)
+    			{
+    				int v = graph.neighbors[e];
+    				if (relax(graph, u, v))
+    				{
+    					pq.remove(v);
+    					pq.add(v);
+    				}
+    			}
+    		}
+    		if (u == target)
+    		{
+    			targetFound = true;
+    		}
+    	}
+    	int[] order = new int[settledCount];
+    	System.arraycopy(settled, 0, order, 0, settledCount);
+    	return order;
+    }
+    /** Find the lowest cost paths in the compact graph with an indexed heap filled and ordered the same as the 
+     * PriorityQueue search. Call from dijkstraLowestCostPathTarget() after the graph is reset. */
+    private int[] dijkstraHeapPathTarget(final VoxelGraph graph, int source, int zSize, int target)
+    {
+    	int nodeCount = graph.nodeCount();
+    	IndexedMinHeap heap = new IndexedMinHeap(nodeCount);
+    	for (int n=0; n < nodeCount; n++)
+    	{
+    		heap.add(n, graph.pathCost[n]);
+    	}
+    	int[] settled = new int[nodeCount];
+    	int settledCount = 0;
+    	int zSizeM1 = zSize-1;
+    	boolean targetFound = false;
+    	while (!heap.isEmpty() && targetFound == false)
+    	{
+    		int u = heap.poll();
+    		// don't use the lowest plane in the image stack 
+    		if (graph.z[u] < zSizeM1)
+    		{
+    			settled[settledCount++] = u;
+    			for (int e=graph.offsets[u]; e < graph.offsets[u+1]; e++)
+    			{
+    				int v = graph.neighbors[e];
+    				if (relax(graph, u, v))
+    				{
+    					heap.decreaseKey(v, graph.pathCost[v]);
+    				}
+    			}
+    		}
+    		if (u == target)
+    		{
+    			targetFound = true;
+    		}
+    	}
+    	return Arrays.copyOf(settled, settledCount);
+    }
+	/** Compare aStarPathTarget() with dijkstraLowestCostPathTarget() on random voxel graphs. The A* searches on a 
+	 * graph run one after another without a reset. Costs must be the same. The A* path must lead from the target 
+	 * to the source over adjacents adding their weights, it must be the Dijkstra path when weights don't tie. */
+	public static String tests()
+	{
+		StringBuffer sb = new StringBuffer();
+		Random random = new Random(9);
+		int failed = 0;
+		for (int g=0; g < 12; g++)
+		{
+			boolean tied = g % 2 == 0;
+			int width = 9, height = 8, depth = 6;
+			// the lowest plane holds nodes in every other graph 
+			int zSize = g % 4 < 2 ? depth+1: depth;
+			GraphNode[] grid = new GraphNode[width*height*depth];
+			LinkedList<GraphNode> nodes = new LinkedList<GraphNode>();
+			for (int z=0; z < depth; z++)
+			{
+				for (int r=0; r < height; r++)
+				{
+					for (int c=0; c < width; c++)
+					{
+						if (random.nextInt(4) == 0)
+							continue;
+						GraphNode n = new GraphNode(new Position(c, r, z));
+						n.weight = tied ? 1+random.nextInt(3): 1+random.nextFloat();
+						grid[(z*height+r)*width+c] = n;
+						nodes.add(n);
+					}
+				}
+			}
+			float minWeight = Float.MAX_VALUE;
+			for (GraphNode n: nodes)
+			{
+				for (int dz=-1; dz <= 1; dz++)
+				{
+					for (int dr=-1; dr <= 1; dr++)
+					{
+						for (int dc=-1; dc <= 1; dc++)
+						{
+							int z = n.z+dz, r = n.row+dr, c = n.col+dc;
+							if ((dz != 0 || dr != 0 || dc != 0) && z >= 0 && z < depth && r >= 0 && r < height 
+									&& c >= 0 && c < width && grid[(z*height+r)*width+c] != null)
+								n.adjacents.add(grid[(z*height+r)*width+c]);
+						}
+					}
+				}
+				if (n.adjacents.size() > 0)
+					minWeight = Math.min(minWeight, n.weight);
+			}
+			GraphNode[] nodeArray = nodes.toArray(new GraphNode[nodes.size()]);
+			int pairs = 15;
+			GraphNode[][] ends = new GraphNode[pairs][2];
+			float[] aStarCosts = new float[pairs];
+			List<List<GraphNode>> aStarPaths = new LinkedList<List<GraphNode>>();
+			ShortestPaths sp = new ShortestPaths();
+			for (int p=0; p < pairs; p++)
+			{
+				ends[p][0] = nodeArray[random.nextInt(nodeArray.length)];
+				ends[p][1] = nodeArray[random.nextInt(nodeArray.length)];
+				sp.aStarPathTarget(ends[p][0], ends[p][1], zSize, minWeight);
+				aStarCosts[p] = ends[p][1].pathCost;
+				aStarPaths.add(backtrace(ends[p][0], ends[p][1]));
+			}
+			int costs = 0, paths = 0, invalid = 0, samePaths = 0;
+			for (int p=0; p < pairs; p++)
+			{
+				GraphNode source = ends[p][0], target = ends[p][1];
+				sp.dijkstraLowestCostPathTarget(nodes, source, zSize, target);
+				if (aStarCosts[p] != target.pathCost)
+					costs++;
+				List<GraphNode> aStarPath = aStarPaths.get(p);
+				if (target.pathCost != Float.MAX_VALUE && (aStarPath == null || aStarPath.get(0) != source))
+					invalid++;
+				if (aStarPath != null && target.pathCost != Float.MAX_VALUE)
+				{
+					// costs along the path 
+					float cost = 0.0F;
+					GraphNode prev = source;
+					for (GraphNode n: aStarPath.subList(1, aStarPath.size()))
+					{
+						cost += n.weight;
+						if (!prev.adjacents.contains(n) || (prev.z >= zSize-1 && prev != target))
+							invalid++;
+						prev = n;
+					}
+					if (cost != aStarCosts[p])
+						invalid++;
+				}
+				List<GraphNode> dijkstraPath = backtrace(source, target);
+				if (aStarPath == null ? dijkstraPath == null: aStarPath.equals(dijkstraPath))
+					samePaths++;
+				else if (!tied)
+					paths++;
+			}
+			if (costs > 0 || paths > 0 || invalid > 0)
+				failed++;
+			sb.append((tied ? "tied": "distinct")+" weights, zSize "+zSize+": "+
+					(costs == 0 && paths == 0 && invalid == 0 ? "same": 
+					"DIFFERENT costs "+costs+" paths "+paths+" invalid "+invalid)+", "+samePaths+" of "+pairs+
+					" paths the Dijkstra path\n");
+		}
+		sb.append(failed==0 ? "A* matches Dijkstra's algorithm": failed+" DIFFERENT");
+		return sb.toString();
+	}
+	/** @return nodes from source to target by the target predecessors, null if they don't reach the source */
+	private static List<GraphNode> backtrace(GraphNode source, GraphNode target)
+	{
+		LinkedList<GraphNode> path = new LinkedList<GraphNode>();
+		GraphNode n = target;
+		while (n != null && n != source)
+		{
+			path.addFirst(n);
+			n = n.predecessor;
+		}
+		if (n == null)
+			return null;
+		path.addFirst(source);
+		return path;
+	}
+	public static void main(String[] args)
+	{
+		System.out.println(tests());
+	}
 	public int getPathLenLimit() {
 		return _pathLenLimit;
 	}
@@ -232,4 +617,21 @@ public class ShortestPaths
 	public void setCenterlineAlgorithm(int centerlineAlgorithm) {
 		_centerlineAlgorithm = centerlineAlgorithm;
 	}
+	public int getQueueType() {
+		return _queueType;
+	}
+	/** PRIORITY_QUEUE or INDEXED_HEAP for the nodes of Dijkstra's algorithm. */
+	public void setQueueType(int queueType) {
+		_queueType = queueType;
+	}
+	public boolean isTraceCosts() {
+		return _costs != null;
+	}
+	/** Record the cost of every relaxed node for writeCosts(). Costs aren't recorded by default. */
+	public void setTraceCosts(boolean traceCosts) {
+		if (traceCosts && _costs == null)
+			_costs = new CostTrace();
+		else if (!traceCosts)
+			_costs = null;
+	}
 }
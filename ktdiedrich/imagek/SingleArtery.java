@@ -75,20 +75,17 @@ public class SingleArtery
 		}
 		for (CenterlineGraph centGraph: _centerlineGraphs)
 		{
-	    	for (Centerline centerline: centGraph.getCenterlines())
-	    	{
-	    		for (GraphNode node: centerline.getCenterlineNodes())
-	    		{
-	    			if (node.col == startCol && node.row == startRow && node.z == startZ)
-	    			{
-	    				startNode = node;
-	    				CenterlineGraph graph = new CenterlineGraph();
-	    				graph.addCenterline(centerline);
-	    				_singleCenterlineGraph.add(graph);
-	    			}
-	    			
-	    		}
-	    	}
+			GraphNode node = centGraph.findNode(startCol, startRow, startZ);
+			if (node != null)
+			{
+				startNode = node;
+				for (Centerline centerline: centGraph.findCenterlines(startCol, startRow, startZ))
+				{
+					CenterlineGraph graph = new CenterlineGraph();
+					graph.addCenterline(centerline);
+					_singleCenterlineGraph.add(graph);
+				}
+			}
 		}
     	if (startNode == null)
     	{
@@ -23,6 +23,8 @@ import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 
+import ktdiedrich.util.IntQueue;
+
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.ByteProcessor;
@@ -56,7 +58,9 @@ public class ThresholdCluster
         int height = inputStack.getHeight();
         int width = inputStack.getWidth();
         ImageStack seedStack = new ImageStack(width, height);
-        boolean [][][] clustered = new boolean[zSize][height][width];
+        VoxelMask clustered = new VoxelMask(width, height, zSize);
+        IntQueue members = new IntQueue();
+        int wh = width*height;
         short currentClusterNum = 0;
         Cluster currentCluster = new Cluster(currentClusterNum);
         _clusters = new HashMap<Short, Cluster>();
@@ -109,19 +113,22 @@ public class ThresholdCluster
                     short seedInt = seedStackPixels[z-1][r*width+c]; 
                     if ( seedInt > 0)
                     {
-                        if (clustered[z-1][r][c] == false)
+                        if (clustered.get(z-1, r*width+c) == false)
                         {
-                            clustered[z-1][r][c] = true;
+                            clustered.set(z-1, r*width+c);
                             currentClusterNum++;
-                            this.thresholdCluster(currentCluster, reconStack);
+                            this.thresholdCluster(currentCluster, members, reconVoxels, wh);
+                            members.clear();
                             currentCluster = new Cluster(currentClusterNum);
                             _clusters.put(currentClusterNum, currentCluster);
                         }
                         
                         reconSliceProc.putPixel(c, r, seedInt);
-                        currentCluster.addPosition(new Position(c, r, z));
+                        currentCluster.addOneSize();
+                        members.add((z-1)*wh+r*width+c);
                         
-                        _regionGrow3D.growRegion(inputStackPixels, reconVoxels, c, r, z, seedInt, clustered, currentCluster);
+                        currentCluster.addSize(_regionGrow3D.growRegion(inputStackPixels, reconVoxels, c, r, z, seedInt, 
+                        		clustered, members));
                     }
                 }
             }
@@ -132,17 +139,18 @@ public class ThresholdCluster
         return reconStackIm;
     }
     
-    /** Removes voxels from clusters below the size threshold in the reconstructing image stack */
-    protected void thresholdCluster(Cluster currentCluster, ImageStack reconStack)
+    /** Removes voxels from clusters below the size threshold in the reconstructing image stack 
+     * @param members packed z*wh+row*width+col index of the cluster voxels */
+    protected void thresholdCluster(Cluster currentCluster, IntQueue members, short[][] reconVoxels, int wh)
     {
         // int clusSize = currentCluster.getMembers();
         // System.out.println("Cluster: "+currentCluster.getNumber()+" Size: "+clusSize+"");
         if (currentCluster.getSize() < _clusterSizeThreshold)
         {
-            for (Position pos: currentCluster.getPositions())
+            for (int i=0; i < members.size(); i++)
             {
-                ImageProcessor proc = reconStack.getProcessor(pos.getZ());
-                proc.putPixel(pos.getColumn(), pos.getRow(), 0);
+                int voxel = members.get(i);
+                reconVoxels[voxel / wh][voxel % wh] = 0;
             }
         }
     }
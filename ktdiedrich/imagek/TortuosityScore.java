@@ -34,6 +34,7 @@ public class TortuosityScore
     private int _totalScore;
     private int _height, _width, _zSize;
     private int _borderDFE;
+    private int _dfeAlgorithm;
    
     public TortuosityScore()
     {
@@ -53,6 +54,7 @@ public class TortuosityScore
         _width = width;
         _zSize = voxels.length;
         DistanceFromEdge dfer = new DistanceFromEdge(1.0f, 1.0f, 1.0f);
+        dfer.setAlgorithm(_dfeAlgorithm);
         short[][] dfes = dfer.distanceFromEdge(voxels, width, height);
         if (_showSteps)
         {
@@ -289,6 +291,15 @@ public class TortuosityScore
     {
         _borderDFE = borderDFE;
     }
+    public int getDfeAlgorithm()
+    {
+        return _dfeAlgorithm;
+    }
+    /** DistanceFromEdge.RAY_26 or DistanceFromEdge.EXACT_EDT */
+    public void setDfeAlgorithm(int dfeAlgorithm)
+    {
+        _dfeAlgorithm = dfeAlgorithm;
+    }
     protected String tester(short[][][] cube, String name)
     {
         int zSize = cube.length;
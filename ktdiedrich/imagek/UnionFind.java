@@ -0,0 +1,171 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.util.Arrays;
+
+import ktdiedrich.util.ParallelLines;
+
+/** Union find connected components of int ids 0 to size-1. The root of a component is its lowest id so the labels are
+ * the same for any number of threads. Links are joined in parallel blocks of consecutive ids, links between blocks
+ * are joined after the blocks finish.
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class UnionFind
+{
+	private int[] _parent;
+	private int[] _labels;
+	private int _count;
+
+	/** Links of one id, call Joiner.union() for each linked id. */
+	public interface Links
+	{
+		public void link(int id, Joiner joiner);
+	}
+	/** Joins the ids in one block and keeps the links that cross to other blocks. */
+	public class Joiner
+	{
+		private int _from, _to;
+		private int[] _cross;
+		private int _crossCount;
+		private Joiner(int from, int to)
+		{
+			_from = from;
+			_to = to;
+			_cross = new int[16];
+		}
+		public void union(int a, int b)
+		{
+			if (a >= _from && a < _to && b >= _from && b < _to)
+			{
+				UnionFind.this.union(a, b);
+			}
+			else
+			{
+				if (_crossCount+2 > _cross.length)
+					_cross = Arrays.copyOf(_cross, _cross.length*2);
+				_cross[_crossCount++] = a;
+				_cross[_crossCount++] = b;
+			}
+		}
+	}
+
+	public UnionFind(int size)
+	{
+		_parent = new int[size];
+		for (int i=0; i < size; i++)
+		{
+			_parent[i] = i;
+		}
+	}
+	public int size()
+	{
+		return _parent.length;
+	}
+	/** @return the lowest id of the component */
+	public int find(int id)
+	{
+		while (_parent[id] != id)
+		{
+			// path halving
+			_parent[id] = _parent[_parent[id]];
+			id = _parent[id];
+		}
+		return id;
+	}
+	public void union(int a, int b)
+	{
+		int ra = find(a);
+		int rb = find(b);
+		if (ra < rb)
+			_parent[rb] = ra;
+		else if (rb < ra)
+			_parent[ra] = rb;
+	}
+	/** Join the links of all the ids in blocks of consecutive ids on threads. */
+	public void unionBlocks(final Links links, int threads)
+	{
+		int size = _parent.length;
+		threads = Math.max(1, Math.min(threads, size));
+		int blockSize = (size+threads-1)/threads;
+		final Joiner[] joiners = new Joiner[threads];
+		for (int b=0; b < threads; b++)
+		{
+			joiners[b] = new Joiner(Math.min(size, b*blockSize), Math.min(size, (b+1)*blockSize));
+		}
+		ParallelLines.run(threads, threads, new ParallelLines.Range() {
+			public void run(int from, int to)
+			{
+				for (int b=from; b < to; b++)
+				{
+					Joiner joiner = joiners[b];
+					for (int id=joiner._from; id < joiner._to; id++)
+					{
+						links.link(id, joiner);
+					}
+				}
+			}
+		});
+		// merge at the block borders
+		for (Joiner joiner: joiners)
+		{
+			for (int i=0; i < joiner._crossCount; i+=2)
+			{
+				union(joiner._cross[i], joiner._cross[i+1]);
+			}
+		}
+		_labels = null;
+	}
+	/** @return component label 0 to getCount()-1 of each id, components are numbered in order of their lowest id */
+	public int[] labels()
+	{
+		if (_labels == null)
+		{
+			int size = _parent.length;
+			_labels = new int[size];
+			_count = 0;
+			for (int id=0; id < size; id++)
+			{
+				int root = find(id);
+				if (root == id)
+					_labels[id] = _count++;
+				else
+					_labels[id] = _labels[root];
+			}
+		}
+		return _labels;
+	}
+	/** @return the number of components */
+	public int getCount()
+	{
+		labels();
+		return _count;
+	}
+	/** @return the number of ids in each component label */
+	public int[] sizes()
+	{
+		int[] labels = labels();
+		int[] sizes = new int[_count];
+		for (int label: labels)
+		{
+			sizes[label]++;
+		}
+		return sizes;
+	}
+}
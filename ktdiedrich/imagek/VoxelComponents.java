@@ -0,0 +1,156 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import ktdiedrich.util.ParallelLines;
+
+/** 26 connected components of the voxels above 0 labeled with UnionFind. The voxels are numbered in z, row, column
+ * order so the UnionFind blocks are z slabs, voxels are linked to the 13 neighbors before them and slabs are merged
+ * at their borders.
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class VoxelComponents
+{
+	public static final int BACKGROUND = 0;
+	/** Column, row, z steps to the 26 neighbors before a voxel in z, row, column order */
+	private static final int[][] BEFORE = {
+		{-1, 0, 0}, {-1, -1, 0}, {0, -1, 0}, {1, -1, 0},
+		{-1, -1, -1}, {0, -1, -1}, {1, -1, -1}, {-1, 0, -1}, {0, 0, -1}, {1, 0, -1}, {-1, 1, -1}, {0, 1, -1}, {1, 1, -1}};
+	private int _width, _height, _zSize;
+	private int[][] _labels;
+	private int[] _sizes;
+	private int _count;
+
+	public VoxelComponents(short[][] voxels, int width, int height)
+	{
+		this(voxels, width, height, ParallelLines.availableThreads());
+	}
+	public VoxelComponents(final short[][] voxels, final int width, final int height, int threads)
+	{
+		_width = width;
+		_height = height;
+		_zSize = voxels.length;
+		final int wh = width*height;
+		// voxel ids, -1 for background
+		final int[][] ids = new int[_zSize][wh];
+		int count = 0;
+		for (int z=0; z < _zSize; z++)
+		{
+			for (int i=0; i < wh; i++)
+			{
+				ids[z][i] = voxels[z][i] > 0 ? count++: -1;
+			}
+		}
+		final int[] positions = new int[count];
+		int id = 0;
+		for (int z=0; z < _zSize; z++)
+		{
+			for (int i=0; i < wh; i++)
+			{
+				if (ids[z][i] >= 0)
+					positions[id++] = z*wh+i;
+			}
+		}
+		UnionFind uf = new UnionFind(count);
+		uf.unionBlocks(new UnionFind.Links() {
+			public void link(int id, UnionFind.Joiner joiner)
+			{
+				int z = positions[id] / wh;
+				int i = positions[id] % wh;
+				int row = i / width;
+				int col = i % width;
+				for (int[] step: BEFORE)
+				{
+					int c = col+step[0], r = row+step[1], zz = z+step[2];
+					if (c >= 0 && c < width && r >= 0 && r < height && zz >= 0)
+					{
+						int adj = ids[zz][r*width+c];
+						if (adj >= 0)
+							joiner.union(id, adj);
+					}
+				}
+			}
+		}, threads);
+		int[] labels = uf.labels();
+		_count = uf.getCount();
+		_sizes = new int[_count+1];
+		for (int n=0; n < count; n++)
+		{
+			int pos = positions[n];
+			int label = labels[n]+1;
+			ids[pos / wh][pos % wh] = label;
+			_sizes[label]++;
+		}
+		for (int z=0; z < _zSize; z++)
+		{
+			for (int i=0; i < wh; i++)
+			{
+				if (ids[z][i] < 0)
+					ids[z][i] = BACKGROUND;
+			}
+		}
+		_labels = ids;
+	}
+	/** @return component label 1 to getCount() of each voxel or BACKGROUND. Labels are in z, row, column order of
+	 * the first voxel of the component. */
+	public int[][] getLabels()
+	{
+		return _labels;
+	}
+	public int getCount()
+	{
+		return _count;
+	}
+	/** @return the voxel count of each label, index 0 is unused */
+	public int[] getSizes()
+	{
+		return _sizes;
+	}
+	/** Set the voxels of components with lowThreshold or fewer voxels to 0 in voxels and the labels. */
+	public int threshold(short[][] voxels, int lowThreshold)
+	{
+		int removed = 0;
+		for (int z=0; z < _zSize; z++)
+		{
+			for (int i=0; i < _width*_height; i++)
+			{
+				int label = _labels[z][i];
+				if (label != BACKGROUND && _sizes[label] <= lowThreshold)
+				{
+					voxels[z][i] = 0;
+					_labels[z][i] = BACKGROUND;
+					removed++;
+				}
+			}
+		}
+		return removed;
+	}
+	public int getWidth()
+	{
+		return _width;
+	}
+	public int getHeight()
+	{
+		return _height;
+	}
+	public int getZSize()
+	{
+		return _zSize;
+	}
+}
@@ -0,0 +1,533 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+import java.util.LinkedList;
+import java.util.List;
+
+/** Compact connected component graph of a 3D image in compressed sparse row form. Nodes are int ids
+ * numbered in raster order (z, row, col) and every per node value is kept in a primitive array so
+ * millions of artery voxels don't each need a GraphNode object and a HashSet of adjacents.
+ * Data members are public like GraphNode so the algorithms can work on the arrays directly.
+ * GraphNode objects are only made for the nodes that need them, like the backtraced centerline nodes.
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class VoxelGraph
+{
+	public static final int NONE = -1;
+	private int _width, _height, _zSize;
+	private int _nodeCount;
+	private int _sourceNode;
+	/** First node id of each row, indexed by z*height+row, length zSize*height+1. */
+	private int[] _rowStart;
+	/** Node voxel index row*width+col within its z slice. */
+	public int[] xy;
+	public short[] z;
+	/** Neighbors of node i are neighbors[offsets[i]] to neighbors[offsets[i+1]-1] */
+	public int[] offsets;
+	public int[] neighbors;
+	public float[] weight;
+	public float[] pathCost;
+	public float[] mDFE;
+	public short[] dfe;
+	public short[] dfc;
+	public int[] predecessor;
+	public int[] pathLen;
+
+	private VoxelGraph(int width, int height, int zSize, int nodeCount)
+	{
+		_width = width;
+		_height = height;
+		_zSize = zSize;
+		_nodeCount = nodeCount;
+		_sourceNode = NONE;
+		xy = new int[nodeCount];
+		z = new short[nodeCount];
+		offsets = new int[nodeCount+1];
+		weight = new float[nodeCount];
+		pathCost = new float[nodeCount];
+		mDFE = new float[nodeCount];
+		dfe = new short[nodeCount];
+		dfc = new short[nodeCount];
+		predecessor = new int[nodeCount];
+		pathLen = new int[nodeCount];
+	}
+
+	/** Make a graph of every voxel with a DFE straight from the DFE arrays. Voxels one in from the edge of the
+	 * volume are linked to their 26 neighbors, edge voxels are kept only when next to one of those, the same
+	 * as ConnectedGraph.makeNodeListDFE().
+	 * @param dfes DFE function value for each voxel of a 3D image */
+	public static VoxelGraph makeDFEGraph(short[][] dfes, int width, int height)
+	{
+		int zSize = dfes.length;
+		// count nodes and rows
+		int[] rowStart = new int[zSize*height+1];
+		int count = 0;
+		for (int zz=0; zz < zSize; zz++)
+		{
+			short[] slice = dfes[zz];
+			for (int r=0; r < height; r++)
+			{
+				rowStart[zz*height+r] = count;
+				for (int c=0; c < width; c++)
+				{
+					if (slice[r*width+c] != 0 && isNode(dfes, width, height, zSize, c, r, zz))
+					{
+						count++;
+					}
+				}
+			}
+		}
+		rowStart[zSize*height] = count;
+		VoxelGraph g = new VoxelGraph(width, height, zSize, count);
+		g._rowStart = rowStart;
+
+		// node positions and DFE, count edges
+		int n = 0;
+		int edges = 0;
+		for (int zz=0; zz < zSize; zz++)
+		{
+			short[] slice = dfes[zz];
+			for (int r=0; r < height; r++)
+			{
+				for (int c=0; c < width; c++)
+				{
+					int i = r*width+c;
+					if (slice[i] != 0 && isNode(dfes, width, height, zSize, c, r, zz))
+					{
+						g.xy[n] = i;
+						g.z[n] = (short)zz;
+						g.dfe[n] = (short)(0xFFFF & slice[i]);
+						g.offsets[n] = edges;
+						if (isInside(width, height, zSize, c, r, zz))
+						{
+							edges += countNeighbors(dfes, width, c, r, zz);
+						}
+						n++;
+					}
+				}
+			}
+		}
+		g.offsets[count] = edges;
+
+		// fill adjacency in one pass
+		g.neighbors = new int[edges];
+		int e = 0;
+		for (n=0; n < count; n++)
+		{
+			int c = g.col(n), r = g.row(n), zz = g.z[n];
+			if (isInside(width, height, zSize, c, r, zz))
+			{
+				for (int dz=-1; dz <= 1; dz++)
+				{
+					for (int dr=-1; dr <= 1; dr++)
+					{
+						for (int dc=-1; dc <= 1; dc++)
+						{
+							if ((dz != 0 || dr != 0 || dc != 0) && dfes[zz+dz][(r+dr)*width+c+dc] != 0)
+							{
+								g.neighbors[e++] = g.findNode(c+dc, r+dr, zz+dz);
+							}
+						}
+					}
+				}
+			}
+		}
+		g.algorithmReset();
+		IJ.log("Voxel graph nodes: "+count+" edges: "+edges);
+		return g;
+	}
+	private static boolean isInside(int width, int height, int zSize, int c, int r, int zz)
+	{
+		return zz > 0 && zz < zSize-1 && r > 0 && r < height-1 && c > 0 && c < width-1;
+	}
+	/** Inside voxels are nodes, edge voxels are nodes only when they have an inside neighbor. */
+	private static boolean isNode(short[][] dfes, int width, int height, int zSize, int c, int r, int zz)
+	{
+		if (isInside(width, height, zSize, c, r, zz))
+			return true;
+		for (int dz=-1; dz <= 1; dz++)
+		{
+			for (int dr=-1; dr <= 1; dr++)
+			{
+				for (int dc=-1; dc <= 1; dc++)
+				{
+					int nc = c+dc, nr = r+dr, nz = zz+dz;
+					if ((dz != 0 || dr != 0 || dc != 0) && isInside(width, height, zSize, nc, nr, nz) &&
+							dfes[nz][nr*width+nc] != 0)
+					{
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+	private static int countNeighbors(short[][] dfes, int width, int c, int r, int zz)
+	{
+		int count = 0;
+		for (int dz=-1; dz <= 1; dz++)
+		{
+			for (int dr=-1; dr <= 1; dr++)
+			{
+				for (int dc=-1; dc <= 1; dc++)
+				{
+					if ((dz != 0 || dr != 0 || dc != 0) && dfes[zz+dz][(r+dr)*width+c+dc] != 0)
+					{
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/** Reset the path values to the initial state for algorithms to rerun on. */
+	public void algorithmReset()
+	{
+		for (int i=0; i < _nodeCount; i++)
+		{
+			pathCost[i] = Float.MAX_VALUE;
+			predecessor[i] = NONE;
+			pathLen[i] = 0;
+		}
+	}
+	/** @return node id at the voxel or NONE if the voxel isn't in the graph. Binary search of the row. */
+	public int findNode(int col, int row, int zz)
+	{
+		if (col < 0 || col >= _width || row < 0 || row >= _height || zz < 0 || zz >= _zSize)
+			return NONE;
+		int ri = zz*_height+row;
+		int lo = _rowStart[ri];
+		int hi = _rowStart[ri+1]-1;
+		int key = row*_width+col;
+		while (lo <= hi)
+		{
+			int mid = (lo+hi) >>> 1;
+			int v = xy[mid];
+			if (v < key) lo = mid+1;
+			else if (v > key) hi = mid-1;
+			else return mid;
+		}
+		return NONE;
+	}
+	public int col(int node)
+	{
+		return xy[node] % _width;
+	}
+	public int row(int node)
+	{
+		return xy[node] / _width;
+	}
+	public int adjacentCount(int node)
+	{
+		return offsets[node+1]-offsets[node];
+	}
+	public int nodeCount()
+	{
+		return _nodeCount;
+	}
+	public int edgeCount()
+	{
+		return offsets[_nodeCount];
+	}
+	public int getWidth()
+	{
+		return _width;
+	}
+	public int getHeight()
+	{
+		return _height;
+	}
+	public int getZSize()
+	{
+		return _zSize;
+	}
+	public int getSourceNode()
+	{
+		return _sourceNode;
+	}
+	/** Set the source goal node of the graph. All paths will lead back to this node.  */
+	public void setSourceNode(int sourceNode)
+	{
+		_sourceNode = sourceNode;
+	}
+	/** @return a string containing the col, row, z coordinates */
+	public String coordinateString(int node)
+	{
+		return "("+col(node)+", "+row(node)+", "+z[node]+")";
+	}
+
+	/** Separate the nodes into connected component graphs with a primitive breadth first queue.
+	 * @param lowThreshold remove graphs with this count or less.
+	 * @return a separate compact graph for each bunch of connected nodes. */
+	public List<VoxelGraph> makeGraphs(int lowThreshold)
+	{
+		int[] label = new int[_nodeCount];
+		int[] queue = new int[_nodeCount];
+		List<int[]> comps = new LinkedList<int[]>();
+		int next = 1;
+		// edge voxels only link in, start from the inside nodes first so they join their neighbors 
+		for (int pass=0; pass < 2; pass++)
+		{
+		for (int start=0; start < _nodeCount; start++)
+		{
+			if (label[start] == 0 && (pass == 1 || adjacentCount(start) > 0))
+			{
+				int head = 0, tail = 0;
+				queue[tail++] = start;
+				label[start] = next;
+				while (head < tail)
+				{
+					int u = queue[head++];
+					for (int e=offsets[u]; e < offsets[u+1]; e++)
+					{
+						int v = neighbors[e];
+						if (label[v] == 0)
+						{
+							label[v] = next;
+							queue[tail++] = v;
+						}
+					}
+				}
+				comps.add(new int[] {next, tail});
+				next++;
+			}
+		}
+		}
+		queue = null;
+		// local id of each node in its component, raster order is kept
+		int[] localId = new int[_nodeCount];
+		int[] size = new int[next];
+		for (int i=0; i < _nodeCount; i++)
+		{
+			localId[i] = size[label[i]]++;
+		}
+		List<VoxelGraph> graphs = new LinkedList<VoxelGraph>();
+		for (int[] comp: comps)
+		{
+			if (comp[1] > lowThreshold)
+			{
+				graphs.add(subGraph(label, comp[0], comp[1], localId));
+			}
+		}
+		return graphs;
+	}
+	private VoxelGraph subGraph(int[] label, int lab, int count, int[] localId)
+	{
+		VoxelGraph g = new VoxelGraph(_width, _height, _zSize, count);
+		int[] rowStart = new int[_zSize*_height+1];
+		int edges = 0;
+		int n = 0;
+		int ri = 0;
+		for (int i=0; i < _nodeCount; i++)
+		{
+			if (label[i] == lab)
+			{
+				int nri = z[i]*_height+row(i);
+				while (ri <= nri) rowStart[ri++] = n;
+				g.xy[n] = xy[i];
+				g.z[n] = z[i];
+				g.dfe[n] = dfe[i];
+				g.dfc[n] = dfc[i];
+				g.mDFE[n] = mDFE[i];
+				g.weight[n] = weight[i];
+				g.offsets[n] = edges;
+				edges += adjacentCount(i);
+				n++;
+			}
+		}
+		while (ri <= _zSize*_height) rowStart[ri++] = n;
+		g.offsets[count] = edges;
+		g._rowStart = rowStart;
+		g.neighbors = new int[edges];
+		int e = 0;
+		for (int i=0; i < _nodeCount; i++)
+		{
+			if (label[i] == lab)
+			{
+				for (int a=offsets[i]; a < offsets[i+1]; a++)
+				{
+					g.neighbors[e++] = localId[neighbors[a]];
+				}
+			}
+		}
+		g.algorithmReset();
+		return g;
+	}
+
+	/** Find max MDFE source node or minimum weight source node the same way as Graph.findBestSourceNode()
+	 * @return source node id */
+	public int findBestSourceNode(VoxelDistance vd)
+	{
+		int[] bestTies = new int[_nodeCount];
+		int btLen = 0;
+		boolean hasMDFE = false;
+		for (int i=0; i < _nodeCount; i++)
+		{
+			if (mDFE[i] > 0)
+			{
+				hasMDFE = true;
+				break;
+			}
+		}
+		if (!hasMDFE)
+		{
+			IJ.log("Finding minimum non zero weight root node. ");
+			float minWeight = Float.MAX_VALUE;
+			for (int i=0; i < _nodeCount; i++)
+			{
+				if (weight[i] != 0 && weight[i] <= minWeight && adjacentCount(i) > 0)
+				{
+					if (weight[i] < minWeight)
+					{
+						btLen = 0;
+					}
+					minWeight = weight[i];
+					bestTies[btLen++] = i;
+				}
+			}
+		}
+		else
+		{
+			IJ.log("Finding max MDFE root node ");
+			float maxMDFE = 0.0F;
+			for (int i=0; i < _nodeCount; i++)
+			{
+				if (mDFE[i] >= maxMDFE && adjacentCount(i) > 0)
+				{
+					if (mDFE[i] > maxMDFE)
+					{
+						btLen = 0;
+					}
+					maxMDFE = mDFE[i];
+					bestTies[btLen++] = i;
+				}
+			}
+		}
+		IJ.log("Best ties: "+btLen);
+		if (btLen == 1)
+		{
+			_sourceNode = bestTies[0];
+		}
+		else
+		{
+			int sumX=0, sumY=0, sumZ=0;
+			for (int b=0; b < btLen; b++)
+			{
+				sumX += col(bestTies[b]);
+				sumY += row(bestTies[b]);
+				sumZ += z[bestTies[b]];
+			}
+			double aveX = (double)sumX/(double)btLen;
+			double aveY = (double)sumY/(double)btLen;
+			double aveZ = (double)sumZ/(double)btLen;
+			double closestAve = Double.MAX_VALUE;
+			for (int b=0; b < btLen; b++)
+			{
+				int n = bestTies[b];
+				double dCol = (col(n)-aveX)*vd.getXRes();
+				double dRow = (row(n)-aveY)*vd.getYRes();
+				double dZ = (z[n]-aveZ)*vd.getZRes();
+				double d = Math.sqrt(dCol*dCol + dRow*dRow + dZ*dZ);
+				if (d < closestAve)
+				{
+					closestAve = d;
+					_sourceNode = n;
+				}
+			}
+		}
+		IJ.log("Graph size: "+_nodeCount+" Source Node: "+coordinateString(_sourceNode));
+		return _sourceNode;
+	}
+
+	/** Make a GraphNode with the values of the node but without adjacents or a predecessor, for the few nodes
+	 * like centerline nodes that the measuring and display code needs as objects. */
+	public GraphNode makeNode(int node)
+	{
+		GraphNode n = new GraphNode(new Position(col(node), row(node), z[node]));
+		n.weight = weight[node];
+		n.pathCost = pathCost[node];
+		n.pathLen = pathLen[node];
+		n.mDFE = mDFE[node];
+		n.dfe = dfe[node];
+		n.dfc = dfc[node];
+		return n;
+	}
+	/** @return the weights of the nodes of the graphs in image voxels */
+	public static float[][] weightVoxels(List<VoxelGraph> graphs, int width, int height, int zSize)
+	{
+		float[][] voxels = new float[zSize][width*height];
+		for (VoxelGraph g: graphs)
+		{
+			for (int n=0; n < g._nodeCount; n++)
+			{
+				voxels[g.z[n]][g.xy[n]] = g.weight[n];
+			}
+		}
+		return voxels;
+	}
+	public static ImagePlus makeWeightImage(List<VoxelGraph> graphs, int width, int height, int zSize, String name)
+	{
+		return ImageProcess.makeImage(weightVoxels(graphs, width, height, zSize), width, height, name);
+	}
+	public static ImagePlus makeDFEimage(List<VoxelGraph> graphs, int width, int height, int zSize, String name)
+	{
+		short[][] voxels = new short[zSize][width*height];
+		for (VoxelGraph g: graphs)
+		{
+			for (int n=0; n < g._nodeCount; n++)
+			{
+				voxels[g.z[n]][g.xy[n]] = g.dfe[n];
+			}
+		}
+		return ImageProcess.makeImage(voxels, width, height, name);
+	}
+	/** Path cost of the nodes reached by the last shortest path search. */
+	public static ImagePlus pathCostImage(List<VoxelGraph> graphs, int width, int height, int zSize, String name)
+	{
+		float[][] voxels = new float[zSize][width*height];
+		for (VoxelGraph g: graphs)
+		{
+			for (int n=0; n < g._nodeCount; n++)
+			{
+				if (g.pathCost[n] < Float.MAX_VALUE)
+					voxels[g.z[n]][g.xy[n]] = g.pathCost[n];
+			}
+		}
+		return ImageProcess.makeImage(voxels, width, height, name);
+	}
+	/** Path length of the nodes reached by the last shortest path search. */
+	public static ImagePlus pathLengthImage(List<VoxelGraph> graphs, int width, int height, int zSize, String name)
+	{
+		short[][] voxels = new short[zSize][width*height];
+		for (VoxelGraph g: graphs)
+		{
+			for (int n=0; n < g._nodeCount; n++)
+			{
+				if (g.pathCost[n] < Float.MAX_VALUE)
+					voxels[g.z[n]][g.xy[n]] = (short)g.pathLen[n];
+			}
+		}
+		return ImageProcess.makeImage(voxels, width, height, name);
+	}
+}
@@ -0,0 +1,109 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich 
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.util.Arrays;
+
+/** Open addressing map from a voxel position to an int node index for the sparse voxels of a volume. 
+ * Replaces String Position.key() maps without making an object for each probe. Reads can be shared by threads 
+ * after the puts are finished.
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class VoxelIndex 
+{
+	public static final int NONE = -1;
+	private static final long EMPTY = -1L;
+	private long[] _keys;
+	private int[] _values;
+	private int _size;
+	private int _mask;
+	/** @param expected number of voxels to put before the table grows */
+	public VoxelIndex(int expected)
+	{
+		int capacity = 16;
+		while (capacity < 2L*expected)
+		{
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	private void allocate(int capacity)
+	{
+		_keys = new long[capacity];
+		Arrays.fill(_keys, EMPTY);
+		_values = new int[capacity];
+		_mask = capacity-1;
+		_size = 0;
+	}
+	/** @return unique key of the voxel position */
+	public static long key(int col, int row, int z, int width, int height)
+	{
+		return ((long)z*height+row)*width+col;
+	}
+	private int slot(long key)
+	{
+		long h = key*0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & _mask;
+	}
+	/** @return the index of the voxel or NONE */
+	public int get(long key)
+	{
+		int i = slot(key);
+		while (true)
+		{
+			long k = _keys[i];
+			if (k == key)
+				return _values[i];
+			if (k == EMPTY)
+				return NONE;
+			i = (i+1) & _mask;
+		}
+	}
+	public void put(long key, int value)
+	{
+		if (2*(_size+1) > _keys.length)
+		{
+			grow();
+		}
+		int i = slot(key);
+		while (_keys[i] != EMPTY && _keys[i] != key)
+		{
+			i = (i+1) & _mask;
+		}
+		if (_keys[i] == EMPTY)
+			_size++;
+		_keys[i] = key;
+		_values[i] = value;
+	}
+	public int size()
+	{
+		return _size;
+	}
+	private void grow()
+	{
+		long[] keys = _keys;
+		int[] values = _values;
+		allocate(keys.length << 1);
+		for (int i=0; i < keys.length; i++)
+		{
+			if (keys[i] != EMPTY)
+				put(keys[i], values[i]);
+		}
+	}
+}
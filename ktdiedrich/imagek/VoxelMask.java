@@ -0,0 +1,71 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich 
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.imagek;
+
+import java.util.Arrays;
+
+/** One bit for each voxel of a 3-D image in a long array, in place of boolean[zSize][height][width]. 
+ * @author Karl Diedrich <ktdiedrich@gmail.com>
+ * */
+public class VoxelMask 
+{
+	private long[] _words;
+	private int _width, _height, _zSize;
+	public VoxelMask(int width, int height, int zSize)
+	{
+		_width = width;
+		_height = height;
+		_zSize = zSize;
+		_words = new long[(int)(((long)width*height*zSize+63) >>> 6)];
+	}
+	/** @param z 0 based slice 
+	 * @param i row*width+col */
+	public boolean get(int z, int i)
+	{
+		long bit = (long)z*_width*_height+i;
+		return (_words[(int)(bit >>> 6)] & (1L << bit)) != 0;
+	}
+	public void set(int z, int i)
+	{
+		long bit = (long)z*_width*_height+i;
+		_words[(int)(bit >>> 6)] |= (1L << bit);
+	}
+	public void clear(int z, int i)
+	{
+		long bit = (long)z*_width*_height+i;
+		_words[(int)(bit >>> 6)] &= ~(1L << bit);
+	}
+	/** Clear all the voxels. */
+	public void clear()
+	{
+		Arrays.fill(_words, 0L);
+	}
+	public int getWidth()
+	{
+		return _width;
+	}
+	public int getHeight()
+	{
+		return _height;
+	}
+	public int getZSize()
+	{
+		return _zSize;
+	}
+}
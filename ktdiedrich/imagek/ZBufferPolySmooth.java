@@ -18,15 +18,15 @@
 
 package ktdiedrich.imagek;
 
-import java.util.LinkedList;
-import java.util.Queue;
-import java.util.Map;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
 
 import ij.*;
 import ij.measure.CurveFitter;
 import ij.process.*;
 import ktdiedrich.math.*;
+import ktdiedrich.util.ParallelLines;
 
 /** Smooth a zbuffer image using ploynomials in 4 directions 
   * @author Karl Diedrich <ktdiedrich@gmail.com>
@@ -39,20 +39,26 @@ public class ZBufferPolySmooth
     public static final double MAX_CHISQ = 1.0;
     public static final short Z_DIFF = 2;
     public static final int CLUSTER_SIZE = 30;
+    /** Label of the first cluster in the cluster numbers image */
+    public static final short FIRST_LABEL = 1001;
+    /** Row and column steps of the 4 fitted directions */
+    private static final int[][] DIRECTIONS = {{1, 0}, {0, 1}, {-1, 1}, {1, 1}};
+    /** Largest difference of a PolyFit chi squared from the CurveFitter fit of the same line relative to the 
+     * sum of squares of the line, CurveFitter differs by up to 6e-13 */
+    public static final double FIT_TOLERANCE = 1.0e-11;
     
     private int _kLength;
     private double _a;
     private double _b;
     private double[][] _chisqr;
-    private Map<Short, Cluster> _clusters;
     private double _maxChisq;
     private short _zDiff;
     private int _clusterSize;
-    private Queue<Position> _checkPos;
-    private short _clusterCount;
     private short[][] _clusterSizes;
     private short[][] _zSqr;
     private boolean _showSteps;
+    private int _threads;
+    private int _curveFits;
     
     public ZBufferPolySmooth()
     {
@@ -62,75 +68,185 @@ public class ZBufferPolySmooth
         _maxChisq = MAX_CHISQ;
         _zDiff =Z_DIFF;
         _clusterSize = CLUSTER_SIZE;
+        _threads = ParallelLines.availableThreads();
     }
     
-    protected void checkNeighbor(short[][] clusterSqr, int c, int r, Cluster cluster, short compare)
+    /** Chi squared of the least squares 2nd order polynomial of lines of 2*kLength+1 integer values at 
+     * x = -kLength to kLength. The fit is projected on the discrete orthogonal polynomials 1, x and 
+     * 12x^2-(n^2-1), chi squared is the sum of squares less the squared projections. The sums are integers so 
+     * the chi squared is exact, 0 for a line on a polynomial, while the sums fit in a long. */
+    private static class PolyFit
     {
-        if (clusterSqr[r][c] == 0 && (Math.abs(_zSqr[r][c] - compare) < _zDiff)  )
+        private int _k, _n;
+        private long _n1, _n2, _c2;
+        // common denominator of the projections 
+        private long _d;
+        private boolean _exact;
+        
+        PolyFit(int kLength)
         {
-            clusterSqr[r][c] = cluster.getLabel();
-            cluster.addOneSize();
-            // TODO make Position(x, y, z)
-            _checkPos.add(new Position(c, r));
+            _k = kLength;
+            _n = 2*kLength+1;
+            _c2 = (long)_n*_n-1;
+            for (long x=-_k; x<=_k; x++)
+            {
+                long q2 = 12*x*x-_c2;
+                _n1 += x*x;
+                _n2 += q2*q2;
+            }
+            _d = lcm(lcm(_n, Math.max(_n1, 1)), Math.max(_n2, 1));
+            _exact = (double)_n*Short.MAX_VALUE*Short.MAX_VALUE*_d < 9.0e18;
         }
-     }
-    
-    protected void clusterNeighbors(short[][] clusterSqr, int c, int r)
-    {
-       
-        int lastCol = _zSqr[0].length;
-        int lastRow = _zSqr.length;
-        
-        Cluster curCluster = null;
-        
-        if (_zSqr[r][c] > 0 && _chisqr[r][c] < _maxChisq && r > 0 && c > 0 && r < lastRow-1 && c < lastCol-1 )
+        private static long lcm(long a, long b)
+        {
+            long x = a, y = b;
+            while (y != 0)
+            {
+                long t = x % y;
+                x = y;
+                y = t;
+            }
+            return a/x*b;
+        }
+        /** Chi squared of the line through sqr[r][c] in row step dr and column step dc. */
+        double chisq(short[][] sqr, int r, int c, int dr, int dc)
+        {
+            long s0 = 0, s1 = 0, s2 = 0, yy = 0;
+            for (int x=-_k; x<=_k; x++)
+            {
+                long y = sqr[r+x*dr][c+x*dc];
+                s0 += y;
+                s1 += x*y;
+                s2 += (12L*x*x-_c2)*y;
+                yy += y*y;
+            }
+            return chisq(s0, s1, s2, yy);
+        }
+        /** @return FIT_TOLERANCE of the largest sum of squares of the 4 lines through sqr[r][c] */
+        double tolerance(short[][] sqr, int r, int c)
+        {
+            long maxYy = 0;
+            for (int[] d: DIRECTIONS)
+            {
+                long yy = 0;
+                for (int x=-_k; x<=_k; x++)
+                {
+                    long y = sqr[r+x*d[0]][c+x*d[1]];
+                    yy += y*y;
+                }
+                maxYy = Math.max(maxYy, yy);
+            }
+            return FIT_TOLERANCE*maxYy;
+        }
+        double chisq(short[] line)
         {
-            if (clusterSqr[r][c] > 0)
+            long s0 = 0, s1 = 0, s2 = 0, yy = 0;
+            for (int x=-_k; x<=_k; x++)
             {
-                curCluster = _clusters.get(clusterSqr[r][c]);
+                long y = line[x+_k];
+                s0 += y;
+                s1 += x*y;
+                s2 += (12L*x*x-_c2)*y;
+                yy += y*y;
             }
-            else
+            return chisq(s0, s1, s2, yy);
+        }
+        private double chisq(long s0, long s1, long s2, long yy)
+        {
+            if (_n < 4)
+                return 0.0;
+            if (_exact)
             {
-                curCluster = new Cluster(_clusterCount);
-                _clusters.put(_clusterCount, curCluster);
-                clusterSqr[r][c] = _clusterCount;
-                _clusterCount++;
+                long num = yy*_d - s0*s0*(_d/_n) - s1*s1*(_d/_n1) - s2*s2*(_d/_n2);
+                return (double)num/(double)_d;
             }
-            checkNeighbor(clusterSqr, c-1, r-1, curCluster, _zSqr[r][c]);
-            checkNeighbor(clusterSqr, c-1, r, curCluster, _zSqr[r][c]);
-            checkNeighbor(clusterSqr, c-1, r+1, curCluster, _zSqr[r][c]);
-            checkNeighbor(clusterSqr, c, r-1, curCluster, _zSqr[r][c]);
-            checkNeighbor(clusterSqr, c, r+1, curCluster, _zSqr[r][c]);
-            checkNeighbor(clusterSqr, c+1, r-1, curCluster, _zSqr[r][c]);
-            checkNeighbor(clusterSqr, c+1, r, curCluster, _zSqr[r][c]);
-            checkNeighbor(clusterSqr, c+1, r+1, curCluster, _zSqr[r][c]);
+            double chisq = yy - (double)s0*s0/_n - (double)s1*s1/_n1 - (double)s2*s2/_n2;
+            return Math.max(chisq, 0.0);
         }
     }
     
-    
+    /** Cluster the pixels of the Z buffer. A pixel away from the edge with a Z above 0 and a fit chi squared below 
+     * the maximum is a member and joins its 8 neighbors within the Z difference to its cluster. Members are joined 
+     * in a UnionFind pass so a cluster is numbered by its first member in row, column order. Other pixels go to the 
+     * first cluster of a member neighbor within the Z difference. The cluster size does not count the first member. */
     protected ImagePlus cluster()
     {
-        _checkPos = new LinkedList<Position>();
-        int height = _zSqr.length;
-        int width = _zSqr[0].length;
-        short[][] clusterSqr = new short[height][width];
-        _clusters = new HashMap<Short, Cluster>();
-        _clusterCount = 1001;
+        final int height = _zSqr.length;
+        final int width = _zSqr[0].length;
+        final boolean[] members = new boolean[height*width];
         for (int r=1; r<height-1; r++)
         {
             for (int c=1; c<width-1; c++)
             {
-                clusterNeighbors(clusterSqr, c, r);
-                while (_checkPos.isEmpty() == false)
+                members[r*width+c] = _zSqr[r][c] > 0 && _chisqr[r][c] < _maxChisq;
+            }
+        }
+        UnionFind uf = new UnionFind(height*width);
+        uf.unionBlocks(new UnionFind.Links() {
+            public void link(int id, UnionFind.Joiner joiner)
+            {
+                if (!members[id])
+                    return;
+                int r = id / width, c = id % width;
+                short z = _zSqr[r][c];
+                // neighbors before in row, column order 
+                if (members[id-1] && Math.abs(_zSqr[r][c-1]-z) < _zDiff)
+                    joiner.union(id, id-1);
+                for (int cc=c-1; cc<=c+1; cc++)
                 {
-                   Position pos = _checkPos.remove();
-                   clusterNeighbors(clusterSqr, pos.getColumn(), pos.getRow());
+                    if (members[id-width+cc-c] && Math.abs(_zSqr[r-1][cc]-z) < _zDiff)
+                        joiner.union(id, id-width+cc-c);
                 }
             }
+        }, _threads);
+        // cluster of each pixel by the id of its first member, -1 for none 
+        int[] clusterIds = new int[height*width];
+        int[] clusterMembers = new int[height*width];
+        for (int r=0; r<height; r++)
+        {
+            for (int c=0; c<width; c++)
+            {
+                int id = r*width+c;
+                int cluster = -1;
+                if (members[id])
+                {
+                    cluster = uf.find(id);
+                }
+                else
+                {
+                    short z = _zSqr[r][c];
+                    for (int rr=Math.max(r-1, 1); rr<=Math.min(r+1, height-2); rr++)
+                    {
+                        for (int cc=Math.max(c-1, 1); cc<=Math.min(c+1, width-2); cc++)
+                        {
+                            int adj = rr*width+cc;
+                            if (members[adj] && Math.abs(z-_zSqr[rr][cc]) < _zDiff)
+                            {
+                                int adjCluster = uf.find(adj);
+                                if (cluster < 0 || adjCluster < cluster)
+                                    cluster = adjCluster;
+                            }
+                        }
+                    }
+                }
+                clusterIds[id] = cluster;
+                if (cluster >= 0 && cluster != id)
+                    clusterMembers[cluster]++;
+            }
         }
         if (_showSteps)
         {
-            ImageProcessor numberProc = new ShortProcessor(width, height, MatrixUtil.square2array(clusterSqr), null);
+            short[] labels = new short[height*width];
+            short[] clusterLabels = new short[height*width];
+            short label = FIRST_LABEL;
+            for (int id=0; id<height*width; id++)
+            {
+                if (clusterIds[id] == id)
+                    clusterLabels[id] = label++;
+                if (clusterIds[id] >= 0)
+                    labels[id] = clusterLabels[clusterIds[id]];
+            }
+            ImageProcessor numberProc = new ShortProcessor(width, height, labels, null);
             ImagePlus numbers = new ImagePlus("Cluster_Numbers_No_threshold", numberProc);
             numbers.show();
             numbers.updateAndDraw();
@@ -140,10 +256,10 @@ public class ZBufferPolySmooth
         {
             for (int c=1; c<width-1; c++)
             {
-                if ((clusterSqr[r][c] != 0))
+                int cluster = clusterIds[r*width+c];
+                if (cluster >= 0)
                 {
-                    Cluster curClus = _clusters.get(clusterSqr[r][c]);
-                    int clusMembers = curClus.getSize();
+                    int clusMembers = clusterMembers[cluster];
                     if (clusMembers > _clusterSize)
                     {
                         _clusterSizes[r][c] = (short)(clusMembers+20);
@@ -177,6 +293,7 @@ public class ZBufferPolySmooth
         
         return smoothed;
     }
+    /** @return chi squared of the 2nd order polynomial fit of the line by the ImageJ CurveFitter */
     protected double fitScore(short[] line)
     {
         int len = line.length;
@@ -203,92 +320,180 @@ public class ZBufferPolySmooth
         
         return diffSum2;
     }
-    protected short[][] smoothSqr(short[][] sqr, int height, int width)
+    /** Minimum chi squared of the CurveFitter fits of the 4 lines through the pixel */
+    protected double fitScore(short[][] sqr, int r, int c)
     {
-        _chisqr = new double[height][width];
-        short[][] adjSqr = new short[height][width];
-        int end = (_kLength*2)+1;
-        for (int r=_kLength; r < height-_kLength; r++)
+        double minChij = 0.0;
+        short[] line = new short[2*_kLength+1];
+        for (int j=0; j<DIRECTIONS.length; j++)
         {
-            for (int c=_kLength; c<width-_kLength; c++)
+            for (int k=-_kLength, m=0; k<=_kLength; k++, m++)
             {
-                if (sqr[r][c] == 0)
-                    continue;
-                double minChij = 0.0;
-                double score = 0.0;
-                short[] lineJ0 = new short[end];
-                //j=0
-                int m=0;
-                for (int k=-_kLength; k<=_kLength; k++)
-                {
-                    lineJ0[m] = sqr[r+k][c];
-                    m++;
-                }
-                minChij = fitScore(lineJ0);
-                
-                // j=1
-                m=0;
-                short[] lineJ1=new short[end];
-                for (int k=-_kLength; k<=_kLength; k++)
+                line[m] = sqr[r+k*DIRECTIONS[j][0]][c+k*DIRECTIONS[j][1]];
+            }
+            double score = fitScore(line);
+            if (j == 0 || score < minChij)
+                minChij = score;
+        }
+        return minChij;
+    }
+    /** Fit polynomials in 4 directions through each pixel above 0, rows are fitted on threads. The chi squared 
+     * comes from PolyFit unless it is within the CurveFitter rounding of the maximum chi squared, then the 
+     * CurveFitter fits are used so the clusters are those of CurveFitter fits. A smoothed value can be 1 above 
+     * the CurveFitter one where the rounding crosses an integer, 5000 instead of 4999 for an exact fit. */
+    protected short[][] smoothSqr(final short[][] sqr, int height, final int width)
+    {
+        _chisqr = new double[height][width];
+        final short[][] adjSqr = new short[height][width];
+        final PolyFit fit = new PolyFit(_kLength);
+        final int kLength = _kLength;
+        final double maxTolerance = FIT_TOLERANCE*(2*kLength+1)*Short.MAX_VALUE*Short.MAX_VALUE;
+        _curveFits = 0;
+        ParallelLines.run(Math.max(height-2*kLength, 0), _threads, new ParallelLines.Range() {
+            public void run(int from, int to)
+            {
+                int curveFits = 0;
+                for (int r=kLength+from; r < kLength+to; r++)
                 {
-                    lineJ1[m] = sqr[r][c+k];
-                    m++;
+                    for (int c=kLength; c<width-kLength; c++)
+                    {
+                        if (sqr[r][c] == 0)
+                            continue;
+                        double minChij = fit.chisq(sqr, r, c, DIRECTIONS[0][0], DIRECTIONS[0][1]);
+                        for (int j=1; j<DIRECTIONS.length; j++)
+                        {
+                            double score = fit.chisq(sqr, r, c, DIRECTIONS[j][0], DIRECTIONS[j][1]);
+                            if (score < minChij)
+                                minChij = score;
+                        }
+                        if (Math.abs(minChij-_maxChisq) <= maxTolerance 
+                                && Math.abs(minChij-_maxChisq) <= fit.tolerance(sqr, r, c))
+                        {
+                            minChij = fitScore(sqr, r, c);
+                            curveFits++;
+                        }
+                        _chisqr[r][c] = minChij;
+                        short adjVal = (short)(_a/(_b+minChij));
+                        adjSqr[r][c] =  adjVal;
+                    }
                 }
-                score = fitScore(lineJ1);
-                if (score < minChij)
-                    minChij = score;
-                
-                // j=2
-                m=0;
-                short[] lineJ2 = new short[end];
-                for (int k=-_kLength; k<=_kLength; k++)
+                synchronized (adjSqr)
                 {
-                    lineJ2[m] = sqr[r-k][c+k];
-                    m++;
+                    _curveFits += curveFits;
                 }
-                score = fitScore(lineJ2);
-                if (score < minChij)
-                    minChij = score;
-                
-                // j=3
-                m=0;
-                short[] lineJ3 = new short[end];
-                for (int k=-_kLength; k<=_kLength; k++)
+            }
+        });
+        return adjSqr;
+    }
+    /** Compare the maximum chi squared tests and the smoothed image with CurveFitter fits of every line on a 
+     * Z buffer of the lines and circles of the image. The depth of the lines and circles rises across the image 
+     * with noise and a tilted plane of background is under them. */
+    public static String tests(String imagePath)
+    {
+        StringBuffer sb = new StringBuffer();
+        ImagePlus mask = IJ.openImage(imagePath);
+        if (mask == null)
+            return "No image "+imagePath;
+        int width = mask.getWidth(), height = mask.getHeight();
+        short[] maskPixels = (short[])mask.getProcessor().convertToShort(false).getPixels();
+        int slices = 60;
+        Random random = new Random(17);
+        ImageStack stack = new ImageStack(width, height);
+        short[][] voxels = new short[slices][width*height];
+        for (int r=0; r<height; r++)
+        {
+            for (int c=0; c<width; c++)
+            {
+                int i = r*width+c;
+                int z;
+                if (maskPixels[i] != 0)
+                    z = Math.min(10 + (r+c)/25 + (random.nextInt(8) == 0 ? random.nextInt(5)-2: 0), slices-1);
+                else
+                    z = Math.min(40 + r/45 + c/90 + random.nextInt(2), slices-1);
+                voxels[z][i] = (short)(maskPixels[i] != 0 ? 1000: 100+random.nextInt(50));
+            }
+        }
+        for (int z=0; z<slices; z++)
+        {
+            stack.addSlice(""+z, new ShortProcessor(width, height, voxels[z], null));
+        }
+        ImagePlus zImage = MIPZUtil.createMIPZImage(new ImagePlus("linesCircles", stack));
+        short[][] zSqr = MatrixUtil.array2Square((short[])zImage.getProcessor().getPixels(), height, width);
+        
+        // CurveFitter and PolyFit chi squared of every pixel 
+        int kLength = K_LENGTH;
+        ZBufferPolySmooth reference = new ZBufferPolySmooth();
+        PolyFit fit = new PolyFit(kLength);
+        double[][] curveChisq = new double[height][width];
+        double[][] polyChisq = new double[height][width];
+        Map<Double, Integer> polyCounts = new HashMap<Double, Integer>();
+        for (int r=kLength; r<height-kLength; r++)
+        {
+            for (int c=kLength; c<width-kLength; c++)
+            {
+                if (zSqr[r][c] == 0)
+                    continue;
+                curveChisq[r][c] = reference.fitScore(zSqr, r, c);
+                double poly = fit.chisq(zSqr, r, c, DIRECTIONS[0][0], DIRECTIONS[0][1]);
+                for (int j=1; j<DIRECTIONS.length; j++)
+                    poly = Math.min(poly, fit.chisq(zSqr, r, c, DIRECTIONS[j][0], DIRECTIONS[j][1]));
+                polyChisq[r][c] = poly;
+                Integer count = polyCounts.get(poly);
+                polyCounts.put(poly, count == null ? 1: count+1);
+            }
+        }
+        // the most common chi squared above 0 as a maximum many pixels are on 
+        double common = MAX_CHISQ;
+        int commonCount = 0;
+        for (Map.Entry<Double, Integer> e: polyCounts.entrySet())
+        {
+            if (e.getKey() > 0 && e.getValue() > commonCount)
+            {
+                common = e.getKey();
+                commonCount = e.getValue();
+            }
+        }
+        double[] maxChisqs = {MAX_CHISQ, 2.0, 10.0, 100.0, common};
+        int failed = 0;
+        for (double maxChisq: maxChisqs)
+        {
+            ZBufferPolySmooth smoother = new ZBufferPolySmooth();
+            smoother.setMaxChisq(maxChisq);
+            short[][] adjSqr = smoother.smoothSqr(zSqr, height, width);
+            int values = 0, wrongValues = 0, tests = 0, polyTests = 0;
+            for (int r=kLength; r<height-kLength; r++)
+            {
+                for (int c=kLength; c<width-kLength; c++)
                 {
-                    lineJ3[m] = sqr[r+k][c+k];
-                    m++;
+                    if (zSqr[r][c] == 0)
+                        continue;
+                    double chisq = curveChisq[r][c];
+                    int valueDiff = adjSqr[r][c] - (short)(smoother._a/(smoother._b+chisq));
+                    if (valueDiff != 0)
+                        values++;
+                    if (valueDiff < 0 || valueDiff > 1)
+                        wrongValues++;
+                    if ((smoother._chisqr[r][c] < maxChisq) != (chisq < maxChisq))
+                        tests++;
+                    if ((polyChisq[r][c] < maxChisq) != (chisq < maxChisq))
+                        polyTests++;
                 }
-                score = fitScore(lineJ3);
-                if (score < minChij)
-                    minChij = score;
-                _chisqr[r][c] = minChij;
-                short adjVal = (short)(_a/(_b+minChij));
-                adjSqr[r][c] =  adjVal;
             }
-            
+            if (wrongValues > 0 || tests > 0)
+                failed++;
+            sb.append("max chi squared "+maxChisq+": "+(wrongValues==0 && tests==0 ? "same tests": 
+                "DIFFERENT values "+wrongValues+" tests "+tests)+", "+values+" values 1 above, "+
+                smoother._curveFits+" CurveFitter pixels, PolyFit alone differs in "+polyTests+" tests\n");
         }
-        return adjSqr;
+        sb.append(failed==0 ? "chi squared tests match the CurveFitter fits": failed+" DIFFERENT");
+        return sb.toString();
     }
     /** 
-     * @param args
+     * @param args image of the lines to make a Z buffer of, testimages/linesCircles.tif by default
      */
     public static void main(String[] args)
     {
-        ZBufferPolySmooth smoother = new ZBufferPolySmooth();
-        short[][] zBuf = new short[6][6];
-        int top = 9;
-        short val = 1;
-        for (int i=0; i<6; i++)
-        {
-            for (int j=0; j<6;j++)
-            {
-                zBuf[i][j] = val;
-                val++;
-                if (val > top)
-                    val = 1;
-            }
-        }
-        short[][] adjSqr = smoother.smoothSqr(zBuf, 6, 6);
+        System.out.println(tests(args.length > 0 ? args[0]: "testimages/linesCircles.tif"));
     }
     public int getKLength()
     {
@@ -363,6 +568,13 @@ public class ZBufferPolySmooth
     {
         _showSteps = showSteps;
     }
+    public int getThreads()
+    {
+        return _threads;
+    }
 
+    public void setThreads(int threads)
+    {
+        _threads = threads;
+    }
 }
-
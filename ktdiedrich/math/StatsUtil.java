@@ -19,7 +19,9 @@
 package ktdiedrich.math;
 
 import ij.ImageStack;
-import ij.process.ImageProcessor;
+import ktdiedrich.imagek.Histogram;
+import ktdiedrich.imagek.ImageProcess;
+import ktdiedrich.util.ParallelLines;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -55,36 +57,16 @@ public class StatsUtil
         double sd = standardDeviation(vals, 6.8);
         System.out.println("Standard deviation: "+sd);
     }
+    /** Print the count of each value from 0 to the highest value of the stack. */
     public void histogram(ImageStack stack)
     {
-        int zSize = stack.getSize();
-        int imageHigh = 0;
-        
-        
-        for (int i=1; i<zSize; i++)
-        {
-            ImageProcessor proc = stack.getProcessor(i);
-            short[] intensities = (short[])proc.getPixels();
-            for (int j=0; j<intensities.length; j++)
-            {
-                if (intensities[j]>imageHigh)
-                    imageHigh = intensities[j];
-            }
-        }
-        short[] histogram = new short[imageHigh+1];
+        Histogram histogram = Histogram.histogram(ImageProcess.getShortStackVoxels(stack), 
+                ParallelLines.availableThreads());
+        int imageHigh = Math.max(histogram.getMax(), 0);
         System.out.println("Image high: "+imageHigh);
-        for (int i=1; i<zSize; i++)
-        {
-            ImageProcessor proc = stack.getProcessor(i);
-            short[] intensities = (short[])proc.getPixels();
-            for (int j=0; j<intensities.length; j++)
-            {
-                histogram[ intensities[j] ]++;
-            }
-        }
-        for (int i=0; i<histogram.length; i++)
+        for (int i=0; i<=imageHigh; i++)
         {
-            System.out.println("Value: "+i+", Count: "+histogram[i]);
+            System.out.println("Value: "+i+", Count: "+histogram.count((short)i));
         }
     }
 }
@@ -0,0 +1,81 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich 
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.util;
+
+/** First in first out queue of int values in a growable ring buffer. 
+ * @author ktdiedrich@gmail.com*/
+public class IntQueue 
+{
+	private int[] _values;
+	private int _head;
+	private int _size;
+	
+	public IntQueue()
+	{
+		this(64);
+	}
+	public IntQueue(int capacity)
+	{
+		_values = new int[Math.max(capacity, 1)];
+	}
+	public void add(int value)
+	{
+		if (_size == _values.length)
+		{
+			grow();
+		}
+		_values[(_head+_size) % _values.length] = value;
+		_size++;
+	}
+	/** @return the first value and remove it */
+	public int poll()
+	{
+		int value = _values[_head];
+		_head = (_head+1) % _values.length;
+		_size--;
+		return value;
+	}
+	/** @return the i th value from the first */
+	public int get(int i)
+	{
+		return _values[(_head+i) % _values.length];
+	}
+	public boolean isEmpty()
+	{
+		return _size == 0;
+	}
+	public int size()
+	{
+		return _size;
+	}
+	public void clear()
+	{
+		_head = 0;
+		_size = 0;
+	}
+	private void grow()
+	{
+		int[] values = new int[_values.length*2];
+		int first = Math.min(_size, _values.length-_head);
+		System.arraycopy(_values, _head, values, 0, first);
+		System.arraycopy(_values, 0, values, first, _size-first);
+		_values = values;
+		_head = 0;
+	}
+}
@@ -0,0 +1,95 @@
+/*=========================================================================
+ *
+ *  Copyright (c) Karl T. Diedrich 
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0.txt
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ *=========================================================================*/
+
+package ktdiedrich.util;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Run independent image lines, planes or other numbered items in ranges on a pool of threads. 
+ * @author ktdiedrich@gmail.com*/
+public class ParallelLines 
+{
+	/** Ranges per thread to balance lines with more work. */
+	public static final int RANGES_PER_THREAD = 4;
+	
+	/** Work on the lines from, up to to. */
+	public interface Range
+	{
+		public void run(int from, int to);
+	}
+	
+	public static int availableThreads()
+	{
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/** Split the lines into ranges for the threads and wait for them to finish. One thread runs all the lines in this 
+	 * thread. Exceptions in the ranges are thrown as a RuntimeException. */
+	public static void run(int lines, int threads, final Range range)
+	{
+		threads = Math.max(1, Math.min(threads, lines));
+		if (threads == 1)
+		{
+			if (lines > 0)
+				range.run(0, lines);
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Object>> futures = new LinkedList<Future<Object>>();
+		int ranges = RANGES_PER_THREAD*threads;
+		int size = (lines+ranges-1)/ranges;
+		for (int from=0; from < lines; from+=size)
+		{
+			final int f = from;
+			final int t = Math.min(lines, from+size);
+			futures.add(executor.submit(new Callable<Object>() {
+				public Object call()
+				{
+					range.run(f, t);
+					return null;
+				}
+			}));
+		}
+		try
+		{
+			for (Future<Object> future: futures)
+			{
+				future.get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause());
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+}